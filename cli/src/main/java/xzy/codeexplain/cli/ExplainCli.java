@@ -0,0 +1,242 @@
+package xzy.codeexplain.cli;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import xzy.codeexplain.plugin.cache.BatchResultStore;
+import xzy.codeexplain.plugin.cache.ExplanationCache;
+import xzy.codeexplain.plugin.client.ExplanationClient;
+import xzy.codeexplain.plugin.models.CodeAnalysisRequest;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Explains many source files from the command line, without an IDE, e.g. to pre-warm explanations in CI.
+ * <p>
+ * Every file is explained as a whole. Files are read and sent in parallel, with as many requests in flight as
+ * {@code --parallelism} allows. Explanations are written to the JSONL file given by {@code --output}; running the
+ * CLI again skips every file whose contents are unchanged since. With {@code --store}, explanations are also kept
+ * in an on-disk store, which a later run answers from without any request.
+ * <p>
+ * Usage: {@code ExplainCli [options] <file or directory>...}
+ */
+public final class ExplainCli {
+
+    /**
+     * Files are explained with batch priority, all under this owner.
+     */
+    private static final String OWNER = "cli";
+
+    private final List<Path> roots = new ArrayList<>();
+    private final Set<String> extensions = new HashSet<>(List.of("java", "kt"));
+    private Path output = Paths.get("codeexplain-results.jsonl");
+    @Nullable
+    private Path storeDirectory;
+    private int parallelism = 8;
+    private int maxFileChars = 50_000;
+
+    private final AtomicInteger explained = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger processed = new AtomicInteger();
+
+    private ExplainCli() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        ExplainCli cli = new ExplainCli();
+        if (!cli.parse(args)) {
+            printUsage();
+            System.exit(2);
+        }
+        boolean success = cli.run();
+        System.exit(success ? 0 : 1);
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: ExplainCli [options] <file or directory>...");
+        System.err.println("  --output <file>        JSONL file the explanations are appended to (default codeexplain-results.jsonl)");
+        System.err.println("  --store <directory>    On-disk explanation store reused by later runs");
+        System.err.println("  --url <url>            Explain endpoint of the API");
+        System.err.println("  --parallelism <n>      Requests in flight at a time (default 8)");
+        System.err.println("  --extensions <list>    Comma separated extensions of the files to explain (default java,kt)");
+        System.err.println("  --max-file-chars <n>   Larger files are skipped (default 50000)");
+    }
+
+    /**
+     * Reads the options and the files and directories to explain.
+     *
+     * @param args The command line arguments
+     * @return false if the arguments are invalid
+     */
+    private boolean parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                roots.add(Paths.get(args[i]));
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                System.err.println("Error: Missing value of " + args[i]);
+                return false;
+            }
+            String option = args[i];
+            String value = args[++i];
+            switch (option) {
+                case "--output":
+                    output = Paths.get(value);
+                    break;
+                case "--store":
+                    storeDirectory = Paths.get(value);
+                    break;
+                case "--url":
+                    System.setProperty("codeexplain.api.url", value);
+                    break;
+                case "--parallelism":
+                    parallelism = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "--extensions":
+                    extensions.clear();
+                    for (String extension : value.split(",")) {
+                        extensions.add(extension.trim().toLowerCase(Locale.ROOT));
+                    }
+                    break;
+                case "--max-file-chars":
+                    maxFileChars = Integer.parseInt(value);
+                    break;
+                default:
+                    System.err.println("Error: Unknown option " + option);
+                    return false;
+            }
+        }
+        return !roots.isEmpty();
+    }
+
+    /**
+     * Explains every matching file below the roots.
+     *
+     * @return true if every file was explained or skipped
+     */
+    private boolean run() throws IOException, InterruptedException {
+        List<Path> files = collectFiles();
+        System.err.println("Explaining " + files.size() + " files, " + parallelism + " at a time");
+
+        // The client starts as many API calls at a time as it is configured to, allow every slot to be used
+        if (System.getProperty("codeexplain.maxConcurrentRequests") == null) {
+            System.setProperty("codeexplain.maxConcurrentRequests", Integer.toString(parallelism));
+        }
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "codeexplain-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Semaphore slots = new Semaphore(parallelism);
+        long startNanos = System.nanoTime();
+
+        try (ExplanationClient client = new ExplanationClient(storeDirectory, timer);
+             BatchResultStore store = BatchResultStore.open(output.toAbsolutePath())) {
+            for (Path file : files) {
+                String code;
+                try {
+                    code = Files.readString(file, StandardCharsets.UTF_8);
+                } catch (IOException e) {
+                    System.err.println("Error: Failed to read " + file + ": " + e.getMessage());
+                    failed.incrementAndGet();
+                    processed.incrementAndGet();
+                    continue;
+                }
+                String key = ExplanationCache.keyFor(new CodeAnalysisRequest(code, "", "markdown"));
+                if (code.isBlank() || code.length() > maxFileChars || store.contains(key)) {
+                    skipped.incrementAndGet();
+                    processed.incrementAndGet();
+                    continue;
+                }
+
+                slots.acquire();
+                String filePath = file.toString();
+                CompletableFuture<String> future = client.analyzeBatchAsync(OWNER, code, "");
+                future.whenComplete((explanation, error) -> {
+                    if (error == null && !ExplanationClient.isError(explanation)) {
+                        store.put(key, filePath, file.getFileName().toString(), 1, explanation);
+                        explained.incrementAndGet();
+                    } else {
+                        failed.incrementAndGet();
+                        System.err.println("Failed to explain " + filePath + ": "
+                                + (error != null ? error.getMessage() : explanation));
+                    }
+                    slots.release();
+                    printProgress(processed.incrementAndGet(), files.size());
+                });
+            }
+
+            // Wait for the files still in flight
+            slots.acquire(parallelism);
+        } finally {
+            timer.shutdownNow();
+        }
+
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.err.printf(Locale.ROOT, "Explained %d files, skipped %d, failed %d in %.1f s; results in %s%n",
+                explained.get(), skipped.get(), failed.get(), seconds, output);
+        return failed.get() == 0;
+    }
+
+    private static void printProgress(int done, int total) {
+        if (done % 10 == 0 || done == total) {
+            System.err.println(done + " of " + total + " files done");
+        }
+    }
+
+    /**
+     * Collects the files with a matching extension, walking directories recursively and skipping hidden ones.
+     *
+     * @return The files, sorted by path
+     */
+    @NotNull
+    private List<Path> collectFiles() throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (Path root : roots) {
+            if (Files.isRegularFile(root)) {
+                files.add(root);
+                continue;
+            }
+            try (Stream<Path> walk = Files.walk(root)) {
+                files.addAll(walk
+                        .filter(Files::isRegularFile)
+                        .filter(path -> !isHidden(root.relativize(path)))
+                        .filter(this::hasMatchingExtension)
+                        .collect(Collectors.toList()));
+            }
+        }
+        return files.stream().distinct().sorted().collect(Collectors.toList());
+    }
+
+    private boolean hasMatchingExtension(@NotNull Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && extensions.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    private static boolean isHidden(@NotNull Path relativePath) {
+        for (Path part : relativePath) {
+            if (part.toString().startsWith(".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
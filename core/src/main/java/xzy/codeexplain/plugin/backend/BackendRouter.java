@@ -0,0 +1,344 @@
+package xzy.codeexplain.plugin.backend;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chooses the backend for each API call: the fastest healthy one.
+ * <p>
+ * The router tracks an exponentially weighted moving average (EWMA) of the latency and of the error rate of every
+ * backend, so recent calls count most; the longer a backend was not measured, the more its next call counts.
+ * A backend is unhealthy while more than half of its recent calls failed.
+ * Calls go to the healthy backend with the lowest latency; backends not measured yet are tried first, with one call
+ * at a time until the first one is answered, so a burst of calls doesn't all go to a backend that may be slow. Every
+ * {@value #EXPLORE_EVERY}th call goes to the healthy backend measured longest ago instead, so the latency of the
+ * others stays current. An unhealthy backend gets a single probe call every {@value #PROBE_INTERVAL_MILLIS} ms;
+ * once enough probes succeed it is healthy again. If every backend is unhealthy, calls go to the one failing least.
+ */
+public class BackendRouter {
+
+    /**
+     * The weight of the newest sample in the moving averages.
+     */
+    private static final double SMOOTHING = 0.1;
+    /**
+     * The newest latency sample weighs more the longer the backend was not measured: after this long, the old
+     * average only counts for about a third. A backend called rarely, e.g. one slowed down by its first connection,
+     * catches up with its current latency in a few calls.
+     */
+    private static final double LATENCY_DECAY_MILLIS = 1000;
+    private static final double UNHEALTHY_ERROR_RATE = 0.5;
+    private static final long PROBE_INTERVAL_MILLIS = 10_000;
+    private static final int EXPLORE_EVERY = 20;
+    /**
+     * How long the first call to a backend not measured yet holds back the others. Calls whose outcome is never
+     * recorded, e.g. cancelled ones, hold them back no longer than this.
+     */
+    private static final long EXPLORATION_TIMEOUT_MILLIS = 10_000;
+
+    private List<BackendStats> backends;
+    private long choiceCount;
+
+    /**
+     * Creates a router.
+     *
+     * @param backends The backends to choose from, at least one
+     */
+    public BackendRouter(@NotNull List<? extends ExplanationBackend> backends) {
+        setBackends(backends);
+    }
+
+    /**
+     * Replaces the backends to choose from, e.g. after the settings changed. Backends with the name of a current
+     * one keep its measurements.
+     *
+     * @param backends The backends to choose from, at least one
+     * @throws IllegalArgumentException If there are no backends
+     */
+    public synchronized void setBackends(@NotNull List<? extends ExplanationBackend> backends) {
+        if (backends.isEmpty()) {
+            throw new IllegalArgumentException("At least one backend is required");
+        }
+        Map<String, BackendStats> current = new HashMap<>();
+        if (this.backends != null) {
+            for (BackendStats stats : this.backends) {
+                current.put(stats.backend.getName(), stats);
+            }
+        }
+        List<BackendStats> updated = new ArrayList<>(backends.size());
+        for (ExplanationBackend backend : backends) {
+            BackendStats previous = current.get(backend.getName());
+            updated.add(previous != null ? previous.withBackend(backend) : new BackendStats(backend));
+        }
+        this.backends = updated;
+    }
+
+    /**
+     * Chooses the backend for a call.
+     *
+     * @param avoid A backend not to choose if any other is healthy, e.g. the one a failed attempt went to, or null
+     * @return The backend
+     */
+    @NotNull
+    public synchronized ExplanationBackend choose(@Nullable ExplanationBackend avoid) {
+        long now = System.currentTimeMillis();
+        choiceCount++;
+
+        List<BackendStats> healthy = new ArrayList<>(backends.size());
+        for (BackendStats stats : backends) {
+            if (stats.backend == avoid) {
+                continue;
+            }
+            if (!stats.isHealthy() && now - stats.lastChosenMillis >= PROBE_INTERVAL_MILLIS) {
+                // Probe whether an unhealthy backend has recovered
+                return stats.choose(now);
+            }
+            if (stats.isHealthy()) {
+                healthy.add(stats);
+            }
+        }
+        if (healthy.size() > 1) {
+            // Leave backends whose first call is still pending to the measured ones
+            List<BackendStats> available = new ArrayList<>(healthy.size());
+            for (BackendStats stats : healthy) {
+                if (!stats.isExploring(now)) {
+                    available.add(stats);
+                }
+            }
+            if (!available.isEmpty()) {
+                healthy = available;
+            }
+        }
+        if (healthy.isEmpty()) {
+            BackendStats avoided = find(avoid);
+            if (avoided != null && avoided.isHealthy()) {
+                return avoided.choose(now);
+            }
+            return leastFailing().choose(now);
+        }
+
+        BackendStats best = null;
+        if (choiceCount % EXPLORE_EVERY == 0) {
+            for (BackendStats stats : healthy) {
+                if (best == null || stats.lastSampleMillis < best.lastSampleMillis) {
+                    best = stats;
+                }
+            }
+        } else {
+            for (BackendStats stats : healthy) {
+                if (best == null || stats.latencyMillis() < best.latencyMillis()) {
+                    best = stats;
+                }
+            }
+        }
+        return best.choose(now);
+    }
+
+    /**
+     * Gets the backend calls would currently go to, without counting it as a call, e.g. to open a connection to it.
+     *
+     * @return The backend
+     */
+    @NotNull
+    public synchronized ExplanationBackend getPreferred() {
+        BackendStats best = null;
+        for (BackendStats stats : backends) {
+            if (stats.isHealthy() && (best == null || stats.latencyMillis() < best.latencyMillis())) {
+                best = stats;
+            }
+        }
+        return (best != null ? best : leastFailing()).backend;
+    }
+
+    /**
+     * Records the outcome of a call.
+     *
+     * @param backend      The backend the call went to
+     * @param latencyNanos How long the backend took to answer
+     * @param success      Whether the backend answered successfully
+     */
+    public synchronized void record(@NotNull ExplanationBackend backend, long latencyNanos, boolean success) {
+        BackendStats stats = find(backend);
+        if (stats != null) {
+            stats.record(latencyNanos / 1_000_000.0, success, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Gets the measurements of every backend, e.g. to show them in the metrics.
+     *
+     * @return The measurements, in the order of the backends
+     */
+    @NotNull
+    public synchronized List<BackendStats> getStats() {
+        List<BackendStats> copies = new ArrayList<>(backends.size());
+        for (BackendStats stats : backends) {
+            copies.add(stats.withBackend(stats.backend));
+        }
+        return Collections.unmodifiableList(copies);
+    }
+
+    /**
+     * Gets the measurements of the backend with the given name.
+     *
+     * @param name The name of the backend
+     * @return The measurements, or null if there is no such backend
+     */
+    @Nullable
+    public synchronized BackendStats getStats(@NotNull String name) {
+        for (BackendStats stats : backends) {
+            if (stats.backend.getName().equals(name)) {
+                return stats.withBackend(stats.backend);
+            }
+        }
+        return null;
+    }
+
+    @Nullable
+    private BackendStats find(@Nullable ExplanationBackend backend) {
+        for (BackendStats stats : backends) {
+            if (stats.backend == backend) {
+                return stats;
+            }
+        }
+        return null;
+    }
+
+    @NotNull
+    private BackendStats leastFailing() {
+        BackendStats best = backends.get(0);
+        for (BackendStats stats : backends) {
+            if (stats.errorRate < best.errorRate) {
+                best = stats;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The measurements of one backend. Guarded by the router.
+     */
+    public static final class BackendStats {
+        private final ExplanationBackend backend;
+        private double latency = Double.NaN;
+        private double errorRate;
+        private long callCount;
+        private long failureCount;
+        private long lastSampleMillis;
+        private long lastChosenMillis;
+        /**
+         * When the pending first call to the backend was chosen, or 0 if there is none.
+         */
+        private long explorationStartMillis;
+
+        private BackendStats(ExplanationBackend backend) {
+            this.backend = backend;
+        }
+
+        private BackendStats withBackend(ExplanationBackend backend) {
+            BackendStats copy = new BackendStats(backend);
+            copy.latency = latency;
+            copy.errorRate = errorRate;
+            copy.callCount = callCount;
+            copy.failureCount = failureCount;
+            copy.lastSampleMillis = lastSampleMillis;
+            copy.lastChosenMillis = lastChosenMillis;
+            copy.explorationStartMillis = explorationStartMillis;
+            return copy;
+        }
+
+        private ExplanationBackend choose(long now) {
+            lastChosenMillis = now;
+            if (Double.isNaN(latency) && !isExploring(now)) {
+                explorationStartMillis = now;
+            }
+            return backend;
+        }
+
+        private boolean isExploring(long now) {
+            return Double.isNaN(latency) && explorationStartMillis != 0
+                    && now - explorationStartMillis < EXPLORATION_TIMEOUT_MILLIS;
+        }
+
+        private void record(double latencyMillis, boolean success, long now) {
+            explorationStartMillis = 0;
+            callCount++;
+            errorRate = (1 - SMOOTHING) * errorRate + (success ? 0 : SMOOTHING);
+            if (success) {
+                double weight = Math.max(SMOOTHING, 1 - Math.exp(-(now - lastSampleMillis) / LATENCY_DECAY_MILLIS));
+                latency = Double.isNaN(latency) ? latencyMillis : (1 - weight) * latency + weight * latencyMillis;
+            } else {
+                failureCount++;
+            }
+            lastSampleMillis = now;
+        }
+
+        /**
+         * Not measured backends sort first.
+         */
+        private double latencyMillis() {
+            return Double.isNaN(latency) ? -1 : latency;
+        }
+
+        /**
+         * Gets the backend.
+         *
+         * @return The backend
+         */
+        @NotNull
+        public ExplanationBackend getBackend() {
+            return backend;
+        }
+
+        /**
+         * Gets the moving average of the latency of successful calls.
+         *
+         * @return The latency in milliseconds, or NaN if no call succeeded yet
+         */
+        public double getLatencyMillis() {
+            return latency;
+        }
+
+        /**
+         * Gets the moving average of the share of failed calls.
+         *
+         * @return The error rate between 0 and 1
+         */
+        public double getErrorRate() {
+            return errorRate;
+        }
+
+        /**
+         * Gets the number of calls whose outcome was recorded.
+         *
+         * @return The number of calls
+         */
+        public long getCallCount() {
+            return callCount;
+        }
+
+        /**
+         * Gets the number of failed calls.
+         *
+         * @return The number of failures
+         */
+        public long getFailureCount() {
+            return failureCount;
+        }
+
+        /**
+         * Checks whether calls may go to the backend.
+         *
+         * @return true unless most recent calls failed
+         */
+        public boolean isHealthy() {
+            return errorRate < UNHEALTHY_ERROR_RATE;
+        }
+    }
+}
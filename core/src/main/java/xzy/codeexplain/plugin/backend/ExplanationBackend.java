@@ -0,0 +1,54 @@
+package xzy.codeexplain.plugin.backend;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A server explanations can be requested from, e.g. the public API or a self-hosted server on the local network.
+ * <p>
+ * Every backend speaks the protocol of the explanation API: the client builds the requests for the backend's
+ * endpoints and parses the responses, the backend only carries out the exchanges. Backends are created by an
+ * {@link ExplanationBackendFactory} and chosen per request by the {@link BackendRouter}.
+ */
+public interface ExplanationBackend {
+
+    /**
+     * Gets the name of this backend as configured, e.g. to show it in the metrics.
+     *
+     * @return The name
+     */
+    @NotNull
+    String getName();
+
+    /**
+     * Gets the URL explanation requests are posted to.
+     *
+     * @return The URL of the explain endpoint
+     */
+    @NotNull
+    String getExplainUrl();
+
+    /**
+     * Gets the URL batched explanation requests are posted to.
+     *
+     * @return The URL of the batch endpoint
+     */
+    @NotNull
+    String getBatchUrl();
+
+    /**
+     * Carries out one exchange. Cancelling the returned future cancels the exchange.
+     *
+     * @param httpClient  The HTTP client of the caller, shared by all backends
+     * @param request     The request, addressed to one of this backend's endpoints
+     * @param bodyHandler The handler of the response body
+     * @return A CompletableFuture that will complete with the response
+     */
+    @NotNull
+    <T> CompletableFuture<HttpResponse<T>> send(@NotNull HttpClient httpClient, @NotNull HttpRequest request,
+                                                @NotNull HttpResponse.BodyHandler<T> bodyHandler);
+}
@@ -0,0 +1,38 @@
+package xzy.codeexplain.plugin.backend;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Creates backends of one type from their settings. The plugin registers the built-in types as extensions of its
+ * {@code explanationBackend} extension point; other plugins can add their own.
+ */
+public interface ExplanationBackendFactory {
+
+    /**
+     * Gets the identifier of the backend type, stored in the settings, e.g. {@code remote}.
+     *
+     * @return The type identifier
+     */
+    @NotNull
+    String getType();
+
+    /**
+     * Gets the name of the backend type shown in the settings.
+     *
+     * @return The display name
+     */
+    @NotNull
+    String getDisplayName();
+
+    /**
+     * Creates a backend.
+     *
+     * @param name The name of the backend
+     * @param url  The URL of its explain endpoint, or null or blank for the type's default
+     * @return The backend
+     * @throws IllegalArgumentException If the URL is invalid or the type requires one
+     */
+    @NotNull
+    ExplanationBackend create(@NotNull String name, @Nullable String url);
+}
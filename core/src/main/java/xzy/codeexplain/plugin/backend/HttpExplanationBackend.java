@@ -0,0 +1,89 @@
+package xzy.codeexplain.plugin.backend;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A backend reached over HTTP, e.g. the public API or a self-hosted server.
+ */
+public class HttpExplanationBackend implements ExplanationBackend {
+
+    private final String name;
+    private final String explainUrl;
+    private final String batchUrl;
+
+    /**
+     * Creates a backend.
+     *
+     * @param name       The name of the backend
+     * @param explainUrl The URL of the explain endpoint
+     * @param batchUrl   The URL of the batch endpoint
+     */
+    public HttpExplanationBackend(@NotNull String name, @NotNull String explainUrl, @NotNull String batchUrl) {
+        this.name = name;
+        this.explainUrl = explainUrl;
+        this.batchUrl = batchUrl;
+    }
+
+    /**
+     * Creates a backend whose batch endpoint is the explain endpoint followed by {@code /batch}.
+     *
+     * @param name       The name of the backend
+     * @param explainUrl The URL of the explain endpoint
+     */
+    public HttpExplanationBackend(@NotNull String name, @NotNull String explainUrl) {
+        this(name, explainUrl, explainUrl + "/batch");
+    }
+
+    /**
+     * Checks that a URL entered for a backend is an HTTP or HTTPS URL.
+     *
+     * @param url The URL
+     * @return The URL without surrounding whitespace
+     * @throws IllegalArgumentException If it is not an HTTP or HTTPS URL
+     */
+    @NotNull
+    public static String checkUrl(@NotNull String url) {
+        url = url.trim();
+        String scheme = URI.create(url).getScheme();
+        if (!"http".equalsIgnoreCase(scheme) && !"https".equalsIgnoreCase(scheme)) {
+            throw new IllegalArgumentException("Not an HTTP or HTTPS URL: " + url);
+        }
+        return url;
+    }
+
+    @Override
+    @NotNull
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    @NotNull
+    public String getExplainUrl() {
+        return explainUrl;
+    }
+
+    @Override
+    @NotNull
+    public String getBatchUrl() {
+        return batchUrl;
+    }
+
+    @Override
+    @NotNull
+    public <T> CompletableFuture<HttpResponse<T>> send(@NotNull HttpClient httpClient, @NotNull HttpRequest request,
+                                                       @NotNull HttpResponse.BodyHandler<T> bodyHandler) {
+        return httpClient.sendAsync(request, bodyHandler);
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + explainUrl + ")";
+    }
+}
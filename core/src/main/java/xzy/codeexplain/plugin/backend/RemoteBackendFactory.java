@@ -0,0 +1,85 @@
+package xzy.codeexplain.plugin.backend;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import xzy.codeexplain.plugin.config.PluginConfig;
+
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Creates backends for the hosted explanation API. Without a URL, the backend follows the API configured in
+ * {@link PluginConfig}.
+ */
+public class RemoteBackendFactory implements ExplanationBackendFactory {
+
+    /**
+     * The type identifier of remote backends.
+     */
+    public static final String TYPE = "remote";
+
+    @Override
+    @NotNull
+    public String getType() {
+        return TYPE;
+    }
+
+    @Override
+    @NotNull
+    public String getDisplayName() {
+        return "Remote API";
+    }
+
+    @Override
+    @NotNull
+    public ExplanationBackend create(@NotNull String name, @Nullable String url) {
+        if (url == null || url.isBlank()) {
+            return new ConfiguredApiBackend(name);
+        }
+        return new HttpExplanationBackend(name, HttpExplanationBackend.checkUrl(url));
+    }
+
+    /**
+     * The API configured in {@link PluginConfig}. The URLs are read for every request, like before backends
+     * could be configured.
+     */
+    private static final class ConfiguredApiBackend implements ExplanationBackend {
+        private final String name;
+
+        private ConfiguredApiBackend(String name) {
+            this.name = name;
+        }
+
+        @Override
+        @NotNull
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        @NotNull
+        public String getExplainUrl() {
+            return PluginConfig.getApiUrl();
+        }
+
+        @Override
+        @NotNull
+        public String getBatchUrl() {
+            return PluginConfig.getBatchApiUrl();
+        }
+
+        @Override
+        @NotNull
+        public <T> CompletableFuture<HttpResponse<T>> send(@NotNull HttpClient httpClient, @NotNull HttpRequest request,
+                                                           @NotNull HttpResponse.BodyHandler<T> bodyHandler) {
+            return httpClient.sendAsync(request, bodyHandler);
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + getExplainUrl() + ")";
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package xzy.codeexplain.plugin.backend;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Creates backends for explanation servers run by the team, e.g. on the local network close to the developers.
+ * They speak the protocol of the hosted API, plain HTTP is allowed.
+ */
+public class SelfHostedBackendFactory implements ExplanationBackendFactory {
+
+    /**
+     * The type identifier of self-hosted backends.
+     */
+    public static final String TYPE = "self-hosted";
+
+    @Override
+    @NotNull
+    public String getType() {
+        return TYPE;
+    }
+
+    @Override
+    @NotNull
+    public String getDisplayName() {
+        return "Self-hosted server";
+    }
+
+    @Override
+    @NotNull
+    public ExplanationBackend create(@NotNull String name, @Nullable String url) {
+        if (url == null || url.isBlank()) {
+            throw new IllegalArgumentException("A self-hosted backend needs the URL of its explain endpoint");
+        }
+        return new HttpExplanationBackend(name, HttpExplanationBackend.checkUrl(url));
+    }
+}
@@ -0,0 +1,36 @@
+package xzy.codeexplain.plugin.backend;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Creates {@link StubExplanationBackend}s, which answer every request in-process. The URL is ignored.
+ */
+public class StubBackendFactory implements ExplanationBackendFactory {
+
+    /**
+     * The type identifier of stub backends.
+     */
+    public static final String TYPE = "stub";
+
+    private static final long LATENCY_MILLIS = 300;
+
+    @Override
+    @NotNull
+    public String getType() {
+        return TYPE;
+    }
+
+    @Override
+    @NotNull
+    public String getDisplayName() {
+        return "Test stub";
+    }
+
+    @Override
+    @NotNull
+    public ExplanationBackend create(@NotNull String name, @Nullable String url) {
+        return new StubExplanationBackend(name, LATENCY_MILLIS,
+                "## Explanation\n\nThis is a stub explanation from the backend **" + name + "**; no server was asked.");
+    }
+}
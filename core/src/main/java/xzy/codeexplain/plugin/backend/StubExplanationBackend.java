@@ -0,0 +1,222 @@
+package xzy.codeexplain.plugin.backend;
+
+import com.google.gson.JsonObject;
+import org.jetbrains.annotations.NotNull;
+
+import javax.net.ssl.SSLSession;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A backend answering in-process with a fixed explanation after a fixed delay, without any network traffic.
+ * Meant for trying out the plugin and the routing without a server. It has no batch endpoint, so batched
+ * requests are switched off when they reach it.
+ */
+public class StubExplanationBackend implements ExplanationBackend {
+
+    /**
+     * The explain endpoint of stubs. Never resolved; the {@code .invalid} domain is reserved for such names.
+     */
+    private static final String EXPLAIN_URL = "http://codeexplain-stub.invalid/api/v1/explain";
+
+    private final String name;
+    private final long latencyMillis;
+    private final String explanation;
+    private final AtomicLong requestCount = new AtomicLong();
+
+    /**
+     * Creates a stub.
+     *
+     * @param name          The name of the backend
+     * @param latencyMillis How long the stub takes to answer
+     * @param explanation   The explanation of every request
+     */
+    public StubExplanationBackend(@NotNull String name, long latencyMillis, @NotNull String explanation) {
+        this.name = name;
+        this.latencyMillis = Math.max(0, latencyMillis);
+        this.explanation = explanation;
+    }
+
+    @Override
+    @NotNull
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    @NotNull
+    public String getExplainUrl() {
+        return EXPLAIN_URL;
+    }
+
+    @Override
+    @NotNull
+    public String getBatchUrl() {
+        return EXPLAIN_URL + "/batch";
+    }
+
+    /**
+     * Gets the number of requests answered so far.
+     *
+     * @return The number of requests
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    @Override
+    @NotNull
+    public <T> CompletableFuture<HttpResponse<T>> send(@NotNull HttpClient httpClient, @NotNull HttpRequest request,
+                                                       @NotNull HttpResponse.BodyHandler<T> bodyHandler) {
+        requestCount.incrementAndGet();
+        CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+        CompletableFuture.delayedExecutor(latencyMillis, TimeUnit.MILLISECONDS).execute(() -> {
+            if (result.isDone()) {
+                // Cancelled while waiting
+                return;
+            }
+            try {
+                respond(request, bodyHandler).whenComplete((response, error) -> {
+                    if (error != null) {
+                        result.completeExceptionally(error);
+                    } else {
+                        result.complete(response);
+                    }
+                });
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Feeds the answer to a request to the body subscriber of the caller, like the HTTP client would.
+     */
+    private <T> CompletableFuture<HttpResponse<T>> respond(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler) {
+        int statusCode;
+        String body;
+        if (request.uri().getPath().endsWith("/batch")) {
+            statusCode = 404;
+            body = "{\"error\":\"Not found\"}";
+        } else {
+            JsonObject json = new JsonObject();
+            json.addProperty("explanation", explanation);
+            statusCode = 200;
+            body = json.toString();
+        }
+
+        HttpHeaders headers = HttpHeaders.of(Map.of("Content-Type", List.of("application/json")), (header, value) -> true);
+        HttpResponse.ResponseInfo responseInfo = new HttpResponse.ResponseInfo() {
+            @Override
+            public int statusCode() {
+                return statusCode;
+            }
+
+            @Override
+            public HttpHeaders headers() {
+                return headers;
+            }
+
+            @Override
+            public HttpClient.Version version() {
+                return HttpClient.Version.HTTP_1_1;
+            }
+        };
+
+        HttpResponse.BodySubscriber<T> subscriber = bodyHandler.apply(responseInfo);
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        subscriber.onSubscribe(new Flow.Subscription() {
+            private boolean done;
+
+            @Override
+            public synchronized void request(long n) {
+                if (done || n <= 0) {
+                    return;
+                }
+                done = true;
+                subscriber.onNext(List.of(ByteBuffer.wrap(bytes)));
+                subscriber.onComplete();
+            }
+
+            @Override
+            public synchronized void cancel() {
+                done = true;
+            }
+        });
+        return subscriber.getBody().toCompletableFuture()
+                .thenApply(responseBody -> new StubResponse<>(request, responseInfo, responseBody));
+    }
+
+    @Override
+    public String toString() {
+        return name + " (stub)";
+    }
+
+    /**
+     * A response made up by the stub.
+     */
+    private static final class StubResponse<T> implements HttpResponse<T> {
+        private final HttpRequest request;
+        private final ResponseInfo responseInfo;
+        private final T body;
+
+        private StubResponse(HttpRequest request, ResponseInfo responseInfo, T body) {
+            this.request = request;
+            this.responseInfo = responseInfo;
+            this.body = body;
+        }
+
+        @Override
+        public int statusCode() {
+            return responseInfo.statusCode();
+        }
+
+        @Override
+        public HttpRequest request() {
+            return request;
+        }
+
+        @Override
+        public Optional<HttpResponse<T>> previousResponse() {
+            return Optional.empty();
+        }
+
+        @Override
+        public HttpHeaders headers() {
+            return responseInfo.headers();
+        }
+
+        @Override
+        public T body() {
+            return body;
+        }
+
+        @Override
+        public Optional<SSLSession> sslSession() {
+            return Optional.empty();
+        }
+
+        @Override
+        public URI uri() {
+            return request.uri();
+        }
+
+        @Override
+        public HttpClient.Version version() {
+            return responseInfo.version();
+        }
+    }
+}
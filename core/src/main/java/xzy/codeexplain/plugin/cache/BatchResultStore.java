@@ -0,0 +1,165 @@
+package xzy.codeexplain.plugin.cache;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * On-disk store of the results of one batch explanation, e.g. of all methods of a package.
+ * <p>
+ * Results are appended to a file with one JSON object per line, holding the cache key of the request (see
+ * {@link ExplanationCache#keyFor}), the file and name of the declaration and its explanation. Every result is
+ * flushed as soon as it arrives, so an interrupted batch loses nothing; running the batch again skips every
+ * declaration whose key is already in the file, and declarations changed since then are explained again.
+ * A line left incomplete by a crash is ignored.
+ */
+public class BatchResultStore implements AutoCloseable {
+    private static final Logger LOG = Logger.getLogger(BatchResultStore.class.getName());
+
+    private final Path file;
+    private final Gson gson = new Gson();
+    private final Set<String> completedKeys = new HashSet<>();
+    private final BufferedWriter writer;
+    private boolean closed;
+
+    private BatchResultStore(@NotNull Path file) throws IOException {
+        this.file = file;
+        load();
+        this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Opens the store in the given file, creating it if necessary.
+     *
+     * @param file The result file
+     * @return The opened store
+     * @throws IOException If the file cannot be read or opened for writing
+     */
+    @NotNull
+    public static BatchResultStore open(@NotNull Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        return new BatchResultStore(file);
+    }
+
+    private void load() throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        int skipped = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                try {
+                    Result result = gson.fromJson(line, Result.class);
+                    if (result != null && result.key != null) {
+                        completedKeys.add(result.key);
+                    }
+                } catch (JsonParseException e) {
+                    skipped++;
+                }
+            }
+        }
+        if (skipped > 0) {
+            LOG.info("Skipped " + skipped + " unreadable lines in " + file);
+        }
+
+        // Terminate a line left incomplete by a crash, so the next result starts on a line of its own
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            if (raf.length() > 0) {
+                raf.seek(raf.length() - 1);
+                if (raf.read() != '\n') {
+                    raf.write('\n');
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether the result of a request is stored already.
+     *
+     * @param key The cache key of the request
+     * @return true if the result is stored
+     */
+    public synchronized boolean contains(@NotNull String key) {
+        return completedKeys.contains(key);
+    }
+
+    /**
+     * Appends a result and flushes it to disk.
+     *
+     * @param key         The cache key of the request
+     * @param filePath    The path of the file containing the declaration
+     * @param name        The name of the declaration
+     * @param line        The line of the declaration, starting at 1
+     * @param explanation The explanation
+     */
+    public synchronized void put(@NotNull String key, @NotNull String filePath, @NotNull String name, int line,
+                                 @NotNull String explanation) {
+        if (closed || !completedKeys.add(key)) {
+            return;
+        }
+        try {
+            writer.write(gson.toJson(new Result(key, filePath, name, line, explanation)));
+            writer.newLine();
+            writer.flush();
+        } catch (IOException e) {
+            completedKeys.remove(key);
+            LOG.log(Level.WARNING, "Failed to write batch result to " + file, e);
+        }
+    }
+
+    /**
+     * Gets the number of stored results.
+     *
+     * @return The number of results
+     */
+    public synchronized int size() {
+        return completedKeys.size();
+    }
+
+    @NotNull
+    public Path getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        writer.close();
+    }
+
+    /**
+     * One line of the result file.
+     */
+    private static final class Result {
+        private final String key;
+        private final String file;
+        private final String name;
+        private final int line;
+        private final String explanation;
+
+        private Result(String key, String file, String name, int line, String explanation) {
+            this.key = key;
+            this.file = file;
+            this.name = name;
+            this.line = line;
+            this.explanation = explanation;
+        }
+    }
+}
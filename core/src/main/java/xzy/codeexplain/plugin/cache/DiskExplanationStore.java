@@ -0,0 +1,582 @@
+package xzy.codeexplain.plugin.cache;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent store of explanations that survives IDE restarts.
+ * <p>
+ * Explanations are appended to a log file. Every record holds the 32 byte cache key (see
+ * {@link ExplanationCache#keyFor}), the UTF-8 encoded explanation and a CRC32 checksum over both. A compact
+ * open-addressing hash table in a memory-mapped index file maps the first 8 bytes of each key to the offset of
+ * its newest record, so a lookup costs one probe in mapped memory plus one positional read of the record.
+ * <p>
+ * Records that fail the checksum are treated as misses. When the log grows beyond the size cap it is compacted:
+ * the newest live records that fit into three quarters of the cap are copied to a new log and everything else is
+ * dropped. If the index is missing or inconsistent with the log, it is rebuilt by scanning the log.
+ */
+public class DiskExplanationStore implements AutoCloseable {
+    private static final Logger LOG = Logger.getLogger(DiskExplanationStore.class.getName());
+
+    private static final String LOG_FILE_NAME = "explanations.log";
+    private static final String INDEX_FILE_NAME = "explanations.idx";
+
+    private static final int RECORD_MAGIC = 0x43455852; // "CEXR"
+    private static final int KEY_LENGTH = 32;
+    // magic, key, value length, checksum
+    private static final int RECORD_HEADER_SIZE = 4 + KEY_LENGTH + 4 + 4;
+
+    private static final int INDEX_MAGIC = 0x43455849; // "CEXI"
+    private static final int INDEX_VERSION = 1;
+    // magic, version, capacity, count, log length, reserved
+    private static final int INDEX_HEADER_SIZE = 32;
+    // key prefix, record offset + 1 (0 marks an empty slot)
+    private static final int SLOT_SIZE = 16;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Path logFile;
+    private final Path indexFile;
+    private final long maxBytes;
+
+    private FileChannel logChannel;
+    private final FileChannel indexChannel;
+    private MappedByteBuffer index;
+    private int capacity;
+    private int count;
+    private long logLength;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong checksumFailureCount = new AtomicLong();
+
+    private DiskExplanationStore(Path directory, long maxBytes) throws IOException {
+        this.logFile = directory.resolve(LOG_FILE_NAME);
+        this.indexFile = directory.resolve(INDEX_FILE_NAME);
+        this.maxBytes = maxBytes;
+        this.logChannel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.indexChannel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Opens the store in the given directory, creating it if necessary.
+     *
+     * @param directory The directory holding the log and index files
+     * @param maxBytes  The size cap of the log file
+     * @return The opened store
+     * @throws IOException If the files cannot be opened
+     */
+    @NotNull
+    public static DiskExplanationStore open(@NotNull Path directory, long maxBytes) throws IOException {
+        Files.createDirectories(directory);
+        DiskExplanationStore store = new DiskExplanationStore(directory, maxBytes);
+        try {
+            store.load();
+        } catch (IOException | RuntimeException e) {
+            store.close();
+            throw e;
+        }
+        return store;
+    }
+
+    private void load() throws IOException {
+        if (loadIndex()) {
+            // Index records appended after the index was last updated, e.g. before a crash
+            scanLog(logLength);
+        } else {
+            if (logChannel.size() > 0) {
+                LOG.info("Rebuilding explanation index from " + logFile);
+            }
+            resetIndex(INITIAL_CAPACITY);
+            scanLog(0);
+        }
+        // Drop a partially written record at the end of the log
+        if (logChannel.size() > logLength) {
+            logChannel.truncate(logLength);
+        }
+    }
+
+    /**
+     * Looks up the explanation stored for a key.
+     *
+     * @param key The hex encoded cache key
+     * @return The explanation, or null if it is not stored or its record is corrupted
+     */
+    @Nullable
+    public synchronized String get(@NotNull String key) {
+        byte[] keyBytes = decodeKey(key);
+        long offset = findOffset(prefixOf(keyBytes));
+        if (offset < 0) {
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        try {
+            byte[] value = readRecord(offset, keyBytes);
+            if (value == null) {
+                missCount.incrementAndGet();
+                return null;
+            }
+            hitCount.incrementAndGet();
+            return new String(value, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to read explanation from " + logFile, e);
+            missCount.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Appends an explanation to the log and points the index at it. Compacts the log if it
+     * grows beyond the size cap.
+     *
+     * @param key         The hex encoded cache key
+     * @param explanation The explanation
+     */
+    public synchronized void put(@NotNull String key, @NotNull String explanation) {
+        byte[] keyBytes = decodeKey(key);
+        byte[] value = explanation.getBytes(StandardCharsets.UTF_8);
+        if (RECORD_HEADER_SIZE + (long) value.length > maxBytes) {
+            return;
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + value.length);
+        record.putInt(RECORD_MAGIC)
+                .put(keyBytes)
+                .putInt(value.length)
+                .putInt(checksum(keyBytes, value))
+                .put(value)
+                .flip();
+
+        try {
+            long offset = logLength;
+            writeFully(logChannel, record, offset);
+            logLength += record.capacity();
+            insertSlot(prefixOf(keyBytes), offset);
+            writeIndexHeader();
+
+            if (logLength > maxBytes) {
+                compact();
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to write explanation to " + logFile, e);
+        }
+    }
+
+    /**
+     * Rewrites the log so that it only contains the newest live records that fit into three quarters
+     * of the size cap, then rebuilds the index.
+     *
+     * @throws IOException If the log cannot be rewritten
+     */
+    public synchronized void compact() throws IOException {
+        long[] offsets = new long[count];
+        int live = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            long offset = slotOffset(slot);
+            if (offset >= 0) {
+                offsets[live++] = offset;
+            }
+        }
+        Arrays.sort(offsets, 0, live);
+
+        // Keep the newest records, which are the ones at the highest offsets
+        long budget = maxBytes * 3 / 4;
+        long keptBytes = 0;
+        int firstKept = live;
+        while (firstKept > 0) {
+            long size = recordSize(offsets[firstKept - 1]);
+            if (size < 0) {
+                // Skip corrupted records
+                offsets[firstKept - 1] = -1;
+                firstKept--;
+                continue;
+            }
+            if (keptBytes + size > budget) {
+                break;
+            }
+            keptBytes += size;
+            firstKept--;
+        }
+
+        Path compactedFile = logFile.resolveSibling(LOG_FILE_NAME + ".compact");
+        try (FileChannel compacted = FileChannel.open(compactedFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long position = 0;
+            for (int i = firstKept; i < live; i++) {
+                if (offsets[i] < 0) {
+                    continue;
+                }
+                long size = recordSize(offsets[i]);
+                long transferred = 0;
+                while (transferred < size) {
+                    transferred += logChannel.transferTo(offsets[i] + transferred, size - transferred, compacted);
+                }
+                position += size;
+            }
+            compacted.force(false);
+            LOG.info("Compacted explanation log from " + logLength + " to " + position + " bytes");
+        }
+
+        logChannel.close();
+        try {
+            Files.move(compactedFile, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(compactedFile, logFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        logChannel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        resetIndex(capacity);
+        scanLog(0);
+    }
+
+    /**
+     * Gets the number of explanations in the index.
+     *
+     * @return The number of indexed explanations
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Gets the current length of the log file, including records that have been superseded.
+     *
+     * @return The log length in bytes
+     */
+    public synchronized long getLogLength() {
+        return logLength;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getChecksumFailureCount() {
+        return checksumFailureCount.get();
+    }
+
+    /**
+     * Flushes the index and the log to disk and closes both files.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (index != null) {
+                index.force();
+            }
+            if (logChannel.isOpen()) {
+                logChannel.force(false);
+            }
+        } finally {
+            logChannel.close();
+            indexChannel.close();
+        }
+    }
+
+    // ---- Log ----
+
+    /**
+     * Scans the log from the given offset and indexes every valid record. Stops at the first record that
+     * is truncated or fails its checksum; everything after it is considered garbage.
+     */
+    private void scanLog(long from) throws IOException {
+        long size = logChannel.size();
+        long position = from;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        byte[] keyBytes = new byte[KEY_LENGTH];
+        while (position + RECORD_HEADER_SIZE <= size) {
+            header.clear();
+            readFully(logChannel, header, position);
+            header.flip();
+            if (header.getInt() != RECORD_MAGIC) {
+                break;
+            }
+            header.get(keyBytes);
+            int valueLength = header.getInt();
+            int expectedChecksum = header.getInt();
+            if (valueLength < 0 || position + RECORD_HEADER_SIZE + valueLength > size) {
+                break;
+            }
+
+            ByteBuffer value = ByteBuffer.allocate(valueLength);
+            readFully(logChannel, value, position + RECORD_HEADER_SIZE);
+            if (checksum(keyBytes, value.array()) != expectedChecksum) {
+                checksumFailureCount.incrementAndGet();
+                break;
+            }
+
+            insertSlot(prefixOf(keyBytes), position);
+            position += RECORD_HEADER_SIZE + valueLength;
+        }
+
+        if (position < size) {
+            LOG.warning("Ignoring " + (size - position) + " unreadable bytes at the end of " + logFile);
+        }
+        logLength = position;
+        writeIndexHeader();
+    }
+
+    /**
+     * Reads the value of the record at the given offset and verifies its key and checksum.
+     *
+     * @return The value, or null if the record does not belong to the key or is corrupted
+     */
+    @Nullable
+    private byte[] readRecord(long offset, byte[] keyBytes) throws IOException {
+        if (offset + RECORD_HEADER_SIZE > logLength) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        readFully(logChannel, header, offset);
+        header.flip();
+        if (header.getInt() != RECORD_MAGIC) {
+            checksumFailureCount.incrementAndGet();
+            return null;
+        }
+        byte[] recordKey = new byte[KEY_LENGTH];
+        header.get(recordKey);
+        if (!Arrays.equals(recordKey, keyBytes)) {
+            // Another key with the same 8 byte prefix
+            return null;
+        }
+        int valueLength = header.getInt();
+        int expectedChecksum = header.getInt();
+        if (valueLength < 0 || offset + RECORD_HEADER_SIZE + valueLength > logLength) {
+            checksumFailureCount.incrementAndGet();
+            return null;
+        }
+
+        ByteBuffer value = ByteBuffer.allocate(valueLength);
+        readFully(logChannel, value, offset + RECORD_HEADER_SIZE);
+        if (checksum(keyBytes, value.array()) != expectedChecksum) {
+            checksumFailureCount.incrementAndGet();
+            LOG.warning("Checksum mismatch for explanation record at offset " + offset + " in " + logFile);
+            return null;
+        }
+        return value.array();
+    }
+
+    /**
+     * Gets the total size of the record at the given offset.
+     *
+     * @return The record size, or -1 if the record header is invalid
+     */
+    private long recordSize(long offset) throws IOException {
+        if (offset + RECORD_HEADER_SIZE > logLength) {
+            return -1;
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        readFully(logChannel, header, offset);
+        header.flip();
+        if (header.getInt() != RECORD_MAGIC) {
+            return -1;
+        }
+        int valueLength = header.getInt(4 + KEY_LENGTH);
+        if (valueLength < 0 || offset + RECORD_HEADER_SIZE + valueLength > logLength) {
+            return -1;
+        }
+        return RECORD_HEADER_SIZE + (long) valueLength;
+    }
+
+    // ---- Index ----
+
+    /**
+     * Maps an existing index file if its header is valid and consistent with the log.
+     *
+     * @return true if the index was loaded, false if it has to be rebuilt
+     */
+    private boolean loadIndex() throws IOException {
+        if (indexChannel.size() < INDEX_HEADER_SIZE) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+        readFully(indexChannel, header, 0);
+        header.flip();
+        int magic = header.getInt();
+        int version = header.getInt();
+        int storedCapacity = header.getInt();
+        int storedCount = header.getInt();
+        long storedLogLength = header.getLong();
+        if (magic != INDEX_MAGIC || version != INDEX_VERSION
+                || storedCapacity <= 0 || Integer.bitCount(storedCapacity) != 1
+                || storedCount < 0 || storedCount > storedCapacity
+                || indexChannel.size() != INDEX_HEADER_SIZE + (long) storedCapacity * SLOT_SIZE
+                || storedLogLength < 0 || storedLogLength > logChannel.size()) {
+            return false;
+        }
+
+        capacity = storedCapacity;
+        count = storedCount;
+        logLength = storedLogLength;
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER_SIZE + (long) capacity * SLOT_SIZE);
+        return true;
+    }
+
+    /**
+     * Maps an empty index with the given capacity.
+     */
+    private void resetIndex(int newCapacity) throws IOException {
+        long indexSize = INDEX_HEADER_SIZE + (long) newCapacity * SLOT_SIZE;
+        if (indexChannel.size() > indexSize) {
+            indexChannel.truncate(indexSize);
+        }
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexSize);
+        for (int position = INDEX_HEADER_SIZE; position < indexSize; position += 8) {
+            index.putLong(position, 0L);
+        }
+        capacity = newCapacity;
+        count = 0;
+        logLength = 0;
+        writeIndexHeader();
+    }
+
+    private void writeIndexHeader() {
+        index.putInt(0, INDEX_MAGIC);
+        index.putInt(4, INDEX_VERSION);
+        index.putInt(8, capacity);
+        index.putInt(12, count);
+        index.putLong(16, logLength);
+    }
+
+    /**
+     * Finds the record offset for a key prefix.
+     *
+     * @return The offset, or -1 if the prefix is not indexed
+     */
+    private long findOffset(long prefix) {
+        int slot = slotFor(prefix);
+        while (true) {
+            long offset = slotOffset(slot);
+            if (offset < 0) {
+                return -1;
+            }
+            if (index.getLong(slotPosition(slot)) == prefix) {
+                return offset;
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+    }
+
+    /**
+     * Points the slot of a key prefix at a record, growing the index when it becomes half full.
+     */
+    private void insertSlot(long prefix, long offset) throws IOException {
+        if ((count + 1) * 2L > capacity) {
+            growIndex();
+        }
+        int slot = slotFor(prefix);
+        while (true) {
+            long existingOffset = slotOffset(slot);
+            if (existingOffset < 0) {
+                count++;
+                break;
+            }
+            if (index.getLong(slotPosition(slot)) == prefix) {
+                // Newer record for the same key, the old one becomes garbage
+                break;
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+        index.putLong(slotPosition(slot), prefix);
+        index.putLong(slotPosition(slot) + 8, offset + 1);
+    }
+
+    private void growIndex() throws IOException {
+        long[] prefixes = new long[count];
+        long[] offsets = new long[count];
+        int live = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            long offset = slotOffset(slot);
+            if (offset >= 0) {
+                prefixes[live] = index.getLong(slotPosition(slot));
+                offsets[live] = offset;
+                live++;
+            }
+        }
+
+        long currentLogLength = logLength;
+        resetIndex(capacity * 2);
+        logLength = currentLogLength;
+        for (int i = 0; i < live; i++) {
+            insertSlot(prefixes[i], offsets[i]);
+        }
+        writeIndexHeader();
+    }
+
+    /**
+     * Gets the record offset stored in a slot.
+     *
+     * @return The offset, or -1 if the slot is empty
+     */
+    private long slotOffset(int slot) {
+        return index.getLong(slotPosition(slot) + 8) - 1;
+    }
+
+    private int slotPosition(int slot) {
+        return INDEX_HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private int slotFor(long prefix) {
+        // The key is a SHA-256 hash already, fold it to spread over the table
+        return (int) (prefix ^ (prefix >>> 32)) & (capacity - 1);
+    }
+
+    // ---- Helpers ----
+
+    private static byte[] decodeKey(String key) {
+        if (key.length() != KEY_LENGTH * 2) {
+            throw new IllegalArgumentException("Not a SHA-256 cache key: " + key);
+        }
+        byte[] bytes = new byte[KEY_LENGTH];
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            bytes[i] = (byte) Integer.parseInt(key, i * 2, i * 2 + 2, 16);
+        }
+        return bytes;
+    }
+
+    private static long prefixOf(byte[] keyBytes) {
+        return ByteBuffer.wrap(keyBytes, 0, 8).getLong();
+    }
+
+    private static int checksum(byte[] keyBytes, byte[] value) {
+        CRC32 crc = new CRC32();
+        crc.update(keyBytes);
+        crc.update(value);
+        return (int) crc.getValue();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package xzy.codeexplain.plugin.cache;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import xzy.codeexplain.plugin.models.CodeAnalysisRequest;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-memory cache of explanations, keyed by a hash of the request content.
+ * <p>
+ * Entries are evicted in least-recently-used order once the estimated memory used by the cached
+ * explanations exceeds the configured limit. Hits, misses and evictions are counted so the
+ * effectiveness of the cache can be observed.
+ */
+public class ExplanationCache {
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, String> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long sizeBytes;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxBytes The maximum estimated memory used by cached entries
+     */
+    public ExplanationCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Computes the cache key of a request: a SHA-256 hash over the format, the selected code and the context.
+     *
+     * @param request The analysis request
+     * @return The hex encoded key
+     */
+    @NotNull
+    public static String keyFor(@NotNull CodeAnalysisRequest request) {
+        return keyFor(request.getFormat(), request.getSelectedCode(), request.getContext());
+    }
+
+    /**
+     * Computes a cache key over arbitrary fields: a SHA-256 hash in which field boundaries and null fields
+     * are distinguished.
+     *
+     * @param fields The fields making up the key
+     * @return The hex encoded key
+     */
+    @NotNull
+    public static String keyFor(@Nullable String... fields) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        for (String field : fields) {
+            updateDigest(digest, field);
+        }
+
+        StringBuilder key = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+    private static void updateDigest(MessageDigest digest, @Nullable String field) {
+        if (field == null) {
+            digest.update((byte) 0);
+            return;
+        }
+        // Prefix each field with its length so field boundaries are part of the hash
+        byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+        digest.update((byte) 1);
+        digest.update(Integer.toString(bytes.length).getBytes(StandardCharsets.US_ASCII));
+        digest.update((byte) ':');
+        digest.update(bytes);
+    }
+
+    /**
+     * Looks up an explanation and marks it as recently used.
+     *
+     * @param key The cache key
+     * @return The cached explanation, or null if it is not cached
+     */
+    @Nullable
+    public synchronized String get(@NotNull String key) {
+        String explanation = entries.get(key);
+        if (explanation != null) {
+            hitCount.incrementAndGet();
+        } else {
+            missCount.incrementAndGet();
+        }
+        return explanation;
+    }
+
+    /**
+     * Checks whether an explanation is cached, without counting a hit or miss and without marking it as
+     * recently used.
+     *
+     * @param key The cache key
+     * @return true if the explanation is cached
+     */
+    public synchronized boolean contains(@NotNull String key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Stores an explanation, evicting the least recently used entries if the cache grows too large.
+     * Explanations larger than the whole cache are not stored.
+     *
+     * @param key         The cache key
+     * @param explanation The explanation
+     */
+    public synchronized void put(@NotNull String key, @NotNull String explanation) {
+        long entrySize = estimateSize(key, explanation);
+        if (entrySize > maxBytes) {
+            return;
+        }
+
+        String previous = entries.put(key, explanation);
+        if (previous != null) {
+            sizeBytes -= estimateSize(key, previous);
+        }
+        sizeBytes += entrySize;
+
+        Iterator<Map.Entry<String, String>> iterator = entries.entrySet().iterator();
+        while (sizeBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, String> eldest = iterator.next();
+            sizeBytes -= estimateSize(eldest.getKey(), eldest.getValue());
+            iterator.remove();
+            evictionCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes all entries. The counters are kept.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        sizeBytes = 0;
+    }
+
+    /**
+     * Gets the number of cached explanations.
+     *
+     * @return The number of entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Gets the estimated memory used by the cached explanations.
+     *
+     * @return The size in bytes
+     */
+    public synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ExplanationCache{entries=" + size() + ", bytes=" + getSizeBytes() + "/" + maxBytes
+                + ", hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "}";
+    }
+
+    /**
+     * Estimates the memory used by an entry: two bytes per character plus a fixed overhead for the
+     * map entry and the string objects.
+     */
+    private static long estimateSize(String key, String explanation) {
+        return 2L * (key.length() + explanation.length()) + 96;
+    }
+}
@@ -0,0 +1,40 @@
+package xzy.codeexplain.plugin.client;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpResponse;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Body subscriber turning the JSON response to a batched request into one explanation or error message per
+ * snippet. A response that cannot be read at all yields the same error message for every snippet.
+ */
+public class BatchExplanationBodySubscriber extends LimitedBodySubscriber<List<String>> {
+
+    private final int count;
+
+    /**
+     * Creates a subscriber for one response.
+     *
+     * @param responseInfo The status code and headers of the response
+     * @param maxBytes     The maximum size of the body, compressed and decompressed
+     * @param count        The number of snippets in the request
+     */
+    public BatchExplanationBodySubscriber(@NotNull HttpResponse.ResponseInfo responseInfo, long maxBytes, int count) {
+        super(responseInfo, maxBytes);
+        this.count = count;
+    }
+
+    @Override
+    protected List<String> readBody(@NotNull InputStream body) throws IOException {
+        return ExplanationResponseParser.readBatchExplanations(body, gzip, maxBytes, count);
+    }
+
+    @Override
+    protected List<String> error(@NotNull String message) {
+        return Collections.nCopies(count, "Error: " + message);
+    }
+}
@@ -0,0 +1,124 @@
+package xzy.codeexplain.plugin.client;
+
+/**
+ * Stops calling the API for a while after it failed repeatedly, so requests fail fast instead of each waiting
+ * for its own timeouts and retries while the backend is down.
+ * <p>
+ * The breaker opens after a number of consecutive failures. While open, calls are rejected. Once the open period
+ * has passed, a single trial call is let through: if it succeeds the breaker closes, if it fails the breaker opens
+ * again for another period.
+ */
+public class CircuitBreaker {
+
+    /**
+     * The states of the breaker.
+     */
+    public enum State {
+        /** Calls go through. */
+        CLOSED,
+        /** Calls are rejected. */
+        OPEN,
+        /** A single trial call decides whether the breaker closes or opens again. */
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean trialInFlight;
+    private long rejectedCount;
+
+    /**
+     * Creates a breaker.
+     *
+     * @param failureThreshold The number of consecutive failures opening the breaker; 0 disables it
+     * @param openMillis       How long the breaker stays open before a trial call is let through
+     */
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = Math.max(0, failureThreshold);
+        this.openMillis = Math.max(0, openMillis);
+    }
+
+    /**
+     * Asks for permission to make a call.
+     *
+     * @return true if the call may be made, false if the breaker rejects it
+     */
+    public synchronized boolean tryAcquire() {
+        if (failureThreshold == 0 || state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+            state = State.HALF_OPEN;
+            trialInFlight = false;
+        }
+        if (state == State.HALF_OPEN && !trialInFlight) {
+            trialInFlight = true;
+            return true;
+        }
+        rejectedCount++;
+        return false;
+    }
+
+    /**
+     * Records a call the API answered, closing the breaker.
+     */
+    public synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        state = State.CLOSED;
+        trialInFlight = false;
+    }
+
+    /**
+     * Records a call that failed because the API is down or failing, opening the breaker after enough
+     * consecutive failures or if the trial call failed.
+     */
+    public synchronized void onFailure() {
+        consecutiveFailures++;
+        if (failureThreshold > 0 && (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold)) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+            trialInFlight = false;
+        }
+    }
+
+    /**
+     * Records a call that was abandoned before its outcome was known, so a trial call does not block the
+     * breaker forever.
+     */
+    public synchronized void onAbandoned() {
+        trialInFlight = false;
+    }
+
+    /**
+     * Gets the state of the breaker.
+     *
+     * @return The state
+     */
+    public synchronized State getState() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    /**
+     * Gets how long the breaker stays open.
+     *
+     * @return The remaining open time in milliseconds, or 0 if it is not open
+     */
+    public synchronized long getRemainingOpenMillis() {
+        return state == State.OPEN ? Math.max(0, openedAt + openMillis - System.currentTimeMillis()) : 0;
+    }
+
+    /**
+     * Gets the number of calls rejected so far.
+     *
+     * @return The number of rejected calls
+     */
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+}
@@ -0,0 +1,161 @@
+package xzy.codeexplain.plugin.client;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a connection to the API open, so explanation requests don't pay for DNS, TCP, TLS and HTTP/2 setup.
+ * <p>
+ * {@link #warmUp()} opens the connection ahead of the first request with a {@code HEAD} request to the API. While
+ * the API is in use, a {@code HEAD} request is sent whenever the connection has been idle for the ping interval,
+ * so the server and proxies don't close it. Pinging stops once no explanation was requested for a while, and
+ * starts again with the next request.
+ */
+public class ConnectionWarmer implements AutoCloseable {
+    private static final Logger LOG = Logger.getLogger(ConnectionWarmer.class.getName());
+
+    private final Supplier<HttpClient> httpClient;
+    private final Supplier<String> url;
+    private final ScheduledExecutorService timer;
+    private final long pingIntervalMillis;
+    private final long maxIdleMillis;
+    private final AtomicLong pingCount = new AtomicLong();
+    private volatile long lastRequestMillis;
+    private volatile long lastUseMillis;
+    private ScheduledFuture<?> pings;
+    private boolean warming;
+    private boolean closed;
+
+    /**
+     * Creates a warmer.
+     *
+     * @param httpClient         Gets the HTTP client whose connection is kept open
+     * @param url                Gets the URL of the API
+     * @param timer              Runs the pings
+     * @param pingIntervalMillis How long the connection may be idle before it is pinged; 0 disables pings
+     * @param maxIdleMillis      How long after the last explanation request pinging stops
+     */
+    public ConnectionWarmer(@NotNull Supplier<HttpClient> httpClient, @NotNull Supplier<String> url,
+                            @NotNull ScheduledExecutorService timer, long pingIntervalMillis, long maxIdleMillis) {
+        this.httpClient = httpClient;
+        this.url = url;
+        this.timer = timer;
+        this.pingIntervalMillis = Math.max(0, pingIntervalMillis);
+        this.maxIdleMillis = Math.max(0, maxIdleMillis);
+    }
+
+    /**
+     * Opens the connection to the API in the background, unless it was used recently, and starts pinging it.
+     * Returns immediately.
+     */
+    public void warmUp() {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (closed || warming || now - lastUseMillis < Math.max(1000, pingIntervalMillis)) {
+                return;
+            }
+            warming = true;
+            // Counts as activity, so a preconnect on project open keeps the connection warm for a while
+            lastRequestMillis = now;
+            startPings();
+        }
+        timer.execute(() -> ping("Preconnect"));
+    }
+
+    /**
+     * Records that an explanation request is being sent, keeping the connection warm for the next one.
+     */
+    public void onRequest() {
+        long now = System.currentTimeMillis();
+        lastRequestMillis = now;
+        lastUseMillis = now;
+        if (pingIntervalMillis > 0) {
+            synchronized (this) {
+                startPings();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of preconnect and keep-alive requests sent so far.
+     *
+     * @return The number of pings
+     */
+    public long getPingCount() {
+        return pingCount.get();
+    }
+
+    private void startPings() {
+        if (closed || pings != null || pingIntervalMillis == 0) {
+            return;
+        }
+        long period = Math.max(1000, pingIntervalMillis / 2);
+        pings = timer.scheduleWithFixedDelay(this::pingIfIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private void pingIfIdle() {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (now - lastRequestMillis >= maxIdleMillis) {
+                // Nobody asked for an explanation for a while, let the connection go
+                if (pings != null) {
+                    pings.cancel(false);
+                    pings = null;
+                }
+                return;
+            }
+        }
+        if (now - lastUseMillis >= pingIntervalMillis) {
+            ping("Keep-alive ping");
+        }
+    }
+
+    private void ping(String purpose) {
+        lastUseMillis = System.currentTimeMillis();
+        pingCount.incrementAndGet();
+        HttpRequest request;
+        try {
+            request = HttpRequest.newBuilder()
+                    .uri(URI.create(url.get()))
+                    .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                    .timeout(Duration.ofSeconds(10))
+                    .build();
+        } catch (IllegalArgumentException e) {
+            LOG.log(Level.FINE, purpose + " skipped, invalid API URL", e);
+            finishWarming();
+            return;
+        }
+        // Any answer, even 405 Method Not Allowed, leaves an open connection behind
+        httpClient.get().sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, error) -> {
+            finishWarming();
+            if (error != null) {
+                LOG.log(Level.FINE, purpose + " to " + request.uri() + " failed", error);
+            }
+        });
+    }
+
+    private synchronized void finishWarming() {
+        warming = false;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (pings != null) {
+            pings.cancel(false);
+            pings = null;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package xzy.codeexplain.plugin.client;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import xzy.codeexplain.plugin.models.ContextEdit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Line based text diff for context deltas, using the O(ND) algorithm by Myers. Lines keep their line terminators,
+ * so applying the edits to the lines of the base and concatenating them restores the target text exactly.
+ */
+public final class ContextDiff {
+
+    private ContextDiff() {
+    }
+
+    /**
+     * Splits a text into lines, each including its line terminator ({@code \n}, {@code \r\n} or {@code \r}).
+     * Concatenating the lines gives the text back.
+     *
+     * @param text The text
+     * @return The lines; empty for an empty text
+     */
+    @NotNull
+    public static List<String> splitLines(@NotNull String text) {
+        List<String> lines = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\n' || c == '\r') {
+                if (c == '\r' && i + 1 < text.length() && text.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                lines.add(text.substring(start, i + 1));
+                start = i + 1;
+            }
+        }
+        if (start < text.length()) {
+            lines.add(text.substring(start));
+        }
+        return lines;
+    }
+
+    /**
+     * Computes the edits turning the base lines into the target lines. Gives up on texts that differ too much,
+     * as the diff gets expensive and sending the full text is about as small anyway.
+     *
+     * @param base        The lines of the base text
+     * @param target      The lines of the target text
+     * @param maxDistance The maximum number of deleted and inserted lines
+     * @return The edits, ordered by position; null if the texts differ in more than {@code maxDistance} lines
+     */
+    @Nullable
+    public static List<ContextEdit> diff(@NotNull List<String> base, @NotNull List<String> target, int maxDistance) {
+        // Lines shared at the start and end are common in edited files and need no search
+        int prefix = 0;
+        int maxPrefix = Math.min(base.size(), target.size());
+        while (prefix < maxPrefix && base.get(prefix).equals(target.get(prefix))) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < maxPrefix - prefix
+                && base.get(base.size() - 1 - suffix).equals(target.get(target.size() - 1 - suffix))) {
+            suffix++;
+        }
+        List<String> a = base.subList(prefix, base.size() - suffix);
+        List<String> b = target.subList(prefix, target.size() - suffix);
+
+        List<int[]> matches = matchLines(a, b, maxDistance);
+        if (matches == null) {
+            return null;
+        }
+
+        // Every gap between two matched lines is one edit
+        List<ContextEdit> edits = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        matches.add(new int[]{a.size(), b.size()});
+        for (int[] match : matches) {
+            if (match[0] > i || match[1] > j) {
+                edits.add(new ContextEdit(prefix + i, match[0] - i, new ArrayList<>(b.subList(j, match[1]))));
+            }
+            i = match[0] + 1;
+            j = match[1] + 1;
+        }
+        return edits;
+    }
+
+    /**
+     * Finds a longest common subsequence of two line lists.
+     *
+     * @return The positions of the matched lines in both lists, ascending; null if more than {@code maxDistance}
+     * lines would have to be deleted or inserted
+     */
+    @Nullable
+    private static List<int[]> matchLines(List<String> a, List<String> b, int maxDistance) {
+        int n = a.size();
+        int m = b.size();
+        int limit = Math.min(n + m, Math.max(0, maxDistance));
+        // v[offset + k] is the furthest x reached on diagonal k = x - y; one copy per step for the backtracking
+        int offset = limit + 1;
+        int[] v = new int[2 * limit + 3];
+        List<int[]> trace = new ArrayList<>();
+        for (int d = 0; d <= limit; d++) {
+            for (int k = -d; k <= d; k += 2) {
+                int x = k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1])
+                        ? v[offset + k + 1]
+                        : v[offset + k - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a.get(x).equals(b.get(y))) {
+                    x++;
+                    y++;
+                }
+                v[offset + k] = x;
+                if (x >= n && y >= m) {
+                    trace.add(copy(v, offset, d));
+                    return backtrack(a, b, trace, d);
+                }
+            }
+            trace.add(copy(v, offset, d));
+        }
+        return null;
+    }
+
+    private static int[] copy(int[] v, int offset, int d) {
+        int[] step = new int[2 * d + 1];
+        System.arraycopy(v, offset - d, step, 0, step.length);
+        return step;
+    }
+
+    private static List<int[]> backtrack(List<String> a, List<String> b, List<int[]> trace, int distance) {
+        List<int[]> matches = new ArrayList<>();
+        int x = a.size();
+        int y = b.size();
+        for (int d = distance; d > 0; d--) {
+            int[] previous = trace.get(d - 1);
+            int k = x - y;
+            boolean down = k == -d || (k != d && previous[k - 1 + d - 1] < previous[k + 1 + d - 1]);
+            int previousK = down ? k + 1 : k - 1;
+            int previousX = previous[previousK + d - 1];
+            int previousY = previousX - previousK;
+            int startX = down ? previousX : previousX + 1;
+            int startY = down ? previousY + 1 : previousY;
+            while (x > startX && y > startY) {
+                x--;
+                y--;
+                matches.add(new int[]{x, y});
+            }
+            x = previousX;
+            y = previousY;
+        }
+        while (x > 0 && y > 0) {
+            x--;
+            y--;
+            matches.add(new int[]{x, y});
+        }
+        Collections.reverse(matches);
+        return matches;
+    }
+}
@@ -0,0 +1,300 @@
+package xzy.codeexplain.plugin.client;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import xzy.codeexplain.plugin.models.CodeAnalysisRequest;
+import xzy.codeexplain.plugin.models.ContextEdit;
+
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Tracks which contexts an API endpoint already has, so repeated explanations in the same file don't upload the
+ * same context again.
+ * <p>
+ * Every request of a session names its context by its SHA-256 hash. The server acknowledges a context it stored
+ * with the {@value #CONTEXT_HASH_HEADER} response header, and the session remembers the last few acknowledged
+ * contexts. A context the server acknowledged is sent as its hash only, one that differs little from an
+ * acknowledged context as line edits of it, and any other context as its hash first, as the server may have it
+ * from an earlier session. If the server answers 409 Conflict because it doesn't know a hash, the request is sent
+ * again with the full context, see {@link #fallback}.
+ * <p>
+ * The first request sends the full context. If the server answers without acknowledging it, the endpoint doesn't
+ * support sessions, and the session sends all further requests unchanged.
+ */
+public class ContextSession {
+
+    /**
+     * The response header in which the server acknowledges the hash of the context it stored.
+     */
+    public static final String CONTEXT_HASH_HEADER = "X-Context-Hash";
+    private static final Logger LOG = Logger.getLogger(ContextSession.class.getName());
+    private static final int MAX_ACKNOWLEDGED_CONTEXTS = 8;
+    /**
+     * Contexts differing from every acknowledged context in more lines than this are not diffed.
+     */
+    private static final int MAX_DIFF_DISTANCE = 500;
+
+    /**
+     * Whether the endpoint supports context sessions.
+     */
+    public enum Support {
+        /** No request has been answered yet. */
+        UNKNOWN,
+        /** The endpoint acknowledged a context. */
+        SUPPORTED,
+        /** The endpoint ignored the context hash; requests are sent unchanged. */
+        UNSUPPORTED
+    }
+
+    /**
+     * How a request sends its context.
+     */
+    public enum Kind {
+        /** The full context, with its hash. */
+        FULL,
+        /** Only the hash of the context. */
+        HASH,
+        /** Line edits of a context the server has. */
+        DELTA
+    }
+
+    private final String url;
+    private final Map<String, List<String>> acknowledged = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+            return size() > MAX_ACKNOWLEDGED_CONTEXTS;
+        }
+    };
+    private Support support = Support.UNKNOWN;
+
+    /**
+     * Creates a session with an API endpoint.
+     *
+     * @param url The URL of the endpoint
+     */
+    public ContextSession(@NotNull String url) {
+        this.url = url;
+    }
+
+    /**
+     * Gets whether the endpoint supports context sessions, as far as known.
+     *
+     * @return The support of the endpoint
+     */
+    public synchronized Support getSupport() {
+        return support;
+    }
+
+    /**
+     * Prepares the request to send in place of an analysis request, with its context replaced by a hash or edits
+     * where the server has the context or a similar one. The analysis request itself is not changed.
+     *
+     * @param request The analysis request
+     * @return The upload to send, or null if the endpoint doesn't support sessions and the request is sent unchanged
+     */
+    @Nullable
+    public Upload prepare(@NotNull CodeAnalysisRequest request) {
+        if (getSupport() == Support.UNSUPPORTED) {
+            // Don't pay for hashing and splitting the context of every request to an endpoint without sessions
+            return null;
+        }
+        String context = request.getContext() != null ? request.getContext() : "";
+        String hash = hash(context);
+        List<String> lines = ContextDiff.splitLines(context);
+
+        Map<String, List<String>> bases;
+        synchronized (this) {
+            if (support == Support.UNSUPPORTED) {
+                return null;
+            }
+            if (support == Support.UNKNOWN) {
+                return new Upload(request, Kind.FULL, hash, lines, null, null);
+            }
+            // Looking the context up also marks it as recently used
+            if (acknowledged.get(hash) != null) {
+                return new Upload(request, Kind.HASH, hash, lines, null, null);
+            }
+            bases = new LinkedHashMap<>(acknowledged);
+        }
+
+        // Diff against the acknowledged context sharing the most lines, if the edits are much smaller
+        String baseHash = mostSimilar(bases, lines);
+        if (baseHash != null) {
+            List<ContextEdit> edits = ContextDiff.diff(bases.get(baseHash), lines, MAX_DIFF_DISTANCE);
+            if (edits != null && 2 * editChars(edits) < context.length()) {
+                return new Upload(request, Kind.DELTA, hash, lines, baseHash, edits);
+            }
+        }
+        return new Upload(request, Kind.HASH, hash, lines, null, null);
+    }
+
+    /**
+     * Prepares the upload sending the full context, after the server rejected a hash or delta with 409 Conflict.
+     *
+     * @param upload The rejected upload
+     * @return The upload with the full context
+     */
+    @NotNull
+    public Upload fallback(@NotNull Upload upload) {
+        return new Upload(upload.original, Kind.FULL, upload.hash, upload.lines, null, null);
+    }
+
+    /**
+     * Records the response to an upload: remembers an acknowledged context, forgets contexts the server no
+     * longer has, and finds out whether the endpoint supports sessions at all.
+     *
+     * @param upload   The upload
+     * @param response The response of the server
+     */
+    public void onResponse(@NotNull Upload upload, @NotNull HttpResponse<?> response) {
+        String acknowledgedHash = response.headers().firstValue(CONTEXT_HASH_HEADER).orElse(null);
+        synchronized (this) {
+            if (upload.hash.equals(acknowledgedHash)) {
+                if (support != Support.SUPPORTED) {
+                    LOG.info("The API at " + url + " supports context sessions, sending unchanged contexts as hashes");
+                    support = Support.SUPPORTED;
+                }
+                acknowledged.put(upload.hash, upload.lines);
+            } else if (response.statusCode() == 409) {
+                acknowledged.remove(upload.hash);
+                if (upload.baseHash != null) {
+                    acknowledged.remove(upload.baseHash);
+                }
+            } else if (response.statusCode() == 200 && upload.kind == Kind.FULL && support == Support.UNKNOWN) {
+                LOG.info("The API at " + url + " does not support context sessions, sending full contexts");
+                support = Support.UNSUPPORTED;
+            } else if (response.statusCode() == 200 && upload.kind != Kind.FULL) {
+                // The server answered without resolving the hash, e.g. it was replaced; start over
+                support = Support.UNKNOWN;
+                acknowledged.clear();
+            }
+        }
+    }
+
+    @Nullable
+    private static String mostSimilar(Map<String, List<String>> bases, List<String> lines) {
+        Set<String> distinctLines = new HashSet<>(lines);
+        String best = null;
+        int bestShared = 0;
+        for (Map.Entry<String, List<String>> base : bases.entrySet()) {
+            int shared = 0;
+            for (String line : base.getValue()) {
+                if (distinctLines.contains(line)) {
+                    shared++;
+                }
+            }
+            if (shared > bestShared) {
+                best = base.getKey();
+                bestShared = shared;
+            }
+        }
+        // Not worth diffing if most lines are new anyway
+        return 2 * bestShared >= lines.size() ? best : null;
+    }
+
+    private static long editChars(List<ContextEdit> edits) {
+        long chars = 0;
+        for (ContextEdit edit : edits) {
+            for (String line : edit.getLines()) {
+                chars += line.length();
+            }
+        }
+        return chars;
+    }
+
+    /**
+     * Computes the hash naming a context in a session: the SHA-256 hash of its UTF-8 bytes.
+     *
+     * @param context The context
+     * @return The hex encoded hash
+     */
+    @NotNull
+    public static String hash(@NotNull String context) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        StringBuilder hash = new StringBuilder(64);
+        for (byte b : digest.digest(context.getBytes(StandardCharsets.UTF_8))) {
+            hash.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hash.toString();
+    }
+
+    /**
+     * One request of a session: the analysis request with its context sent in full, as a hash or as edits.
+     */
+    public static final class Upload {
+        private final CodeAnalysisRequest original;
+        private final Kind kind;
+        private final String hash;
+        private final List<String> lines;
+        @Nullable
+        private final String baseHash;
+        private final CodeAnalysisRequest request;
+        private final long chars;
+
+        private Upload(CodeAnalysisRequest original, Kind kind, String hash, List<String> lines,
+                       @Nullable String baseHash, @Nullable List<ContextEdit> edits) {
+            this.original = original;
+            this.kind = kind;
+            this.hash = hash;
+            this.lines = lines;
+            this.baseHash = baseHash;
+
+            // Copy the request, the original may be sent again by a retry or hedge
+            request = new CodeAnalysisRequest(original.getSelectedCode(), kind == Kind.FULL ? original.getContext() : null,
+                    original.getFormat());
+            request.setStream(original.isStream());
+            request.setContextHash(hash);
+            long contextChars = kind == Kind.FULL ? lengthOf(original.getContext()) : 0;
+            if (edits != null) {
+                request.setContextDelta(baseHash, edits);
+                contextChars = editChars(edits);
+            }
+            chars = lengthOf(original.getSelectedCode()) + contextChars;
+        }
+
+        private static int lengthOf(@Nullable String text) {
+            return text != null ? text.length() : 0;
+        }
+
+        /**
+         * Gets how the context is sent.
+         *
+         * @return The kind of upload
+         */
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * Gets the request to send.
+         *
+         * @return The request with the context, its hash or edits
+         */
+        public CodeAnalysisRequest getRequest() {
+            return request;
+        }
+
+        /**
+         * Gets the number of characters of code and context in the request to send.
+         *
+         * @return The number of characters
+         */
+        public long getChars() {
+            return chars;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package xzy.codeexplain.plugin.client;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpResponse;
+
+/**
+ * Body subscriber turning a JSON response of the API into the explanation or an error message.
+ * <p>
+ * The body is handed to {@link ExplanationResponseParser} once it is complete; see {@link LimitedBodySubscriber}
+ * for how it is collected.
+ */
+public class ExplanationBodySubscriber extends LimitedBodySubscriber<String> {
+
+    /**
+     * Creates a subscriber for one response.
+     *
+     * @param responseInfo The status code and headers of the response
+     * @param maxBytes     The maximum size of the body, compressed and decompressed
+     */
+    public ExplanationBodySubscriber(@NotNull HttpResponse.ResponseInfo responseInfo, long maxBytes) {
+        super(responseInfo, maxBytes);
+    }
+
+    @Override
+    protected String readBody(@NotNull InputStream body) throws IOException {
+        return ExplanationResponseParser.readExplanation(body, gzip, maxBytes);
+    }
+
+    @Override
+    protected String error(@NotNull String message) {
+        return "Error: " + message;
+    }
+}
@@ -0,0 +1,1110 @@
+package xzy.codeexplain.plugin.client;
+
+import com.google.gson.Gson;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import xzy.codeexplain.plugin.backend.BackendRouter;
+import xzy.codeexplain.plugin.backend.ExplanationBackend;
+import xzy.codeexplain.plugin.backend.RemoteBackendFactory;
+import xzy.codeexplain.plugin.cache.DiskExplanationStore;
+import xzy.codeexplain.plugin.cache.ExplanationCache;
+import xzy.codeexplain.plugin.config.PluginConfig;
+import xzy.codeexplain.plugin.metrics.PipelineMetrics;
+import xzy.codeexplain.plugin.metrics.PipelinePhase;
+import xzy.codeexplain.plugin.models.BatchAnalysisRequest;
+import xzy.codeexplain.plugin.models.CodeAnalysisRequest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Client of the explanation API, independent of the IDE.
+ * <p>
+ * Sends selected code and its context to the API and returns the explanation. Answers repeated requests from an
+ * in-memory cache and an optional on-disk store, coalesces identical requests, schedules API calls by priority and
+ * owner, and retries, hedges and batches them as configured in {@link PluginConfig}. Every API call goes to the
+ * backend chosen by a {@link BackendRouter}. The IDE uses it through its
+ * application service, the command line client directly.
+ */
+public class ExplanationClient implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(ExplanationClient.class.getName());
+    /**
+     * Requests with less code and context than this are sent uncompressed, gzip saves next to nothing on them.
+     */
+    private static final int MIN_COMPRESSED_REQUEST_CHARS = 1024;
+    /**
+     * Contexts shorter than this are always sent in full, a session saves too little on them.
+     */
+    private static final int MIN_SESSION_CONTEXT_CHARS = 2048;
+    private final Object clientLock = new Object();
+    private final Gson gson;
+    private volatile RequestExecutor executorService;
+    private volatile HttpClient httpClient;
+    private final ExplanationCache explanationCache;
+    private final SingleFlight<String, String> inFlightRequests = new SingleFlight<>();
+    private final RequestScheduler scheduler = new RequestScheduler(PluginConfig.getMaxConcurrentRequests(),
+            command -> getExecutor().execute(command));
+    private final Map<String, PendingExplanation> pendingExplanations = new ConcurrentHashMap<>();
+    private final AtomicInteger activeRequests = new AtomicInteger();
+    private final AtomicInteger activeInteractiveRequests = new AtomicInteger();
+    private final RequestBudget prefetchBudget = new RequestBudget(PluginConfig.getPrefetchRequestsPerHour(), 60 * 60 * 1000L);
+    private final RequestBatcher<BatchItem, String> requestBatcher;
+    private final FaultTolerance faultTolerance;
+    private final BackendRouter router;
+    private final List<String> backendCounters = new ArrayList<>();
+    private final Map<String, ContextSession> contextSessions = new ConcurrentHashMap<>();
+    private final AtomicLong contextUploadCount = new AtomicLong();
+    private final AtomicLong contextHashCount = new AtomicLong();
+    private final AtomicLong contextDeltaCount = new AtomicLong();
+    private final AtomicLong contextMissCount = new AtomicLong();
+    @Nullable
+    private final ConnectionWarmer connectionWarmer;
+    private volatile boolean requestCompressionSupported = true;
+    private volatile boolean batchingSupported = true;
+    @Nullable
+    private final Path storeDirectory;
+    private DiskExplanationStore diskStore;
+    private boolean diskStoreInitialized;
+
+    /**
+     * Creates a client of the API configured in {@link PluginConfig}. Cheap: the request threads and the HTTP client
+     * are only created once the first explanation is requested or the connection is warmed up.
+     *
+     * @param storeDirectory The directory of the on-disk explanation store, or null to only cache in memory
+     * @param timer          Runs retries, hedges, batching windows and keep-alive pings; not shut down by the client
+     */
+    public ExplanationClient(@Nullable Path storeDirectory, @NotNull ScheduledExecutorService timer) {
+        this(storeDirectory, timer, List.of(new RemoteBackendFactory().create("Remote API", null)));
+    }
+
+    /**
+     * Creates a client routing API calls to the fastest healthy of the given backends. Cheap: the request threads
+     * and the HTTP client are only created once the first explanation is requested or the connection is warmed up.
+     *
+     * @param storeDirectory The directory of the on-disk explanation store, or null to only cache in memory
+     * @param timer          Runs retries, hedges, batching windows and keep-alive pings; not shut down by the client
+     * @param backends       The backends to send API calls to, at least one
+     */
+    public ExplanationClient(@Nullable Path storeDirectory, @NotNull ScheduledExecutorService timer,
+                             @NotNull List<? extends ExplanationBackend> backends) {
+        this.storeDirectory = storeDirectory;
+        router = new BackendRouter(backends);
+        gson = new Gson();
+        explanationCache = new ExplanationCache(PluginConfig.getCacheMaxBytes());
+        faultTolerance = new FaultTolerance(
+                new RetryPolicy(PluginConfig.getRetryMaxAttempts(), PluginConfig.getRetryBaseDelayMillis(), PluginConfig.getRetryMaxDelayMillis()),
+                new CircuitBreaker(PluginConfig.getCircuitBreakerFailureThreshold(), PluginConfig.getCircuitBreakerOpenMillis()),
+                PluginConfig.isHedgingEnabled(), timer);
+        requestBatcher = new RequestBatcher<>(PluginConfig.getBatchWindowMillis(), PluginConfig.getMaxBatchSize(),
+                timer, this::sendBatch);
+        connectionWarmer = PluginConfig.isPreconnectEnabled()
+                ? new ConnectionWarmer(this::getHttpClient, () -> router.getPreferred().getExplainUrl(), timer,
+                        PluginConfig.getKeepAlivePingIntervalMillis(), PluginConfig.getKeepAliveMaxIdleMillis())
+                : null;
+
+        PipelineMetrics metrics = PipelineMetrics.getInstance();
+        metrics.registerCache("Explanation cache", explanationCache::getHitCount, explanationCache::getMissCount);
+        metrics.registerCounter("Retries", faultTolerance::getRetryCount);
+        metrics.registerCounter("Hedged requests", faultTolerance::getHedgeCount);
+        metrics.registerCounter("Winning hedges", faultTolerance::getHedgeWinCount);
+        metrics.registerCounter("Skipped hedges", faultTolerance::getHedgeSkipCount);
+        metrics.registerCounter("Circuit breaker rejections", faultTolerance.getCircuitBreaker()::getRejectedCount);
+        metrics.registerCounter("Preempted requests", scheduler::getPreemptionCount);
+        metrics.registerCounter("Full context uploads", contextUploadCount::get);
+        metrics.registerCounter("Contexts sent as hash", contextHashCount::get);
+        metrics.registerCounter("Contexts sent as delta", contextDeltaCount::get);
+        metrics.registerCounter("Unknown context hashes", contextMissCount::get);
+        registerBackendCounters();
+    }
+
+    /**
+     * Replaces the backends API calls are sent to, e.g. after the settings changed. Calls in flight are not affected.
+     *
+     * @param backends The backends to send API calls to, at least one
+     */
+    public void setBackends(@NotNull List<? extends ExplanationBackend> backends) {
+        router.setBackends(backends);
+        registerBackendCounters();
+        LOG.info("Sending explanation requests to " + backends);
+    }
+
+    /**
+     * Gets the router choosing the backend of each API call, e.g. to read its measurements.
+     *
+     * @return The backend router
+     */
+    public BackendRouter getRouter() {
+        return router;
+    }
+
+    /**
+     * Reports the calls, failures and latency of every backend in the pipeline metrics.
+     */
+    private synchronized void registerBackendCounters() {
+        PipelineMetrics metrics = PipelineMetrics.getInstance();
+        for (String counter : backendCounters) {
+            metrics.unregisterCounter(counter);
+        }
+        backendCounters.clear();
+        for (BackendRouter.BackendStats stats : router.getStats()) {
+            String name = stats.getBackend().getName();
+            registerBackendCounter(metrics, "Backend " + name + " calls", name, BackendRouter.BackendStats::getCallCount);
+            registerBackendCounter(metrics, "Backend " + name + " failures", name, BackendRouter.BackendStats::getFailureCount);
+            registerBackendCounter(metrics, "Backend " + name + " EWMA latency (ms)", name, current ->
+                    Double.isNaN(current.getLatencyMillis()) ? 0 : Math.round(current.getLatencyMillis()));
+        }
+    }
+
+    private void registerBackendCounter(PipelineMetrics metrics, String counter, String backendName,
+                                        ToLongFunction<BackendRouter.BackendStats> value) {
+        metrics.registerCounter(counter, () -> {
+            BackendRouter.BackendStats stats = router.getStats(backendName);
+            return stats != null ? value.applyAsLong(stats) : 0;
+        });
+        backendCounters.add(counter);
+    }
+
+    /**
+     * Gets the executor running the explanation pipeline, creating it on first use.
+     *
+     * @return The request executor
+     */
+    private RequestExecutor getExecutor() {
+        RequestExecutor executor = executorService;
+        if (executor == null) {
+            synchronized (clientLock) {
+                executor = executorService;
+                if (executor == null) {
+                    // Bounded, so bursts of requests queue up instead of starting a thread each
+                    executor = RequestExecutor.create(PluginConfig.getRequestThreads(), PluginConfig.isVirtualThreadsEnabled());
+                    executorService = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Gets the HTTP client, creating it on first use.
+     *
+     * @return The HTTP client
+     */
+    private HttpClient getHttpClient() {
+        HttpClient client = httpClient;
+        if (client == null) {
+            synchronized (clientLock) {
+                client = httpClient;
+                if (client == null) {
+                    client = HttpClient.newBuilder()
+                            .version(HttpClient.Version.HTTP_2)
+                            .connectTimeout(Duration.ofSeconds(10))
+                            .executor(getExecutor())
+                            .build();
+                    httpClient = client;
+                }
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Opens the connection to the API in the background, so the first explanation doesn't pay for connection
+     * setup, and keeps it open while explanations are requested. Does nothing unless preconnecting is enabled.
+     */
+    public void warmUpConnection() {
+        if (connectionWarmer != null) {
+            connectionWarmer.warmUp();
+        }
+    }
+
+    /**
+     * Explains the selected code in its context. Makes an asynchronous REST call to the API, unless the
+     * explanation is cached.
+     *
+     * @param owner        The owner of the request for fair scheduling, e.g. its project
+     * @param selectedText The text that was selected by the user
+     * @param context      The surrounding context of the selected code
+     * @return A CompletableFuture that will complete with the explanation or an error message
+     */
+    public CompletableFuture<String> analyzeCodeAsync(@NotNull Object owner, @NotNull String selectedText, @NotNull String context) {
+
+        // Create request object
+        CodeAnalysisRequest requestObj = new CodeAnalysisRequest(selectedText, context, "markdown");
+
+        // Answer repeated requests for the same code from the caches, otherwise make the API call
+        return explain(ExplanationCache.keyFor(requestObj), partialConsumer -> {
+            // The user is waiting, a slow request may be hedged
+            CompletableFuture<HttpResponse<String>> exchange = send(requestObj, "application/json", this::explanationBodySubscriber, true);
+            return Futures.propagateCancellation(exchange.thenApply(HttpResponse::body), exchange);
+        }, null, RequestPriority.INTERACTIVE, owner);
+    }
+
+    /**
+     * Analyzes the selected code like {@link #analyzeCodeAsync}, but asks the API to stream the explanation
+     * as server-sent events. The explanation received so far is passed to {@code partialConsumer} as new parts
+     * arrive, at most every 50 ms, so the caller can show it before generation has finished. Servers that answer
+     * with a plain JSON response are handled transparently.
+     *
+     * @param owner           The owner of the request for fair scheduling, e.g. its project
+     * @param selectedText    The text that was selected by the user
+     * @param context         The surrounding context of the selected code
+     * @param partialConsumer Receives the explanation received so far; called on an HTTP client thread
+     * @return A CompletableFuture that will complete with the complete explanation
+     */
+    public CompletableFuture<String> analyzeCodeStreamingAsync(@NotNull Object owner, @NotNull String selectedText,
+                                                               @NotNull String context,
+                                                               @NotNull Consumer<String> partialConsumer) {
+        CodeAnalysisRequest requestObj = new CodeAnalysisRequest(selectedText, context, "markdown");
+
+        // A stored explanation is complete already, there is nothing to stream
+        return explain(ExplanationCache.keyFor(requestObj), partials -> {
+            requestObj.setStream(true);
+            return sendStreaming(requestObj, partials);
+        }, partialConsumer, RequestPriority.INTERACTIVE, owner);
+    }
+
+    /**
+     * Analyzes code as part of a batch, e.g. all methods of a package. Works like {@link #analyzeCodeAsync},
+     * but runs with {@link RequestPriority#BATCH}, so it only uses slots no interactive request or prefetch needs.
+     * <p>
+     * If request batching is enabled, code sharing the same context that is submitted within a short window, e.g. the
+     * declarations of a file small enough to be sent as a whole, is explained by a single batched API request.
+     *
+     * @param owner   The owner of the request for fair scheduling, e.g. its project
+     * @param code    The code to explain
+     * @param context The surrounding context of the code
+     * @return A CompletableFuture that will complete with the explanation or an error message
+     */
+    public CompletableFuture<String> analyzeBatchAsync(@NotNull Object owner, @NotNull String code, @NotNull String context) {
+        CodeAnalysisRequest requestObj = new CodeAnalysisRequest(code, context, "markdown");
+        if (PluginConfig.isBatchRequestsEnabled() && batchingSupported) {
+            return explain(ExplanationCache.keyFor(requestObj),
+                    pending -> requestBatcher.submit(List.of(owner, context), new BatchItem(requestObj, pending, owner)),
+                    null, RequestPriority.BATCH);
+        }
+        return explain(ExplanationCache.keyFor(requestObj), partialConsumer -> {
+            CompletableFuture<HttpResponse<String>> exchange = send(requestObj, "application/json", this::explanationBodySubscriber);
+            return Futures.propagateCancellation(exchange.thenApply(HttpResponse::body), exchange);
+        }, null, RequestPriority.BATCH, owner);
+    }
+
+    /**
+     * Sends the snippets collected by the request batcher, which share their context, as one batched request.
+     * If the API has no batch endpoint, batching is switched off for the rest of the session and the snippets
+     * are sent one by one instead. Cancelling the returned future cancels the exchanges.
+     *
+     * @param items The snippets to explain
+     * @return A CompletableFuture that will complete with one explanation or error message per snippet
+     */
+    private CompletableFuture<List<String>> sendBatch(List<BatchItem> items) {
+        if (items.size() == 1) {
+            // Nothing to share, a regular request will do
+            return sendIndividually(items);
+        }
+
+        BatchItem first = items.get(0);
+        BatchAnalysisRequest batchRequest = new BatchAnalysisRequest(first.request.getContext(), "markdown");
+        long chars = length(first.request.getContext());
+        for (BatchItem item : items) {
+            batchRequest.addSnippet(item.request.getSelectedCode());
+            chars += length(item.request.getSelectedCode());
+        }
+        long codeChars = chars;
+        RequestScheduler.Task<HttpResponse<List<String>>> task = scheduler.submit(RequestPriority.BATCH, first.owner,
+                () -> send(ExplanationBackend::getBatchUrl, batchRequest, codeChars, "application/json",
+                        responseInfo -> new BatchExplanationBodySubscriber(responseInfo, PluginConfig.getMaxResponseBytes(), items.size()),
+                        false));
+        for (BatchItem item : items) {
+            // Callers of higher priority waiting for one of the snippets raise the priority of the whole request
+            item.pending.attach(scheduler, task);
+        }
+
+        CompletableFuture<List<String>> result = new CompletableFuture<>();
+        Futures.propagateCancellation(result, task.getResult());
+        task.getResult().whenComplete((response, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+                return;
+            }
+            int status = response.statusCode();
+            if ((status != 404 && status != 405 && status != 501) || result.isDone()) {
+                result.complete(response.body());
+                return;
+            }
+
+            LOG.info("The API does not support batched requests (status " + status + "), sending snippets one by one");
+            batchingSupported = false;
+            CompletableFuture<List<String>> individual = sendIndividually(items);
+            Futures.propagateCancellation(result, individual);
+            individual.whenComplete((explanations, individualError) -> {
+                if (individualError != null) {
+                    result.completeExceptionally(individualError);
+                } else {
+                    result.complete(explanations);
+                }
+            });
+        });
+        return result;
+    }
+
+    /**
+     * Sends each snippet collected by the request batcher as a request of its own.
+     *
+     * @param items The snippets to explain
+     * @return A CompletableFuture that will complete with one explanation or error message per snippet
+     */
+    private CompletableFuture<List<String>> sendIndividually(List<BatchItem> items) {
+        List<CompletableFuture<String>> exchanges = new ArrayList<>(items.size());
+        for (BatchItem item : items) {
+            exchanges.add(item.pending.schedule(scheduler, item.owner, () -> {
+                CompletableFuture<HttpResponse<String>> exchange = send(item.request, "application/json", this::explanationBodySubscriber);
+                return Futures.propagateCancellation(exchange.thenApply(HttpResponse::body), exchange);
+            }));
+        }
+
+        CompletableFuture<List<String>> result = CompletableFuture.allOf(exchanges.toArray(new CompletableFuture<?>[0]))
+                .thenApply(done -> {
+                    List<String> explanations = new ArrayList<>(exchanges.size());
+                    for (CompletableFuture<String> exchange : exchanges) {
+                        explanations.add(exchange.join());
+                    }
+                    return explanations;
+                });
+        for (CompletableFuture<String> exchange : exchanges) {
+            Futures.propagateCancellation(result, exchange);
+        }
+        return result;
+    }
+
+    /**
+     * Requests the explanation of the selected code ahead of time, so a later {@link #analyzeCodeAsync} or
+     * {@link #analyzeCodeStreamingAsync} for the same code is answered from the cache, or joins the prefetch
+     * while it is still in flight. Nothing is requested if the explanation is cached already or the hourly
+     * prefetch budget is used up.
+     * <p>
+     * Prefetches run with {@link RequestPriority#PREFETCH}; an explanation request joining one raises it to
+     * interactive priority. Cancelling the returned future abandons the prefetch; the HTTP exchange is only
+     * cancelled if no explanation request has joined it in the meantime.
+     *
+     * @param owner        The owner of the request for fair scheduling, e.g. its project
+     * @param selectedText The selected code
+     * @param context      The surrounding context of the selected code
+     * @return A CompletableFuture that will complete with the explanation, or null if nothing was requested
+     */
+    @Nullable
+    public CompletableFuture<String> prefetchAsync(@NotNull Object owner, @NotNull String selectedText,
+                                                   @NotNull String context) {
+        CodeAnalysisRequest requestObj = new CodeAnalysisRequest(selectedText, context, "markdown");
+        String cacheKey = ExplanationCache.keyFor(requestObj);
+        if (explanationCache.contains(cacheKey) || !prefetchBudget.tryAcquire()) {
+            return null;
+        }
+
+        // Stream if the user would, so an explanation request joining the prefetch shows its partial explanations
+        boolean streaming = PluginConfig.isStreamingEnabled();
+        return explain(cacheKey, partials -> {
+            if (streaming) {
+                requestObj.setStream(true);
+                return sendStreaming(requestObj, partials);
+            }
+            CompletableFuture<HttpResponse<String>> exchange = send(requestObj, "application/json", this::explanationBodySubscriber);
+            return Futures.propagateCancellation(exchange.thenApply(HttpResponse::body), exchange);
+        }, null, RequestPriority.PREFETCH, owner);
+    }
+
+    /**
+     * Sends a streaming request and completes with the explanation once the stream has ended.
+     */
+    private CompletableFuture<String> sendStreaming(CodeAnalysisRequest requestObj, Consumer<String> partialConsumer) {
+        HttpResponse.BodyHandler<String> bodyHandler = responseInfo -> {
+            String contentType = responseInfo.headers().firstValue("Content-Type").orElse("");
+            if (responseInfo.statusCode() == 200 && contentType.startsWith("text/event-stream")) {
+                ExplanationStreamSubscriber subscriber = new ExplanationStreamSubscriber(partialConsumer, PluginConfig.getMaxResponseBytes());
+                return HttpResponse.BodySubscribers.fromLineSubscriber(subscriber,
+                        ExplanationStreamSubscriber::getResult, StandardCharsets.UTF_8, null);
+            }
+            // Not a stream, fall back to the regular JSON handling
+            return explanationBodySubscriber(responseInfo);
+        };
+
+        CompletableFuture<HttpResponse<String>> exchange = send(requestObj, "text/event-stream, application/json", bodyHandler);
+        return Futures.propagateCancellation(exchange.thenApply(HttpResponse::body), exchange);
+    }
+
+    /**
+     * Sends an analysis request to the API, see {@link #send(Function, Object, long, String, HttpResponse.BodyHandler, boolean)}.
+     *
+     * @param requestObj  The analysis request to send
+     * @param accept      The value of the Accept header
+     * @param bodyHandler The handler of the response body
+     * @return A CompletableFuture that will complete with the response
+     */
+    private <T> CompletableFuture<HttpResponse<T>> send(CodeAnalysisRequest requestObj, String accept,
+                                                        HttpResponse.BodyHandler<T> bodyHandler) {
+        return send(requestObj, accept, bodyHandler, false);
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> send(CodeAnalysisRequest requestObj, String accept,
+                                                        HttpResponse.BodyHandler<T> bodyHandler, boolean hedge) {
+        long chars = (long) length(requestObj.getSelectedCode()) + length(requestObj.getContext());
+        return send(ExplanationBackend::getExplainUrl, requestObj, chars, accept, bodyHandler, hedge);
+    }
+
+    /**
+     * Sends a request object to an API endpoint. Failed attempts are retried with backoff and calls fail fast while
+     * the API is down, see {@link FaultTolerance}. Every attempt goes to the backend chosen by the router; a retry or
+     * hedge avoids the backend of the attempt before it if another one is healthy. Called while the scheduler starts
+     * a request, the attempts use the slot of that request. Cancelling the returned future cancels the exchange.
+     *
+     * @param endpoint    Gets the URL of the endpoint from the chosen backend
+     * @param requestObj  The request object to serialize
+     * @param chars       The number of characters of code and context in the request
+     * @param accept      The value of the Accept header
+     * @param bodyHandler The handler of the response body
+     * @param hedge       Whether a slow call may be hedged with a second request
+     * @return A CompletableFuture that will complete with the response
+     */
+    private <T> CompletableFuture<HttpResponse<T>> send(Function<ExplanationBackend, String> endpoint, Object requestObj,
+                                                        long chars, String accept, HttpResponse.BodyHandler<T> bodyHandler,
+                                                        boolean hedge) {
+        AtomicReference<ExplanationBackend> previous = new AtomicReference<>();
+        return faultTolerance.call(() -> {
+            ExplanationBackend backend = router.choose(previous.get());
+            previous.set(backend);
+            return exchange(backend, endpoint.apply(backend), requestObj, chars, accept, bodyHandler);
+        }, hedge, RequestScheduler.startingTask());
+    }
+
+    /**
+     * Makes one attempt of sending a request object to an API endpoint. Large contexts of analysis requests are sent
+     * in the context session with the endpoint if enabled, see {@link ContextSession}: if the server doesn't know the
+     * context hash or the base of the edits and answers 409 Conflict, the request is sent again with the full
+     * context. Cancelling the returned future cancels the exchange.
+     *
+     * @param backend     The backend to send the request to
+     * @param url         The URL of the endpoint
+     * @param requestObj  The request object to serialize
+     * @param chars       The number of characters of code and context in the request
+     * @param accept      The value of the Accept header
+     * @param bodyHandler The handler of the response body
+     * @return A CompletableFuture that will complete with the response
+     */
+    private <T> CompletableFuture<HttpResponse<T>> exchange(ExplanationBackend backend, String url, Object requestObj,
+                                                            long chars, String accept, HttpResponse.BodyHandler<T> bodyHandler) {
+        ContextSession session = null;
+        ContextSession.Upload upload = null;
+        if (requestObj instanceof CodeAnalysisRequest && usesContextSession((CodeAnalysisRequest) requestObj)) {
+            session = contextSessions.computeIfAbsent(url, ContextSession::new);
+            upload = session.prepare((CodeAnalysisRequest) requestObj);
+        }
+        if (upload == null) {
+            return post(backend, url, requestObj, chars, accept, bodyHandler);
+        }
+
+        ContextSession contextSession = session;
+        ContextSession.Upload sent = upload;
+        CompletableFuture<HttpResponse<T>> exchange = post(backend, url, contextSession, sent, accept, bodyHandler);
+        if (sent.getKind() == ContextSession.Kind.FULL) {
+            return exchange;
+        }
+
+        CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+        exchange.whenComplete((response, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+                return;
+            }
+            if (response.statusCode() != 409 || result.isDone()) {
+                result.complete(response);
+                return;
+            }
+
+            contextMissCount.incrementAndGet();
+            CompletableFuture<HttpResponse<T>> retry = post(backend, url, contextSession, contextSession.fallback(sent),
+                    accept, bodyHandler);
+            Futures.propagateCancellation(result, retry);
+            retry.whenComplete((retryResponse, retryError) -> {
+                if (retryError != null) {
+                    result.completeExceptionally(retryError);
+                } else {
+                    result.complete(retryResponse);
+                }
+            });
+        });
+        return Futures.propagateCancellation(result, exchange);
+    }
+
+    /**
+     * Sends one request of a context session and records the response in the session before the returned future
+     * completes. Cancelling the returned future cancels the exchange.
+     *
+     * @param backend     The backend to send the request to
+     * @param url         The URL of the endpoint
+     * @param session     The context session with the endpoint
+     * @param upload      The request of the session
+     * @param accept      The value of the Accept header
+     * @param bodyHandler The handler of the response body
+     * @return A CompletableFuture that will complete with the response
+     */
+    private <T> CompletableFuture<HttpResponse<T>> post(ExplanationBackend backend, String url, ContextSession session,
+                                                        ContextSession.Upload upload, String accept,
+                                                        HttpResponse.BodyHandler<T> bodyHandler) {
+        switch (upload.getKind()) {
+            case HASH:
+                contextHashCount.incrementAndGet();
+                break;
+            case DELTA:
+                contextDeltaCount.incrementAndGet();
+                break;
+            default:
+                contextUploadCount.incrementAndGet();
+                break;
+        }
+        CompletableFuture<HttpResponse<T>> exchange = post(backend, url, upload.getRequest(), upload.getChars(), accept, bodyHandler);
+        CompletableFuture<HttpResponse<T>> recorded = exchange.whenComplete((response, error) -> {
+            if (response != null) {
+                session.onResponse(upload, response);
+            }
+        });
+        return Futures.propagateCancellation(recorded, exchange);
+    }
+
+    private boolean usesContextSession(CodeAnalysisRequest request) {
+        return PluginConfig.isContextSessionsEnabled() && length(request.getContext()) >= MIN_SESSION_CONTEXT_CHARS;
+    }
+
+    /**
+     * Sends a request object to an API endpoint as it is. Larger requests are gzip compressed; if the API rejects a
+     * compressed request with 415 Unsupported Media Type, it is sent again uncompressed and compression is switched
+     * off for the rest of the session. Cancelling the returned future cancels the exchange.
+     *
+     * @param backend     The backend to send the request to
+     * @param url         The URL of the endpoint
+     * @param requestObj  The request object to serialize
+     * @param chars       The number of characters of code and context in the request
+     * @param accept      The value of the Accept header
+     * @param bodyHandler The handler of the response body
+     * @return A CompletableFuture that will complete with the response
+     */
+    private <T> CompletableFuture<HttpResponse<T>> post(ExplanationBackend backend, String url, Object requestObj,
+                                                        long chars, String accept, HttpResponse.BodyHandler<T> bodyHandler) {
+        if (connectionWarmer != null) {
+            connectionWarmer.onRequest();
+        }
+        boolean compress = shouldCompress(chars);
+        CompletableFuture<HttpResponse<T>> exchange = sendTo(backend, buildRequest(url, requestObj, accept, compress), bodyHandler);
+        if (!compress) {
+            return exchange;
+        }
+
+        CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+        exchange.whenComplete((response, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+                return;
+            }
+            if (response.statusCode() != 415 || result.isDone()) {
+                result.complete(response);
+                return;
+            }
+
+            LOG.info("The API does not accept gzip compressed requests, sending requests uncompressed");
+            requestCompressionSupported = false;
+            CompletableFuture<HttpResponse<T>> retry = sendTo(backend, buildRequest(url, requestObj, accept, false), bodyHandler);
+            Futures.propagateCancellation(result, retry);
+            retry.whenComplete((retryResponse, retryError) -> {
+                if (retryError != null) {
+                    result.completeExceptionally(retryError);
+                } else {
+                    result.complete(retryResponse);
+                }
+            });
+        });
+        return Futures.propagateCancellation(result, exchange);
+    }
+
+    /**
+     * Sends an HTTP request to a backend and reports the outcome to the router: the time until the response headers
+     * arrived, and whether the backend answered without a server error. Cancelled exchanges, e.g. hedges that lost,
+     * are not reported.
+     *
+     * @param backend     The backend
+     * @param request     The HTTP request
+     * @param bodyHandler The handler of the response body
+     * @return A CompletableFuture that will complete with the response
+     */
+    private <T> CompletableFuture<HttpResponse<T>> sendTo(ExplanationBackend backend, HttpRequest request,
+                                                          HttpResponse.BodyHandler<T> bodyHandler) {
+        long sendStart = System.nanoTime();
+        AtomicLong headersNanos = new AtomicLong(-1);
+        HttpResponse.BodyHandler<T> tracked = responseInfo -> {
+            headersNanos.set(System.nanoTime() - sendStart);
+            return bodyHandler.apply(responseInfo);
+        };
+
+        CompletableFuture<HttpResponse<T>> exchange;
+        try {
+            exchange = backend.send(getHttpClient(), request, timed(tracked));
+        } catch (RuntimeException e) {
+            exchange = CompletableFuture.failedFuture(e);
+        }
+        exchange.whenComplete((response, error) -> {
+            if (error != null && Futures.unwrap(error) instanceof CancellationException) {
+                return;
+            }
+            boolean failed = error != null || response.statusCode() >= 500 || response.statusCode() == 429;
+            long latencyNanos = headersNanos.get() >= 0 ? headersNanos.get() : System.nanoTime() - sendStart;
+            router.record(backend, latencyNanos, !failed);
+        });
+        return exchange;
+    }
+
+    /**
+     * Wraps a body handler to measure the time to first byte, from now until the response headers arrive.
+     *
+     * @param bodyHandler The handler of the response body
+     * @return The wrapping handler
+     */
+    private static <T> HttpResponse.BodyHandler<T> timed(HttpResponse.BodyHandler<T> bodyHandler) {
+        long sendStart = System.nanoTime();
+        return responseInfo -> {
+            PipelineMetrics.getInstance().recordSince(PipelinePhase.TIME_TO_FIRST_BYTE, sendStart);
+            return bodyHandler.apply(responseInfo);
+        };
+    }
+
+    private boolean shouldCompress(long chars) {
+        if (!requestCompressionSupported || !PluginConfig.isRequestCompressionEnabled()) {
+            return false;
+        }
+        return chars >= MIN_COMPRESSED_REQUEST_CHARS;
+    }
+
+    private static int length(@Nullable String text) {
+        return text != null ? text.length() : 0;
+    }
+
+    /**
+     * Answers a request from the in-memory cache if possible. Otherwise joins an identical request that is
+     * already in flight, or starts one that looks the explanation up in the on-disk store and only calls
+     * {@code fetch} if the store doesn't have it either.
+     * <p>
+     * Every caller gets its own future. Cancelling it detaches the caller; the underlying HTTP exchange is
+     * cancelled once every caller waiting for it has cancelled.
+     * <p>
+     * API calls are started by the {@link RequestScheduler}, with the priority of the most urgent caller waiting
+     * for them: a caller of higher priority joining a queued or running request raises its priority.
+     *
+     * @param cacheKey        The cache key of the request
+     * @param fetch           Requests the explanation from the API, passing partial explanations to the given consumer
+     * @param partialConsumer Receives partial explanations if the request is streamed, or null
+     * @param priority        The priority class of the caller
+     * @param owner           The owner of the request for fair scheduling, usually its project
+     * @return A CompletableFuture that will complete with the explanation or an error message
+     */
+    private CompletableFuture<String> explain(String cacheKey, Function<Consumer<String>, CompletableFuture<String>> fetch,
+                                              @Nullable Consumer<String> partialConsumer,
+                                              RequestPriority priority, Object owner) {
+        return explain(cacheKey, pending -> pending.schedule(scheduler, owner, () -> fetch.apply(pending)),
+                partialConsumer, priority);
+    }
+
+    /**
+     * Works like {@link #explain(String, Function, Consumer, RequestPriority, Object)}, but leaves starting the
+     * API call to {@code start}, e.g. to send it as part of a batched request.
+     *
+     * @param cacheKey        The cache key of the request
+     * @param start           Starts the API call for the given pending explanation
+     * @param partialConsumer Receives partial explanations if the request is streamed, or null
+     * @param priority        The priority class of the caller
+     * @return A CompletableFuture that will complete with the explanation or an error message
+     */
+    private CompletableFuture<String> explain(String cacheKey, Function<PendingExplanation, CompletableFuture<String>> start,
+                                              @Nullable Consumer<String> partialConsumer, RequestPriority priority) {
+        String cached = explanationCache.get(cacheKey);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        activeRequests.incrementAndGet();
+        boolean interactive = priority == RequestPriority.INTERACTIVE;
+        if (interactive) {
+            activeInteractiveRequests.incrementAndGet();
+        }
+
+        // Callers joining a streamed request get its partial explanations too
+        PendingExplanation pending = pendingExplanations.compute(cacheKey, (key, current) -> {
+            PendingExplanation joined = current != null ? current : new PendingExplanation();
+            joined.waiters++;
+            return joined;
+        });
+        if (partialConsumer != null) {
+            pending.add(partialConsumer);
+        }
+        pending.raisePriority(scheduler, priority);
+
+        CompletableFuture<String> waiter = inFlightRequests.execute(cacheKey,
+                () -> lookupOrFetch(cacheKey, () -> start.apply(pending)));
+        waiter.whenComplete((explanation, error) -> {
+            activeRequests.decrementAndGet();
+            if (interactive) {
+                activeInteractiveRequests.decrementAndGet();
+            }
+            if (partialConsumer != null) {
+                pending.remove(partialConsumer);
+            }
+            pendingExplanations.computeIfPresent(cacheKey, (key, current) -> current == pending && --current.waiters == 0 ? null : current);
+        });
+        return waiter;
+    }
+
+    /**
+     * Looks the explanation up in the on-disk store and calls {@code fetch} if the store doesn't have it.
+     * Fetched explanations are added to the in-memory cache and the on-disk store. Cancelling the returned
+     * future cancels the fetch.
+     *
+     * @param cacheKey The cache key of the request
+     * @param fetch    Requests the explanation from the API
+     * @return A CompletableFuture that will complete with the explanation or an error message
+     */
+    private CompletableFuture<String> lookupOrFetch(String cacheKey, Supplier<CompletableFuture<String>> fetch) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+
+        // The disk lookup reads a file and the request is serialized, keep both off the calling thread
+        RequestExecutor executor = getExecutor();
+        CompletableFuture.supplyAsync(() -> readDiskStore(cacheKey), executor).whenCompleteAsync((stored, readError) -> {
+            if (result.isDone()) {
+                // Cancelled while reading the store
+                return;
+            }
+            if (stored != null) {
+                explanationCache.put(cacheKey, stored);
+                result.complete(stored);
+                return;
+            }
+
+            CompletableFuture<String> exchange;
+            try {
+                exchange = fetch.get();
+            } catch (RuntimeException e) {
+                exchange = CompletableFuture.failedFuture(e);
+            }
+            Futures.propagateCancellation(result, exchange);
+            exchange.whenComplete((explanation, error) -> {
+                if (error != null) {
+                    Throwable cause = Futures.unwrap(error);
+                    String message = cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName();
+                    result.complete("Error: Failed to get explanation from API. Exception: " + message);
+                } else {
+                    result.complete(storeExplanation(cacheKey, explanation));
+                }
+            });
+        }, executor);
+        return result;
+    }
+
+    /**
+     * Gets the in-memory explanation cache, e.g. to read its hit and miss counters.
+     *
+     * @return The explanation cache
+     */
+    public ExplanationCache getExplanationCache() {
+        return explanationCache;
+    }
+
+    /**
+     * Gets the number of explanation requests callers are currently waiting for, including callers
+     * that joined an identical request. Requests answered from the in-memory cache are not counted.
+     *
+     * @return The number of active requests
+     */
+    public int getActiveRequestCount() {
+        return activeRequests.get();
+    }
+
+    /**
+     * Gets the number of callers currently waiting for an explanation they asked for, i.e. with
+     * {@link RequestPriority#INTERACTIVE}. Prefetches and batch explanations are not counted.
+     *
+     * @return The number of active interactive requests
+     */
+    public int getActiveInteractiveRequestCount() {
+        return activeInteractiveRequests.get();
+    }
+
+    /**
+     * Gets the number of distinct requests currently being looked up or sent to the API.
+     *
+     * @return The number of requests in flight
+     */
+    public int getInFlightRequestCount() {
+        return inFlightRequests.getInFlightCount();
+    }
+
+    /**
+     * Gets the retry, circuit breaker and hedging state of API calls, e.g. to read their counters.
+     *
+     * @return The fault tolerance of API calls
+     */
+    public FaultTolerance getFaultTolerance() {
+        return faultTolerance;
+    }
+
+    /**
+     * Gets the scheduler starting API calls, e.g. to read its queue lengths.
+     *
+     * @return The request scheduler
+     */
+    public RequestScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Gets the number of pipeline tasks (serializing, HTTP exchanges, parsing) waiting for a thread.
+     *
+     * @return The queue depth of the request executor
+     */
+    public int getQueueDepth() {
+        RequestExecutor executor = executorService;
+        return executor != null ? executor.getQueueDepth() : 0;
+    }
+
+    /**
+     * Stores a successful explanation in the in-memory cache and the on-disk store. Error messages are not stored.
+     *
+     * @param cacheKey    The cache key of the request
+     * @param explanation The explanation or error message
+     * @return The explanation, unchanged
+     */
+    private String storeExplanation(String cacheKey, String explanation) {
+        if (!isError(explanation)) {
+            explanationCache.put(cacheKey, explanation);
+            DiskExplanationStore store = getDiskStore();
+            if (store != null) {
+                store.put(cacheKey, explanation);
+            }
+        }
+        return explanation;
+    }
+
+    private String readDiskStore(String cacheKey) {
+        DiskExplanationStore store = getDiskStore();
+        return store != null ? store.get(cacheKey) : null;
+    }
+
+    /**
+     * Gets the on-disk explanation store, opening it on first use.
+     *
+     * @return The store, or null if it is disabled or could not be opened
+     */
+    @Nullable
+    public synchronized DiskExplanationStore getDiskStore() {
+        if (!diskStoreInitialized) {
+            diskStoreInitialized = true;
+            long maxBytes = PluginConfig.getDiskCacheMaxBytes();
+            if (storeDirectory != null && maxBytes > 0) {
+                try {
+                    DiskExplanationStore store = DiskExplanationStore.open(storeDirectory, maxBytes);
+                    PipelineMetrics.getInstance().registerCache("Disk store", store::getHitCount, store::getMissCount);
+                    diskStore = store;
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "Failed to open explanation store in " + storeDirectory + ", continuing without it", e);
+                }
+            }
+        }
+        return diskStore;
+    }
+
+    /**
+     * Checks whether a result returned by this client is an error message rather than an explanation.
+     *
+     * @param explanation The result
+     * @return true if it is an error message
+     */
+    public static boolean isError(String explanation) {
+        return explanation == null || explanation.startsWith("Error:");
+    }
+
+    /**
+     * Builds the HTTP request posting the given request object to an API endpoint.
+     *
+     * @param url        The URL of the endpoint
+     * @param requestObj The request object to send
+     * @param accept     The value of the Accept header
+     * @param gzip       Whether to gzip compress the request body
+     * @return The HTTP request
+     */
+    private HttpRequest buildRequest(String url, Object requestObj, String accept, boolean gzip) {
+        // Serialize to JSON, straight into the (compressed) body bytes
+        long serializeStart = System.nanoTime();
+        JsonRequestBody body = JsonRequestBody.write(gson, requestObj, gzip);
+        PipelineMetrics.getInstance().recordSince(PipelinePhase.SERIALIZATION, serializeStart);
+        PipelineMetrics.getInstance().recordRequestBytes(body.getLength());
+
+        HttpRequest.Builder builder = HttpRequest.newBuilder()
+                .uri(URI.create(url))
+                .header("Content-Type", "application/json")
+                .header("Accept", accept);
+        if (body.isGzip()) {
+            builder.header("Content-Encoding", "gzip");
+        }
+        if (accept.equals("application/json")) {
+            // Streamed responses are read line by line and must arrive uncompressed
+            builder.header("Accept-Encoding", "gzip");
+        }
+        return builder
+                .POST(body.publisher())
+                .timeout(Duration.ofSeconds(30))
+                .build();
+    }
+
+    /**
+     * Creates the subscriber turning a JSON response into the explanation or an error message.
+     *
+     * @param responseInfo The status code and headers of the response
+     * @return The body subscriber
+     */
+    private HttpResponse.BodySubscriber<String> explanationBodySubscriber(HttpResponse.ResponseInfo responseInfo) {
+        return new ExplanationBodySubscriber(responseInfo, PluginConfig.getMaxResponseBytes());
+    }
+
+    /**
+     * Closes the on-disk store and shuts down the request threads. The timer is left running.
+     */
+    @Override
+    public void close() throws IOException {
+        explanationCache.clear();
+        synchronized (this) {
+            if (diskStore != null) {
+                diskStore.close();
+                diskStore = null;
+            }
+        }
+        if (connectionWarmer != null) {
+            connectionWarmer.close();
+        }
+        RequestExecutor executor = executorService;
+        if (executor != null && !executor.isShutdown()) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * The callers waiting for one explanation. Passes the partial explanations of a streamed request on to every
+     * caller, and tracks the priority of the most urgent caller and the scheduled API call.
+     * Callers joining late immediately receive the latest partial explanation.
+     */
+    private static final class PendingExplanation implements Consumer<String> {
+        private final CopyOnWriteArrayList<Consumer<String>> consumers = new CopyOnWriteArrayList<>();
+        private volatile String latest;
+        private RequestPriority priority = RequestPriority.BATCH;
+        private RequestScheduler.Task<?> task;
+        /** Guarded by the map holding the pending explanations. */
+        private int waiters;
+
+        @Override
+        public void accept(String partialExplanation) {
+            latest = partialExplanation;
+            for (Consumer<String> consumer : consumers) {
+                consumer.accept(partialExplanation);
+            }
+        }
+
+        void add(Consumer<String> consumer) {
+            consumers.add(consumer);
+            String current = latest;
+            if (current != null) {
+                consumer.accept(current);
+            }
+        }
+
+        void remove(Consumer<String> consumer) {
+            consumers.remove(consumer);
+            if (consumers.isEmpty()) {
+                latest = null;
+            }
+        }
+
+        /**
+         * Submits the API call to the scheduler with the priority of the most urgent caller.
+         */
+        synchronized CompletableFuture<String> schedule(RequestScheduler scheduler, Object owner,
+                                                        Supplier<CompletableFuture<String>> fetch) {
+            long queuedNanos = System.nanoTime();
+            RequestScheduler.Task<String> scheduled = scheduler.submit(priority, owner, () -> {
+                PipelineMetrics.getInstance().recordSince(PipelinePhase.QUEUE_WAIT, queuedNanos);
+                return fetch.get();
+            });
+            task = scheduled;
+            return scheduled.getResult();
+        }
+
+        /**
+         * Records the batched API call answering this explanation, raising its priority if a more urgent caller is
+         * waiting for this explanation.
+         */
+        void attach(RequestScheduler scheduler, RequestScheduler.Task<?> batchTask) {
+            RequestPriority current;
+            synchronized (this) {
+                task = batchTask;
+                current = priority;
+            }
+            scheduler.promote(batchTask, current);
+        }
+
+        /**
+         * Raises the priority of the API call if a more urgent caller is waiting for it.
+         */
+        void raisePriority(RequestScheduler scheduler, RequestPriority callerPriority) {
+            RequestScheduler.Task<?> current;
+            synchronized (this) {
+                if (callerPriority.compareTo(priority) >= 0) {
+                    return;
+                }
+                priority = callerPriority;
+                current = task;
+            }
+            if (current != null) {
+                scheduler.promote(current, callerPriority);
+            }
+        }
+    }
+
+    /**
+     * A snippet waiting in the request batcher, with the explanation it answers.
+     */
+    private static final class BatchItem {
+        private final CodeAnalysisRequest request;
+        private final PendingExplanation pending;
+        private final Object owner;
+
+        private BatchItem(CodeAnalysisRequest request, PendingExplanation pending, Object owner) {
+            this.request = request;
+            this.pending = pending;
+            this.owner = owner;
+        }
+    }
+}
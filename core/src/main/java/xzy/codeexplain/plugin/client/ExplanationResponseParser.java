@@ -0,0 +1,272 @@
+package xzy.codeexplain.plugin.client;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the explanation out of a JSON response of the API.
+ * <p>
+ * The response is read token by token from an {@link InputStream} with a Gson {@link JsonReader}: only the
+ * {@code explanation} field is materialized, every other value is skipped without building a JSON tree.
+ * Gzip encoded responses are decompressed on the fly, and the decompressed size is limited so a small compressed
+ * response cannot expand into an arbitrarily large one.
+ */
+public final class ExplanationResponseParser {
+
+    private static final int MAX_ERROR_SNIPPET_CHARS = 500;
+
+    private ExplanationResponseParser() {
+    }
+
+    /**
+     * Reads the {@code explanation} field of a JSON response.
+     *
+     * @param body     The response body
+     * @param gzip     Whether the body is gzip encoded
+     * @param maxBytes The maximum decompressed size of the body
+     * @return The explanation
+     * @throws InvalidResponseException If the response is too large, truncated, malformed or has no explanation
+     */
+    @NotNull
+    public static String readExplanation(@NotNull InputStream body, boolean gzip, long maxBytes) throws InvalidResponseException {
+        String explanation = readStringField(body, gzip, maxBytes, "explanation");
+        if (explanation == null) {
+            throw new InvalidResponseException(InvalidResponseException.Reason.MISSING_EXPLANATION,
+                    "The API response contains no explanation");
+        }
+        return explanation;
+    }
+
+    /**
+     * Reads the results of a batched request: a JSON object whose {@code results} array holds one object per
+     * snippet, with the {@code id} of the snippet and either its {@code explanation} or an {@code error}.
+     * The ids are the positions of the snippets in the request.
+     *
+     * @param body     The response body
+     * @param gzip     Whether the body is gzip encoded
+     * @param maxBytes The maximum decompressed size of the body
+     * @param count    The number of snippets in the request
+     * @return The explanation or an error message for every snippet, in request order
+     * @throws InvalidResponseException If the response is too large, truncated or malformed
+     */
+    @NotNull
+    public static List<String> readBatchExplanations(@NotNull InputStream body, boolean gzip, long maxBytes,
+                                                     int count) throws InvalidResponseException {
+        String[] results = new String[count];
+        try (JsonReader reader = new JsonReader(new InputStreamReader(open(body, gzip, maxBytes), StandardCharsets.UTF_8))) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                throw new InvalidResponseException(InvalidResponseException.Reason.MALFORMED,
+                        "The API response is not a JSON object");
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!reader.nextName().equals("results") || reader.peek() != JsonToken.BEGIN_ARRAY) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    readBatchResult(reader, results);
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+        } catch (InvalidResponseException e) {
+            throw e;
+        } catch (EOFException e) {
+            throw new InvalidResponseException(InvalidResponseException.Reason.TRUNCATED, "The API response is truncated");
+        } catch (MalformedJsonException | ZipException | JsonParseException | IllegalStateException e) {
+            throw new InvalidResponseException(InvalidResponseException.Reason.MALFORMED,
+                    "The API response is not valid JSON: " + e.getMessage());
+        } catch (IOException e) {
+            throw new InvalidResponseException(InvalidResponseException.Reason.TRUNCATED,
+                    "The API response could not be read: " + e.getMessage());
+        }
+
+        List<String> explanations = new ArrayList<>(count);
+        for (String result : results) {
+            explanations.add(result != null ? result : "Error: The API response contains no explanation for this snippet");
+        }
+        return explanations;
+    }
+
+    /**
+     * Reads one element of the {@code results} array of a batched response into its slot.
+     */
+    private static void readBatchResult(@NotNull JsonReader reader, @NotNull String[] results) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return;
+        }
+        String id = null;
+        String explanation = null;
+        String error = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() != JsonToken.STRING && reader.peek() != JsonToken.NUMBER) {
+                reader.skipValue();
+            } else if (name.equals("id")) {
+                id = reader.nextString();
+            } else if (name.equals("explanation")) {
+                explanation = reader.nextString();
+            } else if (name.equals("error")) {
+                error = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        int index;
+        try {
+            index = id != null ? Integer.parseInt(id) : -1;
+        } catch (NumberFormatException e) {
+            index = -1;
+        }
+        if (index < 0 || index >= results.length) {
+            return;
+        }
+        if (explanation != null) {
+            results[index] = explanation;
+        } else if (error != null) {
+            results[index] = "Error: " + truncate(error);
+        }
+    }
+
+    /**
+     * Describes the body of a failed response for the user: the {@code error} or {@code message} field if the
+     * body is a JSON object with one, otherwise the start of the body.
+     *
+     * @param body     The response body
+     * @param gzip     Whether the body is gzip encoded
+     * @param maxBytes The maximum decompressed size of the body
+     * @return A short description of the error, or an empty string if the body is empty or unreadable
+     */
+    @NotNull
+    public static String describeError(@NotNull byte[] body, boolean gzip, long maxBytes) {
+        try {
+            String message = readStringField(new ByteArrayInputStream(body), gzip, maxBytes, "error", "message");
+            if (message != null) {
+                return truncate(message);
+            }
+        } catch (InvalidResponseException e) {
+            // Not a JSON error object, show the start of the body instead
+        }
+        try (InputStream in = open(new ByteArrayInputStream(body), gzip, maxBytes)) {
+            byte[] head = in.readNBytes(MAX_ERROR_SNIPPET_CHARS * 4);
+            return truncate(new String(head, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    /**
+     * Reads the first of the given top-level string fields found in a JSON object, skipping all other values.
+     */
+    @Nullable
+    private static String readStringField(@NotNull InputStream body, boolean gzip, long maxBytes,
+                                          @NotNull String... fieldNames) throws InvalidResponseException {
+        try (JsonReader reader = new JsonReader(new InputStreamReader(open(body, gzip, maxBytes), StandardCharsets.UTF_8))) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                throw new InvalidResponseException(InvalidResponseException.Reason.MALFORMED,
+                        "The API response is not a JSON object");
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (isOneOf(name, fieldNames) && reader.peek() == JsonToken.STRING) {
+                    return reader.nextString();
+                }
+                reader.skipValue();
+            }
+            reader.endObject();
+            return null;
+        } catch (InvalidResponseException e) {
+            throw e;
+        } catch (EOFException e) {
+            throw new InvalidResponseException(InvalidResponseException.Reason.TRUNCATED, "The API response is truncated");
+        } catch (MalformedJsonException | ZipException | JsonParseException | IllegalStateException e) {
+            throw new InvalidResponseException(InvalidResponseException.Reason.MALFORMED,
+                    "The API response is not valid JSON: " + e.getMessage());
+        } catch (IOException e) {
+            throw new InvalidResponseException(InvalidResponseException.Reason.TRUNCATED,
+                    "The API response could not be read: " + e.getMessage());
+        }
+    }
+
+    @NotNull
+    private static InputStream open(@NotNull InputStream body, boolean gzip, long maxBytes) throws IOException {
+        return new LimitedInputStream(gzip ? new GZIPInputStream(body) : body, maxBytes);
+    }
+
+    private static boolean isOneOf(@NotNull String name, @NotNull String... candidates) {
+        for (String candidate : candidates) {
+            if (candidate.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @NotNull
+    private static String truncate(@NotNull String text) {
+        String trimmed = text.trim();
+        return trimmed.length() <= MAX_ERROR_SNIPPET_CHARS ? trimmed : trimmed.substring(0, MAX_ERROR_SNIPPET_CHARS) + "...";
+    }
+
+    /**
+     * Fails with {@link InvalidResponseException.Reason#TOO_LARGE} once more than the allowed number of bytes is read.
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+        private final long maxBytes;
+        private long readBytes;
+
+        LimitedInputStream(@NotNull InputStream in, long maxBytes) {
+            super(in);
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        private void count(int n) throws InvalidResponseException {
+            readBytes += n;
+            if (readBytes > maxBytes) {
+                throw new InvalidResponseException(InvalidResponseException.Reason.TOO_LARGE,
+                        "The API response is larger than " + maxBytes + " bytes");
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package xzy.codeexplain.plugin.client;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
+
+/**
+ * Line subscriber for explanation responses sent as server-sent events.
+ * <p>
+ * Every event carries a JSON object in its {@code data:} lines. An event with a {@code delta} field appends
+ * to the explanation, an event with an {@code explanation} field replaces it, and an event with an
+ * {@code error} field fails the stream. The literal {@code [DONE]} marks the end of the stream.
+ * <p>
+ * The explanation received so far is handed to the partial consumer at most every
+ * {@value #DEFAULT_PARTIAL_INTERVAL_MILLIS} ms, and once more when the stream ends if it changed since. Copying it
+ * for every event would be quadratic in its length, as servers send one event per token.
+ */
+public class ExplanationStreamSubscriber implements Flow.Subscriber<String> {
+
+    private static final String DONE_MARKER = "[DONE]";
+    private static final long DEFAULT_PARTIAL_INTERVAL_MILLIS = 50;
+
+    private final Consumer<String> partialConsumer;
+    private final long maxChars;
+    private final long partialIntervalNanos;
+    private final StringBuilder explanation = new StringBuilder();
+    private final StringBuilder eventData = new StringBuilder();
+    private String error;
+    private long lastPartialNanos = Long.MIN_VALUE;
+    private boolean partialPending;
+
+    /**
+     * Creates a subscriber for one streamed response.
+     *
+     * @param partialConsumer Receives the explanation received so far
+     * @param maxChars        The maximum length of the explanation; longer streams fail
+     */
+    public ExplanationStreamSubscriber(@NotNull Consumer<String> partialConsumer, long maxChars) {
+        this(partialConsumer, maxChars, DEFAULT_PARTIAL_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Creates a subscriber for one streamed response.
+     *
+     * @param partialConsumer       Receives the explanation received so far
+     * @param maxChars              The maximum length of the explanation; longer streams fail
+     * @param partialIntervalMillis The minimum time between two partial explanations; 0 passes on every change
+     */
+    public ExplanationStreamSubscriber(@NotNull Consumer<String> partialConsumer, long maxChars,
+                                       long partialIntervalMillis) {
+        this.partialConsumer = partialConsumer;
+        this.maxChars = maxChars;
+        this.partialIntervalNanos = Math.max(0, partialIntervalMillis) * 1_000_000;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(String line) {
+        if (line.isEmpty()) {
+            // A blank line terminates the current event
+            dispatchEvent();
+        } else if (line.startsWith("data:")) {
+            if (eventData.length() > 0) {
+                eventData.append('\n');
+            }
+            eventData.append(line.startsWith("data: ") ? line.substring(6) : line.substring(5));
+        }
+        // Comments, event names and ids carry nothing we need
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        // The HTTP client fails the response future itself, nothing to clean up here
+    }
+
+    @Override
+    public void onComplete() {
+        // Servers may close the stream without a trailing blank line
+        dispatchEvent();
+        flushPartial();
+    }
+
+    /**
+     * Returns the final result of the stream once it has completed.
+     *
+     * @return The explanation, or an error message if the stream reported an error or was empty
+     */
+    public String getResult() {
+        if (error != null) {
+            return "Error: Explanation stream failed: " + error;
+        }
+        if (explanation.length() == 0) {
+            return "Error: Explanation stream ended without any content";
+        }
+        return explanation.toString();
+    }
+
+    private void dispatchEvent() {
+        if (eventData.length() == 0) {
+            return;
+        }
+        String data = eventData.toString();
+        eventData.setLength(0);
+        if (error != null) {
+            return;
+        }
+        if (DONE_MARKER.equals(data.trim())) {
+            flushPartial();
+            return;
+        }
+
+        try {
+            JsonElement element = JsonParser.parseString(data);
+            if (!element.isJsonObject()) {
+                return;
+            }
+            JsonObject event = element.getAsJsonObject();
+            if (event.has("error")) {
+                error = event.get("error").getAsString();
+                return;
+            }
+            if (event.has("delta")) {
+                String delta = event.get("delta").getAsString();
+                if (explanation.length() + delta.length() > maxChars) {
+                    // Stop collecting, the rest of the stream is ignored
+                    error = "The explanation is longer than the limit of " + maxChars + " characters";
+                    explanation.setLength(0);
+                    partialPending = false;
+                    return;
+                }
+                explanation.append(delta);
+            } else if (event.has("explanation")) {
+                explanation.setLength(0);
+                explanation.append(event.get("explanation").getAsString());
+            } else {
+                return;
+            }
+        } catch (RuntimeException e) {
+            // Skip malformed events instead of failing the whole explanation
+            return;
+        }
+
+        partialPending = true;
+        long now = System.nanoTime();
+        if (lastPartialNanos == Long.MIN_VALUE || now - lastPartialNanos >= partialIntervalNanos) {
+            lastPartialNanos = now;
+            flushPartial();
+        }
+    }
+
+    /**
+     * Hands the explanation received so far to the partial consumer, if it changed since it was last handed over.
+     */
+    private void flushPartial() {
+        if (partialPending && error == null) {
+            partialPending = false;
+            partialConsumer.accept(explanation.toString());
+        }
+    }
+}
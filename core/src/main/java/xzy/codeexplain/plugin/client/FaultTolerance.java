@@ -0,0 +1,330 @@
+package xzy.codeexplain.plugin.client;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Makes API calls resilient: retries failed attempts according to a {@link RetryPolicy}, fails fast while the
+ * {@link CircuitBreaker} is open, and optionally hedges slow calls.
+ * <p>
+ * A hedged call that hasn't been answered after the p95 latency of recent hedged calls gets a second, identical
+ * attempt; whichever attempt is answered first wins and the other is cancelled. This cuts the tail latency at the
+ * cost of roughly 5% more requests. Hedging only starts once enough latencies have been recorded, and never while
+ * the breaker is not closed.
+ * <p>
+ * A call made by a request of the {@link RequestScheduler} counts every attempt against the concurrency cap of the
+ * scheduler. A hedge needs a slot of its own: it is skipped if no slot is free or another request is waiting for one.
+ * While waiting to retry, the call gives its slot up, and the retry waits for a slot like a queued request would,
+ * at the head of its owner's queue. So at most as many attempts are in flight as the scheduler has slots.
+ * <p>
+ * Cancelling the future of a call cancels its running attempts and any pending retry.
+ */
+public class FaultTolerance {
+    private static final Logger LOG = Logger.getLogger(FaultTolerance.class.getName());
+    private static final int MIN_HEDGE_SAMPLES = 20;
+    private static final long MIN_HEDGE_DELAY_MILLIS = 100;
+    private static final double HEDGE_PERCENTILE = 95;
+
+    private final RetryPolicy retryPolicy;
+    private final CircuitBreaker circuitBreaker;
+    private final boolean hedgingEnabled;
+    private final LatencyTracker latencyTracker = new LatencyTracker(200);
+    private final ScheduledExecutorService timer;
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong hedgeCount = new AtomicLong();
+    private final AtomicLong hedgeWinCount = new AtomicLong();
+    private final AtomicLong hedgeSkipCount = new AtomicLong();
+
+    /**
+     * Creates the fault tolerance of one API.
+     *
+     * @param retryPolicy    Decides which attempts are retried and when
+     * @param circuitBreaker Rejects calls while the API is down
+     * @param hedgingEnabled Whether calls asking for it are hedged
+     * @param timer          Runs retries and hedges after their delay
+     */
+    public FaultTolerance(@NotNull RetryPolicy retryPolicy, @NotNull CircuitBreaker circuitBreaker,
+                          boolean hedgingEnabled, @NotNull ScheduledExecutorService timer) {
+        this.retryPolicy = retryPolicy;
+        this.circuitBreaker = circuitBreaker;
+        this.hedgingEnabled = hedgingEnabled;
+        this.timer = timer;
+    }
+
+    /**
+     * Makes a call.
+     *
+     * @param attempt Starts one attempt of the call; may be called several times
+     * @param hedge   Whether the call may be hedged. Only calls of similar size should be hedged, since they
+     *                share the latency statistics deciding when to hedge.
+     * @param task    The scheduled request making the call, whose slot the attempts use, or null if the call is not
+     *                limited by a scheduler
+     * @return A CompletableFuture that will complete with the response of the last attempt, or fail with the error of
+     * the last attempt or with a {@link CircuitOpenException}
+     */
+    @NotNull
+    public <T> CompletableFuture<HttpResponse<T>> call(@NotNull Supplier<CompletableFuture<HttpResponse<T>>> attempt,
+                                                       boolean hedge, @Nullable RequestScheduler.Task<?> task) {
+        if (!circuitBreaker.tryAcquire()) {
+            return CompletableFuture.failedFuture(new CircuitOpenException(circuitBreaker.getRemainingOpenMillis()));
+        }
+        Call<T> call = new Call<>(attempt, hedge, task);
+        call.start(1);
+        return call.result;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public LatencyTracker getLatencyTracker() {
+        return latencyTracker;
+    }
+
+    /**
+     * Gets the number of retries made so far.
+     *
+     * @return The number of retries
+     */
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * Gets the number of hedge attempts started so far.
+     *
+     * @return The number of hedges
+     */
+    public long getHedgeCount() {
+        return hedgeCount.get();
+    }
+
+    /**
+     * Gets the number of hedge attempts answered before the attempt they hedged.
+     *
+     * @return The number of winning hedges
+     */
+    public long getHedgeWinCount() {
+        return hedgeWinCount.get();
+    }
+
+    /**
+     * Gets the number of hedges skipped because the scheduler had no slot to spare.
+     *
+     * @return The number of skipped hedges
+     */
+    public long getHedgeSkipCount() {
+        return hedgeSkipCount.get();
+    }
+
+    /**
+     * One call and its attempts.
+     */
+    private final class Call<T> {
+        private final Supplier<CompletableFuture<HttpResponse<T>>> attempt;
+        private final boolean hedge;
+        @Nullable
+        private final RequestScheduler.Task<?> task;
+        private final CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+        /** The running attempts and the scheduled retry or hedge; cancelled when the call is. */
+        private Future<?>[] running = new Future<?>[0];
+
+        private Call(Supplier<CompletableFuture<HttpResponse<T>>> attempt, boolean hedge,
+                     @Nullable RequestScheduler.Task<?> task) {
+            this.attempt = attempt;
+            this.hedge = hedge;
+            this.task = task;
+            result.whenComplete((response, error) -> {
+                if (result.isCancelled()) {
+                    circuitBreaker.onAbandoned();
+                    for (Future<?> future : running()) {
+                        future.cancel(true);
+                    }
+                }
+            });
+        }
+
+        private synchronized Future<?>[] running() {
+            return running;
+        }
+
+        /**
+         * Remembers a future to cancel when the call is cancelled, cancelling it right away if it already is.
+         */
+        private void track(Future<?> future) {
+            synchronized (this) {
+                Future<?>[] updated = new Future<?>[running.length + 1];
+                System.arraycopy(running, 0, updated, 0, running.length);
+                updated[running.length] = future;
+                running = updated;
+            }
+            if (result.isCancelled()) {
+                future.cancel(true);
+            }
+        }
+
+        private synchronized void clearTracked() {
+            running = new Future<?>[0];
+        }
+
+        /**
+         * Starts an attempt, hedged if enabled, and handles its outcome.
+         *
+         * @param attemptNumber The number of the attempt, starting at 1
+         */
+        private void start(int attemptNumber) {
+            if (result.isDone()) {
+                return;
+            }
+            clearTracked();
+            CompletableFuture<HttpResponse<T>> primary = startAttempt();
+            CompletableFuture<HttpResponse<T>> outcome = primary;
+
+            long hedgeDelay = getHedgeDelayMillis();
+            if (hedgeDelay >= 0) {
+                CompletableFuture<HttpResponse<T>> race = new CompletableFuture<>();
+                forward(primary, race);
+                track(timer.schedule(() -> {
+                    if (race.isDone() || result.isDone()) {
+                        return;
+                    }
+                    if (task != null && !task.tryAcquireHedgeSlot()) {
+                        hedgeSkipCount.incrementAndGet();
+                        return;
+                    }
+                    hedgeCount.incrementAndGet();
+                    CompletableFuture<HttpResponse<T>> secondary = startAttempt();
+                    if (task != null) {
+                        secondary.whenComplete((response, error) -> task.releaseHedgeSlot());
+                    }
+                    secondary.whenComplete((response, error) -> {
+                        // A failed hedge leaves the decision to the attempt it hedged
+                        if (error == null && race.complete(response)) {
+                            hedgeWinCount.incrementAndGet();
+                            primary.cancel(true);
+                        }
+                    });
+                    race.whenComplete((response, error) -> secondary.cancel(true));
+                }, hedgeDelay, TimeUnit.MILLISECONDS));
+                outcome = race;
+            }
+
+            outcome.whenComplete((response, error) -> handleOutcome(attemptNumber, response, error));
+        }
+
+        /**
+         * Starts a single attempt and records its latency if it is answered.
+         */
+        private CompletableFuture<HttpResponse<T>> startAttempt() {
+            long startNanos = System.nanoTime();
+            CompletableFuture<HttpResponse<T>> exchange;
+            try {
+                exchange = attempt.get();
+            } catch (RuntimeException e) {
+                exchange = CompletableFuture.failedFuture(e);
+            }
+            track(exchange);
+            if (hedge) {
+                exchange.whenComplete((response, error) -> {
+                    if (response != null && response.statusCode() == 200) {
+                        latencyTracker.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+                    }
+                });
+            }
+            return exchange;
+        }
+
+        private long getHedgeDelayMillis() {
+            if (!hedge || !hedgingEnabled || latencyTracker.getSampleCount() < MIN_HEDGE_SAMPLES
+                    || circuitBreaker.getState() != CircuitBreaker.State.CLOSED) {
+                return -1;
+            }
+            return Math.max(MIN_HEDGE_DELAY_MILLIS, latencyTracker.getPercentile(HEDGE_PERCENTILE));
+        }
+
+        private void handleOutcome(int attemptNumber, @Nullable HttpResponse<T> response, @Nullable Throwable error) {
+            if (result.isDone()) {
+                return;
+            }
+            if (error != null) {
+                circuitBreaker.onFailure();
+                if (!retryPolicy.isRetryable(error)) {
+                    result.completeExceptionally(Futures.unwrap(error));
+                    return;
+                }
+                retryOrGiveUp(attemptNumber, null, () -> result.completeExceptionally(Futures.unwrap(error)));
+                return;
+            }
+
+            int statusCode = response.statusCode();
+            if (!retryPolicy.isRetryable(statusCode)) {
+                circuitBreaker.onSuccess();
+                result.complete(response);
+                return;
+            }
+            if (statusCode == 429) {
+                // Rate limited: the API is up, it only asks to slow down
+                circuitBreaker.onSuccess();
+            } else {
+                circuitBreaker.onFailure();
+            }
+            retryOrGiveUp(attemptNumber, response.headers().firstValue("Retry-After").orElse(null),
+                    () -> result.complete(response));
+        }
+
+        private void retryOrGiveUp(int attemptNumber, @Nullable String retryAfter, Runnable giveUp) {
+            long delay = attemptNumber < retryPolicy.getMaxAttempts() ? retryPolicy.getDelayMillis(attemptNumber, retryAfter) : -1;
+            if (delay < 0 || !circuitBreaker.tryAcquire()) {
+                giveUp.run();
+                return;
+            }
+            retryCount.incrementAndGet();
+            LOG.info("API call failed, retrying in " + delay + " ms (attempt " + (attemptNumber + 1) + " of "
+                    + retryPolicy.getMaxAttempts() + ")");
+            clearTracked();
+            // Nothing is in flight until the retry, leave the slot to other requests in the meantime
+            if (task != null && task.pause()) {
+                track(timer.schedule(() -> task.resume(() -> start(attemptNumber + 1)), delay, TimeUnit.MILLISECONDS));
+            } else {
+                track(timer.schedule(() -> start(attemptNumber + 1), delay, TimeUnit.MILLISECONDS));
+            }
+        }
+    }
+
+    private static <T> void forward(CompletableFuture<T> source, CompletableFuture<T> target) {
+        source.whenComplete((value, error) -> {
+            if (error != null) {
+                target.completeExceptionally(error);
+            } else {
+                target.complete(value);
+            }
+        });
+    }
+
+    /**
+     * Thrown for calls the circuit breaker rejects.
+     */
+    public static class CircuitOpenException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Creates an exception.
+         *
+         * @param remainingMillis How long the breaker stays open
+         */
+        public CircuitOpenException(long remainingMillis) {
+            super("The explanation API is failing, not calling it for another "
+                    + Math.max(1, TimeUnit.MILLISECONDS.toSeconds(remainingMillis + 999)) + " s");
+        }
+    }
+}
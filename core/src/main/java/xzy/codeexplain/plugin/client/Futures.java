@@ -0,0 +1,52 @@
+package xzy.codeexplain.plugin.client;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Future;
+
+/**
+ * Helpers for working with futures.
+ */
+public final class Futures {
+
+    private Futures() {
+    }
+
+    /**
+     * Cancels {@code source} when {@code dependent} is cancelled. Futures derived with {@code thenApply} and
+     * friends don't pass cancellation upstream, so without this, cancelling the derived future would leave
+     * the source, e.g. an HTTP exchange, running.
+     *
+     * @param dependent The future handed out to callers
+     * @param source    The future doing the actual work
+     * @return {@code dependent}, for chaining
+     */
+    @NotNull
+    public static <T> CompletableFuture<T> propagateCancellation(@NotNull CompletableFuture<T> dependent,
+                                                                 @NotNull Future<?> source) {
+        dependent.whenComplete((result, error) -> {
+            if (dependent.isCancelled()) {
+                source.cancel(true);
+            }
+        });
+        return dependent;
+    }
+
+    /**
+     * Gets the actual error of a failed future. Futures derived with {@code thenApply} and friends fail with a
+     * {@link CompletionException} wrapping the error of their source.
+     *
+     * @param error The error a future failed with
+     * @return The wrapped error, or {@code error} itself if it isn't wrapped
+     */
+    @NotNull
+    public static Throwable unwrap(@NotNull Throwable error) {
+        Throwable cause = error;
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+}
@@ -0,0 +1,50 @@
+package xzy.codeexplain.plugin.client;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * Thrown when an API response cannot be turned into an explanation.
+ */
+public class InvalidResponseException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Why a response was rejected.
+     */
+    public enum Reason {
+        /** The response is larger than the configured maximum size. */
+        TOO_LARGE,
+        /** The response ended before the JSON document was complete. */
+        TRUNCATED,
+        /** The response is not valid JSON or not a JSON object. */
+        MALFORMED,
+        /** The response is valid JSON but has no explanation in it. */
+        MISSING_EXPLANATION
+    }
+
+    private final Reason reason;
+
+    /**
+     * Creates an exception.
+     *
+     * @param reason  Why the response was rejected
+     * @param message A description of the problem
+     */
+    public InvalidResponseException(@NotNull Reason reason, @NotNull String message) {
+        super(message);
+        this.reason = reason;
+    }
+
+    /**
+     * Gets why the response was rejected.
+     *
+     * @return The reason
+     */
+    @NotNull
+    public Reason getReason() {
+        return reason;
+    }
+}
@@ -0,0 +1,86 @@
+package xzy.codeexplain.plugin.client;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * JSON request body written straight from the request object into its byte form.
+ * <p>
+ * The object is serialized through a Gson {@link JsonWriter} into an UTF-8 stream, optionally gzip compressed,
+ * so the JSON text never exists as a String. Compressed bodies of source code are typically a fifth of the
+ * uncompressed size, which is also what is kept in memory until the request has been sent. The encoded bytes are
+ * kept rather than produced on demand, so the body can be sent again, e.g. when a request is retried.
+ */
+public final class JsonRequestBody {
+
+    private final byte[] bytes;
+    private final boolean gzip;
+
+    private JsonRequestBody(byte[] bytes, boolean gzip) {
+        this.bytes = bytes;
+        this.gzip = gzip;
+    }
+
+    /**
+     * Serializes an object into a request body.
+     *
+     * @param gson  The Gson instance used for serialization
+     * @param value The object to serialize
+     * @param gzip  Whether to gzip compress the body
+     * @return The request body
+     */
+    @NotNull
+    public static JsonRequestBody write(@NotNull Gson gson, @NotNull Object value, boolean gzip) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+        try {
+            OutputStream out = gzip ? new GZIPOutputStream(buffer, 8192) : buffer;
+            try (Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+                 JsonWriter jsonWriter = gson.newJsonWriter(writer)) {
+                gson.toJson(value, value.getClass(), jsonWriter);
+            }
+        } catch (IOException e) {
+            // Only the in-memory buffer is written to
+            throw new UncheckedIOException(e);
+        }
+        return new JsonRequestBody(buffer.toByteArray(), gzip);
+    }
+
+    /**
+     * Gets a publisher sending this body.
+     *
+     * @return The body publisher
+     */
+    @NotNull
+    public HttpRequest.BodyPublisher publisher() {
+        return HttpRequest.BodyPublishers.ofByteArray(bytes);
+    }
+
+    /**
+     * Checks whether the body is gzip compressed and must be sent with {@code Content-Encoding: gzip}.
+     *
+     * @return true if the body is compressed
+     */
+    public boolean isGzip() {
+        return gzip;
+    }
+
+    /**
+     * Gets the number of bytes sent.
+     *
+     * @return The length of the encoded body
+     */
+    public int getLength() {
+        return bytes.length;
+    }
+}
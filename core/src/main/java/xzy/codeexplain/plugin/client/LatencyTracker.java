@@ -0,0 +1,62 @@
+package xzy.codeexplain.plugin.client;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the latencies of the most recent API calls to estimate percentiles, e.g. the p95 latency used to decide
+ * when a slow request is hedged.
+ */
+public class LatencyTracker {
+
+    private final long[] samples;
+    private int next;
+    private int count;
+
+    /**
+     * Creates a tracker.
+     *
+     * @param capacity The number of most recent latencies kept
+     */
+    public LatencyTracker(int capacity) {
+        this.samples = new long[Math.max(1, capacity)];
+    }
+
+    /**
+     * Records the latency of a call.
+     *
+     * @param millis The latency in milliseconds
+     */
+    public synchronized void record(long millis) {
+        samples[next] = millis;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+    }
+
+    /**
+     * Gets the number of latencies kept.
+     *
+     * @return The number of samples
+     */
+    public synchronized int getSampleCount() {
+        return count;
+    }
+
+    /**
+     * Estimates a percentile of the recent latencies.
+     *
+     * @param percentile The percentile, between 0 and 100
+     * @return The latency in milliseconds, or -1 if no latency has been recorded yet
+     */
+    public long getPercentile(double percentile) {
+        long[] sorted;
+        synchronized (this) {
+            if (count == 0) {
+                return -1;
+            }
+            sorted = Arrays.copyOf(samples, count);
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(Math.max(0, Math.min(100, percentile)) / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, index)];
+    }
+}
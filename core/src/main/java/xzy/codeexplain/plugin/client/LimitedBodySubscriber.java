@@ -0,0 +1,160 @@
+package xzy.codeexplain.plugin.client;
+
+import org.jetbrains.annotations.NotNull;
+import xzy.codeexplain.plugin.metrics.PipelineMetrics;
+import xzy.codeexplain.plugin.metrics.PipelinePhase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+/**
+ * Body subscriber collecting a response of the API up to a maximum size and converting it once it is complete.
+ * <p>
+ * The body is collected as the byte buffers delivered by the HTTP client, without decoding it into a String.
+ * Receiving more than the maximum size cancels the exchange. Nothing blocks while the body arrives, so the
+ * subscriber is safe to run on the small request executor.
+ *
+ * @param <T> The type the body is converted to
+ */
+public abstract class LimitedBodySubscriber<T> implements HttpResponse.BodySubscriber<T> {
+
+    protected final int statusCode;
+    protected final boolean gzip;
+    protected final long maxBytes;
+    private final List<byte[]> chunks = new ArrayList<>();
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+    private long receivedBytes;
+    private Flow.Subscription subscription;
+
+    /**
+     * Creates a subscriber for one response.
+     *
+     * @param responseInfo The status code and headers of the response
+     * @param maxBytes     The maximum size of the body, compressed and decompressed
+     */
+    protected LimitedBodySubscriber(@NotNull HttpResponse.ResponseInfo responseInfo, long maxBytes) {
+        this.statusCode = responseInfo.statusCode();
+        this.gzip = responseInfo.headers().firstValue("Content-Encoding")
+                .map(encoding -> encoding.trim().equalsIgnoreCase("gzip"))
+                .orElse(false);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Converts the body of a successful response.
+     *
+     * @param body The complete body, still encoded
+     * @return The converted body
+     * @throws IOException If the body cannot be read or converted
+     */
+    protected abstract T readBody(@NotNull InputStream body) throws IOException;
+
+    /**
+     * Converts a response that cannot be read, e.g. one that is too large or malformed.
+     *
+     * @param message A description of the problem, without the "Error:" prefix
+     * @return The converted error
+     */
+    protected abstract T error(@NotNull String message);
+
+    /**
+     * Converts the body of a response with a status code other than 200.
+     *
+     * @param body The complete body, still encoded
+     * @return The converted error
+     */
+    protected T failure(@NotNull byte[] body) {
+        String detail = ExplanationResponseParser.describeError(body, gzip, maxBytes);
+        return error("Failed to get explanation from API. Status code: " + statusCode
+                + (detail.isEmpty() ? "" : "\nResponse: " + detail));
+    }
+
+    @Override
+    public CompletionStage<T> getBody() {
+        return result;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> buffers) {
+        if (result.isDone()) {
+            return;
+        }
+        for (ByteBuffer buffer : buffers) {
+            receivedBytes += buffer.remaining();
+            if (receivedBytes > maxBytes) {
+                chunks.clear();
+                subscription.cancel();
+                result.complete(error("The API response is larger than the limit of " + maxBytes + " bytes"));
+                return;
+            }
+            byte[] chunk = new byte[buffer.remaining()];
+            buffer.get(chunk);
+            chunks.add(chunk);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        chunks.clear();
+        result.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        if (result.isDone()) {
+            return;
+        }
+        PipelineMetrics metrics = PipelineMetrics.getInstance();
+        metrics.recordResponseBytes(receivedBytes);
+        try {
+            if (statusCode == 200) {
+                long parseStart = System.nanoTime();
+                T body = read();
+                metrics.recordSince(PipelinePhase.PARSING, parseStart);
+                result.complete(body);
+            } else {
+                result.complete(failure(collect()));
+            }
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        } finally {
+            chunks.clear();
+        }
+    }
+
+    private T read() {
+        try (InputStream body = new SequenceInputStream(Collections.enumeration(chunks.stream()
+                .map(ByteArrayInputStream::new).toList()))) {
+            return readBody(body);
+        } catch (InvalidResponseException e) {
+            return error(e.getMessage());
+        } catch (IOException e) {
+            return error("The API response could not be read: " + e.getMessage());
+        }
+    }
+
+    private byte[] collect() {
+        ByteArrayOutputStream body = new ByteArrayOutputStream((int) receivedBytes);
+        for (byte[] chunk : chunks) {
+            body.writeBytes(chunk);
+        }
+        return body.toByteArray();
+    }
+}
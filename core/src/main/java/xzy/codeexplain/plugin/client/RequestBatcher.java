@@ -0,0 +1,194 @@
+package xzy.codeexplain.plugin.client;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Collects requests submitted within a short window into batches that are sent together.
+ * <p>
+ * Requests with the same group key, e.g. the same context, are batched. A batch is sent once the window after
+ * its first request has passed or it is full, whichever comes first. Every request gets its own future, completed
+ * with its own result from the batch. Cancelling the future of a request that has not been sent yet removes it from
+ * its batch; once sent, the batch is cancelled when every request in it has been cancelled.
+ *
+ * @param <R> The request type
+ * @param <V> The result type
+ */
+public class RequestBatcher<R, V> {
+
+    private final long windowMillis;
+    private final int maxBatchSize;
+    private final ScheduledExecutorService timer;
+    private final Function<List<R>, CompletableFuture<List<V>>> sender;
+    private final Map<Object, Batch<R, V>> openBatches = new HashMap<>();
+
+    /**
+     * Creates a batcher.
+     *
+     * @param windowMillis How long a batch waits for more requests after its first one
+     * @param maxBatchSize The maximum number of requests in a batch
+     * @param timer        Runs the sending of batches whose window has passed
+     * @param sender       Sends a batch; the returned future must complete with one result per request, in order.
+     *                     Cancelling it must abort the batch.
+     */
+    public RequestBatcher(long windowMillis, int maxBatchSize, @NotNull ScheduledExecutorService timer,
+                          @NotNull Function<List<R>, CompletableFuture<List<V>>> sender) {
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.timer = timer;
+        this.sender = sender;
+    }
+
+    /**
+     * Adds a request to the open batch of its group, opening one if necessary.
+     *
+     * @param groupKey Identifies the requests that may be sent together
+     * @param request  The request
+     * @return A future completing with the result of this request
+     */
+    @NotNull
+    public CompletableFuture<V> submit(@NotNull Object groupKey, @NotNull R request) {
+        Entry<R, V> entry = new Entry<>(request);
+        Batch<R, V> full = null;
+        Batch<R, V> batch;
+        synchronized (openBatches) {
+            batch = openBatches.get(groupKey);
+            if (batch == null) {
+                Batch<R, V> created = new Batch<>(groupKey);
+                created.timeout = timer.schedule(() -> sendOpen(created), windowMillis, TimeUnit.MILLISECONDS);
+                openBatches.put(groupKey, created);
+                batch = created;
+            }
+            batch.entries.add(entry);
+            if (batch.entries.size() >= maxBatchSize) {
+                openBatches.remove(groupKey);
+                batch.timeout.cancel(false);
+                full = batch;
+            }
+        }
+
+        Batch<R, V> joined = batch;
+        entry.result.whenComplete((result, error) -> {
+            if (entry.result.isCancelled()) {
+                cancel(joined, entry);
+            }
+        });
+        if (full != null) {
+            send(full);
+        }
+        return entry.result;
+    }
+
+    private void sendOpen(@NotNull Batch<R, V> batch) {
+        synchronized (openBatches) {
+            if (!openBatches.remove(batch.groupKey, batch)) {
+                // Sent already because it became full
+                return;
+            }
+        }
+        send(batch);
+    }
+
+    private void send(@NotNull Batch<R, V> batch) {
+        List<Entry<R, V>> entries;
+        synchronized (openBatches) {
+            batch.sent = true;
+            entries = new ArrayList<>(batch.entries);
+            batch.pending = entries.size();
+        }
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        List<R> requests = new ArrayList<>(entries.size());
+        for (Entry<R, V> entry : entries) {
+            requests.add(entry.request);
+        }
+        CompletableFuture<List<V>> results;
+        try {
+            results = sender.apply(requests);
+        } catch (RuntimeException e) {
+            results = CompletableFuture.failedFuture(e);
+        }
+
+        boolean abandoned;
+        synchronized (openBatches) {
+            batch.results = results;
+            abandoned = batch.pending == 0;
+        }
+        if (abandoned) {
+            // Every request was cancelled while the batch was being sent
+            results.cancel(true);
+        }
+
+        results.whenComplete((values, error) -> {
+            for (int i = 0; i < entries.size(); i++) {
+                CompletableFuture<V> result = entries.get(i).result;
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else if (values == null || i >= values.size()) {
+                    result.completeExceptionally(new IllegalStateException("The batch has no result for request " + i));
+                } else {
+                    result.complete(values.get(i));
+                }
+            }
+        });
+    }
+
+    private void cancel(@NotNull Batch<R, V> batch, @NotNull Entry<R, V> entry) {
+        CompletableFuture<List<V>> toCancel = null;
+        synchronized (openBatches) {
+            if (!batch.sent) {
+                batch.entries.remove(entry);
+                if (batch.entries.isEmpty() && openBatches.remove(batch.groupKey, batch)) {
+                    batch.timeout.cancel(false);
+                }
+                return;
+            }
+            batch.pending--;
+            if (batch.pending == 0) {
+                toCancel = batch.results;
+            }
+        }
+        if (toCancel != null) {
+            toCancel.cancel(true);
+        }
+    }
+
+    /**
+     * Requests collected for one group and the state of sending them.
+     */
+    private static final class Batch<R, V> {
+        private final Object groupKey;
+        private final List<Entry<R, V>> entries = new ArrayList<>();
+        private ScheduledFuture<?> timeout;
+        private boolean sent;
+        private int pending;
+        private CompletableFuture<List<V>> results;
+
+        private Batch(Object groupKey) {
+            this.groupKey = groupKey;
+        }
+    }
+
+    /**
+     * One request of a batch and the future of its caller.
+     */
+    private static final class Entry<R, V> {
+        private final R request;
+        private final CompletableFuture<V> result = new CompletableFuture<>();
+
+        private Entry(R request) {
+            this.request = request;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package xzy.codeexplain.plugin.client;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Limits how many requests may be started within a sliding time window, e.g. 30 requests per hour.
+ * <p>
+ * The start times of the requests within the window are kept, so a burst at the end of one hour does not
+ * allow another full budget at the start of the next.
+ */
+public class RequestBudget {
+
+    private final int maxRequests;
+    private final long windowMillis;
+    private final Deque<Long> startTimes = new ArrayDeque<>();
+
+    /**
+     * Creates a budget.
+     *
+     * @param maxRequests  The number of requests allowed within the window; 0 allows none
+     * @param windowMillis The length of the window in milliseconds
+     */
+    public RequestBudget(int maxRequests, long windowMillis) {
+        this.maxRequests = Math.max(0, maxRequests);
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Takes one request from the budget if it isn't used up.
+     *
+     * @return true if the request may be started, false if the budget is used up
+     */
+    public synchronized boolean tryAcquire() {
+        long now = System.currentTimeMillis();
+        expire(now);
+        if (startTimes.size() >= maxRequests) {
+            return false;
+        }
+        startTimes.addLast(now);
+        return true;
+    }
+
+    /**
+     * Gets the number of requests that may still be started within the current window.
+     *
+     * @return The remaining budget
+     */
+    public synchronized int getRemaining() {
+        expire(System.currentTimeMillis());
+        return maxRequests - startTimes.size();
+    }
+
+    private void expire(long now) {
+        while (!startTimes.isEmpty() && startTimes.peekFirst() <= now - windowMillis) {
+            startTimes.removeFirst();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package xzy.codeexplain.plugin.client;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Executor running the explanation pipeline: serializing requests, the HTTP client's own work and parsing responses.
+ * <p>
+ * By default a fixed number of platform threads is used and further tasks wait in a queue, so bursts of requests
+ * don't create a thread each. On runtimes with virtual threads (Java 21 and later) every task can run on its own
+ * virtual thread instead. Either way the number of queued and running tasks is counted so the load can be observed.
+ */
+public class RequestExecutor implements Executor {
+
+    private static final Logger LOG = Logger.getLogger(RequestExecutor.class.getName());
+
+    private final ExecutorService delegate;
+    private final boolean virtualThreads;
+    private final AtomicInteger queuedTasks = new AtomicInteger();
+    private final AtomicInteger runningTasks = new AtomicInteger();
+
+    private RequestExecutor(@NotNull ExecutorService delegate, boolean virtualThreads) {
+        this.delegate = delegate;
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Creates an executor.
+     *
+     * @param maxThreads        The number of platform threads
+     * @param useVirtualThreads Whether to run tasks on virtual threads if the runtime supports them;
+     *                          falls back to platform threads otherwise
+     * @return The executor
+     */
+    @NotNull
+    public static RequestExecutor create(int maxThreads, boolean useVirtualThreads) {
+        if (useVirtualThreads) {
+            ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+            if (virtual != null) {
+                return new RequestExecutor(virtual, true);
+            }
+            LOG.info("Virtual threads are not available on this runtime, using " + maxThreads + " platform threads");
+        }
+
+        int threads = Math.max(1, maxThreads);
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "CodeExplain Request " + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), threadFactory);
+        // Idle threads are released, the pool only holds threads while there is work
+        pool.allowCoreThreadTimeOut(true);
+        return new RequestExecutor(pool, false);
+    }
+
+    /**
+     * Creates an executor starting a virtual thread per task. Looked up reflectively since the plugin is
+     * compiled for Java 17.
+     *
+     * @return The executor, or null if the runtime has no virtual threads
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void execute(@NotNull Runnable command) {
+        queuedTasks.incrementAndGet();
+        try {
+            delegate.execute(() -> {
+                queuedTasks.decrementAndGet();
+                runningTasks.incrementAndGet();
+                try {
+                    command.run();
+                } finally {
+                    runningTasks.decrementAndGet();
+                }
+            });
+        } catch (RuntimeException e) {
+            queuedTasks.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the number of tasks waiting for a thread.
+     *
+     * @return The queue depth
+     */
+    public int getQueueDepth() {
+        return queuedTasks.get();
+    }
+
+    /**
+     * Gets the number of tasks currently running.
+     *
+     * @return The number of running tasks
+     */
+    public int getRunningCount() {
+        return runningTasks.get();
+    }
+
+    /**
+     * Checks whether tasks run on virtual threads.
+     *
+     * @return true if tasks run on virtual threads
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Stops accepting new tasks. Tasks already submitted still run.
+     */
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "RequestExecutor{virtualThreads=" + virtualThreads + ", queued=" + getQueueDepth()
+                + ", running=" + getRunningCount() + "}";
+    }
+}
@@ -0,0 +1,22 @@
+package xzy.codeexplain.plugin.client;
+
+/**
+ * Priority classes of API requests, from highest to lowest.
+ */
+public enum RequestPriority {
+    /** An explanation the user asked for and is waiting for. */
+    INTERACTIVE,
+    /** An explanation fetched ahead of time because the user might ask for it. */
+    PREFETCH,
+    /** An explanation generated in bulk, e.g. for all methods of a package. */
+    BATCH;
+
+    /**
+     * Checks whether requests of this class may be preempted by interactive requests.
+     *
+     * @return true for background requests
+     */
+    public boolean isBackground() {
+        return this != INTERACTIVE;
+    }
+}
@@ -0,0 +1,468 @@
+package xzy.codeexplain.plugin.client;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Decides when API requests are started, by priority class, owner and a global concurrency cap.
+ * <p>
+ * At most a fixed number of requests run at a time; further requests wait in one queue per priority class. Higher
+ * classes are always started first. Within a class, every owner (e.g. a project) has its own queue and the owners
+ * take turns, so one project submitting a large batch does not hold up the others.
+ * <p>
+ * Interactive requests never wait behind background work: if no slot is free for a waiting interactive request,
+ * the background request started last is preempted. Its HTTP exchange is cancelled and the request is put back at
+ * the head of its queue, to be started again from scratch once a slot is free.
+ * <p>
+ * Requests are started on an executor, never on the thread that submitted, promoted or cancelled a request: starting
+ * one serializes and compresses it, which must not happen on e.g. the UI thread cancelling a superseded request.
+ * <p>
+ * A running request may take a second slot for a hedge, but only if one is free and no request is waiting for it.
+ * A request waiting to retry gives its slot up and queues again at the head of its owner's queue once the retry is
+ * due, see {@link FaultTolerance}.
+ */
+public class RequestScheduler {
+    /** The request being started on the current thread, so the call it makes can find its slot. */
+    private static final ThreadLocal<Task<?>> STARTING_TASK = new ThreadLocal<>();
+
+    private final int maxConcurrent;
+    private final Executor executor;
+    private final Map<RequestPriority, LinkedHashMap<Object, Deque<Task<?>>>> queues = new EnumMap<>(RequestPriority.class);
+    private final List<Task<?>> running = new ArrayList<>();
+    private int hedgeSlots;
+    private final AtomicLong preemptionCount = new AtomicLong();
+
+    /**
+     * Creates a scheduler.
+     *
+     * @param maxConcurrent The maximum number of requests running at a time
+     * @param executor      Starts the requests
+     */
+    public RequestScheduler(int maxConcurrent, @NotNull Executor executor) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.executor = executor;
+        for (RequestPriority priority : RequestPriority.values()) {
+            queues.put(priority, new LinkedHashMap<>());
+        }
+    }
+
+    /**
+     * Queues a request and starts it once a slot is free.
+     *
+     * @param priority The priority class of the request
+     * @param owner    The owner of the request, e.g. its project; owners are served in turns within a class
+     * @param call     Starts the request; may be invoked again if the request is preempted. Cancelling the
+     *                 future it returns must abort the request.
+     * @return The scheduled request. Cancelling its future dequeues or cancels the request.
+     */
+    @NotNull
+    public <T> Task<T> submit(@NotNull RequestPriority priority, @NotNull Object owner,
+                              @NotNull Supplier<CompletableFuture<T>> call) {
+        Task<T> task = new Task<>(this, priority, owner, call);
+        task.result.whenComplete((result, error) -> {
+            if (task.result.isCancelled()) {
+                cancel(task);
+            }
+        });
+        synchronized (this) {
+            enqueue(task, false);
+        }
+        dispatch();
+        return task;
+    }
+
+    /**
+     * Raises the priority of a request, e.g. because the user now waits for a request that was prefetched.
+     * Lowering the priority is not supported; a lower priority is ignored.
+     *
+     * @param task     The scheduled request
+     * @param priority The new priority class
+     */
+    public void promote(@NotNull Task<?> task, @NotNull RequestPriority priority) {
+        synchronized (this) {
+            if (priority.compareTo(task.priority) >= 0) {
+                return;
+            }
+            if (task.state == State.QUEUED) {
+                dequeue(task);
+                task.priority = priority;
+                enqueue(task, true);
+            } else {
+                task.priority = priority;
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * Starts queued requests while slots are free, preempting background requests for waiting interactive ones.
+     */
+    private void dispatch() {
+        List<Runnable> toStart = new ArrayList<>();
+        List<Future<?>> toCancel = new ArrayList<>();
+        synchronized (this) {
+            while (true) {
+                Task<?> next = peekNext();
+                if (next == null) {
+                    break;
+                }
+                if (running.size() + hedgeSlots >= maxConcurrent) {
+                    Task<?> victim = next.priority.isBackground() ? null : findPreemptable();
+                    if (victim == null) {
+                        break;
+                    }
+                    preempt(victim, toCancel);
+                }
+                dequeue(next);
+                next.state = State.RUNNING;
+                running.add(next);
+                Runnable retry = next.retry;
+                if (retry != null) {
+                    // A call resuming after its retry delay, its exchange is still the same
+                    next.retry = null;
+                    toStart.add(retry);
+                } else {
+                    int attempt = ++next.attempt;
+                    toStart.add(() -> start(next, attempt));
+                }
+            }
+        }
+        for (Future<?> attempt : toCancel) {
+            attempt.cancel(true);
+        }
+        for (Runnable start : toStart) {
+            try {
+                executor.execute(start);
+            } catch (RejectedExecutionException e) {
+                // The client is closing; start the request here rather than leave it running forever
+                start.run();
+            }
+        }
+    }
+
+    private <T> void start(@NotNull Task<T> task, int attempt) {
+        CompletableFuture<T> exchange;
+        STARTING_TASK.set(task);
+        try {
+            exchange = task.call.get();
+        } catch (RuntimeException e) {
+            exchange = CompletableFuture.failedFuture(e);
+        } finally {
+            STARTING_TASK.remove();
+        }
+
+        boolean superseded;
+        synchronized (this) {
+            // A call failing right away may already be waiting to retry, which keeps the same attempt
+            superseded = task.state == State.DONE || task.attempt != attempt;
+            if (!superseded) {
+                task.exchange = exchange;
+            }
+        }
+        if (superseded) {
+            // Preempted or cancelled while the request was being started
+            exchange.cancel(true);
+            return;
+        }
+
+        exchange.whenComplete((result, error) -> {
+            synchronized (this) {
+                if (task.state == State.DONE || task.attempt != attempt) {
+                    // Cancelled, or preempted and queued again
+                    return;
+                }
+                if (task.state == State.QUEUED) {
+                    dequeue(task);
+                }
+                task.state = State.DONE;
+                task.retry = null;
+                task.exchange = null;
+                running.remove(task);
+            }
+            if (error != null) {
+                task.result.completeExceptionally(error);
+            } else {
+                task.result.complete(result);
+            }
+            dispatch();
+        });
+    }
+
+    private void cancel(@NotNull Task<?> task) {
+        Future<?> exchange = null;
+        synchronized (this) {
+            if (task.state == State.QUEUED) {
+                dequeue(task);
+            } else {
+                running.remove(task);
+            }
+            // Queued requests only have an exchange if they wait to resume after a retry delay
+            exchange = task.exchange;
+            task.state = State.DONE;
+            task.exchange = null;
+            task.retry = null;
+        }
+        if (exchange != null) {
+            exchange.cancel(true);
+        }
+        dispatch();
+    }
+
+    /**
+     * Gets the request whose call is being started on the current thread.
+     *
+     * @return The request, or null if the current thread isn't starting one
+     */
+    @Nullable
+    static Task<?> startingTask() {
+        return STARTING_TASK.get();
+    }
+
+    private boolean tryAcquireHedgeSlot(@NotNull Task<?> task) {
+        synchronized (this) {
+            if (task.state != State.RUNNING || running.size() + hedgeSlots >= maxConcurrent || peekNext() != null) {
+                return false;
+            }
+            hedgeSlots++;
+            return true;
+        }
+    }
+
+    private void releaseHedgeSlot() {
+        synchronized (this) {
+            hedgeSlots--;
+        }
+        dispatch();
+    }
+
+    private boolean pause(@NotNull Task<?> task) {
+        synchronized (this) {
+            if (task.state != State.RUNNING) {
+                return false;
+            }
+            running.remove(task);
+            task.state = State.PAUSED;
+        }
+        dispatch();
+        return true;
+    }
+
+    private void resume(@NotNull Task<?> task, @NotNull Runnable retry) {
+        synchronized (this) {
+            if (task.state != State.PAUSED) {
+                // Cancelled in the meantime
+                return;
+            }
+            task.retry = retry;
+            enqueue(task, true);
+        }
+        dispatch();
+    }
+
+    /**
+     * Finds the background request to preempt: the lowest priority one started last.
+     */
+    @Nullable
+    private Task<?> findPreemptable() {
+        Task<?> victim = null;
+        for (Task<?> task : running) {
+            if (task.priority.isBackground() && (victim == null || task.priority.compareTo(victim.priority) >= 0)) {
+                victim = task;
+            }
+        }
+        return victim;
+    }
+
+    private void preempt(@NotNull Task<?> task, @NotNull List<Future<?>> toCancel) {
+        running.remove(task);
+        if (task.exchange != null) {
+            toCancel.add(task.exchange);
+            task.exchange = null;
+        }
+        task.attempt++;
+        enqueue(task, true);
+        preemptionCount.incrementAndGet();
+    }
+
+    /**
+     * Gets the request to start next: the head of the queue of the first owner in the highest non-empty class.
+     */
+    @Nullable
+    private Task<?> peekNext() {
+        for (LinkedHashMap<Object, Deque<Task<?>>> ownerQueues : queues.values()) {
+            Iterator<Deque<Task<?>>> iterator = ownerQueues.values().iterator();
+            if (iterator.hasNext()) {
+                return iterator.next().peekFirst();
+            }
+        }
+        return null;
+    }
+
+    private void enqueue(@NotNull Task<?> task, boolean atHead) {
+        task.state = State.QUEUED;
+        Deque<Task<?>> queue = queues.get(task.priority).computeIfAbsent(task.owner, owner -> new ArrayDeque<>());
+        if (atHead) {
+            queue.addFirst(task);
+        } else {
+            queue.addLast(task);
+        }
+    }
+
+    /**
+     * Removes a request from its queue. If it was the head of its owner's queue, the owner's turn is over and it
+     * moves to the end of the line of its class.
+     */
+    private void dequeue(@NotNull Task<?> task) {
+        LinkedHashMap<Object, Deque<Task<?>>> ownerQueues = queues.get(task.priority);
+        Deque<Task<?>> queue = ownerQueues.get(task.owner);
+        if (queue == null) {
+            return;
+        }
+        boolean wasHead = queue.peekFirst() == task;
+        queue.remove(task);
+        if (queue.isEmpty() || wasHead) {
+            ownerQueues.remove(task.owner);
+            if (!queue.isEmpty()) {
+                ownerQueues.put(task.owner, queue);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of requests currently running.
+     *
+     * @return The number of running requests
+     */
+    public synchronized int getRunningCount() {
+        return running.size();
+    }
+
+    /**
+     * Gets the number of requests of a priority class waiting for a slot.
+     *
+     * @param priority The priority class
+     * @return The number of queued requests
+     */
+    public synchronized int getQueuedCount(@NotNull RequestPriority priority) {
+        int count = 0;
+        for (Deque<Task<?>> queue : queues.get(priority).values()) {
+            count += queue.size();
+        }
+        return count;
+    }
+
+    /**
+     * Gets how often a background request has been preempted by an interactive one.
+     *
+     * @return The number of preemptions
+     */
+    public long getPreemptionCount() {
+        return preemptionCount.get();
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RequestScheduler{running=" + running.size() + "/" + maxConcurrent
+                + ", hedges=" + hedgeSlots
+                + ", interactive=" + getQueuedCount(RequestPriority.INTERACTIVE)
+                + ", prefetch=" + getQueuedCount(RequestPriority.PREFETCH)
+                + ", batch=" + getQueuedCount(RequestPriority.BATCH)
+                + ", preemptions=" + preemptionCount.get() + "}";
+    }
+
+    private enum State {
+        QUEUED, RUNNING, PAUSED, DONE
+    }
+
+    /**
+     * A scheduled request.
+     *
+     * @param <T> The result type
+     */
+    public static final class Task<T> {
+        private final RequestScheduler scheduler;
+        private final Object owner;
+        private final Supplier<CompletableFuture<T>> call;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private RequestPriority priority;
+        private State state;
+        private int attempt;
+        private Future<T> exchange;
+        /** Continues the call once a slot is free again after its retry delay, or null. */
+        private Runnable retry;
+
+        private Task(@NotNull RequestScheduler scheduler, @NotNull RequestPriority priority, @NotNull Object owner,
+                     @NotNull Supplier<CompletableFuture<T>> call) {
+            this.scheduler = scheduler;
+            this.priority = priority;
+            this.owner = owner;
+            this.call = call;
+        }
+
+        /**
+         * Gets the future completing with the result of the request. Cancelling it dequeues or cancels the request.
+         *
+         * @return The result future
+         */
+        @NotNull
+        public CompletableFuture<T> getResult() {
+            return result;
+        }
+
+        /**
+         * Takes a second slot for a hedge of the running request, if one is free and no queued request waits for it.
+         * The slot must be released with {@link #releaseHedgeSlot()}.
+         *
+         * @return Whether the slot was taken
+         */
+        boolean tryAcquireHedgeSlot() {
+            return scheduler.tryAcquireHedgeSlot(this);
+        }
+
+        /**
+         * Releases the slot taken for a hedge.
+         */
+        void releaseHedgeSlot() {
+            scheduler.releaseHedgeSlot();
+        }
+
+        /**
+         * Gives up the slot of the running request while its call waits to retry. Cancelling the request still
+         * cancels the call.
+         *
+         * @return Whether the slot was given up; false if the request no longer runs
+         */
+        boolean pause() {
+            return scheduler.pause(this);
+        }
+
+        /**
+         * Queues a paused request again, at the head of its owner's queue, and continues its call once it has a slot.
+         * Does nothing if the request has been cancelled in the meantime.
+         *
+         * @param retry Continues the call
+         */
+        void resume(@NotNull Runnable retry) {
+            scheduler.resume(this, retry);
+        }
+    }
+}
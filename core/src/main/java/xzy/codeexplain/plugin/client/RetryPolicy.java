@@ -0,0 +1,111 @@
+package xzy.codeexplain.plugin.client;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.ConnectException;
+import java.net.http.HttpConnectTimeoutException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides which failed API calls are retried and how long to wait before the next attempt.
+ * <p>
+ * Explanation requests have no side effects, so they are retried when the API is overloaded (429), fails
+ * temporarily (500, 502, 503, 504) or cannot be reached. The wait grows exponentially with the number of
+ * attempts and is jittered, so clients failing at the same time don't retry in lockstep. A {@code Retry-After}
+ * header sets the minimum wait; if it asks for more than a minute, the call is not retried at all.
+ */
+public class RetryPolicy {
+
+    private static final long MAX_RETRY_AFTER_MILLIS = 60_000;
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+
+    /**
+     * Creates a policy.
+     *
+     * @param maxAttempts     The maximum number of attempts, including the first one; 1 disables retries
+     * @param baseDelayMillis The wait before the first retry, before jitter
+     * @param maxDelayMillis  The maximum wait between two attempts, before jitter
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelayMillis = Math.max(1, baseDelayMillis);
+        this.maxDelayMillis = Math.max(this.baseDelayMillis, maxDelayMillis);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Checks whether a response with the given status code is worth retrying.
+     *
+     * @param statusCode The HTTP status code
+     * @return true if the request should be retried
+     */
+    public boolean isRetryable(int statusCode) {
+        return statusCode == 429 || statusCode == 500 || statusCode == 502 || statusCode == 503 || statusCode == 504;
+    }
+
+    /**
+     * Checks whether a failed exchange is worth retrying. Only failures to connect are retried; a request
+     * that timed out after it was sent would most likely time out again.
+     *
+     * @param error The error the exchange failed with
+     * @return true if the request should be retried
+     */
+    public boolean isRetryable(@NotNull Throwable error) {
+        Throwable cause = Futures.unwrap(error);
+        return cause instanceof ConnectException || cause instanceof HttpConnectTimeoutException;
+    }
+
+    /**
+     * Computes the wait before the next attempt.
+     *
+     * @param failedAttempts The number of attempts made so far, at least 1
+     * @param retryAfter     The value of the {@code Retry-After} header of the last response, or null
+     * @return The wait in milliseconds, or -1 if the call should not be retried
+     */
+    public long getDelayMillis(int failedAttempts, @Nullable String retryAfter) {
+        long backoff = baseDelayMillis << Math.min(20, Math.max(0, failedAttempts - 1));
+        backoff = Math.min(maxDelayMillis, backoff);
+        // "Equal jitter": at least half of the backoff, so retries never come back immediately
+        long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+
+        long retryAfterMillis = parseRetryAfter(retryAfter);
+        if (retryAfterMillis > MAX_RETRY_AFTER_MILLIS) {
+            return -1;
+        }
+        return Math.max(delay, retryAfterMillis);
+    }
+
+    /**
+     * Parses a {@code Retry-After} header, given either in seconds or as an HTTP date.
+     *
+     * @param retryAfter The header value, or null
+     * @return The requested wait in milliseconds, or 0 if there is none or it cannot be parsed
+     */
+    static long parseRetryAfter(@Nullable String retryAfter) {
+        if (retryAfter == null || retryAfter.isBlank()) {
+            return 0;
+        }
+        String value = retryAfter.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            // Not a number of seconds, try an HTTP date
+        }
+        try {
+            ZonedDateTime date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+        } catch (DateTimeParseException e) {
+            return 0;
+        }
+    }
+}
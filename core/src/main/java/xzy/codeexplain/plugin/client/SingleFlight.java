@@ -0,0 +1,132 @@
+package xzy.codeexplain.plugin.client;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent calls with the same key into a single underlying call.
+ * <p>
+ * The first caller for a key starts the call; callers arriving while it is in flight join it. Every caller gets
+ * its own future, so one caller cancelling does not affect the others. The underlying call is only cancelled
+ * once every caller has cancelled its future. Completed calls are forgotten immediately, so a later call with
+ * the same key starts a new underlying call.
+ *
+ * @param <K> The key type
+ * @param <V> The result type
+ */
+public class SingleFlight<K, V> {
+
+    private final Map<K, Flight<V>> flights = new HashMap<>();
+
+    /**
+     * Runs the call for the given key, or joins the call already in flight for it.
+     *
+     * @param key  The key identifying identical calls
+     * @param call Starts the underlying call; only invoked if no call for the key is in flight.
+     *             Cancelling the returned future must abort the underlying work.
+     * @return A future for this caller that completes with the result of the shared call
+     */
+    @NotNull
+    public CompletableFuture<V> execute(@NotNull K key, @NotNull Supplier<CompletableFuture<V>> call) {
+        Flight<V> flight;
+        boolean leader = false;
+        synchronized (flights) {
+            flight = flights.get(key);
+            if (flight == null) {
+                flight = new Flight<>();
+                flights.put(key, flight);
+                leader = true;
+            }
+            flight.waiters++;
+        }
+
+        if (leader) {
+            start(key, flight, call);
+        }
+
+        CompletableFuture<V> waiter = new CompletableFuture<>();
+        Flight<V> joined = flight;
+        joined.shared.whenComplete((result, error) -> {
+            if (error != null) {
+                waiter.completeExceptionally(error);
+            } else {
+                waiter.complete(result);
+            }
+        });
+        waiter.whenComplete((result, error) -> {
+            if (waiter.isCancelled()) {
+                release(key, joined);
+            }
+        });
+        return waiter;
+    }
+
+    /**
+     * Gets the number of calls currently in flight.
+     *
+     * @return The number of distinct keys being executed
+     */
+    public int getInFlightCount() {
+        synchronized (flights) {
+            return flights.size();
+        }
+    }
+
+    private void start(K key, Flight<V> flight, Supplier<CompletableFuture<V>> call) {
+        CompletableFuture<V> underlying;
+        try {
+            underlying = call.get();
+        } catch (RuntimeException e) {
+            underlying = CompletableFuture.failedFuture(e);
+        }
+
+        boolean abandoned;
+        synchronized (flights) {
+            flight.underlying = underlying;
+            abandoned = flight.waiters == 0;
+        }
+        if (abandoned) {
+            // Every caller cancelled before the call was even started
+            underlying.cancel(true);
+        }
+
+        underlying.whenComplete((result, error) -> {
+            synchronized (flights) {
+                flights.remove(key, flight);
+            }
+            if (error != null) {
+                flight.shared.completeExceptionally(error);
+            } else {
+                flight.shared.complete(result);
+            }
+        });
+    }
+
+    private void release(K key, Flight<V> flight) {
+        Future<V> toCancel = null;
+        synchronized (flights) {
+            flight.waiters--;
+            if (flight.waiters == 0 && !flight.shared.isDone()) {
+                flights.remove(key, flight);
+                toCancel = flight.underlying;
+            }
+        }
+        if (toCancel != null) {
+            toCancel.cancel(true);
+        }
+    }
+
+    /**
+     * A call in flight and the number of callers waiting for it.
+     */
+    private static final class Flight<V> {
+        private final CompletableFuture<V> shared = new CompletableFuture<>();
+        private CompletableFuture<V> underlying;
+        private int waiters;
+    }
+}
@@ -0,0 +1,361 @@
+package xzy.codeexplain.plugin.config;
+
+/**
+ * Configuration class for the Explain Code plugin.
+ * Contains settings that can be used throughout the plugin.
+ */
+public class PluginConfig {
+    /**
+     * The default endpoint of the explanation API.
+     */
+    public static final String DEFAULT_API_URL = "https://api.codeexplain.xyz/api/v1/explain";
+
+    /**
+     * Check if debug mode is enabled
+     *
+     * @return true if debug mode is enabled, false otherwise
+     */
+    public static boolean isDebugMode() {
+        return getFlag("codeexplain.debug", "EXPLAINCODE_DEBUG", false);
+    }
+
+    /**
+     * Check if streaming mode is enabled. In streaming mode the explanation is requested as a
+     * server-sent event stream and rendered incrementally while it arrives.
+     *
+     * @return true if streaming mode is enabled, false otherwise
+     */
+    public static boolean isStreamingEnabled() {
+        return getFlag("codeexplain.streaming", "EXPLAINCODE_STREAMING", true);
+    }
+
+    /**
+     * Gets the URL of the explanation API. Can be pointed at a local stand-in server for testing.
+     *
+     * @return The API URL
+     */
+    public static String getApiUrl() {
+        String apiUrl = getSetting("codeexplain.api.url", "EXPLAINCODE_API_URL");
+        return apiUrl != null ? apiUrl : DEFAULT_API_URL;
+    }
+
+    /**
+     * Gets the maximum memory used by the in-memory explanation cache. A value of 0 disables the cache.
+     *
+     * @return The cache size limit in bytes
+     */
+    public static long getCacheMaxBytes() {
+        return getLong("codeexplain.cache.maxBytes", "EXPLAINCODE_CACHE_MAX_BYTES", 16L * 1024 * 1024);
+    }
+
+    /**
+     * Gets the size cap of the on-disk explanation store. A value of 0 disables the store.
+     *
+     * @return The store size limit in bytes
+     */
+    public static long getDiskCacheMaxBytes() {
+        return getLong("codeexplain.diskCache.maxBytes", "EXPLAINCODE_DISK_CACHE_MAX_BYTES", 64L * 1024 * 1024);
+    }
+
+    /**
+     * Gets the maximum number of characters of context sent along with the selected code.
+     * A token is roughly four characters.
+     *
+     * @return The context budget in characters
+     */
+    public static int getContextMaxChars() {
+        return (int) Math.min(Integer.MAX_VALUE, getLong("codeexplain.context.maxChars", "EXPLAINCODE_CONTEXT_MAX_CHARS", 20_000));
+    }
+
+    /**
+     * Gets the length from which explanations are shown in the sectioned viewer, which only lays out the
+     * sections in view instead of the whole explanation. A value of 0 disables the sectioned viewer.
+     *
+     * @return The minimum explanation length in characters
+     */
+    public static int getSectionedViewerMinChars() {
+        return (int) Math.min(Integer.MAX_VALUE, getLong("codeexplain.viewer.sectionedMinChars", "EXPLAINCODE_VIEWER_SECTIONED_MIN_CHARS", 50_000));
+    }
+
+    /**
+     * Gets the maximum size of an API response. Larger responses are rejected with an error.
+     *
+     * @return The response size limit in bytes
+     */
+    public static long getMaxResponseBytes() {
+        return Math.max(1024, getLong("codeexplain.maxResponseBytes", "EXPLAINCODE_MAX_RESPONSE_BYTES", 8L * 1024 * 1024));
+    }
+
+    /**
+     * Check if larger requests should be sent gzip compressed. Compression is switched off automatically
+     * if the API rejects compressed requests.
+     *
+     * @return true if request compression is enabled, false otherwise
+     */
+    public static boolean isRequestCompressionEnabled() {
+        return getFlag("codeexplain.compressRequests", "EXPLAINCODE_COMPRESS_REQUESTS", true);
+    }
+
+    /**
+     * Gets the number of threads running the explanation pipeline: serializing requests, HTTP
+     * exchanges and parsing responses. Further work waits in a queue.
+     *
+     * @return The number of request threads
+     */
+    public static int getRequestThreads() {
+        int defaultThreads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        return (int) Math.max(1, Math.min(64, getLong("codeexplain.requestThreads", "EXPLAINCODE_REQUEST_THREADS", defaultThreads)));
+    }
+
+    /**
+     * Gets the maximum number of API requests running at a time, across all projects. Further requests wait
+     * for a slot; interactive requests take one from background work if necessary.
+     *
+     * @return The maximum number of concurrent API requests
+     */
+    public static int getMaxConcurrentRequests() {
+        return (int) Math.max(1, Math.min(64, getLong("codeexplain.maxConcurrentRequests", "EXPLAINCODE_MAX_CONCURRENT_REQUESTS", 4)));
+    }
+
+    /**
+     * Check if the explanation pipeline should run on virtual threads. Only takes effect on
+     * runtimes that support them (Java 21 and later).
+     *
+     * @return true if virtual threads should be used, false otherwise
+     */
+    public static boolean isVirtualThreadsEnabled() {
+        return getFlag("codeexplain.virtualThreads", "EXPLAINCODE_VIRTUAL_THREADS", false);
+    }
+
+    /**
+     * Check if explanations of selected code should be prefetched in the background once the selection has
+     * stopped changing, before the user asks for them.
+     *
+     * @return true if prefetching is enabled, false otherwise
+     */
+    public static boolean isPrefetchEnabled() {
+        return getFlag("codeexplain.prefetch", "EXPLAINCODE_PREFETCH", false);
+    }
+
+    /**
+     * Gets how long a selection must stay unchanged before its explanation is prefetched.
+     *
+     * @return The delay in milliseconds
+     */
+    public static long getPrefetchDelayMillis() {
+        return Math.max(100, getLong("codeexplain.prefetch.delayMillis", "EXPLAINCODE_PREFETCH_DELAY_MILLIS", 1500));
+    }
+
+    /**
+     * Gets the maximum number of prefetch requests started per hour. Explanations the user asks for
+     * are not counted.
+     *
+     * @return The prefetch budget per hour
+     */
+    public static int getPrefetchRequestsPerHour() {
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, getLong("codeexplain.prefetch.requestsPerHour", "EXPLAINCODE_PREFETCH_REQUESTS_PER_HOUR", 30)));
+    }
+
+    /**
+     * Gets the number of declarations a batch explanation keeps in flight at a time.
+     *
+     * @return The batch concurrency
+     */
+    public static int getBatchConcurrency() {
+        return (int) Math.max(1, Math.min(16, getLong("codeexplain.batch.concurrency", "EXPLAINCODE_BATCH_CONCURRENCY", 2)));
+    }
+
+    /**
+     * Check if background explanations sharing a context should be sent to the API together, as one batched
+     * request. Batching is switched off automatically if the API has no batch endpoint.
+     *
+     * @return true if request batching is enabled, false otherwise
+     */
+    public static boolean isBatchRequestsEnabled() {
+        return getFlag("codeexplain.batchRequests", "EXPLAINCODE_BATCH_REQUESTS", false);
+    }
+
+    /**
+     * Gets the URL of the batch endpoint of the explanation API.
+     *
+     * @return The batch API URL
+     */
+    public static String getBatchApiUrl() {
+        String batchUrl = getSetting("codeexplain.api.batchUrl", "EXPLAINCODE_API_BATCH_URL");
+        return batchUrl != null ? batchUrl : getApiUrl() + "/batch";
+    }
+
+    /**
+     * Gets how long a batched request waits for further snippets after its first one.
+     *
+     * @return The batching window in milliseconds
+     */
+    public static long getBatchWindowMillis() {
+        return Math.max(0, Math.min(5000, getLong("codeexplain.batchRequests.windowMillis", "EXPLAINCODE_BATCH_REQUESTS_WINDOW_MILLIS", 50)));
+    }
+
+    /**
+     * Gets the maximum number of snippets sent in one batched request.
+     *
+     * @return The maximum batch size
+     */
+    public static int getMaxBatchSize() {
+        return (int) Math.max(1, Math.min(64, getLong("codeexplain.batchRequests.maxSize", "EXPLAINCODE_BATCH_REQUESTS_MAX_SIZE", 8)));
+    }
+
+    /**
+     * Gets the maximum number of attempts of an API call, including the first one. Calls failing with 429, a
+     * temporary server error or a connection error are retried with exponential backoff. A value of 1 disables retries.
+     *
+     * @return The maximum number of attempts
+     */
+    public static int getRetryMaxAttempts() {
+        return (int) Math.max(1, Math.min(10, getLong("codeexplain.retry.maxAttempts", "EXPLAINCODE_RETRY_MAX_ATTEMPTS", 3)));
+    }
+
+    /**
+     * Gets the wait before the first retry of a failed API call. Every further retry waits twice as long, up to
+     * {@link #getRetryMaxDelayMillis()}, and the waits are jittered.
+     *
+     * @return The base delay in milliseconds
+     */
+    public static long getRetryBaseDelayMillis() {
+        return Math.max(1, getLong("codeexplain.retry.baseDelayMillis", "EXPLAINCODE_RETRY_BASE_DELAY_MILLIS", 500));
+    }
+
+    /**
+     * Gets the maximum wait between two attempts of an API call.
+     *
+     * @return The maximum delay in milliseconds
+     */
+    public static long getRetryMaxDelayMillis() {
+        return Math.max(1, getLong("codeexplain.retry.maxDelayMillis", "EXPLAINCODE_RETRY_MAX_DELAY_MILLIS", 8000));
+    }
+
+    /**
+     * Gets the number of consecutive failed API calls after which calls fail fast for a while. A value of 0
+     * disables the circuit breaker.
+     *
+     * @return The failure threshold
+     */
+    public static int getCircuitBreakerFailureThreshold() {
+        return (int) Math.max(0, Math.min(1000, getLong("codeexplain.circuitBreaker.failureThreshold", "EXPLAINCODE_CIRCUIT_BREAKER_FAILURE_THRESHOLD", 5)));
+    }
+
+    /**
+     * Gets how long API calls fail fast once the circuit breaker has opened, before a trial call is made.
+     *
+     * @return The open period in milliseconds
+     */
+    public static long getCircuitBreakerOpenMillis() {
+        return Math.max(0, getLong("codeexplain.circuitBreaker.openMillis", "EXPLAINCODE_CIRCUIT_BREAKER_OPEN_MILLIS", 30_000));
+    }
+
+    /**
+     * Check if explanation requests the user waits for should be hedged: if one isn't answered within the p95
+     * latency of recent requests, an identical second request is sent and the first answer is used.
+     *
+     * @return true if hedging is enabled, false otherwise
+     */
+    public static boolean isHedgingEnabled() {
+        return getFlag("codeexplain.hedging", "EXPLAINCODE_HEDGING", false);
+    }
+
+    /**
+     * Check if large contexts should be sent in context sessions: as a hash if the API already has the context,
+     * or as line edits of a similar context it has. Requires an API supporting sessions; other APIs are detected
+     * and get full contexts.
+     *
+     * @return true if context sessions are enabled, false otherwise
+     */
+    public static boolean isContextSessionsEnabled() {
+        return getFlag("codeexplain.contextSessions", "EXPLAINCODE_CONTEXT_SESSIONS", false);
+    }
+
+    /**
+     * Check if the connection to the API should be opened in the background when a project is opened or the tool
+     * window is first shown, and kept open while explanations are requested, so requests don't pay for
+     * connection setup.
+     *
+     * @return true if preconnecting is enabled, false otherwise
+     */
+    public static boolean isPreconnectEnabled() {
+        return getFlag("codeexplain.preconnect", "EXPLAINCODE_PRECONNECT", false);
+    }
+
+    /**
+     * Gets how long the connection to the API may be idle before a keep-alive request is sent. Only used if
+     * preconnecting is enabled; a value of 0 disables keep-alive requests.
+     *
+     * @return The ping interval in milliseconds
+     */
+    public static long getKeepAlivePingIntervalMillis() {
+        long interval = getLong("codeexplain.keepAlive.intervalMillis", "EXPLAINCODE_KEEP_ALIVE_INTERVAL_MILLIS", 45_000);
+        return interval <= 0 ? 0 : Math.max(1000, interval);
+    }
+
+    /**
+     * Gets how long after the last explanation request keep-alive requests stop.
+     *
+     * @return The maximum idle time in milliseconds
+     */
+    public static long getKeepAliveMaxIdleMillis() {
+        return Math.max(0, getLong("codeexplain.keepAlive.maxIdleMillis", "EXPLAINCODE_KEEP_ALIVE_MAX_IDLE_MILLIS", 15 * 60 * 1000));
+    }
+
+    /**
+     * Reads a numeric setting from a system property, falling back to an environment variable.
+     *
+     * @param propertyName The name of the system property
+     * @param envName      The name of the environment variable
+     * @param defaultValue The value used when neither is set or the value is not a number
+     * @return The value of the setting
+     */
+    private static long getLong(String propertyName, String envName, long defaultValue) {
+        String value = getSetting(propertyName, envName);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Reads a boolean flag from a system property, falling back to an environment variable.
+     *
+     * @param propertyName The name of the system property
+     * @param envName      The name of the environment variable
+     * @param defaultValue The value used when neither is set
+     * @return The value of the flag
+     */
+    private static boolean getFlag(String propertyName, String envName, boolean defaultValue) {
+        String value = getSetting(propertyName, envName);
+        if (value == null) {
+            return defaultValue;
+        }
+        return value.equalsIgnoreCase("true") || value.equals("1");
+    }
+
+    /**
+     * Reads a setting from a system property, falling back to an environment variable.
+     *
+     * @param propertyName The name of the system property
+     * @param envName      The name of the environment variable
+     * @return The trimmed value of the setting, or null if it is not set
+     */
+    private static String getSetting(String propertyName, String envName) {
+        String value = System.getProperty(propertyName);
+        if (value == null || value.trim().isEmpty()) {
+            // Check for environment variable if system property is not set
+            value = System.getenv(envName);
+        }
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        return value.trim();
+    }
+
+}
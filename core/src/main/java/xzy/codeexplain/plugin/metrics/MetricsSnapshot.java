@@ -0,0 +1,134 @@
+package xzy.codeexplain.plugin.metrics;
+
+import com.google.gson.GsonBuilder;
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The metrics of the explanation pipeline at one point in time, see {@link PipelineMetrics}. Can be shown as a
+ * table or exported as JSON.
+ */
+public final class MetricsSnapshot {
+    private final String timestamp;
+    private final Map<String, Distribution> latenciesMillis = new LinkedHashMap<>();
+    private final Map<String, Distribution> payloadBytes = new LinkedHashMap<>();
+    private final Map<String, CacheStats> caches = new LinkedHashMap<>();
+    private final Map<String, Long> counters = new LinkedHashMap<>();
+
+    MetricsSnapshot(long timeMillis) {
+        this.timestamp = Instant.ofEpochMilli(timeMillis).toString();
+    }
+
+    void addPhase(@NotNull PipelinePhase phase, @NotNull Histogram micros) {
+        // Recorded in microseconds, reported in milliseconds
+        latenciesMillis.put(phase.getDisplayName(), new Distribution(micros, 1000.0));
+    }
+
+    void addPayload(@NotNull String name, @NotNull Histogram bytes) {
+        payloadBytes.put(name, new Distribution(bytes, 1.0));
+    }
+
+    void addCache(@NotNull String name, long hits, long misses) {
+        caches.put(name, new CacheStats(hits, misses));
+    }
+
+    void addCounter(@NotNull String name, long value) {
+        counters.put(name, value);
+    }
+
+    /**
+     * Converts the snapshot to pretty-printed JSON.
+     *
+     * @return The JSON document
+     */
+    @NotNull
+    public String toJson() {
+        return new GsonBuilder().setPrettyPrinting().create().toJson(this);
+    }
+
+    /**
+     * Formats the snapshot as plain text tables for display.
+     *
+     * @return The formatted snapshot
+     */
+    @NotNull
+    public String format() {
+        StringBuilder text = new StringBuilder();
+        text.append("Metrics at ").append(timestamp).append("\n\n");
+
+        text.append(String.format(Locale.ROOT, "%-26s %8s %10s %10s %10s %10s %10s%n",
+                "Latency (ms)", "count", "mean", "p50", "p90", "p99", "max"));
+        for (Map.Entry<String, Distribution> entry : latenciesMillis.entrySet()) {
+            appendDistribution(text, entry.getKey(), entry.getValue(), "%10.1f");
+        }
+
+        text.append(String.format(Locale.ROOT, "%n%-26s %8s %10s %10s %10s %10s %10s%n",
+                "Payload (bytes)", "count", "mean", "p50", "p90", "p99", "max"));
+        for (Map.Entry<String, Distribution> entry : payloadBytes.entrySet()) {
+            appendDistribution(text, entry.getKey(), entry.getValue(), "%10.0f");
+        }
+
+        text.append(String.format(Locale.ROOT, "%n%-26s %8s %10s %10s%n", "Cache", "hits", "misses", "hit ratio"));
+        for (Map.Entry<String, CacheStats> entry : caches.entrySet()) {
+            CacheStats stats = entry.getValue();
+            text.append(String.format(Locale.ROOT, "%-26s %8d %10d %9.1f%%%n",
+                    entry.getKey(), stats.hits, stats.misses, stats.hitRatio * 100));
+        }
+
+        if (!counters.isEmpty()) {
+            text.append(String.format(Locale.ROOT, "%n%-26s %8s%n", "Counter", "value"));
+            for (Map.Entry<String, Long> entry : counters.entrySet()) {
+                text.append(String.format(Locale.ROOT, "%-26s %8d%n", entry.getKey(), entry.getValue()));
+            }
+        }
+        return text.toString();
+    }
+
+    private static void appendDistribution(StringBuilder text, String name, Distribution d, String valueFormat) {
+        String format = "%-26s %8d " + valueFormat + " " + valueFormat + " " + valueFormat + " " + valueFormat
+                + " " + valueFormat + "%n";
+        text.append(String.format(Locale.ROOT, format, name, d.count, d.mean, d.p50, d.p90, d.p99, d.max));
+    }
+
+    /**
+     * The summary of one histogram.
+     */
+    private static final class Distribution {
+        private final long count;
+        private final double mean;
+        private final double p50;
+        private final double p90;
+        private final double p99;
+        private final double p999;
+        private final double max;
+
+        private Distribution(Histogram histogram, double divisor) {
+            this.count = histogram.getCount();
+            this.mean = histogram.getMean() / divisor;
+            this.p50 = histogram.getValueAtPercentile(50) / divisor;
+            this.p90 = histogram.getValueAtPercentile(90) / divisor;
+            this.p99 = histogram.getValueAtPercentile(99) / divisor;
+            this.p999 = histogram.getValueAtPercentile(99.9) / divisor;
+            this.max = histogram.getMax() / divisor;
+        }
+    }
+
+    /**
+     * The hits and misses of one cache.
+     */
+    private static final class CacheStats {
+        private final long hits;
+        private final long misses;
+        private final double hitRatio;
+
+        private CacheStats(long hits, long misses) {
+            this.hits = hits;
+            this.misses = misses;
+            this.hitRatio = hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package xzy.codeexplain.plugin.metrics;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Collects the metrics of the explanation pipeline: a latency histogram per {@link PipelinePhase}, the sizes of
+ * request and response bodies, and the hit ratios and counters of the caches and clients registered with it.
+ * <p>
+ * There is one instance per plugin, shared by all projects, so plain classes such as body subscribers can record
+ * into it without access to a service. Recording is lock-free and allocation-free.
+ */
+public final class PipelineMetrics {
+
+    /** One hour, in microseconds. */
+    private static final long MAX_LATENCY_MICROS = TimeUnit.HOURS.toMicros(1);
+    private static final long MAX_PAYLOAD_BYTES = 1L << 32;
+    // Created after the limits above, which are not compile-time constants
+    private static final PipelineMetrics INSTANCE = new PipelineMetrics();
+
+    private final Map<PipelinePhase, Histogram> latencies = new EnumMap<>(PipelinePhase.class);
+    private final Histogram requestBytes = new Histogram(MAX_PAYLOAD_BYTES);
+    private final Histogram responseBytes = new Histogram(MAX_PAYLOAD_BYTES);
+    private final Map<String, LongSupplier[]> caches = new LinkedHashMap<>();
+    private final Map<String, LongSupplier> counters = new LinkedHashMap<>();
+
+    private PipelineMetrics() {
+        for (PipelinePhase phase : PipelinePhase.values()) {
+            latencies.put(phase, new Histogram(MAX_LATENCY_MICROS));
+        }
+    }
+
+    @NotNull
+    public static PipelineMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Records the duration of a phase that started at the given time.
+     *
+     * @param phase      The phase
+     * @param startNanos The start of the phase, from {@link System#nanoTime()}
+     */
+    public void recordSince(@NotNull PipelinePhase phase, long startNanos) {
+        latencies.get(phase).record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Records the size of a request body as sent, i.e. after compression.
+     *
+     * @param bytes The size in bytes
+     */
+    public void recordRequestBytes(long bytes) {
+        requestBytes.record(bytes);
+    }
+
+    /**
+     * Records the size of a response body as received, i.e. before decompression.
+     *
+     * @param bytes The size in bytes
+     */
+    public void recordResponseBytes(long bytes) {
+        responseBytes.record(bytes);
+    }
+
+    /**
+     * Registers a cache whose hit ratio is reported. Registering another cache with the same name replaces it.
+     *
+     * @param name   The name of the cache
+     * @param hits   Gets the number of hits so far
+     * @param misses Gets the number of misses so far
+     */
+    public synchronized void registerCache(@NotNull String name, @NotNull LongSupplier hits, @NotNull LongSupplier misses) {
+        caches.put(name, new LongSupplier[]{hits, misses});
+    }
+
+    /**
+     * Registers a counter that is reported, e.g. the number of retries. Registering another counter with the same
+     * name replaces it.
+     *
+     * @param name    The name of the counter
+     * @param counter Gets the current value
+     */
+    public synchronized void registerCounter(@NotNull String name, @NotNull LongSupplier counter) {
+        counters.put(name, counter);
+    }
+
+    /**
+     * Stops reporting a counter, e.g. of a component that was removed.
+     *
+     * @param name The name of the counter
+     */
+    public synchronized void unregisterCounter(@NotNull String name) {
+        counters.remove(name);
+    }
+
+    /**
+     * Gets the histogram of a phase's latencies, in microseconds.
+     *
+     * @param phase The phase
+     * @return The histogram
+     */
+    @NotNull
+    public Histogram getLatencies(@NotNull PipelinePhase phase) {
+        return latencies.get(phase);
+    }
+
+    /**
+     * Takes a snapshot of all metrics.
+     *
+     * @return The snapshot
+     */
+    @NotNull
+    public MetricsSnapshot snapshot() {
+        MetricsSnapshot snapshot = new MetricsSnapshot(System.currentTimeMillis());
+        for (Map.Entry<PipelinePhase, Histogram> entry : latencies.entrySet()) {
+            snapshot.addPhase(entry.getKey(), entry.getValue());
+        }
+        snapshot.addPayload("request", requestBytes);
+        snapshot.addPayload("response", responseBytes);
+        synchronized (this) {
+            for (Map.Entry<String, LongSupplier[]> entry : caches.entrySet()) {
+                snapshot.addCache(entry.getKey(), entry.getValue()[0].getAsLong(), entry.getValue()[1].getAsLong());
+            }
+            for (Map.Entry<String, LongSupplier> entry : counters.entrySet()) {
+                snapshot.addCounter(entry.getKey(), entry.getValue().getAsLong());
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Resets the histograms. Registered caches and counters keep their own counts.
+     */
+    public void reset() {
+        for (Histogram histogram : latencies.values()) {
+            histogram.reset();
+        }
+        requestBytes.reset();
+        responseBytes.reset();
+    }
+}
@@ -0,0 +1,36 @@
+package xzy.codeexplain.plugin.metrics;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The measured phases of explaining selected code, in the order they happen.
+ */
+public enum PipelinePhase {
+    /** Collecting the selection and extracting its context in a read action. */
+    CONTEXT_EXTRACTION("Context extraction"),
+    /** Waiting for a slot in the request scheduler. */
+    QUEUE_WAIT("Queue wait"),
+    /** Serializing (and compressing) the request body. */
+    SERIALIZATION("Serialization"),
+    /** From sending the request to receiving the response headers. */
+    TIME_TO_FIRST_BYTE("Time to first byte"),
+    /** Decompressing and parsing a complete JSON response body. */
+    PARSING("Parsing"),
+    /** From the action being invoked to the first part of a streamed explanation. */
+    FIRST_PARTIAL("First partial explanation"),
+    /** From the action being invoked to the complete explanation being available. */
+    EXPLANATION("Complete explanation"),
+    /** From the complete explanation being handed to the tool window to it being shown. */
+    RENDERING("Rendering");
+
+    private final String displayName;
+
+    PipelinePhase(@NotNull String displayName) {
+        this.displayName = displayName;
+    }
+
+    @NotNull
+    public String getDisplayName() {
+        return displayName;
+    }
+}
@@ -0,0 +1,68 @@
+package xzy.codeexplain.plugin.models;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Model class representing a batched code analysis request payload: several snippets explained with one
+ * shared context in a single request. The id of every snippet is its position in the request, and the
+ * response refers to the snippets by these ids.
+ */
+public class BatchAnalysisRequest {
+    private String format;
+    private String context;
+    private List<Snippet> snippets = new ArrayList<>();
+
+    /**
+     * Constructor for creating a batched code analysis request.
+     *
+     * @param context The context shared by all snippets
+     * @param format  The format of the explanations
+     */
+    public BatchAnalysisRequest(String context, String format) {
+        this.context = context;
+        this.format = format;
+    }
+
+    /**
+     * Adds a snippet to the request.
+     *
+     * @param selectedCode The code to explain
+     */
+    public void addSnippet(String selectedCode) {
+        snippets.add(new Snippet(Integer.toString(snippets.size()), selectedCode));
+    }
+
+    public String getContext() {
+        return context;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public List<Snippet> getSnippets() {
+        return snippets;
+    }
+
+    /**
+     * One snippet of a batched request.
+     */
+    public static class Snippet {
+        private String id;
+        private String selectedCode;
+
+        public Snippet(String id, String selectedCode) {
+            this.id = id;
+            this.selectedCode = selectedCode;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getSelectedCode() {
+            return selectedCode;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package xzy.codeexplain.plugin.models;
+
+import java.util.List;
+
+/**
+ * Model class representing a code analysis request payload.
+ * Used for serializing to JSON when making API requests.
+ * <p>
+ * In a context session the context may be replaced by a reference: {@code contextHash} alone names a context the
+ * server already has, and {@code contextBase} with {@code contextEdits} describes it as edits of one it has.
+ */
+public class CodeAnalysisRequest {
+    private String format;
+    private String selectedCode;
+    private String context;
+    private Boolean stream; // Only serialized when set, so non-streaming payloads stay unchanged
+    private String contextHash; // The session fields below are only serialized when set, like stream
+    private String contextBase;
+    private List<ContextEdit> contextEdits;
+
+    /**
+     * Constructor for creating a code analysis request.
+     *
+     * @param selectedCode The code selected by the user
+     * @param context      The surrounding context of the selected code
+     */
+    public CodeAnalysisRequest(String selectedCode, String context, String format) {
+        this.selectedCode = selectedCode;
+        this.context = context;
+        this.format = format;
+    }
+
+    /**
+     * Gets the selected code.
+     *
+     * @return The selected code
+     */
+    public String getSelectedCode() {
+        return selectedCode;
+    }
+
+    /**
+     * Sets the selected code.
+     *
+     * @param selectedCode The code selected by the user
+     */
+    public void setSelectedCode(String selectedCode) {
+        this.selectedCode = selectedCode;
+    }
+
+    /**
+     * Gets the context.
+     *
+     * @return The context
+     */
+    public String getContext() {
+        return context;
+    }
+
+    /**
+     * Sets the context.
+     *
+     * @param context The surrounding context of the selected code
+     */
+    public void setContext(String context) {
+        this.context = context;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public void setFormat(String format) {
+        this.format = format;
+    }
+
+    /**
+     * Checks whether the explanation should be streamed as server-sent events.
+     *
+     * @return true if streaming was requested
+     */
+    public boolean isStream() {
+        return Boolean.TRUE.equals(stream);
+    }
+
+    /**
+     * Sets whether the explanation should be streamed as server-sent events.
+     *
+     * @param stream true to request a streamed response
+     */
+    public void setStream(boolean stream) {
+        this.stream = stream ? Boolean.TRUE : null;
+    }
+
+    /**
+     * Gets the SHA-256 hash of the context, hex encoded, if this request is part of a context session.
+     *
+     * @return The context hash, or null
+     */
+    public String getContextHash() {
+        return contextHash;
+    }
+
+    /**
+     * Sets the SHA-256 hash of the context. Without a context, the server looks the context up by this hash.
+     *
+     * @param contextHash The context hash, or null
+     */
+    public void setContextHash(String contextHash) {
+        this.contextHash = contextHash;
+    }
+
+    /**
+     * Gets the hash of the context the edits apply to.
+     *
+     * @return The base context hash, or null if the request carries no edits
+     */
+    public String getContextBase() {
+        return contextBase;
+    }
+
+    /**
+     * Gets the edits turning the base context into the context of this request.
+     *
+     * @return The edits, or null if the request carries no edits
+     */
+    public List<ContextEdit> getContextEdits() {
+        return contextEdits;
+    }
+
+    /**
+     * Sends the context as edits of a context the server already has, instead of the full text.
+     *
+     * @param contextBase  The hash of the base context
+     * @param contextEdits The edits turning the base context into the context of this request
+     */
+    public void setContextDelta(String contextBase, List<ContextEdit> contextEdits) {
+        this.contextBase = contextBase;
+        this.contextEdits = contextEdits;
+    }
+}
@@ -0,0 +1,39 @@
+package xzy.codeexplain.plugin.models;
+
+import java.util.List;
+
+/**
+ * Model class representing one edit of a context delta: replaces a range of lines of the base context with
+ * new lines. Line positions refer to the base context, lines include their line terminators, and the edits of a
+ * request are ordered by position and don't overlap.
+ */
+public class ContextEdit {
+    private int start;
+    private int deleteCount;
+    private List<String> lines;
+
+    /**
+     * Constructor for creating a context edit.
+     *
+     * @param start       The index of the first replaced line in the base context
+     * @param deleteCount The number of replaced lines, 0 to only insert
+     * @param lines       The lines inserted in their place
+     */
+    public ContextEdit(int start, int deleteCount, List<String> lines) {
+        this.start = start;
+        this.deleteCount = deleteCount;
+        this.lines = lines;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getDeleteCount() {
+        return deleteCount;
+    }
+
+    public List<String> getLines() {
+        return lines;
+    }
+}
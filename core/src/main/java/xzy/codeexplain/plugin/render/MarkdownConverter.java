@@ -0,0 +1,73 @@
+package xzy.codeexplain.plugin.render;
+
+import com.vladsch.flexmark.html.HtmlRenderer;
+import com.vladsch.flexmark.parser.Parser;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Converts markdown explanations to HTML.
+ * <p>
+ * Holds one configured flexmark parser and renderer; both are immutable, so a converter is safe to use from
+ * several threads. Caching and rendering in the background are left to the caller.
+ */
+public final class MarkdownConverter {
+
+    private final Parser parser = Parser.builder().build();
+    private final HtmlRenderer renderer = HtmlRenderer.builder().build();
+
+    /**
+     * Converts markdown to HTML on the calling thread.
+     *
+     * @param markdown The markdown text to convert
+     * @return HTML representation of the markdown
+     */
+    @NotNull
+    public String toHtml(@NotNull String markdown) {
+        return renderer.render(parser.parse(markdown));
+    }
+
+    /**
+     * Splits markdown into sections of roughly the given length. Sections only end at blank lines outside fenced
+     * code blocks, so every section is valid markdown on its own, and a heading always starts a new section.
+     *
+     * @param markdown     The markdown text to split
+     * @param sectionChars The approximate length of a section in characters
+     * @return The sections, in order
+     */
+    @NotNull
+    public static List<String> splitSections(@NotNull String markdown, int sectionChars) {
+        List<String> sections = new ArrayList<>();
+        int sectionStart = 0;
+        int lastBoundary = 0;
+        boolean inFence = false;
+        int lineStart = 0;
+        while (lineStart < markdown.length()) {
+            int lineEnd = markdown.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = markdown.length();
+            }
+            String line = markdown.substring(lineStart, lineEnd).trim();
+            if (line.startsWith("```") || line.startsWith("~~~")) {
+                inFence = !inFence;
+            } else if (!inFence && line.startsWith("#") && lineStart == lastBoundary && lineStart > sectionStart) {
+                // A heading directly after a blank line starts a new section
+                sections.add(markdown.substring(sectionStart, lineStart));
+                sectionStart = lineStart;
+            } else if (!inFence && line.isEmpty()) {
+                lastBoundary = lineEnd + 1;
+                if (lastBoundary - sectionStart >= sectionChars) {
+                    sections.add(markdown.substring(sectionStart, Math.min(lastBoundary, markdown.length())));
+                    sectionStart = lastBoundary;
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        if (sectionStart < markdown.length()) {
+            sections.add(markdown.substring(sectionStart));
+        }
+        return sections;
+    }
+}
@@ -0,0 +1,96 @@
+package xzy.codeexplain.plugin.benchmark;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Generates realistic, deterministic payloads for the benchmarks: Java source files and markdown explanations of
+ * a given size.
+ */
+public final class Payloads {
+
+    /** The answer sizes of the benchmarks: a few paragraphs, and a very long explanation of a whole class. */
+    public enum AnswerSize {
+        SHORT(800),
+        LONG(120_000);
+
+        private final int chars;
+
+        AnswerSize(int chars) {
+            this.chars = chars;
+        }
+
+        public int getChars() {
+            return chars;
+        }
+    }
+
+    private Payloads() {
+    }
+
+    /**
+     * Generates a Java source file of about the given size, consisting of documented methods.
+     *
+     * @param bytes The approximate size of the file
+     * @return The source code
+     */
+    @NotNull
+    public static String javaSource(int bytes) {
+        StringBuilder source = new StringBuilder(bytes + 512);
+        source.append("package com.example.orders;\n\n")
+                .append("import java.util.ArrayList;\nimport java.util.List;\nimport java.util.Map;\n\n")
+                .append("/**\n * Processes orders and keeps track of their totals.\n */\n")
+                .append("public class OrderProcessor {\n")
+                .append("    private final Map<String, List<Order>> ordersByCustomer;\n\n");
+        for (int i = 0; source.length() < bytes - 2; i++) {
+            source.append(method(i));
+        }
+        return source.append("}\n").toString();
+    }
+
+    /**
+     * Generates one method, e.g. to use as the selected code.
+     *
+     * @param index Makes names unique
+     * @return The source code of the method
+     */
+    @NotNull
+    public static String method(int index) {
+        return "    /**\n"
+                + "     * Computes the discounted total of the orders of a customer, step " + index + ".\n"
+                + "     */\n"
+                + "    public double computeTotal" + index + "(String customerId, double discount) {\n"
+                + "        List<Order> orders = ordersByCustomer.getOrDefault(customerId, new ArrayList<>());\n"
+                + "        double total = 0;\n"
+                + "        for (Order order : orders) {\n"
+                + "            if (order.isCancelled()) {\n"
+                + "                continue; // Cancelled orders are never charged\n"
+                + "            }\n"
+                + "            total += order.getQuantity() * order.getUnitPrice();\n"
+                + "        }\n"
+                + "        return total * (1 - Math.min(discount, 0.5));\n"
+                + "    }\n\n";
+    }
+
+    /**
+     * Generates a markdown explanation like the API returns, with headings, lists and code blocks.
+     *
+     * @param size The size of the explanation
+     * @return The markdown
+     */
+    @NotNull
+    public static String markdownAnswer(@NotNull AnswerSize size) {
+        StringBuilder markdown = new StringBuilder(size.getChars() + 1024);
+        markdown.append("# Overview\n\nThe selected code computes the **discounted total** of a customer's orders.\n\n");
+        for (int i = 0; markdown.length() < size.getChars(); i++) {
+            markdown.append("## Step ").append(i + 1).append("\n\n")
+                    .append("The method looks up the orders of the customer in `ordersByCustomer`, falling back to an ")
+                    .append("empty list, and iterates over them. Cancelled orders are *skipped*, since they are never ")
+                    .append("charged.\n\n")
+                    .append("- `total` accumulates quantity times unit price\n")
+                    .append("- the discount is capped at 50%\n")
+                    .append("- the result is a `double`, so rounding errors are possible\n\n")
+                    .append("```java\nreturn total * (1 - Math.min(discount, 0.5));\n```\n\n");
+        }
+        return markdown.toString();
+    }
+}
@@ -0,0 +1,50 @@
+package xzy.codeexplain.plugin.client;
+
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import xzy.codeexplain.plugin.benchmark.Payloads;
+import xzy.codeexplain.plugin.models.CodeAnalysisRequest;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures serializing a {@link CodeAnalysisRequest} into a request body, with and without compression, for
+ * context of 1 KB to 1 MB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestSerializationBenchmark {
+
+    @Param({"1024", "16384", "131072", "1048576"})
+    public int contextBytes;
+
+    @Param({"false", "true"})
+    public boolean gzip;
+
+    private final Gson gson = new Gson();
+    private CodeAnalysisRequest request;
+
+    @Setup
+    public void setUp() {
+        request = new CodeAnalysisRequest(Payloads.method(0), Payloads.javaSource(contextBytes), "markdown");
+    }
+
+    @Benchmark
+    public JsonRequestBody serialize() {
+        return JsonRequestBody.write(gson, request, gzip);
+    }
+}
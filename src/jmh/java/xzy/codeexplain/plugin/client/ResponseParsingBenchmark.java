@@ -0,0 +1,65 @@
+package xzy.codeexplain.plugin.client;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import xzy.codeexplain.plugin.benchmark.Payloads;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Measures extracting the explanation from a JSON response body, plain and gzip encoded, for short and very long
+ * explanations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseParsingBenchmark {
+
+    @Param({"SHORT", "LONG"})
+    public Payloads.AnswerSize answer;
+
+    @Param({"false", "true"})
+    public boolean gzip;
+
+    private byte[] body;
+
+    @Setup
+    public void setUp() throws IOException {
+        JsonObject response = new JsonObject();
+        response.addProperty("explanation", Payloads.markdownAnswer(answer));
+        byte[] json = new Gson().toJson(response).getBytes(StandardCharsets.UTF_8);
+        if (!gzip) {
+            body = json;
+            return;
+        }
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(json);
+        }
+        body = compressed.toByteArray();
+    }
+
+    @Benchmark
+    public String parse() throws InvalidResponseException {
+        return ExplanationResponseParser.readExplanation(new ByteArrayInputStream(body), gzip, Long.MAX_VALUE);
+    }
+}
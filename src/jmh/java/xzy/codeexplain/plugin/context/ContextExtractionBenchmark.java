@@ -0,0 +1,57 @@
+package xzy.codeexplain.plugin.context;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.impl.DocumentImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import xzy.codeexplain.plugin.benchmark.Payloads;
+import xzy.codeexplain.plugin.config.PluginConfig;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures cutting the context window of lines around a selection in the middle of a 1 MB file, the context of
+ * large files without named declarations. The cost depends on the context budget rather than the file size, as only
+ * the lines inside the window are visited and copied. Walking the PSI needs a running IDE and is not measured here.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContextExtractionBenchmark {
+
+    private static final int FILE_BYTES = 1024 * 1024;
+
+    private Document document;
+    private int selectionStart;
+    private int selectionEnd;
+    private int budget;
+
+    @Setup
+    public void setUp() {
+        String source = Payloads.javaSource(FILE_BYTES);
+        document = new DocumentImpl(source);
+        // Select the method in the middle of the file
+        selectionStart = source.indexOf("    public double", source.length() / 2 - Payloads.method(0).length());
+        if (selectionStart < 0) {
+            selectionStart = source.indexOf("    public double");
+        }
+        selectionEnd = source.indexOf("\n    }\n", selectionStart) + 6;
+        budget = PluginConfig.getContextMaxChars();
+    }
+
+    @Benchmark
+    public String lineWindow() {
+        return ContextExtractor.lineWindow(document, selectionStart, selectionEnd, budget, 0, document.getTextLength());
+    }
+}
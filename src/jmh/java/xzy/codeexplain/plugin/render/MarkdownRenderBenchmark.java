@@ -0,0 +1,52 @@
+package xzy.codeexplain.plugin.render;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import xzy.codeexplain.plugin.benchmark.Payloads;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures converting explanations from markdown to HTML, and splitting very long ones into the sections of the
+ * sectioned viewer. No render cache is involved, every operation renders.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MarkdownRenderBenchmark {
+
+    @Param({"SHORT", "LONG"})
+    public Payloads.AnswerSize answer;
+
+    private MarkdownConverter converter;
+    private String markdown;
+
+    @Setup
+    public void setUp() {
+        converter = new MarkdownConverter();
+        markdown = Payloads.markdownAnswer(answer);
+    }
+
+    @Benchmark
+    public String markdownToHtml() {
+        return converter.toHtml(markdown);
+    }
+
+    @Benchmark
+    public List<String> splitSections() {
+        return MarkdownConverter.splitSections(markdown, 4000);
+    }
+}
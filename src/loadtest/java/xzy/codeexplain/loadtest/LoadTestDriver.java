@@ -0,0 +1,218 @@
+package xzy.codeexplain.loadtest;
+
+import xzy.codeexplain.plugin.backend.ExplanationBackend;
+import xzy.codeexplain.plugin.backend.HttpExplanationBackend;
+import xzy.codeexplain.plugin.client.ExplanationClient;
+import xzy.codeexplain.plugin.metrics.Histogram;
+import xzy.codeexplain.plugin.metrics.PipelineMetrics;
+import xzy.codeexplain.standin.LatencyDistribution;
+import xzy.codeexplain.standin.StandInExplainServer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test of the {@link ExplanationClient} the plugin uses, outside the IDE.
+ * <p>
+ * Starts embedded {@link StandInExplainServer}s simulating the backends, unless {@code --url} points at another
+ * server, and sends them a number of distinct explanation requests through the client, keeping a fixed number of
+ * them in flight. With several servers, server {@code k} (counting from 0) takes {@code k + 1} times the latency,
+ * so the routing to the fastest backend is exercised. The requests come from several simulated projects, so the scheduler's per-project fairness is
+ * exercised as in the IDE. Afterwards it reports the latency percentiles, the throughput, the peak thread count
+ * and heap usage, and the pipeline metrics.
+ * <p>
+ * Run it with {@code ./gradlew runLoadTest}; plugin settings are passed as {@code -Pcodeexplain.<name>=<value>}.
+ */
+public class LoadTestDriver {
+
+    private int requests = 1000;
+    private int concurrency = 200;
+    private int projects = 8;
+    private int servers = 1;
+    private int contextChars = 4000;
+    private boolean streaming;
+    private String url;
+    private long tokenDelayMillis;
+    private long latencyMedianMillis = 200;
+    private long latencyP99Millis = 2000;
+    private double errorRate = 0.01;
+    private int responseChars = 2000;
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final AtomicLong peakHeapBytes = new AtomicLong();
+    private final AtomicLong peakThreadCount = new AtomicLong();
+
+    /**
+     * Runs the load test and prints the report.
+     *
+     * @param args The options, see {@link #parse}
+     * @throws Exception If the stand-in server cannot be started
+     */
+    public static void main(String[] args) throws Exception {
+        LoadTestDriver driver = new LoadTestDriver();
+        driver.parse(args);
+        driver.run();
+        // The platform's executors don't use daemon threads
+        System.exit(0);
+    }
+
+    /**
+     * Reads {@code --requests}, {@code --concurrency}, {@code --projects}, {@code --context-chars},
+     * {@code --streaming <true|false>} and {@code --url <explain endpoint>}, and the options of the embedded
+     * servers: {@code --servers}, {@code --latency-median-ms}, {@code --latency-p99-ms}, {@code --error-rate}, {@code --response-chars}
+     * and {@code --token-delay-ms}.
+     */
+    private void parse(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--requests":
+                    requests = Integer.parseInt(value);
+                    break;
+                case "--concurrency":
+                    concurrency = Integer.parseInt(value);
+                    break;
+                case "--projects":
+                    projects = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "--context-chars":
+                    contextChars = Integer.parseInt(value);
+                    break;
+                case "--streaming":
+                    streaming = Boolean.parseBoolean(value);
+                    break;
+                case "--servers":
+                    servers = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "--url":
+                    url = value;
+                    break;
+                case "--latency-median-ms":
+                    latencyMedianMillis = Long.parseLong(value);
+                    break;
+                case "--latency-p99-ms":
+                    latencyP99Millis = Long.parseLong(value);
+                    break;
+                case "--error-rate":
+                    errorRate = Double.parseDouble(value);
+                    break;
+                case "--response-chars":
+                    responseChars = Integer.parseInt(value);
+                    break;
+                case "--token-delay-ms":
+                    tokenDelayMillis = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        List<StandInExplainServer> embeddedServers = new ArrayList<>();
+        List<ExplanationBackend> backends = new ArrayList<>();
+        LatencyDistribution latency = new LatencyDistribution(latencyMedianMillis, latencyP99Millis);
+        if (url == null) {
+            for (int i = 0; i < servers; i++) {
+                LatencyDistribution serverLatency = new LatencyDistribution((i + 1) * latencyMedianMillis, (i + 1) * latencyP99Millis);
+                StandInExplainServer server = new StandInExplainServer(0, tokenDelayMillis, serverLatency, errorRate, responseChars);
+                server.start();
+                embeddedServers.add(server);
+                backends.add(new HttpExplanationBackend("Stand-in " + i, server.getEndpointUrl()));
+            }
+        } else {
+            backends.add(new HttpExplanationBackend("Server", url));
+        }
+
+        // Only the keys of the owners matter, like the projects in the IDE
+        String[] owners = new String[projects];
+        for (int i = 0; i < projects; i++) {
+            owners[i] = "Project " + i;
+        }
+        String context = "x".repeat(Math.max(0, contextChars));
+        String runId = Long.toString(System.nanoTime(), 36);
+
+        int threadsAtStart = threads.getThreadCount();
+        threads.resetPeakThreadCount();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Load test sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(this::sample, 0, 100, TimeUnit.MILLISECONDS);
+
+        System.out.printf(Locale.ROOT, "Sending %d requests to %s, %d in flight%s%n", requests, backends, concurrency,
+                !embeddedServers.isEmpty() ? ", server latency " + latency + ", error rate " + errorRate : "");
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Load test timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Without an on-disk store, so explanations stored by an earlier run can't answer requests
+        ExplanationClient client = new ExplanationClient(null, timer, backends);
+        Histogram latencies = new Histogram(TimeUnit.MINUTES.toMillis(10));
+        AtomicLong failures = new AtomicLong();
+        Semaphore inFlight = new Semaphore(concurrency);
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[requests];
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            inFlight.acquire();
+            // Distinct code for every request, so none is answered from the cache or coalesced with another
+            String code = "int value" + runId + "_" + i + " = " + i + ";";
+            long requestStart = System.nanoTime();
+            CompletableFuture<String> future = streaming
+                    ? client.analyzeCodeStreamingAsync(owners[i % projects], code, context, partial -> {
+                    })
+                    : client.analyzeCodeAsync(owners[i % projects], code, context);
+            futures[i] = future.whenComplete((explanation, error) -> {
+                latencies.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - requestStart));
+                if (error != null || ExplanationClient.isError(explanation)) {
+                    failures.incrementAndGet();
+                }
+                inFlight.release();
+            });
+        }
+        CompletableFuture.allOf(futures).exceptionally(error -> null).join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        sample();
+        sampler.shutdownNow();
+
+        System.out.printf(Locale.ROOT, "%nRequests:   %d (%d failed) in %.1f s, %.1f requests/s%n",
+                requests, failures.get(), seconds, requests / seconds);
+        System.out.printf(Locale.ROOT, "Latency:    p50 %d ms, p90 %d ms, p99 %d ms, max %d ms%n",
+                latencies.getValueAtPercentile(50), latencies.getValueAtPercentile(90),
+                latencies.getValueAtPercentile(99), latencies.getMax());
+        System.out.printf(Locale.ROOT, "Threads:    %d at start, peak %d%n", threadsAtStart,
+                Math.max(peakThreadCount.get(), threads.getPeakThreadCount()));
+        System.out.printf(Locale.ROOT, "Heap:       peak %d MB used%n", peakHeapBytes.get() / (1024 * 1024));
+        for (int i = 0; i < embeddedServers.size(); i++) {
+            StandInExplainServer server = embeddedServers.get(i);
+            System.out.printf(Locale.ROOT, "Server %d:   %d requests, %d failed on purpose%n",
+                    i, server.getRequestCount(), server.getFailedRequestCount());
+        }
+        System.out.println();
+        System.out.println(PipelineMetrics.getInstance().snapshot().format());
+
+        client.close();
+        timer.shutdownNow();
+        for (StandInExplainServer server : embeddedServers) {
+            server.stop();
+        }
+    }
+
+    private void sample() {
+        peakHeapBytes.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+        peakThreadCount.accumulateAndGet(threads.getThreadCount(), Math::max);
+    }
+}
@@ -0,0 +1,35 @@
+package xzy.codeexplain.plugin.actions;
+
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.actionSystem.CommonDataKeys;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+import xzy.codeexplain.plugin.services.BatchExplanationTask;
+
+/**
+ * Action that explains all methods and classes of the current file, or of the files, directories and packages
+ * selected in the project view, in the background. Results are kept in a result file; running the action
+ * again on the same selection continues where an interrupted run stopped.
+ */
+public class ExplainDeclarationsAction extends AnAction {
+
+    @Override
+    public void update(@NotNull AnActionEvent e) {
+        // Enable the action when a file or directory is selected or open in the editor
+        VirtualFile[] files = e.getData(CommonDataKeys.VIRTUAL_FILE_ARRAY);
+        e.getPresentation().setEnabledAndVisible(e.getProject() != null && files != null && files.length > 0);
+    }
+
+    @Override
+    public void actionPerformed(@NotNull AnActionEvent e) {
+        Project project = e.getProject();
+        VirtualFile[] files = e.getData(CommonDataKeys.VIRTUAL_FILE_ARRAY);
+        if (project == null || files == null || files.length == 0) {
+            return;
+        }
+        ProgressManager.getInstance().run(new BatchExplanationTask(project, files));
+    }
+}
@@ -5,27 +5,34 @@ import com.intellij.openapi.actionSystem.AnAction;
 import com.intellij.openapi.actionSystem.AnActionEvent;
 import com.intellij.openapi.actionSystem.CommonDataKeys;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.editor.Editor;
-import com.intellij.openapi.editor.SelectionModel;
-import com.intellij.openapi.progress.ProgressIndicator;
-import com.intellij.openapi.progress.ProgressManager;
-import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.progress.impl.BackgroundableProcessIndicator;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.util.IconLoader;
 import com.intellij.openapi.wm.ToolWindow;
 import com.intellij.openapi.wm.ToolWindowManager;
-import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.util.PsiUtilBase;
 import com.intellij.ui.components.JBLabel;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import org.jetbrains.annotations.NotNull;
+import xzy.codeexplain.plugin.config.PluginConfig;
+import xzy.codeexplain.plugin.context.SelectionSnapshot;
+import xzy.codeexplain.plugin.metrics.PipelineMetrics;
+import xzy.codeexplain.plugin.metrics.PipelinePhase;
 import xzy.codeexplain.plugin.services.CodeAnalyzerService;
 import xzy.codeexplain.plugin.services.CodeExplanationToolWindowService;
 
 import javax.swing.*;
 import java.awt.*;
-import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Action that analyzes and explains the currently selected code in the editor.
@@ -47,6 +54,7 @@ public class ExplainSelectedCodeAction extends AnAction {
         if (editor == null || project == null) {
             return;
         }
+        final long startNanos = System.nanoTime();
         final PsiFile psiFile = PsiUtilBase.getPsiFileInEditor(editor, project);
 
         if (psiFile == null) {
@@ -54,30 +62,42 @@ public class ExplainSelectedCodeAction extends AnAction {
             return;
         }
 
-        // Get the selected text
-        SelectionModel selectionModel = editor.getSelectionModel();
-        if (!selectionModel.hasSelection()) {
+        // Make sure there is a selection
+        if (!editor.getSelectionModel().hasSelection()) {
             Messages.showInfoMessage(project, "Please select some code to explain", "No Selection");
             return;
         }
 
-        String selectedText = selectionModel.getSelectedText();
-        int startOffset = selectionModel.getSelectionStart();
-
-        // Find the PSI element at the selection
-        PsiElement element = psiFile.findElementAt(startOffset);
-        if (element == null) {
-            Messages.showErrorDialog(project, "Cannot find PSI element at the current position", "Code Explanation Error");
-            return;
-        }
+        // Collect the selection and its context in a background read action, so the EDT never walks the PSI
+        // or copies file text. The platform restarts the read action if the document is changed while it runs,
+        // and triggering a new explanation cancels a collection that is still running.
+        ReadAction.nonBlocking(() -> {
+                    long collectStart = System.nanoTime();
+                    SelectionSnapshot snapshot = SelectionSnapshot.collect(editor, psiFile);
+                    PipelineMetrics.getInstance().recordSince(PipelinePhase.CONTEXT_EXTRACTION, collectStart);
+                    return snapshot;
+                })
+                .withDocumentsCommitted(project)
+                .expireWhen(() -> project.isDisposed() || editor.isDisposed())
+                .coalesceBy(ExplainSelectedCodeAction.class, project)
+                .finishOnUiThread(ModalityState.defaultModalityState(), selection -> {
+                    if (selection == null) {
+                        Messages.showInfoMessage(project, "Please select some code to explain", "No Selection");
+                        return;
+                    }
+                    if (selection.getElement() == null) {
+                        Messages.showErrorDialog(project, "Cannot find PSI element at the current position", "Code Explanation Error");
+                        return;
+                    }
 
-        // Analyze the selected code and display information
-        analyzeAndExplainCode(project, element, selectedText, editor);
+                    // Analyze the selected code and display information
+                    analyzeAndExplainCode(project, selection.getSelectedText(), selection.getContext(), editor, startNanos);
+                })
+                .submit(AppExecutorUtil.getAppExecutorService());
     }
 
-    private void analyzeAndExplainCode(Project project, PsiElement element,
-                                       String selectedText, Editor editor) {
-        String context = getSurroundingContext(element);
+    private void analyzeAndExplainCode(Project project, String selectedText, String context, Editor editor,
+                                       long startNanos) {
         CodeAnalyzerService analyzerService = com.intellij.openapi.application.ApplicationManager.getApplication()
                 .getService(CodeAnalyzerService.class);
 
@@ -93,69 +113,91 @@ public class ExplainSelectedCodeAction extends AnAction {
                 loadingHint
         );
 
-        // Show loading indicator in the background and make the API call without blocking the UI
-        ProgressManager.getInstance().run(new Task.Backgroundable(project, "Analyzing Code", true) {
-            private String explanation;
-
-            @Override
-            public void run(@NotNull ProgressIndicator indicator) {
-                indicator.setText("Analyzing your code...");
-                indicator.setIndeterminate(true);
-
-                // Show loading indicator in the tool window
-                ApplicationManager.getApplication().invokeLater(() -> {
-                    // Get the tool window service
-                    CodeExplanationToolWindowService toolWindowService = project.getService(CodeExplanationToolWindowService.class);
-
-                    // Show analyzing indicator
-                    toolWindowService.showAnalyzing();
-
-                    // Activate the tool window
-                    ToolWindow toolWindow = ToolWindowManager.getInstance(project).getToolWindow("Code Explanation");
-                    if (toolWindow != null) {
-                        toolWindow.show();
-                    }
-                });
-
-                try {
-                    explanation = analyzerService.analyzeCodeAsync(element, selectedText, context).get();
-                } catch (Exception e) {
-                    explanation = "Error: Failed to get explanation from API. Exception: " + e.getMessage();
-                } finally {
-                    // Hide the hint when done
-                    ApplicationManager.getApplication().invokeLater(() -> HintManager.getInstance().hideAllHints());
+        // Supersede the previous explanation of this project, its request is cancelled
+        CodeExplanationToolWindowService toolWindowService = project.getService(CodeExplanationToolWindowService.class);
+        long generation = toolWindowService.startRequest();
+
+        // Show analyzing indicator and activate the tool window
+        toolWindowService.showAnalyzing();
+        showToolWindow(project);
+
+        // Start the request; no thread waits for it, the result is rendered once the future completes
+        CompletableFuture<String> future;
+        if (PluginConfig.isStreamingEnabled()) {
+            // Show the explanation while it is being generated, unless a newer one has been requested
+            AtomicBoolean firstPartial = new AtomicBoolean(true);
+            future = analyzerService.analyzeCodeStreamingAsync(project, selectedText, context, partialExplanation -> {
+                if (firstPartial.getAndSet(false)) {
+                    PipelineMetrics.getInstance().recordSince(PipelinePhase.FIRST_PARTIAL, startNanos);
+                }
+                if (toolWindowService.isCurrentRequest(generation)) {
+                    toolWindowService.showPartialContent(generation, partialExplanation);
                 }
+            });
+        } else {
+            future = analyzerService.analyzeCodeAsync(project, selectedText, context);
+        }
+        toolWindowService.setCurrentRequest(generation, future);
+
+        // Show progress in the status bar; cancelling it cancels the request
+        RequestProgressIndicator indicator = new RequestProgressIndicator(project, future);
+        indicator.setText("Analyzing your code...");
+        indicator.setIndeterminate(true);
+        indicator.start();
+
+        // Measured when the explanation arrives, before waiting for the EDT; rendering is measured by the tool window
+        future.whenComplete((explanation, error) -> {
+            if (error == null) {
+                PipelineMetrics.getInstance().recordSince(PipelinePhase.EXPLANATION, startNanos);
             }
+        });
+        future.whenComplete((explanation, error) -> ApplicationManager.getApplication().invokeLater(() -> {
+            indicator.stop();
+            Disposer.dispose(indicator);
 
-            @Override
-            public void onSuccess() {
-                // Get the tool window service
-                CodeExplanationToolWindowService toolWindowService = project.getService(CodeExplanationToolWindowService.class);
+            // Discard results of requests that have been superseded by a newer one
+            if (project.isDisposed() || !toolWindowService.finishRequest(generation)) {
+                return;
+            }
 
-                // Update the tool window content
-                toolWindowService.updateContent(explanation, selectedText);
+            // Hide the hint when done
+            HintManager.getInstance().hideAllHints();
 
-                // Activate the tool window
-                ToolWindow toolWindow = ToolWindowManager.getInstance(project).getToolWindow("Code Explanation");
-                if (toolWindow != null) {
-                    toolWindow.show();
-                }
+            // Update the tool window content
+            if (error instanceof CancellationException) {
+                toolWindowService.updateContent("_Explanation cancelled._", selectedText);
+                return;
             }
-        });
+            toolWindowService.updateContent(error == null ? explanation
+                    : "Error: Failed to get explanation from API. Exception: " + error.getMessage(), selectedText);
+
+            // Activate the tool window
+            showToolWindow(project);
+        }));
     }
 
+    private static void showToolWindow(@NotNull Project project) {
+        ToolWindow toolWindow = ToolWindowManager.getInstance(project).getToolWindow("Code Explanation");
+        if (toolWindow != null) {
+            toolWindow.show();
+        }
+    }
 
     /**
-     * Gets the surrounding context of the selected code.
-     * This extracts a larger portion of code around the selected element.
+     * Status bar progress of an explanation request. Cancelling the progress cancels the request.
      */
-    private String getSurroundingContext(@NotNull PsiElement element) {
-        PsiFile containingFile = element.getContainingFile();
-        // Get the entire file content as context
-        // In a more sophisticated implementation, you might want to get just
-        // the surrounding function/method/class
-        return Objects.requireNonNullElse(containingFile, element).getText();
-
-        // If we can't get the file, just use the element's text
+    private static final class RequestProgressIndicator extends BackgroundableProcessIndicator {
+        private final Future<?> request;
+
+        private RequestProgressIndicator(@NotNull Project project, @NotNull Future<?> request) {
+            super(project, "Analyzing Code", null, "Stop analyzing", true);
+            this.request = request;
+        }
+
+        @Override
+        public void cancel() {
+            super.cancel();
+            request.cancel(true);
+        }
     }
 }
@@ -0,0 +1,274 @@
+package xzy.codeexplain.plugin.context;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.IndexNotReadyException;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiNameIdentifierOwner;
+import com.intellij.psi.PsiRecursiveElementWalkingVisitor;
+import com.intellij.psi.PsiReference;
+import com.intellij.psi.util.PsiTreeUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Extracts the context sent along with the selected code, limited to a character budget.
+ * <p>
+ * Files that fit into the budget are sent as a whole. For larger files the PSI is walked up from the selection
+ * to the enclosing declarations: the innermost multi-line declaration (usually the method or function) is sent
+ * in full, or as a window of lines around the selection if it is too large, and the outer declarations (usually
+ * classes) contribute only their signatures. The remaining budget is filled with the signatures of declarations
+ * referenced from the innermost declaration. Files without named declarations in their PSI, e.g. plain text or
+ * languages without rich PSI support, fall back to a window of lines around the selection.
+ * <p>
+ * Must be called inside a read action.
+ */
+public class ContextExtractor {
+
+    private static final int MAX_REFERENCED_DECLARATIONS = 40;
+    private static final int MAX_SIGNATURE_LENGTH = 200;
+
+    private final int maxChars;
+
+    /**
+     * Creates an extractor.
+     *
+     * @param maxChars The maximum number of characters of context; a token is roughly four characters
+     */
+    public ContextExtractor(int maxChars) {
+        this.maxChars = maxChars;
+    }
+
+    /**
+     * Extracts the context of a selection.
+     *
+     * @param file           The file containing the selection
+     * @param selectionStart The start offset of the selection
+     * @param selectionEnd   The end offset of the selection
+     * @return The context, at most the configured number of characters long
+     */
+    @NotNull
+    public String extract(@NotNull PsiFile file, int selectionStart, int selectionEnd) {
+        Document document = PsiDocumentManager.getInstance(file.getProject()).getDocument(file);
+        if (document == null) {
+            // Without a document there is no cheap way to cut the text, use the file as far as it fits
+            String text = file.getText();
+            return text.length() <= maxChars ? text : text.substring(0, maxChars);
+        }
+
+        if (document.getTextLength() <= maxChars) {
+            return document.getText();
+        }
+
+        List<PsiElement> enclosing = findEnclosingDeclarations(file, document, selectionStart, selectionEnd);
+        if (enclosing.isEmpty()) {
+            return lineWindow(document, selectionStart, selectionEnd, maxChars, 0, document.getTextLength());
+        }
+
+        StringBuilder context = new StringBuilder();
+        context.append("File: ").append(file.getName()).append("\n\n");
+
+        // Outer declarations contribute their signatures only, outermost first
+        for (int i = enclosing.size() - 1; i >= 1; i--) {
+            context.append(signatureOf(enclosing.get(i))).append("\n...\n");
+        }
+
+        // The innermost declaration is sent in full if it fits, otherwise the lines around the selection
+        PsiElement innermost = enclosing.get(0);
+        TextRange range = innermost.getTextRange();
+        int remaining = maxChars - context.length();
+        if (range.getLength() <= remaining) {
+            context.append(document.getCharsSequence(), range.getStartOffset(), range.getEndOffset());
+        } else {
+            context.append(lineWindow(document, selectionStart, selectionEnd, remaining * 3 / 4,
+                    range.getStartOffset(), range.getEndOffset()));
+        }
+        context.append('\n');
+
+        // Fill the rest of the budget with the signatures of referenced declarations
+        List<String> referenced = collectReferencedSignatures(innermost);
+        if (!referenced.isEmpty() && context.length() < maxChars) {
+            String heading = "\nReferenced declarations:\n";
+            if (context.length() + heading.length() < maxChars) {
+                context.append(heading);
+                for (String signature : referenced) {
+                    if (context.length() + signature.length() + 1 > maxChars) {
+                        break;
+                    }
+                    context.append(signature).append('\n');
+                }
+            }
+        }
+
+        return context.length() <= maxChars ? context.toString() : context.substring(0, maxChars);
+    }
+
+    /**
+     * Finds the named declarations that span more than one line and contain the selection, innermost first.
+     * Single-line declarations such as local variables and parameters are skipped.
+     */
+    @NotNull
+    private static List<PsiElement> findEnclosingDeclarations(@NotNull PsiFile file, @NotNull Document document,
+                                                              int selectionStart, int selectionEnd) {
+        List<PsiElement> declarations = new ArrayList<>();
+        PsiElement startElement = file.findElementAt(selectionStart);
+        PsiElement endElement = file.findElementAt(Math.max(selectionStart, selectionEnd - 1));
+        if (startElement == null || endElement == null) {
+            return declarations;
+        }
+
+        PsiElement element = PsiTreeUtil.findCommonParent(startElement, endElement);
+        for (; element != null && !(element instanceof PsiFile); element = element.getParent()) {
+            if (!(element instanceof PsiNameIdentifierOwner)) {
+                continue;
+            }
+            TextRange range = element.getTextRange();
+            if (range == null || range.getStartOffset() > selectionStart || range.getEndOffset() < selectionEnd) {
+                continue;
+            }
+            if (document.getLineNumber(range.getStartOffset()) != document.getLineNumber(range.getEndOffset())) {
+                declarations.add(element);
+            }
+        }
+        return declarations;
+    }
+
+    /**
+     * Collects the signatures of project declarations referenced from within the given element, skipping
+     * declarations inside the element itself. Reference resolution needs the indexes, so nothing is
+     * collected while they are being built.
+     */
+    @NotNull
+    private static List<String> collectReferencedSignatures(@NotNull PsiElement scope) {
+        Project project = scope.getProject();
+        if (DumbService.isDumb(project)) {
+            return List.of();
+        }
+
+        TextRange scopeRange = scope.getTextRange();
+        PsiFile scopeFile = scope.getContainingFile();
+        ProjectFileIndex fileIndex = ProjectFileIndex.getInstance(project);
+        Set<PsiElement> targets = new LinkedHashSet<>();
+
+        try {
+            scope.accept(new PsiRecursiveElementWalkingVisitor() {
+                @Override
+                public void visitElement(@NotNull PsiElement element) {
+                    ProgressManager.checkCanceled();
+                    for (PsiReference reference : element.getReferences()) {
+                        PsiElement target = reference.resolve();
+                        if (!(target instanceof PsiNameIdentifierOwner) || target.getTextRange() == null) {
+                            continue;
+                        }
+                        PsiFile targetFile = target.getContainingFile();
+                        if (targetFile == null) {
+                            continue;
+                        }
+                        if (targetFile.equals(scopeFile) && scopeRange.contains(target.getTextRange())) {
+                            // Local declaration, already part of the context
+                            continue;
+                        }
+                        VirtualFile virtualFile = targetFile.getVirtualFile();
+                        if (virtualFile == null || !fileIndex.isInContent(virtualFile)) {
+                            // Library declarations are well known and expensive to decompile
+                            continue;
+                        }
+                        targets.add(target);
+                    }
+                    if (targets.size() >= MAX_REFERENCED_DECLARATIONS) {
+                        stopWalking();
+                        return;
+                    }
+                    super.visitElement(element);
+                }
+            });
+        } catch (IndexNotReadyException e) {
+            // Indexing started while walking, use what was found so far
+        }
+
+        List<String> signatures = new ArrayList<>(targets.size());
+        for (PsiElement target : targets) {
+            signatures.add(signatureOf(target));
+        }
+        return signatures;
+    }
+
+    /**
+     * Gets a one-line signature of a declaration: its text up to the opening brace, or its first line if
+     * there is no brace nearby, with whitespace collapsed.
+     */
+    @NotNull
+    static String signatureOf(@NotNull PsiElement declaration) {
+        TextRange range = declaration.getTextRange();
+        CharSequence text = declaration.getContainingFile().getViewProvider().getContents();
+        int end = Math.min(range.getEndOffset(), range.getStartOffset() + MAX_SIGNATURE_LENGTH);
+        CharSequence head = text.subSequence(range.getStartOffset(), Math.min(end, text.length()));
+
+        int cut = indexOf(head, '{');
+        if (cut < 0) {
+            cut = indexOf(head, '\n');
+        }
+        if (cut >= 0) {
+            head = head.subSequence(0, cut);
+        }
+        return head.toString().replaceAll("\\s+", " ").trim();
+    }
+
+    /**
+     * Cuts a window of whole lines around the selection, growing it alternately upwards and downwards
+     * until the budget is used up. The window never leaves the given bounds.
+     */
+    @NotNull
+    static String lineWindow(@NotNull Document document, int selectionStart, int selectionEnd, int budget,
+                             int lowerBound, int upperBound) {
+        int firstLine = document.getLineNumber(Math.max(selectionStart, lowerBound));
+        int lastLine = document.getLineNumber(Math.min(selectionEnd, upperBound));
+        int windowStart = Math.max(document.getLineStartOffset(firstLine), lowerBound);
+        int windowEnd = Math.min(document.getLineEndOffset(lastLine), upperBound);
+
+        boolean grown = true;
+        while (grown) {
+            grown = false;
+            if (firstLine > 0) {
+                int candidate = Math.max(document.getLineStartOffset(firstLine - 1), lowerBound);
+                if (candidate < windowStart && windowEnd - candidate <= budget) {
+                    windowStart = candidate;
+                    firstLine--;
+                    grown = true;
+                }
+            }
+            if (lastLine < document.getLineCount() - 1) {
+                int candidate = Math.min(document.getLineEndOffset(lastLine + 1), upperBound);
+                if (candidate > windowEnd && candidate - windowStart <= budget) {
+                    windowEnd = candidate;
+                    lastLine++;
+                    grown = true;
+                }
+            }
+        }
+
+        // The selected lines alone may already exceed the budget
+        windowEnd = Math.min(windowEnd, windowStart + Math.max(budget, 0));
+        return document.getCharsSequence().subSequence(windowStart, windowEnd).toString();
+    }
+
+    private static int indexOf(@NotNull CharSequence text, char c) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
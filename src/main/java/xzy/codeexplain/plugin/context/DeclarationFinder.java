@@ -0,0 +1,121 @@
+package xzy.codeexplain.plugin.context;
+
+import com.intellij.ide.structureView.StructureViewBuilder;
+import com.intellij.ide.structureView.StructureViewModel;
+import com.intellij.ide.structureView.StructureViewTreeElement;
+import com.intellij.ide.structureView.TreeBasedStructureViewBuilder;
+import com.intellij.ide.util.treeView.smartTree.TreeElement;
+import com.intellij.lang.LanguageStructureViewBuilder;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.psi.ElementDescriptionUtil;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiNamedElement;
+import com.intellij.usageView.UsageViewTypeLocation;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Finds the declarations of a file worth explaining on their own, e.g. methods, functions and small classes.
+ * <p>
+ * Declarations are recognized language-independently from the structure view of the file, which lists the
+ * classes and members of a file but not local variables or parameters. Members the language describes as
+ * fields, properties, variables or constants are skipped even if their initializer spans several lines, as are
+ * single-line declarations. Declarations longer than a character limit, typically large classes, are not
+ * returned themselves; their nested declarations are explained instead. Languages without a structure view
+ * have no declarations.
+ * <p>
+ * Must be called inside a read action.
+ */
+public class DeclarationFinder {
+
+    /**
+     * Parts of the element type names, as shown in usage views, of declarations holding values rather than code.
+     */
+    private static final String[] VALUE_TYPES = {"field", "property", "variable", "parameter", "constant"};
+
+    private final int maxChars;
+
+    /**
+     * Creates a finder.
+     *
+     * @param maxChars The maximum length of a declaration in characters
+     */
+    public DeclarationFinder(int maxChars) {
+        this.maxChars = maxChars;
+    }
+
+    /**
+     * Finds the declarations of a file, in the order they appear in it.
+     *
+     * @param file The file to search
+     * @return The declarations
+     */
+    @NotNull
+    public List<PsiNamedElement> find(@NotNull PsiFile file) {
+        Document document = PsiDocumentManager.getInstance(file.getProject()).getDocument(file);
+        StructureViewBuilder builder = LanguageStructureViewBuilder.getInstance().getStructureViewBuilder(file);
+        if (document == null || !(builder instanceof TreeBasedStructureViewBuilder)) {
+            return List.of();
+        }
+
+        Set<PsiNamedElement> declarations = new LinkedHashSet<>();
+        StructureViewModel model = ((TreeBasedStructureViewBuilder) builder).createStructureViewModel(null);
+        try {
+            collect(model.getRoot(), document, declarations);
+        } finally {
+            Disposer.dispose(model);
+        }
+
+        // The structure view may group or reorder members, e.g. by kind
+        List<PsiNamedElement> sorted = new ArrayList<>(declarations);
+        sorted.sort(Comparator.comparingInt(element -> element.getTextRange().getStartOffset()));
+        return sorted;
+    }
+
+    private void collect(@NotNull TreeElement parent, @NotNull Document document,
+                         @NotNull Set<PsiNamedElement> declarations) {
+        for (TreeElement child : parent.getChildren()) {
+            ProgressManager.checkCanceled();
+            if (child instanceof StructureViewTreeElement) {
+                Object value = ((StructureViewTreeElement) child).getValue();
+                if (value instanceof PsiNamedElement && isExplainable((PsiNamedElement) value, document)) {
+                    declarations.add((PsiNamedElement) value);
+                }
+            }
+            collect(child, document, declarations);
+        }
+    }
+
+    private boolean isExplainable(@NotNull PsiNamedElement element, @NotNull Document document) {
+        if (!element.isValid()) {
+            return false;
+        }
+        TextRange range = element.getTextRange();
+        if (range == null || range.getLength() > maxChars || range.getEndOffset() > document.getTextLength()) {
+            return false;
+        }
+        // Single-line declarations are explained as part of others
+        if (document.getLineNumber(range.getStartOffset()) == document.getLineNumber(range.getEndOffset())) {
+            return false;
+        }
+        String type = ElementDescriptionUtil.getElementDescription(element, UsageViewTypeLocation.INSTANCE)
+                .toLowerCase(Locale.ROOT);
+        for (String valueType : VALUE_TYPES) {
+            if (type.contains(valueType)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
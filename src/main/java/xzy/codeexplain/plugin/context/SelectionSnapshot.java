@@ -0,0 +1,82 @@
+package xzy.codeexplain.plugin.context;
+
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.SelectionModel;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import xzy.codeexplain.plugin.config.PluginConfig;
+
+/**
+ * The selected code of an editor, the PSI element at its start and its surrounding context.
+ * <p>
+ * Explaining a selection and prefetching its explanation both collect the selection here, so they send
+ * identical requests and a prefetched explanation is found in the cache.
+ */
+public final class SelectionSnapshot {
+    private final String selectedText;
+    private final PsiElement element;
+    private final String context;
+
+    private SelectionSnapshot(@NotNull String selectedText, @Nullable PsiElement element, @NotNull String context) {
+        this.selectedText = selectedText;
+        this.element = element;
+        this.context = context;
+    }
+
+    /**
+     * Reads the current selection, the PSI element at its start and its surrounding context.
+     * Must be called inside a read action; meant to run on a background thread.
+     *
+     * @param editor  The editor with the selection
+     * @param psiFile The file shown in the editor
+     * @return The collected selection, or null if there is no selection anymore
+     */
+    @Nullable
+    public static SelectionSnapshot collect(@NotNull Editor editor, @NotNull PsiFile psiFile) {
+        SelectionModel selectionModel = editor.getSelectionModel();
+        if (!selectionModel.hasSelection() || !psiFile.isValid()) {
+            return null;
+        }
+
+        String selectedText = selectionModel.getSelectedText();
+        int startOffset = selectionModel.getSelectionStart();
+        int endOffset = selectionModel.getSelectionEnd();
+        if (selectedText == null) {
+            return null;
+        }
+
+        // Find the PSI element at the selection
+        PsiElement element = psiFile.findElementAt(startOffset);
+        if (element == null) {
+            return new SelectionSnapshot(selectedText, null, "");
+        }
+        return new SelectionSnapshot(selectedText, element, getSurroundingContext(psiFile, startOffset, endOffset));
+    }
+
+    /**
+     * Gets the surrounding context of the selected code.
+     * Small files are sent as a whole; for larger files only the enclosing declarations and the
+     * signatures of referenced declarations are extracted, see {@link ContextExtractor}.
+     */
+    @NotNull
+    private static String getSurroundingContext(@NotNull PsiFile psiFile, int startOffset, int endOffset) {
+        return new ContextExtractor(PluginConfig.getContextMaxChars()).extract(psiFile, startOffset, endOffset);
+    }
+
+    @NotNull
+    public String getSelectedText() {
+        return selectedText;
+    }
+
+    @Nullable
+    public PsiElement getElement() {
+        return element;
+    }
+
+    @NotNull
+    public String getContext() {
+        return context;
+    }
+}
@@ -0,0 +1,383 @@
+package xzy.codeexplain.plugin.services;
+
+import com.intellij.notification.NotificationGroupManager;
+import com.intellij.notification.NotificationType;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.PsiNamedElement;
+import org.jetbrains.annotations.NotNull;
+import xzy.codeexplain.plugin.cache.BatchResultStore;
+import xzy.codeexplain.plugin.cache.ExplanationCache;
+import xzy.codeexplain.plugin.config.PluginConfig;
+import xzy.codeexplain.plugin.context.ContextExtractor;
+import xzy.codeexplain.plugin.context.DeclarationFinder;
+import xzy.codeexplain.plugin.models.CodeAnalysisRequest;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Background task explaining every declaration (methods, functions, small classes) in a set of files and directories.
+ * <p>
+ * The declarations of every file are located first, so the progress knows the total. Then file by file their code
+ * and context are collected in a read action, from the located text ranges unless the file changed meanwhile, and
+ * submitted to {@link CodeAnalyzerService#analyzeBatchAsync}, with a bounded number
+ * in flight. Results are appended to a {@link BatchResultStore} as they arrive; declarations already in the store
+ * from an earlier, interrupted run are skipped. The progress shows the throughput and the estimated time left.
+ */
+public class BatchExplanationTask extends Task.Backgroundable {
+    private static final Logger LOG = Logger.getInstance(BatchExplanationTask.class);
+    private static final String NOTIFICATION_GROUP = "Code Explanation";
+
+    private final Project project;
+    private final List<VirtualFile> roots;
+    private final AtomicInteger processed = new AtomicInteger();
+    private final AtomicInteger explained = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private int skipped;
+    private volatile int total;
+    private long startNanos;
+    private Path resultFile;
+
+    /**
+     * Creates the task.
+     *
+     * @param project The project
+     * @param roots   The files and directories whose declarations are explained
+     */
+    public BatchExplanationTask(@NotNull Project project, @NotNull VirtualFile[] roots) {
+        super(project, "Explaining Declarations", true);
+        this.project = project;
+        this.roots = Arrays.asList(roots);
+    }
+
+    @Override
+    public void run(@NotNull ProgressIndicator indicator) {
+        indicator.setIndeterminate(true);
+        indicator.setText("Collecting declarations...");
+        List<VirtualFile> files = collectFiles();
+        List<LocatedFile> locatedFiles = new ArrayList<>(files.size());
+        for (VirtualFile file : files) {
+            indicator.checkCanceled();
+            LocatedFile located = ReadAction.nonBlocking(() -> locateDeclarations(file))
+                    .expireWhen(project::isDisposed)
+                    .executeSynchronously();
+            if (!located.declarations.isEmpty()) {
+                locatedFiles.add(located);
+                total += located.declarations.size();
+            }
+        }
+
+        try (BatchResultStore store = BatchResultStore.open(getResultFile())) {
+            resultFile = store.getFile();
+            indicator.setIndeterminate(false);
+            explainAll(locatedFiles, store, indicator);
+        } catch (IOException e) {
+            LOG.warn("Failed to open the batch result store", e);
+            notify("Failed to open the batch result store: " + e.getMessage(), NotificationType.ERROR);
+        }
+    }
+
+    private void explainAll(@NotNull List<LocatedFile> locatedFiles, @NotNull BatchResultStore store, @NotNull ProgressIndicator indicator) {
+        CodeAnalyzerService analyzerService = ApplicationManager.getApplication().getService(CodeAnalyzerService.class);
+        int concurrency = PluginConfig.getBatchConcurrency();
+        if (PluginConfig.isBatchRequestsEnabled()) {
+            // Keep enough declarations in flight to fill every batched request
+            concurrency *= PluginConfig.getMaxBatchSize();
+        }
+        Semaphore slots = new Semaphore(concurrency);
+        Set<CompletableFuture<String>> inFlight = ConcurrentHashMap.newKeySet();
+        startNanos = System.nanoTime();
+
+        try {
+            for (LocatedFile located : locatedFiles) {
+                indicator.setText("Explaining declarations in " + located.file.getName());
+                List<Declaration> declarations = ReadAction.nonBlocking(() -> collectDeclarations(located))
+                        .expireWhen(project::isDisposed)
+                        .executeSynchronously();
+                // The file may have been edited since the declarations were located
+                total += declarations.size() - located.declarations.size();
+
+                for (Declaration declaration : declarations) {
+                    indicator.checkCanceled();
+                    if (store.contains(declaration.key)) {
+                        skipped++;
+                        processed.incrementAndGet();
+                        updateProgress(indicator);
+                        continue;
+                    }
+
+                    acquire(slots, indicator);
+                    CompletableFuture<String> future = analyzerService.analyzeBatchAsync(project, declaration.code, declaration.context);
+                    inFlight.add(future);
+                    future.whenComplete((explanation, error) -> {
+                        inFlight.remove(future);
+                        if (error == null && !CodeAnalyzerService.isError(explanation)) {
+                            store.put(declaration.key, declaration.filePath, declaration.name, declaration.line, explanation);
+                            explained.incrementAndGet();
+                        } else if (!future.isCancelled()) {
+                            failed.incrementAndGet();
+                            LOG.info("Failed to explain " + declaration.name + " in " + declaration.filePath + ": "
+                                    + (error != null ? error.getMessage() : explanation));
+                        }
+                        processed.incrementAndGet();
+                        slots.release();
+                        updateProgress(indicator);
+                    });
+                }
+            }
+
+            // Wait for the declarations still in flight
+            indicator.setText("Waiting for the last explanations...");
+            for (int i = 0; i < concurrency; i++) {
+                acquire(slots, indicator);
+            }
+        } catch (ProcessCanceledException e) {
+            for (CompletableFuture<String> future : inFlight) {
+                future.cancel(true);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Takes a slot for one more request, waiting until a request in flight has completed.
+     */
+    private static void acquire(@NotNull Semaphore slots, @NotNull ProgressIndicator indicator) {
+        try {
+            while (!slots.tryAcquire(200, TimeUnit.MILLISECONDS)) {
+                indicator.checkCanceled();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessCanceledException(e);
+        }
+    }
+
+    /**
+     * Shows how many declarations are done, the throughput of this run and the estimated time left.
+     */
+    private void updateProgress(@NotNull ProgressIndicator indicator) {
+        int done = processed.get();
+        int all = Math.max(total, done);
+        indicator.setFraction(all == 0 ? 1.0 : (double) done / all);
+
+        int fetched = explained.get() + failed.get();
+        double elapsedMinutes = (System.nanoTime() - startNanos) / 60e9;
+        if (fetched == 0 || elapsedMinutes <= 0) {
+            indicator.setText2(done + " of " + all + " declarations");
+            return;
+        }
+        double perMinute = fetched / elapsedMinutes;
+        long secondsLeft = Math.round((all - done) / perMinute * 60);
+        indicator.setText2(String.format("%d of %d declarations, %.1f per minute, about %s left",
+                done, all, perMinute, formatDuration(secondsLeft)));
+    }
+
+    @NotNull
+    private static String formatDuration(long seconds) {
+        if (seconds < 60) {
+            return seconds + " s";
+        }
+        if (seconds < 3600) {
+            return (seconds / 60) + " min " + (seconds % 60) + " s";
+        }
+        return (seconds / 3600) + " h " + (seconds % 3600 / 60) + " min";
+    }
+
+    @Override
+    public void onSuccess() {
+        notify("Explained " + explained.get() + " declarations" + summary(), NotificationType.INFORMATION);
+    }
+
+    @Override
+    public void onCancel() {
+        notify("Stopped after " + processed.get() + " of " + total + " declarations" + summary()
+                + ". Run the batch again to continue where it stopped.", NotificationType.INFORMATION);
+    }
+
+    @NotNull
+    private String summary() {
+        StringBuilder summary = new StringBuilder();
+        if (skipped > 0) {
+            summary.append(", ").append(skipped).append(" explained by an earlier run");
+        }
+        if (failed.get() > 0) {
+            summary.append(", ").append(failed.get()).append(" failed");
+        }
+        if (resultFile != null) {
+            summary.append(". Results: ").append(resultFile);
+        }
+        return summary.toString();
+    }
+
+    private void notify(@NotNull String message, @NotNull NotificationType type) {
+        if (project.isDisposed()) {
+            return;
+        }
+        NotificationGroupManager.getInstance().getNotificationGroup(NOTIFICATION_GROUP)
+                .createNotification(message, type)
+                .notify(project);
+    }
+
+    /**
+     * Gets the result file of this batch: one per project and set of roots, so running the same batch again resumes it.
+     */
+    @NotNull
+    private Path getResultFile() {
+        String[] rootPaths = roots.stream().map(VirtualFile::getPath).sorted().toArray(String[]::new);
+        String batchKey = ExplanationCache.keyFor(rootPaths).substring(0, 16);
+        return Paths.get(PathManager.getSystemPath(), "codeexplain", "batches",
+                project.getLocationHash() + "-" + batchKey + ".jsonl");
+    }
+
+    /**
+     * Collects the project files under the roots.
+     */
+    @NotNull
+    private List<VirtualFile> collectFiles() {
+        ProjectFileIndex fileIndex = ProjectFileIndex.getInstance(project);
+        List<VirtualFile> files = new ArrayList<>();
+        for (VirtualFile root : roots) {
+            VfsUtilCore.iterateChildrenRecursively(root, fileIndex::isInContent, file -> {
+                if (!file.isDirectory()) {
+                    files.add(file);
+                }
+                return true;
+            });
+        }
+        return files;
+    }
+
+    /**
+     * Locates the declarations of a file, without their code and context. Runs inside a read action.
+     */
+    @NotNull
+    private LocatedFile locateDeclarations(@NotNull VirtualFile file) {
+        PsiFile psiFile = file.isValid() ? PsiManager.getInstance(project).findFile(file) : null;
+        return psiFile != null ? locateDeclarations(file, psiFile) : new LocatedFile(file, 0, List.of());
+    }
+
+    @NotNull
+    private static LocatedFile locateDeclarations(@NotNull VirtualFile file, @NotNull PsiFile psiFile) {
+        List<LocatedDeclaration> declarations = new ArrayList<>();
+        for (PsiNamedElement element : newDeclarationFinder().find(psiFile)) {
+            declarations.add(new LocatedDeclaration(nameOf(element), element.getTextRange()));
+        }
+        return new LocatedFile(file, psiFile.getModificationStamp(), declarations);
+    }
+
+    /**
+     * Collects the located declarations of a file with their code and context. Runs inside a read action.
+     */
+    @NotNull
+    private List<Declaration> collectDeclarations(@NotNull LocatedFile located) {
+        VirtualFile file = located.file;
+        PsiFile psiFile = file.isValid() ? PsiManager.getInstance(project).findFile(file) : null;
+        Document document = psiFile != null ? PsiDocumentManager.getInstance(project).getDocument(psiFile) : null;
+        if (document == null) {
+            return List.of();
+        }
+        if (psiFile.getModificationStamp() != located.modificationStamp) {
+            // The file was edited since its declarations were located, so their ranges are stale
+            located = locateDeclarations(file, psiFile);
+        }
+
+        ContextExtractor contextExtractor = new ContextExtractor(PluginConfig.getContextMaxChars());
+        List<Declaration> declarations = new ArrayList<>();
+        for (LocatedDeclaration declaration : located.declarations) {
+            int start = declaration.range.getStartOffset();
+            int end = declaration.range.getEndOffset();
+            String code = document.getText(declaration.range);
+            String context = contextExtractor.extract(psiFile, start, end);
+            declarations.add(new Declaration(file.getPath(), declaration.name, document.getLineNumber(start) + 1,
+                    code, context));
+        }
+        return declarations;
+    }
+
+    @NotNull
+    private static DeclarationFinder newDeclarationFinder() {
+        // A declaration is only worth explaining on its own if it leaves room for some context
+        return new DeclarationFinder(Math.max(1000, PluginConfig.getContextMaxChars() / 2));
+    }
+
+    @NotNull
+    private static String nameOf(@NotNull PsiNamedElement element) {
+        String name = element.getName();
+        return name != null ? name : "<anonymous>";
+    }
+
+    /**
+     * The declarations located in a file, and the modification stamp of the file they were located in.
+     */
+    private static final class LocatedFile {
+        private final VirtualFile file;
+        private final long modificationStamp;
+        private final List<LocatedDeclaration> declarations;
+
+        private LocatedFile(VirtualFile file, long modificationStamp, List<LocatedDeclaration> declarations) {
+            this.file = file;
+            this.modificationStamp = modificationStamp;
+            this.declarations = declarations;
+        }
+    }
+
+    /**
+     * The name and text range of a declaration, light enough to keep for every file of a batch.
+     */
+    private static final class LocatedDeclaration {
+        private final String name;
+        private final TextRange range;
+
+        private LocatedDeclaration(String name, TextRange range) {
+            this.name = name;
+            this.range = range;
+        }
+    }
+
+    /**
+     * A declaration to explain, collected in a read action.
+     */
+    private static final class Declaration {
+        private final String filePath;
+        private final String name;
+        private final int line;
+        private final String code;
+        private final String context;
+        private final String key;
+
+        private Declaration(String filePath, String name, int line, String code, String context) {
+            this.filePath = filePath;
+            this.name = name;
+            this.line = line;
+            this.code = code;
+            this.context = context;
+            this.key = ExplanationCache.keyFor(new CodeAnalysisRequest(code, context, "markdown"));
+        }
+    }
+}
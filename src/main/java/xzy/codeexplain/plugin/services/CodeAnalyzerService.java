@@ -1,109 +1,228 @@
 package xzy.codeexplain.plugin.services;
 
-import xzy.codeexplain.plugin.models.CodeAnalysisRequest;
-import com.google.gson.Gson;
+import xzy.codeexplain.plugin.backend.BackendRouter;
+import xzy.codeexplain.plugin.backend.ExplanationBackendFactory;
+import xzy.codeexplain.plugin.cache.DiskExplanationStore;
+import xzy.codeexplain.plugin.cache.ExplanationCache;
+import xzy.codeexplain.plugin.client.ExplanationClient;
+import xzy.codeexplain.plugin.client.FaultTolerance;
+import xzy.codeexplain.plugin.client.RequestPriority;
+import xzy.codeexplain.plugin.client.RequestScheduler;
+import xzy.codeexplain.plugin.settings.BackendSettings;
 import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.PathManager;
 import com.intellij.openapi.diagnostic.Logger;
-import com.intellij.psi.PsiElement;
+import com.intellij.openapi.extensions.ExtensionPointListener;
+import com.intellij.openapi.extensions.PluginDescriptor;
+import com.intellij.openapi.project.Project;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
-import java.time.Duration;
+import java.nio.file.Paths;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
 /**
  * Service for analyzing code elements by making REST calls to an external API.
  * This service sends the selected code and its context to the API and returns the explanation.
+ * The requests are made by an {@link ExplanationClient} from the core module, which stores explanations
+ * in the IDE system directory, schedules requests fairly between projects and sends them to the backends
+ * configured in {@link BackendSettings}.
  * Implements AutoCloseable to properly clean up resources when the plugin is unloaded.
  */
 public class CodeAnalyzerService implements AutoCloseable, Disposable {
 
     private static final Logger LOG = Logger.getInstance(CodeAnalyzerService.class);
-    private final String API_URL = "https://api.codeexplain.xyz/api/v1/explain";
-    private final HttpClient httpClient;
-    private final Gson gson;
-    private final ExecutorService executorService;
+    private final ExplanationClient client;
 
+    /**
+     * Creates the service. Cheap: the request threads and the HTTP client are only created once the first
+     * explanation is requested or the connection is warmed up.
+     */
     public CodeAnalyzerService() {
-        executorService = Executors.newCachedThreadPool();
-        httpClient = HttpClient.newBuilder()
-                .version(HttpClient.Version.HTTP_2)
-                .connectTimeout(Duration.ofSeconds(10))
-                .executor(executorService)
-                .build();
-        gson = new Gson();
+        client = new ExplanationClient(Paths.get(PathManager.getSystemPath(), "codeexplain"),
+                AppExecutorUtil.getAppScheduledExecutorService(), BackendSettings.getInstance().createBackends());
+        // Plugins adding backend types may be loaded and unloaded at any time
+        BackendSettings.BACKEND_FACTORIES.addExtensionPointListener(new ExtensionPointListener<>() {
+            @Override
+            public void extensionAdded(@NotNull ExplanationBackendFactory factory, @NotNull PluginDescriptor pluginDescriptor) {
+                updateBackends();
+            }
+
+            @Override
+            public void extensionRemoved(@NotNull ExplanationBackendFactory factory, @NotNull PluginDescriptor pluginDescriptor) {
+                updateBackends();
+            }
+        }, this);
+    }
+
+    /**
+     * Sends further requests to the backends currently configured in {@link BackendSettings}, e.g. after the
+     * settings changed or a plugin adding a backend type was loaded or unloaded.
+     */
+    public void updateBackends() {
+        client.setBackends(BackendSettings.getInstance().createBackends());
     }
 
     /**
-     * Analyzes the given PSI element and its context to provide a detailed explanation.
+     * Opens the connection to the API in the background, so the first explanation doesn't pay for connection
+     * setup, and keeps it open while explanations are requested. Does nothing unless preconnecting is enabled.
+     */
+    public void warmUpConnection() {
+        client.warmUpConnection();
+    }
+
+    /**
+     * Analyzes the selected code and its context to provide a detailed explanation.
      * Makes an asynchronous REST call to an external API to get the explanation.
      *
-     * @param element      The PSI element to analyze
+     * @param project      The project the code belongs to
      * @param selectedText The text that was selected by the user
+     * @param context      The surrounding context of the selected code
      * @return A CompletableFuture that will complete with the explanation
      */
-    public CompletableFuture<String> analyzeCodeAsync(@NotNull PsiElement element, @NotNull String selectedText, @NotNull String context) {
+    public CompletableFuture<String> analyzeCodeAsync(@NotNull Project project, @NotNull String selectedText, @NotNull String context) {
+        return client.analyzeCodeAsync(project, selectedText, context);
+    }
 
-        // Create request object
-        CodeAnalysisRequest requestObj = new CodeAnalysisRequest(selectedText, context, "markdown");
+    /**
+     * Analyzes the selected code like {@link #analyzeCodeAsync}, but asks the API to stream the explanation
+     * as server-sent events. The explanation received so far is passed to {@code partialConsumer} as new parts
+     * arrive, at most every 50 ms, so the caller can show it before generation has finished. Servers that answer
+     * with a plain JSON response are handled transparently.
+     *
+     * @param project         The project the code belongs to
+     * @param selectedText    The text that was selected by the user
+     * @param context         The surrounding context of the selected code
+     * @param partialConsumer Receives the explanation received so far; called on an HTTP client thread
+     * @return A CompletableFuture that will complete with the complete explanation
+     */
+    public CompletableFuture<String> analyzeCodeStreamingAsync(@NotNull Project project, @NotNull String selectedText,
+                                                               @NotNull String context,
+                                                               @NotNull Consumer<String> partialConsumer) {
+        return client.analyzeCodeStreamingAsync(project, selectedText, context, partialConsumer);
+    }
 
-        // Serialize to JSON
-        String jsonPayload = gson.toJson(requestObj);
+    /**
+     * Analyzes code as part of a batch, e.g. all methods of a package. Works like {@link #analyzeCodeAsync},
+     * but runs with {@link RequestPriority#BATCH}, so it only uses slots no interactive request or prefetch needs.
+     *
+     * @param project The project the code belongs to
+     * @param code    The code to explain
+     * @param context The surrounding context of the code
+     * @return A CompletableFuture that will complete with the explanation or an error message
+     */
+    public CompletableFuture<String> analyzeBatchAsync(@NotNull Project project, @NotNull String code, @NotNull String context) {
+        return client.analyzeBatchAsync(project, code, context);
+    }
 
-        // Make the API call
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(API_URL))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(jsonPayload))
-                .timeout(Duration.ofSeconds(30))
-                .build();
+    /**
+     * Requests the explanation of the selected code ahead of time, see {@link ExplanationClient#prefetchAsync}.
+     *
+     * @param project      The project the code belongs to
+     * @param selectedText The selected code
+     * @param context      The surrounding context of the selected code
+     * @return A CompletableFuture that will complete with the explanation, or null if nothing was requested
+     */
+    @Nullable
+    public CompletableFuture<String> prefetchAsync(@NotNull Project project, @NotNull String selectedText,
+                                                   @NotNull String context) {
+        return client.prefetchAsync(project, selectedText, context);
+    }
 
-        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
-                .thenApply(response -> {
-                    if (response.statusCode() == 200) {
-                        // Parse the JSON response to extract the explanation
-                        String responseBody = response.body();
-                        String explanation = extractExplanationFromJson(responseBody);
-                        return explanation != null ? explanation :
-                                "Error: Could not extract explanation from API response: " + responseBody;
-                    } else {
-                        return "Error: Failed to get explanation from API. Status code: " + response.statusCode() +
-                                "\nResponse: " + response.body();
-                    }
-                })
-                .exceptionally(e -> "Error: Failed to get explanation from API. Exception: " + e.getMessage());
+    /**
+     * Gets the in-memory explanation cache, e.g. to read its hit and miss counters.
+     *
+     * @return The explanation cache
+     */
+    public ExplanationCache getExplanationCache() {
+        return client.getExplanationCache();
     }
 
     /**
-     * Extracts the explanation value from a JSON response.
+     * Gets the number of explanation requests callers are currently waiting for, including callers
+     * that joined an identical request. Requests answered from the in-memory cache are not counted.
      *
-     * @param jsonResponse The JSON response from the API
-     * @return The extracted explanation value, or null if not found
+     * @return The number of active requests
      */
-    private String extractExplanationFromJson(String jsonResponse) {
-        if (jsonResponse == null || jsonResponse.isEmpty()) {
-            return null;
-        }
+    public int getActiveRequestCount() {
+        return client.getActiveRequestCount();
+    }
 
-        try {
-            // Parse the JSON response using Gson
-            com.google.gson.JsonObject jsonObject = gson.fromJson(jsonResponse, com.google.gson.JsonObject.class);
+    /**
+     * Gets the number of callers currently waiting for an explanation they asked for. Prefetches and batch
+     * explanations are not counted.
+     *
+     * @return The number of active interactive requests
+     */
+    public int getActiveInteractiveRequestCount() {
+        return client.getActiveInteractiveRequestCount();
+    }
 
-            // Extract the explanation field
-            if (jsonObject.has("explanation")) {
-                return jsonObject.get("explanation").getAsString();
-            }
-        } catch (Exception e) {
-            // Handle parsing errors
-            return null;
-        }
+    /**
+     * Gets the number of distinct requests currently being looked up or sent to the API.
+     *
+     * @return The number of requests in flight
+     */
+    public int getInFlightRequestCount() {
+        return client.getInFlightRequestCount();
+    }
+
+    /**
+     * Gets the retry, circuit breaker and hedging state of API calls, e.g. to read their counters.
+     *
+     * @return The fault tolerance of API calls
+     */
+    public FaultTolerance getFaultTolerance() {
+        return client.getFaultTolerance();
+    }
+
+    /**
+     * Gets the scheduler starting API calls, e.g. to read its queue lengths.
+     *
+     * @return The request scheduler
+     */
+    public RequestScheduler getScheduler() {
+        return client.getScheduler();
+    }
+
+    /**
+     * Gets the router choosing the backend of each request, e.g. to read its measurements.
+     *
+     * @return The backend router
+     */
+    public BackendRouter getRouter() {
+        return client.getRouter();
+    }
+
+    /**
+     * Gets the number of pipeline tasks waiting for a thread of the request executor.
+     *
+     * @return The queue depth of the request executor
+     */
+    public int getQueueDepth() {
+        return client.getQueueDepth();
+    }
 
-        return null;
+    /**
+     * Gets the on-disk explanation store, opening it on first use.
+     *
+     * @return The store, or null if it is disabled or could not be opened
+     */
+    @Nullable
+    public DiskExplanationStore getDiskStore() {
+        return client.getDiskStore();
+    }
+
+    /**
+     * Checks whether a result returned by this service is an error message rather than an explanation.
+     *
+     * @param explanation The result
+     * @return true if it is an error message
+     */
+    public static boolean isError(String explanation) {
+        return ExplanationClient.isError(explanation);
     }
 
     /**
@@ -113,9 +232,7 @@ public class CodeAnalyzerService implements AutoCloseable, Disposable {
     @Override
     public void close() throws Exception {
         LOG.info("Closing CodeAnalyzerService and releasing resources");
-        if (executorService != null && !executorService.isShutdown()) {
-            executorService.shutdown();
-        }
+        client.close();
     }
 
     /**
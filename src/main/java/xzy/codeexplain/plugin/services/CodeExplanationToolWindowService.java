@@ -1,10 +1,15 @@
 package xzy.codeexplain.plugin.services;
 
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.project.Project;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import xzy.codeexplain.plugin.ui.CodeExplanationToolWindow;
 
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * Project service that manages the Code Explanation tool window.
  * This service provides access to the tool window instance from different parts of the plugin.
@@ -12,6 +17,9 @@ import xzy.codeexplain.plugin.ui.CodeExplanationToolWindow;
 public final class CodeExplanationToolWindowService {
     private CodeExplanationToolWindow toolWindow;
     private final Project project;
+    private final AtomicReference<PartialContent> pendingPartialContent = new AtomicReference<>();
+    private final AtomicLong requestGeneration = new AtomicLong();
+    private Future<?> currentRequest;
 
     public CodeExplanationToolWindowService(@NotNull Project project) {
         this.project = project;
@@ -47,6 +55,61 @@ public final class CodeExplanationToolWindowService {
         return project.getService(CodeExplanationToolWindowService.class);
     }
 
+    /**
+     * Starts a new explanation request for this project. The previous request, if still running, is
+     * superseded: it is cancelled and its result will be discarded.
+     *
+     * @return The generation of the new request
+     */
+    public synchronized long startRequest() {
+        if (currentRequest != null) {
+            currentRequest.cancel(true);
+            currentRequest = null;
+        }
+        // Partial updates of the superseded request must not show up over the new one
+        pendingPartialContent.set(null);
+        return requestGeneration.incrementAndGet();
+    }
+
+    /**
+     * Registers the future of a request so it can be cancelled when the request is superseded.
+     * If the request has already been superseded, the future is cancelled right away.
+     *
+     * @param generation The generation of the request
+     * @param request    The future of the request
+     */
+    public synchronized void setCurrentRequest(long generation, @NotNull Future<?> request) {
+        if (isCurrentRequest(generation)) {
+            currentRequest = request;
+        } else {
+            request.cancel(true);
+        }
+    }
+
+    /**
+     * Checks whether a request is still the latest one of this project.
+     *
+     * @param generation The generation of the request
+     * @return true if no newer request has been started
+     */
+    public boolean isCurrentRequest(long generation) {
+        return requestGeneration.get() == generation;
+    }
+
+    /**
+     * Marks a request as finished.
+     *
+     * @param generation The generation of the request
+     * @return true if the request is still the latest one and its result should be shown
+     */
+    public synchronized boolean finishRequest(long generation) {
+        if (!isCurrentRequest(generation)) {
+            return false;
+        }
+        currentRequest = null;
+        return true;
+    }
+
     /**
      * Updates the tool window content with new explanation and code.
      *
@@ -54,11 +117,34 @@ public final class CodeExplanationToolWindowService {
      * @param selectedCode The selected code
      */
     public void updateContent(@NotNull String explanation, @NotNull String selectedCode) {
+        // Drop any partial update still queued so it cannot overwrite the complete explanation
+        pendingPartialContent.set(null);
         if (toolWindow != null) {
             toolWindow.updateContent(explanation, selectedCode);
         }
     }
 
+    /**
+     * Shows the part of a streamed explanation received so far. May be called from any thread.
+     * Updates arriving faster than the EDT can render them are coalesced, so only the latest
+     * text is rendered. Updates of a request superseded by the time they would be rendered are dropped.
+     *
+     * @param generation         The generation of the request
+     * @param partialExplanation The explanation text received so far
+     */
+    public void showPartialContent(long generation, @NotNull String partialExplanation) {
+        if (pendingPartialContent.getAndSet(new PartialContent(generation, partialExplanation)) != null) {
+            // An update is already queued and will pick up the latest text
+            return;
+        }
+        ApplicationManager.getApplication().invokeLater(() -> {
+            PartialContent latest = pendingPartialContent.getAndSet(null);
+            if (latest != null && isCurrentRequest(latest.generation) && toolWindow != null) {
+                toolWindow.showPartialContent(latest.text);
+            }
+        }, project.getDisposed());
+    }
+
     /**
      * Shows the loading indicator in the tool window with the initial message.
      */
@@ -76,4 +162,17 @@ public final class CodeExplanationToolWindowService {
             toolWindow.showAnalyzing();
         }
     }
+
+    /**
+     * A partial explanation waiting to be rendered, with the generation of its request.
+     */
+    private static final class PartialContent {
+        private final long generation;
+        private final String text;
+
+        private PartialContent(long generation, String text) {
+            this.generation = generation;
+            this.text = text;
+        }
+    }
 }
@@ -0,0 +1,21 @@
+package xzy.codeexplain.plugin.services;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.startup.StartupActivity;
+import xzy.codeexplain.plugin.config.PluginConfig;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Opens the connection to the explanation API in the background once a project has been opened, if
+ * preconnecting is enabled, so the first explanation of the session doesn't pay for connection setup.
+ */
+public class ConnectionWarmUpActivity implements StartupActivity.DumbAware {
+
+    @Override
+    public void runActivity(@NotNull Project project) {
+        if (PluginConfig.isPreconnectEnabled()) {
+            ApplicationManager.getApplication().getService(CodeAnalyzerService.class).warmUpConnection();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package xzy.codeexplain.plugin.services;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.event.SelectionEvent;
+import com.intellij.openapi.editor.event.SelectionListener;
+import com.intellij.openapi.project.Project;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiFile;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.concurrency.CancellablePromise;
+import xzy.codeexplain.plugin.config.PluginConfig;
+import xzy.codeexplain.plugin.context.SelectionSnapshot;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Project service prefetching the explanation of the selected code while the user is still looking at it.
+ * <p>
+ * Selection changes in the editors of the project are debounced: once a selection has stayed unchanged for the
+ * configured delay, it is collected in a background read action and its explanation is requested from
+ * {@link CodeAnalyzerService#prefetchAsync}, which keeps it in the explanation cache. Explaining the selection
+ * afterwards is then answered locally, or joins the prefetch if it is still running. Every selection change
+ * cancels the pending prefetch, and nothing is prefetched while an explanation the user asked for is running.
+ */
+public final class ExplanationPrefetchService implements Disposable {
+    private static final Logger LOG = Logger.getInstance(ExplanationPrefetchService.class);
+
+    private final Project project;
+    private boolean started;
+    private Future<?> pendingTimer;
+    private CancellablePromise<SelectionSnapshot> pendingCollection;
+    private Future<String> pendingPrefetch;
+
+    public ExplanationPrefetchService(@NotNull Project project) {
+        this.project = project;
+    }
+
+    /**
+     * Gets the service instance for the given project.
+     *
+     * @param project The project
+     * @return The service instance
+     */
+    @NotNull
+    public static ExplanationPrefetchService getInstance(@NotNull Project project) {
+        return project.getService(ExplanationPrefetchService.class);
+    }
+
+    /**
+     * Starts following the selections in the editors of the project. Does nothing if prefetching is disabled
+     * or the service has been started already.
+     */
+    public synchronized void start() {
+        if (started || !PluginConfig.isPrefetchEnabled()) {
+            return;
+        }
+        started = true;
+        EditorFactory.getInstance().getEventMulticaster().addSelectionListener(new SelectionListener() {
+            @Override
+            public void selectionChanged(@NotNull SelectionEvent e) {
+                Editor editor = e.getEditor();
+                if (editor.getProject() == project) {
+                    onSelectionChanged(editor, !e.getNewRange().isEmpty());
+                }
+            }
+        }, this);
+        LOG.info("Prefetching explanations after " + PluginConfig.getPrefetchDelayMillis() + " ms, at most "
+                + PluginConfig.getPrefetchRequestsPerHour() + " per hour");
+    }
+
+    /**
+     * Cancels the pending prefetch and, if there is a selection, schedules a new one once the selection has
+     * stayed unchanged for the prefetch delay.
+     */
+    private synchronized void onSelectionChanged(@NotNull Editor editor, boolean hasSelection) {
+        cancelPending();
+        if (hasSelection && !project.isDisposed()) {
+            pendingTimer = AppExecutorUtil.getAppScheduledExecutorService()
+                    .schedule(() -> collectSelection(editor), PluginConfig.getPrefetchDelayMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Collects the stable selection in a background read action and prefetches its explanation.
+     */
+    private synchronized void collectSelection(@NotNull Editor editor) {
+        pendingTimer = null;
+        if (project.isDisposed() || editor.isDisposed() || isExplanationRunning()) {
+            return;
+        }
+        CancellablePromise<SelectionSnapshot> collection = ReadAction.nonBlocking(() -> collect(editor))
+                .withDocumentsCommitted(project)
+                .expireWith(this)
+                .expireWhen(editor::isDisposed)
+                .submit(AppExecutorUtil.getAppExecutorService());
+        pendingCollection = collection;
+        collection.onSuccess(selection -> prefetch(collection, selection));
+    }
+
+    @Nullable
+    private SelectionSnapshot collect(@NotNull Editor editor) {
+        PsiFile psiFile = PsiDocumentManager.getInstance(project).getPsiFile(editor.getDocument());
+        if (psiFile == null) {
+            return null;
+        }
+        SelectionSnapshot selection = SelectionSnapshot.collect(editor, psiFile);
+        // Same as the explain action: without a PSI element at the selection nothing is explained
+        return selection != null && selection.getElement() != null && !selection.getSelectedText().isBlank()
+                ? selection : null;
+    }
+
+    private synchronized void prefetch(@NotNull CancellablePromise<SelectionSnapshot> collection,
+                                       @Nullable SelectionSnapshot selection) {
+        if (pendingCollection != collection) {
+            // The selection changed while it was being collected
+            return;
+        }
+        pendingCollection = null;
+        if (selection == null || isExplanationRunning()) {
+            return;
+        }
+        pendingPrefetch = ApplicationManager.getApplication().getService(CodeAnalyzerService.class)
+                .prefetchAsync(project, selection.getSelectedText(), selection.getContext());
+    }
+
+    /**
+     * Checks whether an explanation the user asked for is running; prefetches never compete with one. Running
+     * prefetches and batch explanations don't count, the scheduler preempts those for interactive requests anyway.
+     */
+    private static boolean isExplanationRunning() {
+        return ApplicationManager.getApplication().getService(CodeAnalyzerService.class).getActiveInteractiveRequestCount() > 0;
+    }
+
+    private void cancelPending() {
+        if (pendingTimer != null) {
+            pendingTimer.cancel(false);
+            pendingTimer = null;
+        }
+        if (pendingCollection != null) {
+            pendingCollection.cancel();
+            pendingCollection = null;
+        }
+        if (pendingPrefetch != null) {
+            pendingPrefetch.cancel(true);
+            pendingPrefetch = null;
+        }
+    }
+
+    @Override
+    public synchronized void dispose() {
+        cancelPending();
+    }
+}
@@ -0,0 +1,210 @@
+package xzy.codeexplain.plugin.services;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+import xzy.codeexplain.plugin.cache.ExplanationCache;
+import xzy.codeexplain.plugin.metrics.PipelineMetrics;
+import xzy.codeexplain.plugin.render.MarkdownConverter;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.html.HTMLDocument;
+import javax.swing.text.html.HTMLEditorKit;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+
+/**
+ * Application service rendering markdown explanations to HTML.
+ * <p>
+ * A single {@link MarkdownConverter} is shared by all tool windows; it is safe to use from several threads. Rendering runs on a background thread, and rendered HTML is cached by a hash of
+ * the markdown and the theme, so showing the same explanation again costs nothing. Tool windows only receive
+ * the finished Swing document.
+ */
+public final class MarkdownRenderService {
+
+    private static final Logger LOG = Logger.getInstance(MarkdownRenderService.class);
+    private static final long CACHE_MAX_BYTES = 4L * 1024 * 1024;
+
+    private final MarkdownConverter converter = new MarkdownConverter();
+    private final ExplanationCache htmlCache = new ExplanationCache(CACHE_MAX_BYTES);
+    private final ExecutorService executor =
+            AppExecutorUtil.createBoundedApplicationPoolExecutor("CodeExplain Markdown Renderer", 1);
+
+    public MarkdownRenderService() {
+        PipelineMetrics.getInstance().registerCache("HTML render cache", htmlCache::getHitCount, htmlCache::getMissCount);
+    }
+
+    /**
+     * Gets the service instance.
+     *
+     * @return The service instance
+     */
+    @NotNull
+    public static MarkdownRenderService getInstance() {
+        return ApplicationManager.getApplication().getService(MarkdownRenderService.class);
+    }
+
+    /**
+     * Converts markdown to HTML on the calling thread, without caching. Meant for the render thread, see
+     * {@link #renderAsync}; on the EDT only for small fragments.
+     *
+     * @param markdown The markdown text to convert
+     * @return HTML representation of the markdown
+     */
+    @NotNull
+    public String toHtml(@NotNull String markdown) {
+        return converter.toHtml(markdown);
+    }
+
+    /**
+     * Runs a rendering task on the render thread, e.g. converting the new parts of a streamed explanation.
+     * Tasks run one at a time, in the order they were submitted.
+     *
+     * @param task The task
+     * @return A CompletableFuture that will complete with the result of the task
+     */
+    @NotNull
+    public <T> CompletableFuture<T> renderAsync(@NotNull Supplier<T> task) {
+        return CompletableFuture.supplyAsync(task, executor);
+    }
+
+    /**
+     * Converts markdown to HTML on a background thread, answering from the render cache if possible.
+     *
+     * @param markdown  The markdown text to convert
+     * @param darkTheme Whether the HTML is shown with the dark theme
+     * @return A CompletableFuture that will complete with the HTML
+     */
+    @NotNull
+    public CompletableFuture<String> renderHtmlAsync(@NotNull String markdown, boolean darkTheme) {
+        String key = ExplanationCache.keyFor(darkTheme ? "dark" : "light", markdown);
+        String cached = htmlCache.get(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            String html = toHtml(markdown);
+            htmlCache.put(key, html);
+            return html;
+        }, executor);
+    }
+
+    /**
+     * Converts markdown to HTML and parses the HTML into a Swing document, both on a background thread.
+     * The document is not attached to any component yet, so building it off the EDT is safe; the caller
+     * only has to install it with {@link javax.swing.JEditorPane#setDocument} on the EDT.
+     *
+     * @param markdown  The markdown text to convert
+     * @param darkTheme Whether the HTML is shown with the dark theme
+     * @param kit       The editor kit of the pane the document is meant for, providing its style sheet
+     * @return A CompletableFuture that will complete with the HTML and its document
+     */
+    @NotNull
+    public CompletableFuture<RenderedMarkdown> renderDocumentAsync(@NotNull String markdown, boolean darkTheme,
+                                                                  @NotNull HTMLEditorKit kit) {
+        return renderHtmlAsync(markdown, darkTheme)
+                .thenApplyAsync(html -> new RenderedMarkdown(html, createDocument(kit, html)), executor);
+    }
+
+    /**
+     * Splits markdown into sections and converts every section to HTML, on a background thread. Used to show
+     * very long explanations in a viewer that only lays out the sections in view. Sections are cached like
+     * complete explanations.
+     *
+     * @param markdown     The markdown text to convert
+     * @param darkTheme    Whether the HTML is shown with the dark theme
+     * @param sectionChars The approximate length of a section in characters
+     * @return A CompletableFuture that will complete with the sections
+     */
+    @NotNull
+    public CompletableFuture<List<RenderedSection>> renderSectionsAsync(@NotNull String markdown, boolean darkTheme,
+                                                                       int sectionChars) {
+        return CompletableFuture.supplyAsync(() -> {
+            List<RenderedSection> rendered = new ArrayList<>();
+            for (String section : MarkdownConverter.splitSections(markdown, sectionChars)) {
+                String key = ExplanationCache.keyFor(darkTheme ? "dark" : "light", section);
+                String html = htmlCache.get(key);
+                if (html == null) {
+                    html = toHtml(section);
+                    htmlCache.put(key, html);
+                }
+                rendered.add(new RenderedSection(html, section.length()));
+            }
+            return rendered;
+        }, executor);
+    }
+
+    @NotNull
+    private static HTMLDocument createDocument(@NotNull HTMLEditorKit kit, @NotNull String html) {
+        HTMLDocument document = (HTMLDocument) kit.createDefaultDocument();
+        // Same as JEditorPane.setText: the HTML is already a string, charset directives must not reload it
+        document.putProperty("IgnoreCharsetDirective", Boolean.TRUE);
+        try {
+            kit.read(new StringReader(html), document, 0);
+        } catch (IOException | BadLocationException e) {
+            LOG.warn("Failed to build the document of an explanation", e);
+        }
+        return document;
+    }
+
+    /**
+     * Gets the cache of rendered HTML, e.g. to read its hit and miss counters.
+     *
+     * @return The render cache
+     */
+    @NotNull
+    public ExplanationCache getHtmlCache() {
+        return htmlCache;
+    }
+
+    /**
+     * One rendered section of a long explanation.
+     */
+    public static final class RenderedSection {
+        private final String html;
+        private final int markdownLength;
+
+        RenderedSection(@NotNull String html, int markdownLength) {
+            this.html = html;
+            this.markdownLength = markdownLength;
+        }
+
+        @NotNull
+        public String getHtml() {
+            return html;
+        }
+
+        public int getMarkdownLength() {
+            return markdownLength;
+        }
+    }
+
+    /**
+     * A rendered explanation: its HTML and the Swing document built from it.
+     */
+    public static final class RenderedMarkdown {
+        private final String html;
+        private final HTMLDocument document;
+
+        RenderedMarkdown(@NotNull String html, @NotNull HTMLDocument document) {
+            this.html = html;
+            this.document = document;
+        }
+
+        @NotNull
+        public String getHtml() {
+            return html;
+        }
+
+        @NotNull
+        public HTMLDocument getDocument() {
+            return document;
+        }
+    }
+}
@@ -34,9 +34,9 @@ public class PluginLifecycleListener implements DynamicPluginListener {
         if (isOurPlugin(pluginDescriptor)) {
             LOG.info("Plugin is about to be unloaded: " + pluginDescriptor.getName() + ", isUpdate: " + isUpdate);
 
-            // Get the CodeAnalyzerService from the application service registry
+            // Get the CodeAnalyzerService from the application service registry, without creating it just to close it
             CodeAnalyzerService analyzerService = ApplicationManager.getApplication()
-                    .getService(CodeAnalyzerService.class);
+                    .getServiceIfCreated(CodeAnalyzerService.class);
 
             // Clean up resources
             if (analyzerService != null) {
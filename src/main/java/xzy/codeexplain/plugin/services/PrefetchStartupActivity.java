@@ -0,0 +1,16 @@
+package xzy.codeexplain.plugin.services;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.startup.StartupActivity;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Starts prefetching explanations of selected code once a project has been opened, if prefetching is enabled.
+ */
+public class PrefetchStartupActivity implements StartupActivity.DumbAware {
+
+    @Override
+    public void runActivity(@NotNull Project project) {
+        ExplanationPrefetchService.getInstance(project).start();
+    }
+}
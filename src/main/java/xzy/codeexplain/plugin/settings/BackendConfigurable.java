@@ -0,0 +1,212 @@
+package xzy.codeexplain.plugin.settings;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.options.Configurable;
+import com.intellij.openapi.options.ConfigurationException;
+import com.intellij.openapi.ui.ComboBox;
+import com.intellij.ui.ToolbarDecorator;
+import com.intellij.ui.components.JBLabel;
+import com.intellij.ui.table.TableView;
+import com.intellij.util.ui.ColumnInfo;
+import com.intellij.util.ui.ListTableModel;
+import org.jetbrains.annotations.Nls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import xzy.codeexplain.plugin.backend.ExplanationBackendFactory;
+import xzy.codeexplain.plugin.services.CodeAnalyzerService;
+
+import javax.swing.DefaultCellEditor;
+import javax.swing.JComponent;
+import javax.swing.JPanel;
+import javax.swing.table.TableCellEditor;
+import java.awt.BorderLayout;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Settings page listing the backends explanations are requested from, under Tools | Code Explanation Backends.
+ * Applying the settings switches the backends of {@link CodeAnalyzerService} right away.
+ */
+public class BackendConfigurable implements Configurable {
+
+    private ListTableModel<BackendSettings.BackendEntry> model;
+
+    @Override
+    @Nls
+    public String getDisplayName() {
+        return "Code Explanation Backends";
+    }
+
+    @Override
+    @Nullable
+    public JComponent createComponent() {
+        model = new ListTableModel<>(new EnabledColumn(), new NameColumn(), new TypeColumn(), new UrlColumn());
+        TableView<BackendSettings.BackendEntry> table = new TableView<>(model);
+        JPanel tablePanel = ToolbarDecorator.createDecorator(table)
+                .setAddAction(button -> {
+                    BackendSettings.BackendEntry entry = new BackendSettings.BackendEntry();
+                    entry.name = "Backend " + (model.getRowCount() + 1);
+                    model.addRow(entry);
+                })
+                .setRemoveAction(button -> {
+                    int row = table.getSelectedRow();
+                    if (row >= 0) {
+                        model.removeRow(table.convertRowIndexToModel(row));
+                    }
+                })
+                .createPanel();
+
+        JPanel panel = new JPanel(new BorderLayout(0, 8));
+        panel.add(tablePanel, BorderLayout.CENTER);
+        panel.add(new JBLabel("<html>Each explanation goes to the enabled backend that answered fastest recently; "
+                + "backends failing most of their requests are skipped. Without an enabled backend, the remote API "
+                + "is used.</html>"), BorderLayout.SOUTH);
+        reset();
+        return panel;
+    }
+
+    @Override
+    public boolean isModified() {
+        return model != null && !model.getItems().equals(BackendSettings.getInstance().getBackends());
+    }
+
+    @Override
+    public void apply() throws ConfigurationException {
+        List<BackendSettings.BackendEntry> entries = model.getItems();
+        Set<String> names = new HashSet<>();
+        for (BackendSettings.BackendEntry entry : entries) {
+            if (entry.name == null || entry.name.isBlank()) {
+                throw new ConfigurationException("Every backend needs a name");
+            }
+            if (!names.add(entry.name)) {
+                throw new ConfigurationException("There is more than one backend named " + entry.name);
+            }
+            try {
+                BackendSettings.create(entry);
+            } catch (IllegalArgumentException e) {
+                throw new ConfigurationException("Backend " + entry.name + ": " + e.getMessage());
+            }
+        }
+
+        BackendSettings.getInstance().setBackends(entries);
+        ApplicationManager.getApplication().getService(CodeAnalyzerService.class).updateBackends();
+    }
+
+    @Override
+    public void reset() {
+        if (model != null) {
+            model.setItems(new ArrayList<>(BackendSettings.getInstance().getBackends()));
+        }
+    }
+
+    @Override
+    public void disposeUIResources() {
+        model = null;
+    }
+
+    private static final class EnabledColumn extends ColumnInfo<BackendSettings.BackendEntry, Boolean> {
+        private EnabledColumn() {
+            super("Enabled");
+        }
+
+        @Override
+        public Boolean valueOf(BackendSettings.BackendEntry entry) {
+            return entry.enabled;
+        }
+
+        @Override
+        public boolean isCellEditable(BackendSettings.BackendEntry entry) {
+            return true;
+        }
+
+        @Override
+        public void setValue(BackendSettings.BackendEntry entry, Boolean value) {
+            entry.enabled = value;
+        }
+
+        @Override
+        public Class<?> getColumnClass() {
+            return Boolean.class;
+        }
+    }
+
+    private static final class NameColumn extends ColumnInfo<BackendSettings.BackendEntry, String> {
+        private NameColumn() {
+            super("Name");
+        }
+
+        @Override
+        public String valueOf(BackendSettings.BackendEntry entry) {
+            return entry.name;
+        }
+
+        @Override
+        public boolean isCellEditable(BackendSettings.BackendEntry entry) {
+            return true;
+        }
+
+        @Override
+        public void setValue(BackendSettings.BackendEntry entry, String value) {
+            entry.name = value.trim();
+        }
+    }
+
+    /**
+     * The backend type, chosen from the types of the installed factories.
+     */
+    private static final class TypeColumn extends ColumnInfo<BackendSettings.BackendEntry, String> {
+        private TypeColumn() {
+            super("Type");
+        }
+
+        @Override
+        public String valueOf(BackendSettings.BackendEntry entry) {
+            return entry.type;
+        }
+
+        @Override
+        public boolean isCellEditable(BackendSettings.BackendEntry entry) {
+            return true;
+        }
+
+        @Override
+        public void setValue(BackendSettings.BackendEntry entry, String value) {
+            entry.type = value;
+        }
+
+        @Override
+        public TableCellEditor getEditor(BackendSettings.BackendEntry entry) {
+            List<String> types = new ArrayList<>();
+            for (ExplanationBackendFactory factory : BackendSettings.BACKEND_FACTORIES.getExtensionList()) {
+                types.add(factory.getType());
+            }
+            return new DefaultCellEditor(new ComboBox<>(types.toArray(new String[0])));
+        }
+    }
+
+    /**
+     * The URL of the explain endpoint; the remote API may leave it empty, stubs ignore it.
+     */
+    private static final class UrlColumn extends ColumnInfo<BackendSettings.BackendEntry, String> {
+        private UrlColumn() {
+            super("URL");
+        }
+
+        @Override
+        public String valueOf(BackendSettings.BackendEntry entry) {
+            return entry.url;
+        }
+
+        @Override
+        public boolean isCellEditable(BackendSettings.BackendEntry entry) {
+            return true;
+        }
+
+        @Override
+        public void setValue(BackendSettings.BackendEntry entry, String value) {
+            entry.url = value.trim();
+        }
+    }
+}
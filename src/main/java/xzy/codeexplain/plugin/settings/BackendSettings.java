@@ -0,0 +1,187 @@
+package xzy.codeexplain.plugin.settings;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.PersistentStateComponent;
+import com.intellij.openapi.components.State;
+import com.intellij.openapi.components.Storage;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.extensions.ExtensionPointName;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import xzy.codeexplain.plugin.backend.ExplanationBackend;
+import xzy.codeexplain.plugin.backend.ExplanationBackendFactory;
+import xzy.codeexplain.plugin.backend.RemoteBackendFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Persistent settings of the backends explanations are requested from. Without any enabled backend, the remote
+ * API configured by {@code codeexplain.api.url} is used.
+ */
+@State(name = "CodeExplainBackends", storages = @Storage("codeexplain.xml"))
+public class BackendSettings implements PersistentStateComponent<BackendSettings.State> {
+
+    /**
+     * The backend types, see {@link ExplanationBackendFactory}.
+     */
+    public static final ExtensionPointName<ExplanationBackendFactory> BACKEND_FACTORIES =
+            ExtensionPointName.create("xyz.codeexplain.plugin.explanationBackend");
+
+    private static final Logger LOG = Logger.getInstance(BackendSettings.class);
+    private State state = new State();
+
+    /**
+     * Gets the service instance.
+     *
+     * @return The service instance
+     */
+    public static BackendSettings getInstance() {
+        return ApplicationManager.getApplication().getService(BackendSettings.class);
+    }
+
+    @Override
+    @NotNull
+    public State getState() {
+        return state;
+    }
+
+    @Override
+    public void loadState(@NotNull State state) {
+        this.state = state;
+    }
+
+    /**
+     * Gets copies of the configured backends.
+     *
+     * @return The backends, in the order they were configured
+     */
+    @NotNull
+    public List<BackendEntry> getBackends() {
+        List<BackendEntry> copies = new ArrayList<>(state.backends.size());
+        for (BackendEntry entry : state.backends) {
+            copies.add(entry.copy());
+        }
+        return copies;
+    }
+
+    /**
+     * Replaces the configured backends.
+     *
+     * @param backends The backends
+     */
+    public void setBackends(@NotNull List<BackendEntry> backends) {
+        List<BackendEntry> copies = new ArrayList<>(backends.size());
+        for (BackendEntry entry : backends) {
+            copies.add(entry.copy());
+        }
+        state.backends = copies;
+    }
+
+    /**
+     * Creates the enabled backends. Backends of an unknown type or with an invalid URL are left out.
+     *
+     * @return The backends, or the remote API configured by {@code codeexplain.api.url} if none is enabled
+     */
+    @NotNull
+    public List<ExplanationBackend> createBackends() {
+        List<ExplanationBackend> backends = new ArrayList<>();
+        for (BackendEntry entry : state.backends) {
+            if (!entry.enabled) {
+                continue;
+            }
+            try {
+                backends.add(create(entry));
+            } catch (IllegalArgumentException e) {
+                LOG.warn("Skipping backend " + entry.name + ": " + e.getMessage());
+            }
+        }
+        if (backends.isEmpty()) {
+            backends.add(new RemoteBackendFactory().create("Remote API", null));
+        }
+        return backends;
+    }
+
+    /**
+     * Creates the backend of an entry.
+     *
+     * @param entry The entry
+     * @return The backend
+     * @throws IllegalArgumentException If the type is unknown or the URL invalid
+     */
+    @NotNull
+    public static ExplanationBackend create(@NotNull BackendEntry entry) {
+        ExplanationBackendFactory factory = findFactory(entry.type);
+        if (factory == null) {
+            throw new IllegalArgumentException("Unknown backend type " + entry.type);
+        }
+        return factory.create(entry.name, entry.url);
+    }
+
+    /**
+     * Finds the factory of a backend type.
+     *
+     * @param type The type identifier
+     * @return The factory, or null if no installed plugin provides the type
+     */
+    @Nullable
+    public static ExplanationBackendFactory findFactory(@Nullable String type) {
+        for (ExplanationBackendFactory factory : BACKEND_FACTORIES.getExtensionList()) {
+            if (factory.getType().equals(type)) {
+                return factory;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The persisted settings.
+     */
+    public static class State {
+        public List<BackendEntry> backends = new ArrayList<>();
+    }
+
+    /**
+     * One configured backend.
+     */
+    public static class BackendEntry {
+        public boolean enabled = true;
+        public String name = "";
+        public String type = RemoteBackendFactory.TYPE;
+        public String url = "";
+
+        /**
+         * Creates a copy, e.g. to edit it without changing the settings.
+         *
+         * @return The copy
+         */
+        @NotNull
+        public BackendEntry copy() {
+            BackendEntry copy = new BackendEntry();
+            copy.enabled = enabled;
+            copy.name = name;
+            copy.type = type;
+            copy.url = url;
+            return copy;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof BackendEntry)) {
+                return false;
+            }
+            BackendEntry other = (BackendEntry) o;
+            return enabled == other.enabled && Objects.equals(name, other.name) && Objects.equals(type, other.type)
+                    && Objects.equals(url, other.url);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(enabled, name, type, url);
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package xzy.codeexplain.plugin.ui;
 
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.ui.JBColor;
 import xzy.codeexplain.plugin.config.PluginConfig;
 import com.intellij.openapi.project.Project;
@@ -7,15 +10,17 @@ import com.intellij.ui.components.JBPanel;
 import com.intellij.ui.components.JBScrollPane;
 import com.intellij.util.ui.JBUI;
 import com.intellij.util.ui.UIUtil;
-import com.vladsch.flexmark.html.HtmlRenderer;
-import com.vladsch.flexmark.parser.Parser;
-import com.vladsch.flexmark.util.ast.Document;
 import org.jetbrains.annotations.Nullable;
+import xzy.codeexplain.plugin.metrics.PipelineMetrics;
+import xzy.codeexplain.plugin.metrics.PipelinePhase;
+import xzy.codeexplain.plugin.services.MarkdownRenderService;
 
 import javax.swing.*;
 import javax.swing.text.html.HTMLEditorKit;
 import javax.swing.text.html.StyleSheet;
 import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -23,12 +28,31 @@ import java.util.regex.Pattern;
  * Tool window for displaying code explanation in a more user-friendly way.
  */
 public class CodeExplanationToolWindow {
+    private static final Logger LOG = Logger.getInstance(CodeExplanationToolWindow.class);
+    private static final String SELECTED_CODE_TAB = "Selected Code";
+    private static final String HTML_SOURCE_TAB = "HTML Source";
+    private static final String MARKDOWN_TAB = "Original Markdown";
+    private static final String METRICS_TAB = "Metrics";
+    private static final int SECTION_CHARS = 4000; // Approximate markdown length of a section in the sectioned viewer
     private String explanation;
     private String selectedCode;
     private String htmlSource; // Store the HTML source for debug mode
+    private List<String> htmlSections; // HTML of the sectioned viewer, joined into htmlSource only when needed
     private JEditorPane explanationText;
+    private HTMLEditorKit editorKit;
+    private long renderCount; // Incremented for every explanation, so outdated renders are dropped
+    private JBScrollPane explanationScrollPane;
+    private VirtualizedExplanationView sectionView; // Created when the first long explanation is shown
+    private JBScrollPane sectionScrollPane;
+    private StreamingMarkdownRenderer streamingRenderer;
+    private boolean streaming; // Whether a streamed explanation is currently being shown
     private JPanel loadingPanel;
     private JTabbedPane tabbedPane;
+    private JTextArea selectedCodeText; // Debug tabs, null in normal mode
+    private JTextArea htmlSourceText;
+    private JTextArea markdownText;
+    private MetricsPanel metricsPanel;
+    private String filledDebugTab; // Title of the debug tab holding a copy of the current data, if any
     private JBPanel<JBPanel<?>> explanationPanel;
     private boolean isDarkTheme;
     private JPanel mainPanel;
@@ -68,6 +92,7 @@ public class CodeExplanationToolWindow {
         // Set up HTML styling
         HTMLEditorKit kit = new HTMLEditorKit();
         explanationText.setEditorKit(kit);
+        editorKit = kit;
         StyleSheet styleSheet = kit.getStyleSheet();
 
         // Apply common styles
@@ -97,6 +122,8 @@ public class CodeExplanationToolWindow {
         String htmlContent = markdownToHtml(explanation);
         this.htmlSource = htmlContent;
         explanationText.setText(htmlContent);
+        explanationScrollPane = new JBScrollPane(explanationText);
+        streamingRenderer = new StreamingMarkdownRenderer(explanationText);
 
         // Initially show the loading panel instead of the explanation text
         explanationPanel.add(loadingPanel, BorderLayout.CENTER);
@@ -108,74 +135,16 @@ public class CodeExplanationToolWindow {
             // Add explanation tab
             tabbedPane.addTab("Explanation", explanationPanel);
 
-            // Tab for the selected code (initially empty)
-            JBPanel<JBPanel<?>> codePanel = new JBPanel<>(new BorderLayout());
-            JTextArea codeText = new JTextArea(selectedCode);
-            codeText.setEditable(false);
-            codeText.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
-
-            // Apply theme-specific styling to the code text area
-            if (isDarkTheme) {
-                // Dark theme colors
-                codeText.setBackground(new Color(0x2d2d2d));
-                codeText.setForeground(new Color(0xf8f8f2));
-                codeText.setCaretColor(new Color(0xf8f8f2));
-            } else {
-                // Light theme colors
-                codeText.setBackground(new Color(0xf5f5f5));
-                codeText.setForeground(new Color(0x000000));
-                codeText.setCaretColor(new Color(0x000000));
-            }
-
-            JBScrollPane codeScrollPane = new JBScrollPane(codeText);
-            codePanel.add(codeScrollPane, BorderLayout.CENTER);
-            tabbedPane.addTab("Selected Code", codePanel);
-
-            // HTML Source tab
-            JBPanel<JBPanel<?>> htmlSourcePanel = new JBPanel<>(new BorderLayout());
-            JTextArea htmlSourceText = new JTextArea(htmlSource);
-            htmlSourceText.setEditable(false);
-            htmlSourceText.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
-
-            // Apply theme-specific styling to the HTML source text area
-            if (isDarkTheme) {
-                // Dark theme colors
-                htmlSourceText.setBackground(new Color(0x2d2d2d));
-                htmlSourceText.setForeground(new Color(0xf8f8f2));
-                htmlSourceText.setCaretColor(new Color(0xf8f8f2));
-            } else {
-                // Light theme colors
-                htmlSourceText.setBackground(new Color(0xf5f5f5));
-                htmlSourceText.setForeground(new Color(0x000000));
-                htmlSourceText.setCaretColor(new Color(0x000000));
-            }
-
-            JBScrollPane htmlSourceScrollPane = new JBScrollPane(htmlSourceText);
-            htmlSourcePanel.add(htmlSourceScrollPane, BorderLayout.CENTER);
-            tabbedPane.addTab("HTML Source", htmlSourcePanel);
-
-            // Add Original Markdown tab
-            JBPanel<JBPanel<?>> markdownPanel = new JBPanel<>(new BorderLayout());
-            JTextArea markdownText = new JTextArea(explanation);
-            markdownText.setEditable(false);
-            markdownText.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
-
-            // Apply theme-specific styling to the markdown text area
-            if (isDarkTheme) {
-                // Dark theme colors
-                markdownText.setBackground(new Color(0x2d2d2d));
-                markdownText.setForeground(new Color(0xf8f8f2));
-                markdownText.setCaretColor(new Color(0xf8f8f2));
-            } else {
-                // Light theme colors
-                markdownText.setBackground(new Color(0xf5f5f5));
-                markdownText.setForeground(new Color(0x000000));
-                markdownText.setCaretColor(new Color(0x000000));
-            }
-
-            JBScrollPane markdownScrollPane = new JBScrollPane(markdownText);
-            markdownPanel.add(markdownScrollPane, BorderLayout.CENTER);
-            tabbedPane.addTab("Original Markdown", markdownPanel);
+            // Debug tabs are only filled while they are selected, see updateDebugTabs
+            selectedCodeText = createDebugTextArea();
+            tabbedPane.addTab(SELECTED_CODE_TAB, createDebugTab(selectedCodeText));
+            htmlSourceText = createDebugTextArea();
+            tabbedPane.addTab(HTML_SOURCE_TAB, createDebugTab(htmlSourceText));
+            markdownText = createDebugTextArea();
+            tabbedPane.addTab(MARKDOWN_TAB, createDebugTab(markdownText));
+            metricsPanel = new MetricsPanel(project, createDebugTextArea());
+            tabbedPane.addTab(METRICS_TAB, metricsPanel);
+            tabbedPane.addChangeListener(e -> updateDebugTabs());
 
             // Add tabbed pane to main panel
             mainPanel.add(tabbedPane, BorderLayout.CENTER);
@@ -185,6 +154,35 @@ public class CodeExplanationToolWindow {
         }
     }
 
+    /**
+     * Creates a read-only text area for a debug tab.
+     */
+    private JTextArea createDebugTextArea() {
+        JTextArea textArea = new JTextArea();
+        textArea.setEditable(false);
+        textArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+
+        // Apply theme-specific styling to the text area
+        if (isDarkTheme) {
+            // Dark theme colors
+            textArea.setBackground(new Color(0x2d2d2d));
+            textArea.setForeground(new Color(0xf8f8f2));
+            textArea.setCaretColor(new Color(0xf8f8f2));
+        } else {
+            // Light theme colors
+            textArea.setBackground(new Color(0xf5f5f5));
+            textArea.setForeground(new Color(0x000000));
+            textArea.setCaretColor(new Color(0x000000));
+        }
+        return textArea;
+    }
+
+    private JBPanel<JBPanel<?>> createDebugTab(JTextArea textArea) {
+        JBPanel<JBPanel<?>> panel = new JBPanel<>(new BorderLayout());
+        panel.add(new JBScrollPane(textArea), BorderLayout.CENTER);
+        return panel;
+    }
+
     /**
      * Creates a panel with a loading spinner and message.
      */
@@ -242,19 +240,107 @@ public class CodeExplanationToolWindow {
         this.explanation = newExplanation;
         this.selectedCode = newSelectedCode;
 
-        // Convert markdown to HTML and set the text
-        String htmlContent = markdownToHtml(newExplanation);
-        this.htmlSource = htmlContent; // Store the HTML source
-        explanationText.setText(htmlContent);
+        // Convert markdown to HTML in the background; a streamed explanation stays visible until then
+        long renderId = ++renderCount;
+        long renderStart = System.nanoTime();
+        int sectionedMinChars = PluginConfig.getSectionedViewerMinChars();
+        if (sectionedMinChars > 0 && newExplanation.length() >= sectionedMinChars) {
+            // Very long explanations are shown in sections, only the ones in view are laid out
+            MarkdownRenderService.getInstance().renderSectionsAsync(newExplanation, isDarkTheme, SECTION_CHARS)
+                    .whenComplete((sections, error) -> ApplicationManager.getApplication().invokeLater(() -> {
+                        if (renderId != renderCount) {
+                            return;
+                        }
+                        if (error != null) {
+                            showRenderFailure(newExplanation, error);
+                            return;
+                        }
+                        showRenderedSections(sections);
+                        PipelineMetrics.getInstance().recordSince(PipelinePhase.RENDERING, renderStart);
+                    }));
+            return;
+        }
+        MarkdownRenderService.getInstance().renderDocumentAsync(newExplanation, isDarkTheme, editorKit)
+                .whenComplete((rendered, error) -> ApplicationManager.getApplication().invokeLater(() -> {
+                    if (renderId != renderCount) {
+                        return;
+                    }
+                    if (error != null) {
+                        showRenderFailure(newExplanation, error);
+                        return;
+                    }
+                    showRenderedContent(rendered);
+                    PipelineMetrics.getInstance().recordSince(PipelinePhase.RENDERING, renderStart);
+                }));
+    }
+
+    /**
+     * Shows the markdown of an explanation that could not be rendered, e.g. because the renderer failed or was
+     * already disposed, instead of leaving the loading panel up. Must be called on the EDT.
+     *
+     * @param markdown The explanation
+     * @param error    Why rendering failed
+     */
+    private void showRenderFailure(String markdown, Throwable error) {
+        LOG.warn("Failed to render the explanation", error);
+        stopStreaming();
+        this.htmlSource = null;
+        this.htmlSections = null;
+        explanationText.setDocument(editorKit.createDefaultDocument());
+        explanationText.setText("<html><body><p>Error: Failed to render the explanation, showing its markdown.</p><pre>"
+                + StringUtil.escapeXmlEntities(markdown) + "</pre></body></html>");
+        showExplanationText();
+        refreshAfterUpdate();
+    }
+
+    /**
+     * Shows a rendered explanation. Must be called on the EDT.
+     *
+     * @param rendered The HTML and document of the explanation
+     */
+    private void showRenderedContent(MarkdownRenderService.RenderedMarkdown rendered) {
+        stopStreaming();
+        this.htmlSource = rendered.getHtml(); // Store the HTML source
+        this.htmlSections = null;
+        explanationText.setDocument(rendered.getDocument());
 
         // Replace loading panel with explanation text if it's currently showing
-        explanationPanel.removeAll();
-        JBScrollPane explanationScrollPane = new JBScrollPane(explanationText);
-        explanationPanel.add(explanationScrollPane, BorderLayout.CENTER);
+        showExplanationText();
+        refreshAfterUpdate();
+    }
 
+    /**
+     * Shows a very long explanation in the sectioned viewer. Must be called on the EDT.
+     *
+     * @param sections The rendered sections of the explanation
+     */
+    private void showRenderedSections(List<MarkdownRenderService.RenderedSection> sections) {
+        stopStreaming();
+        List<String> htmlSections = new ArrayList<>(sections.size());
+        int[] lengths = new int[sections.size()];
+        for (int i = 0; i < sections.size(); i++) {
+            htmlSections.add(sections.get(i).getHtml());
+            lengths[i] = sections.get(i).getMarkdownLength();
+        }
+        this.htmlSource = null;
+        this.htmlSections = htmlSections;
+
+        if (sectionView == null) {
+            sectionView = new VirtualizedExplanationView(editorKit, isDarkTheme ? new Color(0x2b2b2b) : Color.WHITE);
+            sectionScrollPane = new JBScrollPane(sectionView);
+        }
+        sectionView.setSections(htmlSections, lengths);
+        showView(sectionScrollPane);
+        refreshAfterUpdate();
+    }
+
+    /**
+     * Updates the debug tabs and refreshes the UI after a new explanation has been shown.
+     */
+    private void refreshAfterUpdate() {
         // Update Selected Code tab and debug tabs if debug mode is enabled
-        if (PluginConfig.isDebugMode() && tabbedPane != null) {
-            updateSelectedCodeTab(newSelectedCode);
+        if (tabbedPane != null) {
+            clearDebugTabs();
             updateDebugTabs();
         }
 
@@ -264,88 +350,123 @@ public class CodeExplanationToolWindow {
     }
 
     /**
-     * Updates the selected code tab with new code.
+     * Shows the part of a streamed explanation received so far. Only the unfinished tail of the
+     * markdown is rendered again; the complete explanation is rendered by {@link #updateContent}
+     * once the stream has ended.
+     *
+     * @param partialExplanation The explanation text received so far
      */
-    private void updateSelectedCodeTab(String newCode) {
-        // Make sure tabbedPane is not null (it will be null in non-debug mode)
-        if (tabbedPane == null) return;
+    public void showPartialContent(String partialExplanation) {
+        // Drop a final render still in progress for an earlier explanation
+        renderCount++;
+        if (!streaming) {
+            streaming = true;
+            streamingRenderer.start();
+            showExplanationText();
+        }
+        streamingRenderer.update(partialExplanation);
+    }
 
-        // Find the Selected Code tab
-        for (int i = 0; i < tabbedPane.getTabCount(); i++) {
-            if ("Selected Code".equals(tabbedPane.getTitleAt(i))) {
-                Component component = tabbedPane.getComponentAt(i);
-                if (component instanceof JBPanel) {
-                    JBPanel<?> panel = (JBPanel<?>) component;
-                    // Find the JTextArea inside the panel
-                    for (Component c : panel.getComponents()) {
-                        if (c instanceof JBScrollPane) {
-                            JBScrollPane scrollPane = (JBScrollPane) c;
-                            Component view = scrollPane.getViewport().getView();
-                            if (view instanceof JTextArea) {
-                                JTextArea textArea = (JTextArea) view;
-                                textArea.setText(newCode);
-                                break;
-                            }
-                        }
-                    }
-                }
-                break;
-            }
+    /**
+     * Ends showing a streamed explanation, dropping partial explanations still being rendered.
+     */
+    private void stopStreaming() {
+        streaming = false;
+        streamingRenderer.stop();
+    }
+
+    /**
+     * Replaces the loading panel with the explanation text if it's currently showing.
+     */
+    private void showExplanationText() {
+        showView(explanationScrollPane);
+    }
+
+    /**
+     * Shows the given view in the explanation panel, replacing the loading panel or the other view.
+     */
+    private void showView(JComponent view) {
+        if (view.getParent() == explanationPanel) {
+            return;
         }
+        explanationPanel.removeAll();
+        explanationPanel.add(view, BorderLayout.CENTER);
+        explanationPanel.revalidate();
+        explanationPanel.repaint();
     }
 
     /**
-     * Updates the debug tabs (HTML Source and Original Markdown) if they exist.
+     * Fills the selected debug tab with the current explanation. Only one debug tab is filled at a time, so the
+     * selected code, HTML and markdown are not copied into Swing documents that nobody looks at.
      */
     private void updateDebugTabs() {
         // Make sure tabbedPane is not null (it will be null in non-debug mode)
         if (tabbedPane == null) return;
 
-        // Update HTML Source tab
-        for (int i = 0; i < tabbedPane.getTabCount(); i++) {
-            if ("HTML Source".equals(tabbedPane.getTitleAt(i))) {
-                Component component = tabbedPane.getComponentAt(i);
-                if (component instanceof JBPanel) {
-                    JBPanel<?> panel = (JBPanel<?>) component;
-                    // Find the JTextArea inside the panel
-                    for (Component c : panel.getComponents()) {
-                        if (c instanceof JBScrollPane) {
-                            JBScrollPane scrollPane = (JBScrollPane) c;
-                            Component view = scrollPane.getViewport().getView();
-                            if (view instanceof JTextArea) {
-                                JTextArea textArea = (JTextArea) view;
-                                textArea.setText(htmlSource);
-                                break;
-                            }
-                        }
-                    }
-                }
-                break;
-            }
+        int selected = tabbedPane.getSelectedIndex();
+        String selectedTitle = selected >= 0 ? tabbedPane.getTitleAt(selected) : null;
+        if (METRICS_TAB.equals(selectedTitle)) {
+            // The metrics change with every request, so they are formatted again whenever the tab is selected
+            metricsPanel.refresh();
+            return;
+        }
+        JTextArea selectedText = getDebugTextArea(selectedTitle);
+        if (selectedText == null || selectedTitle.equals(filledDebugTab)) {
+            return;
         }
 
-        // Update Original Markdown tab
-        for (int i = 0; i < tabbedPane.getTabCount(); i++) {
-            if ("Original Markdown".equals(tabbedPane.getTitleAt(i))) {
-                Component component = tabbedPane.getComponentAt(i);
-                if (component instanceof JBPanel) {
-                    JBPanel<?> panel = (JBPanel<?>) component;
-                    // Find the JTextArea inside the panel
-                    for (Component c : panel.getComponents()) {
-                        if (c instanceof JBScrollPane) {
-                            JBScrollPane scrollPane = (JBScrollPane) c;
-                            Component view = scrollPane.getViewport().getView();
-                            if (view instanceof JTextArea) {
-                                JTextArea textArea = (JTextArea) view;
-                                textArea.setText(explanation);
-                                break;
-                            }
-                        }
-                    }
-                }
-                break;
-            }
+        // Empty the previously filled tab before copying the data into the selected one
+        JTextArea previousText = getDebugTextArea(filledDebugTab);
+        if (previousText != null) {
+            previousText.setText("");
+        }
+        if (SELECTED_CODE_TAB.equals(selectedTitle)) {
+            selectedText.setText(selectedCode);
+        } else if (HTML_SOURCE_TAB.equals(selectedTitle)) {
+            selectedText.setText(getHtmlSource());
+        } else {
+            selectedText.setText(explanation);
+        }
+        selectedText.setCaretPosition(0);
+        filledDebugTab = selectedTitle;
+    }
+
+    /**
+     * Empties the debug tabs, e.g. because a new explanation is shown.
+     */
+    private void clearDebugTabs() {
+        JTextArea filledText = getDebugTextArea(filledDebugTab);
+        if (filledText != null) {
+            filledText.setText("");
+        }
+        filledDebugTab = null;
+    }
+
+    @Nullable
+    private JTextArea getDebugTextArea(@Nullable String tabTitle) {
+        if (tabTitle == null) {
+            return null;
+        }
+        switch (tabTitle) {
+            case SELECTED_CODE_TAB:
+                return selectedCodeText;
+            case HTML_SOURCE_TAB:
+                return htmlSourceText;
+            case MARKDOWN_TAB:
+                return markdownText;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Gets the HTML source of the current explanation, joining the sections of the sectioned viewer on demand.
+     */
+    private String getHtmlSource() {
+        if (htmlSource == null && htmlSections != null) {
+            htmlSource = String.join("\n", htmlSections);
         }
+        return htmlSource != null ? htmlSource : "";
     }
 
     /**
@@ -355,10 +476,7 @@ public class CodeExplanationToolWindow {
      * @return HTML representation of the markdown
      */
     private String markdownToHtml(String markdownInput) {
-        Parser parser = Parser.builder().build();
-        Document document = parser.parse(markdownInput);
-        HtmlRenderer renderer = HtmlRenderer.builder().build();
-        return renderer.render(document);
+        return MarkdownRenderService.getInstance().toHtml(markdownInput);
     }
 
     /**
@@ -372,6 +490,8 @@ public class CodeExplanationToolWindow {
      * Shows the loading panel in the explanation tab with the initial message.
      */
     public void showLoading() {
+        renderCount++;
+        stopStreaming();
         explanationPanel.removeAll();
         explanationPanel.add(loadingPanel, BorderLayout.CENTER);
         explanationPanel.revalidate();
@@ -401,6 +521,8 @@ public class CodeExplanationToolWindow {
         }
 
         // Then show the loading panel
+        renderCount++;
+        stopStreaming();
         explanationPanel.removeAll();
         explanationPanel.add(loadingPanel, BorderLayout.CENTER);
         explanationPanel.revalidate();
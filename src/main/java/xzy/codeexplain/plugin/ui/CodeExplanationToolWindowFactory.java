@@ -1,5 +1,6 @@
 package xzy.codeexplain.plugin.ui;
 
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.wm.ToolWindow;
 import com.intellij.openapi.wm.ToolWindowFactory;
@@ -7,6 +8,8 @@ import com.intellij.openapi.wm.ToolWindowType;
 import com.intellij.ui.content.Content;
 import com.intellij.ui.content.ContentFactory;
 import org.jetbrains.annotations.NotNull;
+import xzy.codeexplain.plugin.config.PluginConfig;
+import xzy.codeexplain.plugin.services.CodeAnalyzerService;
 import xzy.codeexplain.plugin.services.CodeExplanationToolWindowService;
 
 /**
@@ -36,5 +39,10 @@ public class CodeExplanationToolWindowFactory implements ToolWindowFactory {
         // Store the tool window instance in the project service for later access
         CodeExplanationToolWindowService service = project.getService(CodeExplanationToolWindowService.class);
         service.setToolWindow(codeExplanationToolWindow);
+
+        // An explanation is likely to follow, open the connection to the API ahead of it
+        if (PluginConfig.isPreconnectEnabled()) {
+            ApplicationManager.getApplication().getService(CodeAnalyzerService.class).warmUpConnection();
+        }
     }
 }
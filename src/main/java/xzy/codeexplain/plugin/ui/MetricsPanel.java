@@ -0,0 +1,87 @@
+package xzy.codeexplain.plugin.ui;
+
+import com.intellij.openapi.fileChooser.FileChooserFactory;
+import com.intellij.openapi.fileChooser.FileSaverDescriptor;
+import com.intellij.openapi.ide.CopyPasteManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileWrapper;
+import com.intellij.ui.components.JBPanel;
+import com.intellij.ui.components.JBScrollPane;
+import org.jetbrains.annotations.Nullable;
+import xzy.codeexplain.plugin.metrics.PipelineMetrics;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.datatransfer.StringSelection;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Debug tab showing the metrics of the explanation pipeline, see {@link PipelineMetrics}. The metrics are only
+ * formatted when the tab is refreshed, and can be copied or saved as a JSON snapshot.
+ */
+public class MetricsPanel extends JBPanel<MetricsPanel> {
+    private final Project project;
+    private final JTextArea metricsText;
+
+    /**
+     * Creates the panel.
+     *
+     * @param project     The project the tool window belongs to, used as parent of dialogs
+     * @param metricsText The text area showing the metrics
+     */
+    public MetricsPanel(@Nullable Project project, JTextArea metricsText) {
+        super(new BorderLayout());
+        this.project = project;
+        this.metricsText = metricsText;
+
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        JButton refreshButton = new JButton("Refresh");
+        refreshButton.addActionListener(e -> refresh());
+        buttons.add(refreshButton);
+        JButton resetButton = new JButton("Reset");
+        resetButton.addActionListener(e -> {
+            PipelineMetrics.getInstance().reset();
+            refresh();
+        });
+        buttons.add(resetButton);
+        JButton copyButton = new JButton("Copy JSON");
+        copyButton.addActionListener(e -> CopyPasteManager.getInstance()
+                .setContents(new StringSelection(PipelineMetrics.getInstance().snapshot().toJson())));
+        buttons.add(copyButton);
+        JButton exportButton = new JButton("Export JSON...");
+        exportButton.addActionListener(e -> export());
+        buttons.add(exportButton);
+
+        add(buttons, BorderLayout.NORTH);
+        add(new JBScrollPane(metricsText), BorderLayout.CENTER);
+    }
+
+    /**
+     * Shows the current metrics.
+     */
+    public void refresh() {
+        metricsText.setText(PipelineMetrics.getInstance().snapshot().format());
+        metricsText.setCaretPosition(0);
+    }
+
+    /**
+     * Asks for a file and saves a JSON snapshot of the metrics to it.
+     */
+    private void export() {
+        FileSaverDescriptor descriptor = new FileSaverDescriptor("Export Metrics", "Save a JSON snapshot of the metrics", "json");
+        VirtualFileWrapper target = FileChooserFactory.getInstance().createSaveFileDialog(descriptor, project)
+                .save((VirtualFile) null, "codeexplain-metrics.json");
+        if (target == null) {
+            return;
+        }
+        try {
+            Files.writeString(target.getFile().toPath(), PipelineMetrics.getInstance().snapshot().toJson(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            Messages.showErrorDialog(project, "Error: Could not export the metrics: " + e.getMessage(), "Export Metrics");
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package xzy.codeexplain.plugin.ui;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import xzy.codeexplain.plugin.services.MarkdownRenderService;
+
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.html.HTMLDocument;
+import java.io.IOException;
+
+/**
+ * Renders a markdown explanation into a {@link JEditorPane} while it is still being streamed.
+ * <p>
+ * The markdown is split at the last blank line outside a fenced code block. Everything before that point
+ * can no longer change, so it is rendered once and appended to the document. Only the unfinished tail is
+ * rendered again on every update. Blocks are rendered independently while streaming, so constructs that
+ * span blank lines may look slightly different until the complete explanation is rendered as a whole.
+ * <p>
+ * Markdown is converted on the render thread of {@link MarkdownRenderService}, as the tail can grow large, e.g.
+ * inside a long code block; only the finished HTML is inserted on the EDT. Updates arriving while a render is
+ * running are coalesced, and only the latest one is rendered next.
+ * <p>
+ * All methods must be called on the EDT.
+ */
+class StreamingMarkdownRenderer {
+    private static final Logger LOG = Logger.getInstance(StreamingMarkdownRenderer.class);
+    private static final String EMPTY_TAIL = "<p></p>";
+
+    private final JEditorPane editorPane;
+    private String committedMarkdown = "";
+    /** Incremented by {@link #start} and {@link #stop}, so renders of an earlier stream are dropped. */
+    private long generation;
+    @Nullable
+    private String pendingMarkdown;
+    private boolean rendering;
+
+    StreamingMarkdownRenderer(@NotNull JEditorPane editorPane) {
+        this.editorPane = editorPane;
+    }
+
+    /**
+     * Clears the editor pane and prepares it for a new stream.
+     */
+    void start() {
+        stop();
+        committedMarkdown = "";
+        editorPane.setText("<html><body><div id=\"committed\"></div><div id=\"tail\">" + EMPTY_TAIL + "</div></body></html>");
+    }
+
+    /**
+     * Drops the updates not shown yet, e.g. because the complete explanation replaces the streamed one.
+     */
+    void stop() {
+        generation++;
+        pendingMarkdown = null;
+        rendering = false;
+    }
+
+    /**
+     * Shows the explanation received so far, once it has been rendered.
+     *
+     * @param markdown The complete markdown received so far
+     */
+    void update(@NotNull String markdown) {
+        pendingMarkdown = markdown;
+        if (!rendering) {
+            renderPending();
+        }
+    }
+
+    private void renderPending() {
+        String markdown = pendingMarkdown;
+        pendingMarkdown = null;
+        if (markdown == null) {
+            rendering = false;
+            return;
+        }
+        if (!markdown.startsWith(committedMarkdown)) {
+            // The server replaced the explanation instead of appending to it
+            start();
+        }
+
+        rendering = true;
+        long renderGeneration = generation;
+        int from = committedMarkdown.length();
+        MarkdownRenderService.getInstance().renderAsync(() -> RenderedUpdate.render(markdown, from))
+                .whenComplete((rendered, error) -> ApplicationManager.getApplication().invokeLater(() -> {
+                    if (renderGeneration != generation) {
+                        return;
+                    }
+                    if (error != null) {
+                        LOG.warn("Failed to render streamed explanation incrementally", error);
+                    } else {
+                        apply(markdown, rendered);
+                    }
+                    renderPending();
+                }));
+    }
+
+    private void apply(String markdown, RenderedUpdate rendered) {
+        HTMLDocument document = (HTMLDocument) editorPane.getDocument();
+        Element committed = document.getElement("committed");
+        Element tail = document.getElement("tail");
+        if (committed == null || tail == null) {
+            // The document was replaced; start over unless a newer update is waiting anyway
+            String latest = pendingMarkdown != null ? pendingMarkdown : markdown;
+            start();
+            pendingMarkdown = latest;
+            return;
+        }
+
+        try {
+            if (rendered.boundary > committedMarkdown.length()) {
+                if (!rendered.committedHtml.isBlank()) {
+                    document.insertBeforeEnd(committed, rendered.committedHtml);
+                }
+                committedMarkdown = markdown.substring(0, rendered.boundary);
+            }
+            document.setInnerHTML(tail, rendered.tailHtml.isBlank() ? EMPTY_TAIL : rendered.tailHtml);
+        } catch (BadLocationException | IOException e) {
+            LOG.warn("Failed to render streamed explanation incrementally", e);
+        }
+    }
+
+    /**
+     * Finds the end of the markdown that can no longer change: the position after the last blank line
+     * that is not inside a fenced code block. Scanning starts at the previous boundary, which is never
+     * inside a fence.
+     *
+     * @param markdown The markdown received so far
+     * @param from     The previous boundary
+     * @return The new boundary, at least {@code from}
+     */
+    static int findStableBoundary(@NotNull String markdown, int from) {
+        int boundary = from;
+        boolean inFence = false;
+        int lineStart = from;
+        int lineEnd;
+        while ((lineEnd = markdown.indexOf('\n', lineStart)) >= 0) {
+            String line = markdown.substring(lineStart, lineEnd).trim();
+            if (line.startsWith("```") || line.startsWith("~~~")) {
+                inFence = !inFence;
+            } else if (!inFence && line.isEmpty()) {
+                boundary = lineEnd + 1;
+            }
+            lineStart = lineEnd + 1;
+        }
+        return boundary;
+    }
+
+    /**
+     * The HTML of one update: the blocks that can no longer change, and the unfinished tail.
+     */
+    private static final class RenderedUpdate {
+        private final int boundary;
+        private final String committedHtml;
+        private final String tailHtml;
+
+        private RenderedUpdate(int boundary, String committedHtml, String tailHtml) {
+            this.boundary = boundary;
+            this.committedHtml = committedHtml;
+            this.tailHtml = tailHtml;
+        }
+
+        /**
+         * Renders the markdown after the blocks already shown. Runs on the render thread.
+         */
+        static RenderedUpdate render(String markdown, int from) {
+            MarkdownRenderService service = MarkdownRenderService.getInstance();
+            int boundary = findStableBoundary(markdown, from);
+            String committedHtml = boundary > from ? service.toHtml(markdown.substring(from, boundary)) : "";
+            return new RenderedUpdate(boundary, committedHtml, service.toHtml(markdown.substring(boundary)));
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package xzy.codeexplain.plugin.ui;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.swing.*;
+import javax.swing.event.ChangeListener;
+import javax.swing.text.html.HTMLEditorKit;
+import java.awt.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Viewer for very long explanations that only lays out the sections in view.
+ * <p>
+ * The explanation is shown as a vertical sequence of sections, each rendered to HTML on its own. Sections in
+ * and just around the viewport get an editor pane; all others are represented by their height only, which is
+ * estimated from their length until they have been laid out once. Editor panes of sections scrolled out of view
+ * are reused, so memory and layout cost follow the viewport rather than the size of the explanation.
+ * <p>
+ * Must be placed directly in a {@link JScrollPane} and only be used on the EDT.
+ */
+class VirtualizedExplanationView extends JPanel implements Scrollable {
+    private static final int OVERSCAN_PIXELS = 400;
+    private static final int MAX_POOLED_PANES = 16;
+
+    private final HTMLEditorKit editorKit;
+    private final Color background;
+    private final Map<Integer, JEditorPane> visiblePanes = new HashMap<>();
+    private final Deque<JEditorPane> panePool = new ArrayDeque<>();
+    private final ChangeListener viewportListener = e -> layoutVisibleSections();
+    private List<String> sections = List.of();
+    private int[] textLengths = new int[0];
+    private int[] heights = new int[0];
+    private boolean[] measured = new boolean[0];
+    private int[] offsets = new int[1];
+    private int layoutWidth = -1;
+
+    /**
+     * Creates an empty view.
+     *
+     * @param editorKit  The editor kit providing the style sheet of the explanation; every pane gets a copy of it
+     * @param background The background color behind the sections
+     */
+    VirtualizedExplanationView(@NotNull HTMLEditorKit editorKit, @NotNull Color background) {
+        super(null);
+        this.editorKit = editorKit;
+        this.background = background;
+        setBackground(background);
+    }
+
+    /**
+     * Replaces the shown explanation.
+     *
+     * @param htmlSections The HTML of every section, in order
+     * @param lengths      The length of the text of every section, used to estimate its height
+     */
+    void setSections(@NotNull List<String> htmlSections, @NotNull int[] lengths) {
+        for (JEditorPane pane : visiblePanes.values()) {
+            remove(pane);
+            release(pane);
+        }
+        visiblePanes.clear();
+
+        sections = new ArrayList<>(htmlSections);
+        textLengths = lengths.clone();
+        heights = new int[sections.size()];
+        measured = new boolean[sections.size()];
+        offsets = new int[sections.size() + 1];
+        layoutWidth = -1;
+
+        revalidate();
+        repaint();
+        scrollRectToVisible(new Rectangle(0, 0, 1, 1));
+    }
+
+    @Override
+    public void doLayout() {
+        int width = getWidth();
+        if (width <= 0) {
+            return;
+        }
+        if (width != layoutWidth) {
+            // Line wrapping changes with the width, every section has to be measured again
+            layoutWidth = width;
+            for (int i = 0; i < sections.size(); i++) {
+                heights[i] = estimateHeight(i, width);
+                measured[i] = false;
+            }
+            updateOffsets();
+        }
+        layoutVisibleSections();
+    }
+
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        // Scrolling moves the viewport without laying out the view, follow it to lay out the sections in view
+        if (getParent() instanceof JViewport) {
+            ((JViewport) getParent()).addChangeListener(viewportListener);
+        }
+    }
+
+    @Override
+    public void removeNotify() {
+        if (getParent() instanceof JViewport) {
+            ((JViewport) getParent()).removeChangeListener(viewportListener);
+        }
+        super.removeNotify();
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        int width = getParent() != null ? getParent().getWidth() : 0;
+        if (layoutWidth < 0 && width > 0) {
+            // Not laid out yet, estimate the height for the width of the viewport
+            int height = 0;
+            for (int i = 0; i < sections.size(); i++) {
+                height += estimateHeight(i, width);
+            }
+            return new Dimension(width, height);
+        }
+        return new Dimension(width, offsets[sections.size()]);
+    }
+
+    /**
+     * Creates editor panes for the sections in and around the visible area and removes the others. Sections laid
+     * out for the first time are measured; if that changes the total height, the view is laid out again.
+     */
+    void layoutVisibleSections() {
+        Rectangle visible = getVisibleRect();
+        if (sections.isEmpty() || layoutWidth <= 0) {
+            return;
+        }
+        int top = Math.max(0, visible.y - OVERSCAN_PIXELS);
+        int bottom = visible.y + visible.height + OVERSCAN_PIXELS;
+
+        int first = findSection(top);
+        boolean heightsChanged = false;
+        // Height changes of sections above the viewport are compensated by scrolling, so the view doesn't jump
+        int shiftAboveViewport = 0;
+        int last = first;
+        for (int i = first; i < sections.size() && offsets[i] < bottom; i++) {
+            last = i;
+            JEditorPane pane = visiblePanes.get(i);
+            if (pane == null) {
+                pane = acquire();
+                pane.setText(sections.get(i));
+                visiblePanes.put(i, pane);
+                add(pane);
+            }
+            if (!measured[i]) {
+                pane.setSize(layoutWidth, Short.MAX_VALUE);
+                int height = pane.getPreferredSize().height;
+                if (height != heights[i]) {
+                    if (offsets[i] + heights[i] <= visible.y) {
+                        shiftAboveViewport += height - heights[i];
+                    }
+                    heights[i] = height;
+                    heightsChanged = true;
+                    updateOffsets(i);
+                }
+                measured[i] = true;
+            }
+        }
+
+        // Remove the panes of sections that left the viewport
+        Iterator<Map.Entry<Integer, JEditorPane>> iterator = visiblePanes.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, JEditorPane> entry = iterator.next();
+            if (entry.getKey() < first || entry.getKey() > last) {
+                remove(entry.getValue());
+                release(entry.getValue());
+                iterator.remove();
+            }
+        }
+
+        for (Map.Entry<Integer, JEditorPane> entry : visiblePanes.entrySet()) {
+            int index = entry.getKey();
+            entry.getValue().setBounds(0, offsets[index], layoutWidth, heights[index]);
+        }
+
+        if (heightsChanged) {
+            revalidate();
+            if (shiftAboveViewport != 0) {
+                Point position = new Point(visible.x, Math.max(0, visible.y + shiftAboveViewport));
+                SwingUtilities.invokeLater(() -> {
+                    if (getParent() instanceof JViewport) {
+                        ((JViewport) getParent()).setViewPosition(position);
+                    }
+                });
+            }
+        }
+        repaint();
+    }
+
+    /**
+     * Estimates the height of a section from its length, assuming an average character width.
+     */
+    private int estimateHeight(int index, int width) {
+        FontMetrics metrics = getFontMetrics(getFont());
+        int charWidth = Math.max(1, metrics.charWidth('m') * 3 / 4);
+        int charsPerLine = Math.max(10, width / charWidth);
+        int lines = 1 + textLengths[index] / charsPerLine;
+        // Paragraph margins and spacing between the lines
+        return lines * (metrics.getHeight() + 2) + 16;
+    }
+
+    /**
+     * Finds the section containing the given y coordinate.
+     */
+    private int findSection(int y) {
+        int low = 0;
+        int high = sections.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (offsets[middle] <= y) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private void updateOffsets() {
+        updateOffsets(0);
+    }
+
+    private void updateOffsets(int from) {
+        for (int i = from; i < sections.size(); i++) {
+            offsets[i + 1] = offsets[i] + heights[i];
+        }
+    }
+
+    private JEditorPane acquire() {
+        JEditorPane pane = panePool.poll();
+        if (pane != null) {
+            return pane;
+        }
+        pane = new JEditorPane();
+        pane.setEditable(false);
+        // An editor kit is installed in one pane at a time; the copies share the style sheet
+        pane.setEditorKit((HTMLEditorKit) editorKit.clone());
+        pane.setBackground(background);
+        return pane;
+    }
+
+    private void release(JEditorPane pane) {
+        if (panePool.size() < MAX_POOLED_PANES) {
+            pane.setText("");
+            panePool.push(pane);
+        }
+    }
+
+    @Override
+    public Dimension getPreferredScrollableViewportSize() {
+        return getPreferredSize();
+    }
+
+    @Override
+    public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return getFontMetrics(getFont()).getHeight();
+    }
+
+    @Override
+    public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return orientation == SwingConstants.VERTICAL ? visibleRect.height : visibleRect.width;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return true;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportHeight() {
+        return false;
+    }
+}
@@ -0,0 +1,182 @@
+package xzy.codeexplain.standin;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The contexts clients uploaded in context sessions, by the SHA-256 hash of their UTF-8 bytes, hex encoded.
+ * Keeps the most recently used contexts only, like a real server would, so clients must cope with forgotten ones.
+ * <p>
+ * A request of a session names its context with {@code contextHash} and carries either the full {@code context},
+ * nothing else to reference a stored context, or {@code contextBase} with {@code contextEdits}: line edits of a
+ * stored context, each {@code {"start", "deleteCount", "lines"}} with line positions in the base and lines including
+ * their line terminators.
+ */
+public class ContextStore {
+
+    private final Map<String, String> contexts;
+
+    /**
+     * Creates a store.
+     *
+     * @param maxContexts The number of contexts kept
+     */
+    public ContextStore(int maxContexts) {
+        contexts = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxContexts;
+            }
+        };
+    }
+
+    /**
+     * Resolves the context of a request and stores it. Requests without a context hash are not part of a session,
+     * their context is stored anyway so later requests may reference it.
+     *
+     * @param request The request
+     * @return The context, and its hash to acknowledge
+     * @throws UnknownContextException If the request references a context that is not stored, or the result does
+     *                                 not match the hash
+     * @throws IllegalArgumentException If the context edits are invalid
+     */
+    public Resolved resolve(JsonObject request) throws UnknownContextException {
+        String context = request.has("context") && !request.get("context").isJsonNull()
+                ? request.get("context").getAsString() : null;
+        if (!request.has("contextHash")) {
+            context = context != null ? context : "";
+            String hash = hash(context);
+            put(hash, context);
+            return new Resolved(context, hash);
+        }
+
+        String hash = request.get("contextHash").getAsString();
+        if (context == null && request.has("contextBase")) {
+            String base = get(request.get("contextBase").getAsString());
+            if (base == null) {
+                throw new UnknownContextException("Unknown context base");
+            }
+            context = applyEdits(base, request.getAsJsonArray("contextEdits"));
+        } else if (context == null) {
+            context = get(hash);
+            if (context == null) {
+                throw new UnknownContextException("Unknown context hash");
+            }
+        }
+        if (!hash(context).equals(hash)) {
+            throw new UnknownContextException("Context does not match its hash");
+        }
+        put(hash, context);
+        return new Resolved(context, hash);
+    }
+
+    private synchronized String get(String hash) {
+        return contexts.get(hash);
+    }
+
+    private synchronized void put(String hash, String context) {
+        contexts.put(hash, context);
+    }
+
+    private static String applyEdits(String base, JsonArray edits) {
+        if (edits == null) {
+            throw new IllegalArgumentException("Missing contextEdits");
+        }
+        List<String> lines = splitLines(base);
+        StringBuilder context = new StringBuilder(base.length());
+        int position = 0;
+        for (JsonElement element : edits) {
+            JsonObject edit = element.getAsJsonObject();
+            int start = edit.get("start").getAsInt();
+            int deleteCount = edit.get("deleteCount").getAsInt();
+            if (start < position || deleteCount < 0 || start + deleteCount > lines.size()) {
+                throw new IllegalArgumentException("Context edit out of order or range");
+            }
+            for (int i = position; i < start; i++) {
+                context.append(lines.get(i));
+            }
+            for (JsonElement line : edit.getAsJsonArray("lines")) {
+                context.append(line.getAsString());
+            }
+            position = start + deleteCount;
+        }
+        for (int i = position; i < lines.size(); i++) {
+            context.append(lines.get(i));
+        }
+        return context.toString();
+    }
+
+    private static List<String> splitLines(String text) {
+        List<String> lines = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\n' || c == '\r') {
+                if (c == '\r' && i + 1 < text.length() && text.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                lines.add(text.substring(start, i + 1));
+                start = i + 1;
+            }
+        }
+        if (start < text.length()) {
+            lines.add(text.substring(start));
+        }
+        return lines;
+    }
+
+    private static String hash(String context) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        StringBuilder hash = new StringBuilder(64);
+        for (byte b : digest.digest(context.getBytes(StandardCharsets.UTF_8))) {
+            hash.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hash.toString();
+    }
+
+    /**
+     * The context of a request and its hash.
+     */
+    public static final class Resolved {
+        private final String context;
+        private final String hash;
+
+        private Resolved(String context, String hash) {
+            this.context = context;
+            this.hash = hash;
+        }
+
+        public String getContext() {
+            return context;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+    }
+
+    /**
+     * Thrown if a request references a context the store doesn't have; answered with 409 Conflict.
+     */
+    public static class UnknownContextException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public UnknownContextException(String message) {
+            super(message);
+        }
+    }
+}
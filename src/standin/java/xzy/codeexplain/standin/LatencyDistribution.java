@@ -0,0 +1,44 @@
+package xzy.codeexplain.standin;
+
+import java.util.Random;
+
+/**
+ * Log-normal distribution of response latencies, described by its median and 99th percentile. Real API latencies
+ * have a long tail like this: most requests are answered around the median, a few take many times as long.
+ */
+public class LatencyDistribution {
+    /** The 99th percentile of the standard normal distribution. */
+    private static final double Z_99 = 2.326;
+
+    private final long medianMillis;
+    private final double sigma;
+
+    /**
+     * Creates a distribution.
+     *
+     * @param medianMillis The median latency; 0 means no latency
+     * @param p99Millis    The 99th percentile; at most the median means every request takes the median
+     */
+    public LatencyDistribution(long medianMillis, long p99Millis) {
+        this.medianMillis = Math.max(0, medianMillis);
+        this.sigma = medianMillis > 0 && p99Millis > medianMillis ? Math.log((double) p99Millis / medianMillis) / Z_99 : 0;
+    }
+
+    /**
+     * Draws a latency.
+     *
+     * @param random The source of randomness
+     * @return The latency in milliseconds
+     */
+    public long sample(Random random) {
+        if (medianMillis == 0) {
+            return 0;
+        }
+        return Math.round(medianMillis * Math.exp(sigma * random.nextGaussian()));
+    }
+
+    @Override
+    public String toString() {
+        return medianMillis == 0 ? "none" : "median " + medianMillis + " ms, p99 " + Math.round(medianMillis * Math.exp(sigma * Z_99)) + " ms";
+    }
+}
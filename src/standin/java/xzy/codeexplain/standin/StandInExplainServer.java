@@ -0,0 +1,503 @@
+package xzy.codeexplain.standin;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local stand-in for the explanation API, used to test the plugin without the public backend.
+ * <p>
+ * Answers {@code POST /api/v1/explain} with a canned markdown explanation of the selected code. Requests
+ * with {@code "stream": true} get the explanation as server-sent events, one word per event, so streaming
+ * rendering can be observed; all other requests get a regular JSON response. Request bodies may be gzip
+ * compressed ({@code Content-Encoding: gzip}), and JSON responses are gzip compressed for clients that
+ * send {@code Accept-Encoding: gzip}.
+ * <p>
+ * {@code POST /api/v1/explain/batch} answers batched requests, several snippets sharing one context, with
+ * one explanation per snippet id. For tests of batching, the results can be answered in reverse order, and the
+ * endpoint can answer with an error status instead, like on a server without batch support.
+ * <p>
+ * Explain requests may be part of a context session: the server keeps the contexts it received in a
+ * {@link ContextStore} and acknowledges each with the {@code X-Context-Hash} response header, so later requests can
+ * send a context as its hash or as line edits of a stored context. Requests referencing a context the server
+ * doesn't have are answered with 409 Conflict.
+ * <p>
+ * For load tests the server can simulate a real backend: every request waits for a latency drawn from a
+ * {@link LatencyDistribution}, a share of the requests fails with 503 Service Unavailable, and explanations can be
+ * padded to a minimum size. For tests of stream handling, streams can be made to fail with an {@code error} event
+ * after a number of events, and streaming can be switched off so stream requests get a regular JSON response, like
+ * from a server without streaming support.
+ * <p>
+ * Start it with {@code ./gradlew runStandInServer} and run the IDE with
+ * {@code -Dcodeexplain.api.url=http://localhost:8089/api/v1/explain}.
+ */
+public class StandInExplainServer {
+
+    private final Gson gson = new Gson();
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long tokenDelayMillis;
+    private final LatencyDistribution latency;
+    private final double errorRate;
+    private final int responseChars;
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong failedRequestCount = new AtomicLong();
+    private final AtomicLong batchRequestCount = new AtomicLong();
+    private final AtomicLong batchedSnippetCount = new AtomicLong();
+    private final AtomicLong unknownContextCount = new AtomicLong();
+    private final ContextStore contextStore = new ContextStore(256);
+    private volatile boolean streaming = true;
+    private volatile int streamErrorAfterEvents = -1;
+    private volatile int batchStatus = 200;
+    private volatile boolean batchResultsReversed;
+
+    /**
+     * Creates a stand-in server.
+     *
+     * @param port             The port to listen on, or 0 to pick a free port
+     * @param tokenDelayMillis The delay between two streamed events
+     * @throws IOException If the server socket cannot be opened
+     */
+    public StandInExplainServer(int port, long tokenDelayMillis) throws IOException {
+        this(port, tokenDelayMillis, new LatencyDistribution(0, 0), 0, 0);
+    }
+
+    /**
+     * Creates a stand-in server simulating a real backend.
+     *
+     * @param port             The port to listen on, or 0 to pick a free port
+     * @param tokenDelayMillis The delay between two streamed events
+     * @param latency          The latency before a request is answered, or its stream starts
+     * @param errorRate        The share of requests failing with 503, between 0 and 1
+     * @param responseChars    The minimum length of an explanation; shorter ones are padded
+     * @throws IOException If the server socket cannot be opened
+     */
+    public StandInExplainServer(int port, long tokenDelayMillis, LatencyDistribution latency, double errorRate,
+                                int responseChars) throws IOException {
+        this.tokenDelayMillis = tokenDelayMillis;
+        this.latency = latency;
+        this.errorRate = Math.max(0, Math.min(1, errorRate));
+        this.responseChars = Math.max(0, responseChars);
+        this.server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        this.executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/api/v1/explain", this::handleExplain);
+        server.createContext("/api/v1/explain/batch", this::handleBatch);
+    }
+
+    /**
+     * Starts accepting requests.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops the server and its worker threads.
+     */
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Sets whether requests asking for a stream get one. Without streaming, they get a regular JSON response.
+     *
+     * @param streaming true to stream explanations, false to answer every request with JSON
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Makes streamed responses fail with an {@code error} event after a number of events.
+     *
+     * @param events The number of events sent before the error event, or -1 to never fail streams
+     */
+    public void setStreamErrorAfterEvents(int events) {
+        this.streamErrorAfterEvents = events;
+    }
+
+    /**
+     * Makes batched requests fail with a status, e.g. 404 like a server without the batch endpoint.
+     *
+     * @param status The status of every batched request, or 200 to answer them
+     */
+    public void setBatchStatus(int status) {
+        this.batchStatus = status;
+    }
+
+    /**
+     * Sets whether the results of batched requests are answered in reverse order, as a server may answer the
+     * snippets in any order.
+     *
+     * @param reversed true to answer the last snippet first
+     */
+    public void setBatchResultsReversed(boolean reversed) {
+        this.batchResultsReversed = reversed;
+    }
+
+    /**
+     * Gets the URL of the explain endpoint of this server.
+     *
+     * @return The endpoint URL
+     */
+    public String getEndpointUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/api/v1/explain";
+    }
+
+    /**
+     * Gets the number of valid explain and batch requests received so far.
+     *
+     * @return The number of requests
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Gets the number of requests failed on purpose so far, see the error rate.
+     *
+     * @return The number of failed requests
+     */
+    public long getFailedRequestCount() {
+        return failedRequestCount.get();
+    }
+
+    /**
+     * Gets the number of batched requests answered so far.
+     *
+     * @return The number of batched requests
+     */
+    public long getBatchRequestCount() {
+        return batchRequestCount.get();
+    }
+
+    /**
+     * Gets the number of snippets in the batched requests answered so far.
+     *
+     * @return The number of snippets
+     */
+    public long getBatchedSnippetCount() {
+        return batchedSnippetCount.get();
+    }
+
+    /**
+     * Gets the number of explain requests answered with 409 Conflict because they referenced an unknown context.
+     *
+     * @return The number of requests
+     */
+    public long getUnknownContextCount() {
+        return unknownContextCount.get();
+    }
+
+    private void handleExplain(HttpExchange exchange) throws IOException {
+        try {
+            JsonObject request = readRequest(exchange);
+            if (request == null) {
+                return;
+            }
+            if (!request.has("selectedCode")) {
+                sendJson(exchange, 400, error("Missing selectedCode"));
+                return;
+            }
+            if (simulateBackend(exchange)) {
+                return;
+            }
+
+            ContextStore.Resolved context;
+            try {
+                context = contextStore.resolve(request);
+            } catch (ContextStore.UnknownContextException e) {
+                unknownContextCount.incrementAndGet();
+                sendJson(exchange, 409, error(e.getMessage()));
+                return;
+            } catch (RuntimeException e) {
+                sendJson(exchange, 400, error("Invalid context edits"));
+                return;
+            }
+            exchange.getResponseHeaders().set("X-Context-Hash", context.getHash());
+
+            String explanation = explain(request.get("selectedCode").getAsString(), context.getContext());
+
+            boolean stream = streaming && request.has("stream") && request.get("stream").getAsBoolean();
+            if (stream) {
+                sendStream(exchange, explanation);
+            } else {
+                JsonObject response = new JsonObject();
+                response.addProperty("explanation", explanation);
+                sendJson(exchange, 200, response);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleBatch(HttpExchange exchange) throws IOException {
+        try {
+            JsonObject request = readRequest(exchange);
+            if (request == null) {
+                return;
+            }
+            if (batchStatus != 200) {
+                sendJson(exchange, batchStatus, error("Batched requests are not supported"));
+                return;
+            }
+            if (!request.has("snippets") || !request.get("snippets").isJsonArray()) {
+                sendJson(exchange, 400, error("Missing snippets"));
+                return;
+            }
+            if (simulateBackend(exchange)) {
+                return;
+            }
+            batchRequestCount.incrementAndGet();
+
+            String context = request.has("context") ? request.get("context").getAsString() : "";
+            JsonArray snippets = request.getAsJsonArray("snippets");
+            batchedSnippetCount.addAndGet(snippets.size());
+            JsonArray results = new JsonArray();
+            for (int i = 0; i < snippets.size(); i++) {
+                JsonObject snippet = snippets.get(batchResultsReversed ? snippets.size() - 1 - i : i).getAsJsonObject();
+                JsonObject result = new JsonObject();
+                result.add("id", snippet.get("id"));
+                if (snippet.has("selectedCode")) {
+                    result.addProperty("explanation", explain(snippet.get("selectedCode").getAsString(), context));
+                } else {
+                    result.addProperty("error", "Missing selectedCode");
+                }
+                results.add(result);
+            }
+
+            JsonObject response = new JsonObject();
+            response.add("results", results);
+            sendJson(exchange, 200, response);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Reads the JSON body of a POST request. Invalid requests are answered with an error.
+     *
+     * @param exchange The exchange
+     * @return The request, or null if it was answered with an error
+     */
+    private JsonObject readRequest(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            sendJson(exchange, 405, error("Only POST is supported"));
+            return null;
+        }
+
+        String contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        if (contentEncoding != null && !contentEncoding.equalsIgnoreCase("gzip")
+                && !contentEncoding.equalsIgnoreCase("identity")) {
+            sendJson(exchange, 415, error("Unsupported Content-Encoding: " + contentEncoding));
+            return null;
+        }
+
+        JsonObject request;
+        try (Reader reader = new InputStreamReader(requestBody(exchange, contentEncoding), StandardCharsets.UTF_8)) {
+            request = gson.fromJson(reader, JsonObject.class);
+        } catch (IOException | RuntimeException e) {
+            request = null;
+        }
+        if (request == null) {
+            sendJson(exchange, 400, error("Invalid request body"));
+        }
+        return request;
+    }
+
+    /**
+     * Waits for the simulated latency and fails the request at the configured error rate.
+     *
+     * @param exchange The exchange
+     * @return true if the request was answered with an error
+     */
+    private boolean simulateBackend(HttpExchange exchange) throws IOException {
+        requestCount.incrementAndGet();
+        long delayMillis = latency.sample(ThreadLocalRandom.current());
+        if (delayMillis > 0) {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                // The server is stopping, answer right away
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            failedRequestCount.incrementAndGet();
+            sendJson(exchange, 503, error("Simulated failure"));
+            return true;
+        }
+        return false;
+    }
+
+    private InputStream requestBody(HttpExchange exchange, String contentEncoding) throws IOException {
+        InputStream body = exchange.getRequestBody();
+        return "gzip".equalsIgnoreCase(contentEncoding) ? new GZIPInputStream(body) : body;
+    }
+
+    private String explain(String selectedCode, String context) {
+        long lines = selectedCode.lines().count();
+        StringBuilder explanation = new StringBuilder("## Explanation\n\n"
+                + "This is a stand-in explanation of **" + lines + " line(s)** of code, "
+                + "sent with " + context.length() + " characters of context.\n\n"
+                + "```\n" + selectedCode + "\n```\n\n"
+                + "- The stand-in server does not analyze the code.\n"
+                + "- It only echoes what it received so the plugin can be tested end to end.\n");
+        // Pad to the configured size, e.g. to test very long explanations
+        for (int paragraph = 1; explanation.length() < responseChars; paragraph++) {
+            explanation.append("\nPadding paragraph ").append(paragraph)
+                    .append(": the stand-in server repeats this text until the explanation is long enough. ")
+                    .append("It contains `inline code`, **bold** and *italic* text like a real explanation.\n");
+        }
+        return explanation.toString();
+    }
+
+    private void sendStream(HttpExchange exchange, String explanation) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        // A response length of 0 selects chunked transfer encoding
+        exchange.sendResponseHeaders(200, 0);
+
+        OutputStream out = exchange.getResponseBody();
+        int errorAfterEvents = streamErrorAfterEvents;
+        int events = 0;
+        int start = 0;
+        while (start < explanation.length()) {
+            if (events++ == errorAfterEvents) {
+                writeEvent(out, gson.toJson(error("Simulated stream failure")));
+                return;
+            }
+            // Send one word, including the whitespace after it, per event
+            int end = start;
+            while (end < explanation.length() && !Character.isWhitespace(explanation.charAt(end))) {
+                end++;
+            }
+            while (end < explanation.length() && Character.isWhitespace(explanation.charAt(end))) {
+                end++;
+            }
+
+            JsonObject event = new JsonObject();
+            event.addProperty("delta", explanation.substring(start, end));
+            writeEvent(out, gson.toJson(event));
+            start = end;
+
+            if (tokenDelayMillis > 0) {
+                try {
+                    Thread.sleep(tokenDelayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        writeEvent(out, "[DONE]");
+    }
+
+    private void writeEvent(OutputStream out, String data) throws IOException {
+        out.write(("data: " + data + "\n\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private void sendJson(HttpExchange exchange, int statusCode, JsonObject body) throws IOException {
+        byte[] bytes = gson.toJson(body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (OutputStream out = new GZIPOutputStream(compressed)) {
+                out.write(bytes);
+            }
+            bytes = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(statusCode, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private JsonObject error(String message) {
+        JsonObject error = new JsonObject();
+        error.addProperty("error", message);
+        return error;
+    }
+
+    /**
+     * Runs the stand-in server until the process is stopped.
+     * Accepts {@code --port <port>}, {@code --token-delay-ms <millis>}, {@code --latency-median-ms <millis>},
+     * {@code --latency-p99-ms <millis>}, {@code --error-rate <0..1>}, {@code --response-chars <chars>},
+     * {@code --streaming <true|false>}, {@code --stream-error-after <events>} and {@code --batch-status <status>}.
+     *
+     * @param args The command line arguments
+     * @throws IOException If the server socket cannot be opened
+     */
+    public static void main(String[] args) throws IOException {
+        int port = 8089;
+        long tokenDelayMillis = 30;
+        long latencyMedianMillis = 0;
+        long latencyP99Millis = 0;
+        double errorRate = 0;
+        int responseChars = 0;
+        boolean streaming = true;
+        int streamErrorAfterEvents = -1;
+        int batchStatus = 200;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--port":
+                    port = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--token-delay-ms":
+                    tokenDelayMillis = Long.parseLong(args[i + 1]);
+                    break;
+                case "--latency-median-ms":
+                    latencyMedianMillis = Long.parseLong(args[i + 1]);
+                    break;
+                case "--latency-p99-ms":
+                    latencyP99Millis = Long.parseLong(args[i + 1]);
+                    break;
+                case "--error-rate":
+                    errorRate = Double.parseDouble(args[i + 1]);
+                    break;
+                case "--response-chars":
+                    responseChars = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--streaming":
+                    streaming = Boolean.parseBoolean(args[i + 1]);
+                    break;
+                case "--stream-error-after":
+                    streamErrorAfterEvents = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--batch-status":
+                    batchStatus = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        StandInExplainServer server = new StandInExplainServer(port, tokenDelayMillis,
+                new LatencyDistribution(latencyMedianMillis, latencyP99Millis), errorRate, responseChars);
+        server.setStreaming(streaming);
+        server.setStreamErrorAfterEvents(streamErrorAfterEvents);
+        server.setBatchStatus(batchStatus);
+        server.start();
+        System.out.println("Stand-in explain server listening on " + server.getEndpointUrl());
+    }
+}
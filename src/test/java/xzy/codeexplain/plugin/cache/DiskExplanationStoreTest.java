@@ -0,0 +1,233 @@
+package xzy.codeexplain.plugin.cache;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the disk explanation store across reopening, with corrupted and truncated logs and under its size cap.
+ */
+class DiskExplanationStoreTest {
+
+    private static final long MAX_BYTES = 1024 * 1024;
+    private static final int RECORD_HEADER_SIZE = 44;
+
+    private Path directory;
+    private DiskExplanationStore store;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        directory = Files.createTempDirectory("explanations");
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (store != null) {
+            store.close();
+            store = null;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toArray(Path[]::new)) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    void testExplanationsSurviveReopening() throws Exception {
+        store = DiskExplanationStore.open(directory, MAX_BYTES);
+        for (int i = 0; i < 100; i++) {
+            store.put(key(i), explanation(i, 50));
+        }
+        // Superseded explanations stay in the log but not in the index
+        store.put(key(7), "\u00dcberarbeitet: **7**");
+
+        reopen(MAX_BYTES);
+        assertEquals(100, store.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i == 7 ? "\u00dcberarbeitet: **7**" : explanation(i, 50), store.get(key(i)), "Explanation " + i);
+        }
+        assertNull(store.get(key(100)));
+        assertEquals(100, store.getHitCount());
+        assertEquals(1, store.getMissCount());
+        assertEquals(0, store.getChecksumFailureCount());
+    }
+
+    @Test
+    void testCorruptedRecordIsRejectedByItsChecksum() throws Exception {
+        store = DiskExplanationStore.open(directory, MAX_BYTES);
+        store.put(key(0), explanation(0, 50));
+        store.put(key(1), explanation(1, 50));
+        store.close();
+        store = null;
+
+        // Flip a bit of the first explanation, behind the back of the index
+        try (FileChannel log = FileChannel.open(logFile(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer value = ByteBuffer.allocate(1);
+            log.read(value, RECORD_HEADER_SIZE + 10);
+            value.put(0, (byte) (value.get(0) ^ 0x01)).rewind();
+            log.write(value, RECORD_HEADER_SIZE + 10);
+        }
+
+        reopen(MAX_BYTES);
+        assertNull(store.get(key(0)));
+        assertEquals(1, store.getChecksumFailureCount());
+        assertEquals(1, store.getMissCount());
+        assertEquals(explanation(1, 50), store.get(key(1)));
+    }
+
+    @Test
+    void testTruncatedTailIsIgnoredAndOverwritten() throws Exception {
+        store = DiskExplanationStore.open(directory, MAX_BYTES);
+        store.put(key(0), explanation(0, 50));
+        store.put(key(1), explanation(1, 50));
+        long logLength = store.getLogLength();
+        store.close();
+        store = null;
+
+        // A crash in the middle of appending leaves the first half of a record after the indexed log
+        byte[] record = recordOf(key(2), explanation(2, 50));
+        Files.write(logFile(), Arrays.copyOf(record, record.length / 2), StandardOpenOption.APPEND);
+
+        reopen(MAX_BYTES);
+        assertEquals(logLength, store.getLogLength());
+        assertEquals(logLength, Files.size(logFile()));
+        assertEquals(2, store.size());
+        assertNull(store.get(key(2)));
+        assertEquals(0, store.getChecksumFailureCount());
+
+        store.put(key(3), explanation(3, 50));
+        assertEquals(logLength + record.length, store.getLogLength());
+
+        reopen(MAX_BYTES);
+        assertEquals(3, store.size());
+        assertEquals(explanation(0, 50), store.get(key(0)));
+        assertEquals(explanation(1, 50), store.get(key(1)));
+        assertEquals(explanation(3, 50), store.get(key(3)));
+        assertNull(store.get(key(2)));
+    }
+
+    @Test
+    void testTruncatedLogRebuildsTheIndex() throws Exception {
+        store = DiskExplanationStore.open(directory, MAX_BYTES);
+        store.put(key(0), explanation(0, 50));
+        store.put(key(1), explanation(1, 50));
+        long firstRecordSize = RECORD_HEADER_SIZE + explanation(0, 50).length();
+        store.close();
+        store = null;
+
+        // The index points past the end of a log that lost part of its last record
+        try (FileChannel log = FileChannel.open(logFile(), StandardOpenOption.WRITE)) {
+            log.truncate(firstRecordSize + 10);
+        }
+
+        reopen(MAX_BYTES);
+        assertEquals(firstRecordSize, store.getLogLength());
+        assertEquals(1, store.size());
+        assertEquals(explanation(0, 50), store.get(key(0)));
+        assertNull(store.get(key(1)));
+
+        store.put(key(1), explanation(1, 50));
+        reopen(MAX_BYTES);
+        assertEquals(2, store.size());
+        assertEquals(explanation(1, 50), store.get(key(1)));
+    }
+
+    @Test
+    void testCompactionKeepsTheNewestExplanations() throws Exception {
+        // Records of 300 bytes, of which the compacted log keeps the 10 newest that fit into 3072 bytes
+        long maxBytes = 4096;
+        int recordSize = RECORD_HEADER_SIZE + 256;
+        store = DiskExplanationStore.open(directory, maxBytes);
+        for (int i = 0; i < 40; i++) {
+            store.put(key(i), explanation(i, 256));
+            assertTrue(store.getLogLength() <= maxBytes, "Log length " + store.getLogLength() + " after " + i);
+        }
+
+        assertIndexMatchesLog(40, recordSize);
+        for (int i = 0; i < 20; i++) {
+            assertNull(store.get(key(i)), "Explanation " + i);
+        }
+        for (int i = 30; i < 40; i++) {
+            assertEquals(explanation(i, 256), store.get(key(i)), "Explanation " + i);
+        }
+
+        // Superseded records are dropped
+        store.put(key(39), explanation(139, 256));
+        store.compact();
+        assertIndexMatchesLog(40, recordSize);
+        assertEquals(explanation(139, 256), store.get(key(39)));
+        assertTrue(store.size() <= 10, "Size " + store.size());
+
+        int size = store.size();
+        reopen(maxBytes);
+        assertEquals(size, store.size());
+        assertIndexMatchesLog(40, recordSize);
+        assertEquals(explanation(139, 256), store.get(key(39)));
+    }
+
+    /**
+     * Asserts that the indexed explanations are exactly the ones that can be read, and that the log holds nothing else.
+     */
+    private void assertIndexMatchesLog(int keyCount, int recordSize) {
+        int readable = 0;
+        for (int i = 0; i < keyCount; i++) {
+            if (store.get(key(i)) != null) {
+                readable++;
+            }
+        }
+        assertEquals(store.size(), readable);
+        assertEquals((long) readable * recordSize, store.getLogLength());
+        assertEquals(0, store.getChecksumFailureCount());
+    }
+
+    private void reopen(long maxBytes) throws IOException {
+        if (store != null) {
+            store.close();
+        }
+        store = DiskExplanationStore.open(directory, maxBytes);
+    }
+
+    private Path logFile() {
+        return directory.resolve("explanations.log");
+    }
+
+    /**
+     * Gets the bytes of the record an explanation is written as, by writing it to a store of its own.
+     */
+    private byte[] recordOf(String key, String explanation) throws IOException {
+        Path recordDirectory = Files.createDirectory(directory.resolve("record"));
+        try (DiskExplanationStore recordStore = DiskExplanationStore.open(recordDirectory, MAX_BYTES)) {
+            recordStore.put(key, explanation);
+        }
+        return Files.readAllBytes(recordDirectory.resolve("explanations.log"));
+    }
+
+    private static String key(int index) {
+        return ExplanationCache.keyFor("test", "int snippet" + index + ";", null);
+    }
+
+    /**
+     * Creates an ASCII explanation of the given length.
+     */
+    private static String explanation(int index, int length) {
+        StringBuilder explanation = new StringBuilder("Explanation " + index + ":");
+        while (explanation.length() < length) {
+            explanation.append(' ').append(index);
+        }
+        explanation.setLength(length);
+        return explanation.toString();
+    }
+}
@@ -0,0 +1,162 @@
+package xzy.codeexplain.plugin.client;
+
+import org.junit.jupiter.api.Test;
+import xzy.codeexplain.plugin.models.ContextEdit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests that applying the line edits computed by {@link ContextDiff} to the base text reproduces the target text.
+ */
+class ContextDiffTest {
+
+    @Test
+    void testSplitLinesKeepsEveryLineTerminator() {
+        assertEquals(List.of("a\r\n", "b\r", "c\n", "d"), ContextDiff.splitLines("a\r\nb\rc\nd"));
+        assertEquals(List.of("\r", "\r\n", "\n"), ContextDiff.splitLines("\r\r\n\n"));
+        assertEquals(List.of(), ContextDiff.splitLines(""));
+        assertEquals("x\r\ny\rz", String.join("", ContextDiff.splitLines("x\r\ny\rz")));
+    }
+
+    @Test
+    void testDiffThenApplyReproducesTheTarget() {
+        assertRoundTrip("a\nb\nc\nd\n", "a\nB\nc\nd\ne\n");
+        assertRoundTrip("a\nb\nc\nd\n", "b\nd\n");
+        assertRoundTrip("a\nb\nc\n", "x\ny\na\nb\nc\nz\n");
+        assertRoundTrip("", "a\nb\n");
+        assertRoundTrip("a\nb\n", "");
+        assertRoundTrip("a\nb", "a\nb\n");
+    }
+
+    @Test
+    void testLineTerminatorsAreKept() {
+        // Changing only a line terminator is an edit of that line
+        assertRoundTrip("a\r\nb\r\nc\r\n", "a\r\nb\nc\r\n");
+        assertRoundTrip("a\rb\rc\r", "a\rb\r\nx\rc\r");
+        assertRoundTrip("a\nb\r\nc\rd", "a\r\nb\nc\r\nd");
+
+        List<ContextEdit> edits = ContextDiff.diff(ContextDiff.splitLines("a\r\nb\r\nc\r\n"),
+                ContextDiff.splitLines("a\r\nb\nc\r\n"), 10);
+        assertNotNull(edits);
+        assertEquals(1, edits.size());
+        assertEquals(1, edits.get(0).getStart());
+        assertEquals(1, edits.get(0).getDeleteCount());
+        assertEquals(List.of("b\n"), edits.get(0).getLines());
+    }
+
+    @Test
+    void testSharedPrefixAndSuffixAreNotEdited() {
+        List<String> base = numberedLines(100);
+        List<String> target = new ArrayList<>(base);
+        target.set(50, "changed\n");
+
+        List<ContextEdit> edits = ContextDiff.diff(base, target, 2);
+        assertNotNull(edits);
+        assertEquals(1, edits.size());
+        assertEquals(50, edits.get(0).getStart());
+        assertEquals(1, edits.get(0).getDeleteCount());
+        assertEquals(List.of("changed\n"), edits.get(0).getLines());
+        assertEquals(String.join("", target), apply(base, edits));
+    }
+
+    @Test
+    void testIdenticalTextsNeedNoEdits() {
+        List<String> lines = numberedLines(10);
+        assertEquals(List.of(), ContextDiff.diff(lines, new ArrayList<>(lines), 0));
+    }
+
+    @Test
+    void testTextsDifferingInMoreLinesThanTheMaximumAreNotDiffed() {
+        List<String> base = numberedLines(20);
+        List<String> target = new ArrayList<>(base);
+        target.set(5, "changed\n");
+        target.set(15, "changed\n");
+
+        // Each replaced line is one deletion and one insertion
+        assertNull(ContextDiff.diff(base, target, 3));
+        List<ContextEdit> edits = ContextDiff.diff(base, target, 4);
+        assertNotNull(edits);
+        assertEquals(2, edits.size());
+        assertEquals(String.join("", target), apply(base, edits));
+        assertNull(ContextDiff.diff(List.of(), List.of("a\n", "b\n"), 1));
+    }
+
+    @Test
+    void testRandomEditsRoundTrip() {
+        Random random = new Random(42);
+        String[] terminators = {"\n", "\r\n", "\r"};
+        for (int round = 0; round < 200; round++) {
+            List<String> base = new ArrayList<>();
+            int lineCount = random.nextInt(40);
+            for (int i = 0; i < lineCount; i++) {
+                base.add("line " + random.nextInt(10) + terminators[random.nextInt(terminators.length)]);
+            }
+            List<String> target = new ArrayList<>(base);
+            int editCount = random.nextInt(6);
+            for (int i = 0; i < editCount; i++) {
+                int position = target.isEmpty() ? 0 : random.nextInt(target.size());
+                switch (random.nextInt(3)) {
+                    case 0:
+                        target.add(position, "inserted " + i + "\n");
+                        break;
+                    case 1:
+                        if (!target.isEmpty()) {
+                            target.remove(position);
+                        }
+                        break;
+                    default:
+                        if (!target.isEmpty()) {
+                            target.set(position, "replaced " + i + "\r\n");
+                        }
+                        break;
+                }
+            }
+
+            List<ContextEdit> edits = ContextDiff.diff(base, target, 1000);
+            assertNotNull(edits);
+            assertEquals(String.join("", target), apply(base, edits), "Round " + round);
+        }
+    }
+
+    private static void assertRoundTrip(String base, String target) {
+        List<String> baseLines = ContextDiff.splitLines(base);
+        List<ContextEdit> edits = ContextDiff.diff(baseLines, ContextDiff.splitLines(target), 100);
+        assertNotNull(edits);
+        assertEquals(target, apply(baseLines, edits));
+    }
+
+    /**
+     * Applies edits like the server does, checking they are ordered and in range.
+     */
+    private static String apply(List<String> base, List<ContextEdit> edits) {
+        StringBuilder text = new StringBuilder();
+        int position = 0;
+        for (ContextEdit edit : edits) {
+            assertTrue(edit.getStart() >= position, "Edits out of order");
+            assertTrue(edit.getStart() + edit.getDeleteCount() <= base.size(), "Edit out of range");
+            for (int i = position; i < edit.getStart(); i++) {
+                text.append(base.get(i));
+            }
+            for (String line : edit.getLines()) {
+                text.append(line);
+            }
+            position = edit.getStart() + edit.getDeleteCount();
+        }
+        for (int i = position; i < base.size(); i++) {
+            text.append(base.get(i));
+        }
+        return text.toString();
+    }
+
+    private static List<String> numberedLines(int count) {
+        List<String> lines = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            lines.add("line " + i + "\n");
+        }
+        return lines;
+    }
+}
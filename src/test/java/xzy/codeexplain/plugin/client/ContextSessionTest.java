@@ -0,0 +1,161 @@
+package xzy.codeexplain.plugin.client;
+
+import com.google.gson.Gson;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import xzy.codeexplain.plugin.models.CodeAnalysisRequest;
+import xzy.codeexplain.standin.StandInExplainServer;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests context sessions against the context store of the stand-in server: contexts sent as hashes and as line
+ * edits, and the fallback to the full context when the server doesn't know them.
+ */
+class ContextSessionTest {
+
+    private static final String CODE = "int answer = 42;";
+
+    private StandInExplainServer server;
+    private HttpClient httpClient;
+    private ContextSession session;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = new StandInExplainServer(0, 0);
+        server.start();
+        httpClient = HttpClient.newHttpClient();
+        session = new ContextSession(server.getEndpointUrl());
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    void testAcknowledgedContextIsSentAsItsHash() throws Exception {
+        String context = context(200, -1);
+        ContextSession.Upload first = session.prepare(request(context));
+        assertNotNull(first);
+        assertEquals(ContextSession.Kind.FULL, first.getKind());
+        assertEquals(context, first.getRequest().getContext());
+        assertAcknowledged(send(server, first), context);
+        assertEquals(ContextSession.Support.SUPPORTED, session.getSupport());
+
+        ContextSession.Upload second = session.prepare(request(context));
+        assertNotNull(second);
+        assertEquals(ContextSession.Kind.HASH, second.getKind());
+        assertNull(second.getRequest().getContext());
+        assertEquals(CODE.length(), second.getChars());
+        assertAcknowledged(send(server, second), context);
+        assertEquals(0, server.getUnknownContextCount());
+    }
+
+    @Test
+    void testEditedContextIsSentAsEdits() throws Exception {
+        String context = context(200, -1);
+        send(server, session.prepare(request(context)));
+
+        String edited = context(200, 120);
+        ContextSession.Upload delta = session.prepare(request(edited));
+        assertNotNull(delta);
+        assertEquals(ContextSession.Kind.DELTA, delta.getKind());
+        assertNull(delta.getRequest().getContext());
+        assertTrue(delta.getChars() < edited.length() / 10, "Edits are not smaller than the context: " + delta.getChars());
+        // The server applies the edits to the stored context and checks the result against the hash
+        assertAcknowledged(send(server, delta), edited);
+
+        ContextSession.Upload again = session.prepare(request(edited));
+        assertNotNull(again);
+        assertEquals(ContextSession.Kind.HASH, again.getKind());
+    }
+
+    @Test
+    void testUnknownHashFallsBackToTheFullContext() throws Exception {
+        String context = context(200, -1);
+        send(server, session.prepare(request(context)));
+
+        // A server that never saw the context, e.g. one that was restarted
+        StandInExplainServer restarted = new StandInExplainServer(0, 0);
+        restarted.start();
+        try {
+            ContextSession.Upload hash = session.prepare(request(context));
+            assertNotNull(hash);
+            assertEquals(ContextSession.Kind.HASH, hash.getKind());
+            assertEquals(409, send(restarted, hash).statusCode());
+            assertEquals(1, restarted.getUnknownContextCount());
+
+            ContextSession.Upload full = session.fallback(hash);
+            assertEquals(ContextSession.Kind.FULL, full.getKind());
+            assertEquals(context, full.getRequest().getContext());
+            assertAcknowledged(send(restarted, full), context);
+        } finally {
+            restarted.stop();
+        }
+    }
+
+    @Test
+    void testUnknownBaseFallsBackToTheFullContext() throws Exception {
+        send(server, session.prepare(request(context(200, -1))));
+
+        StandInExplainServer restarted = new StandInExplainServer(0, 0);
+        restarted.start();
+        try {
+            String edited = context(200, 30);
+            ContextSession.Upload delta = session.prepare(request(edited));
+            assertNotNull(delta);
+            assertEquals(ContextSession.Kind.DELTA, delta.getKind());
+            assertEquals(409, send(restarted, delta).statusCode());
+
+            // The forgotten base is not diffed against again
+            ContextSession.Upload next = session.prepare(request(context(200, 31)));
+            assertNotNull(next);
+            assertNotEquals(ContextSession.Kind.DELTA, next.getKind());
+
+            assertAcknowledged(send(restarted, session.fallback(delta)), edited);
+        } finally {
+            restarted.stop();
+        }
+    }
+
+    private HttpResponse<String> send(StandInExplainServer target, ContextSession.Upload upload) throws Exception {
+        HttpRequest httpRequest = HttpRequest.newBuilder(URI.create(target.getEndpointUrl()))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(new Gson().toJson(upload.getRequest())))
+                .build();
+        HttpResponse<String> response = httpClient.send(httpRequest, HttpResponse.BodyHandlers.ofString());
+        session.onResponse(upload, response);
+        return response;
+    }
+
+    private static void assertAcknowledged(HttpResponse<String> response, String context) {
+        assertEquals(200, response.statusCode(), response.body());
+        assertEquals(ContextSession.hash(context),
+                response.headers().firstValue(ContextSession.CONTEXT_HASH_HEADER).orElse(null));
+    }
+
+    private static CodeAnalysisRequest request(String context) {
+        return new CodeAnalysisRequest(CODE, context, "markdown");
+    }
+
+    /**
+     * Creates a context of numbered lines with Windows line endings, one of them changed.
+     *
+     * @param lineCount   The number of lines
+     * @param changedLine The line to change, or -1 for none
+     */
+    private static String context(int lineCount, int changedLine) {
+        StringBuilder context = new StringBuilder();
+        for (int i = 0; i < lineCount; i++) {
+            context.append(i == changedLine ? "    // changed line " : "    int field").append(i).append(";\r\n");
+        }
+        return context.toString();
+    }
+}
@@ -0,0 +1,153 @@
+package xzy.codeexplain.plugin.client;
+
+import com.google.gson.Gson;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import xzy.codeexplain.plugin.backend.HttpExplanationBackend;
+import xzy.codeexplain.plugin.models.CodeAnalysisRequest;
+import xzy.codeexplain.standin.LatencyDistribution;
+import xzy.codeexplain.standin.StandInExplainServer;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests parsing streamed explanations, and the fallback to JSON responses, against the stand-in server.
+ */
+class ExplanationStreamSubscriberTest {
+
+    private static final String CODE = "int answer = 42;";
+
+    private StandInExplainServer server;
+    private HttpClient httpClient;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = new StandInExplainServer(0, 0);
+        server.start();
+        httpClient = HttpClient.newHttpClient();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    void testPartialExplanationsGrowUntilTheCompleteExplanation() throws Exception {
+        List<String> partials = new CopyOnWriteArrayList<>();
+        String result = stream(new ExplanationStreamSubscriber(partials::add, 1_000_000, 0));
+
+        assertFalse(ExplanationClient.isError(result), result);
+        assertTrue(result.contains(CODE), result);
+        assertTrue(partials.size() > 1, "Expected several partial explanations, got " + partials.size());
+        for (int i = 1; i < partials.size(); i++) {
+            assertTrue(partials.get(i).startsWith(partials.get(i - 1)), "Partial " + i + " does not extend the one before");
+        }
+        assertEquals(result, partials.get(partials.size() - 1));
+    }
+
+    @Test
+    void testThrottledPartialsEndWithTheCompleteExplanation() throws Exception {
+        List<String> partials = new CopyOnWriteArrayList<>();
+        String result = stream(new ExplanationStreamSubscriber(partials::add, 1_000_000, 60_000));
+
+        // The first change is passed on right away, the rest only when the stream ends
+        assertEquals(2, partials.size());
+        assertEquals(result, partials.get(1));
+    }
+
+    @Test
+    void testDoneMarkerIsNotPartOfTheExplanation() throws Exception {
+        String result = stream(new ExplanationStreamSubscriber(partial -> { }, 1_000_000, 0));
+
+        assertFalse(ExplanationClient.isError(result), result);
+        assertFalse(result.contains("[DONE]"), result);
+        assertTrue(result.endsWith("end to end.\n"), result);
+    }
+
+    @Test
+    void testErrorEventFailsTheStream() throws Exception {
+        server.setStreamErrorAfterEvents(3);
+        List<String> partials = new CopyOnWriteArrayList<>();
+        String result = stream(new ExplanationStreamSubscriber(partials::add, 1_000_000, 0));
+
+        assertEquals("Error: Explanation stream failed: Simulated stream failure", result);
+        assertEquals(3, partials.size());
+    }
+
+    @Test
+    void testExplanationsLongerThanTheLimitFail() throws Exception {
+        server.stop();
+        server = new StandInExplainServer(0, 0, new LatencyDistribution(0, 0), 0, 20_000);
+        server.start();
+        List<String> partials = new CopyOnWriteArrayList<>();
+        String result = stream(new ExplanationStreamSubscriber(partials::add, 1000, 0));
+
+        assertTrue(result.startsWith("Error: Explanation stream failed: The explanation is longer than the limit of 1000"),
+                result);
+        for (String partial : partials) {
+            assertTrue(partial.length() <= 1000, "Partial explanation exceeds the limit: " + partial.length());
+        }
+    }
+
+    @Test
+    void testClientStreamsExplanations() throws Exception {
+        List<String> partials = new CopyOnWriteArrayList<>();
+        String result = explainStreaming(partials);
+
+        assertFalse(ExplanationClient.isError(result), result);
+        assertTrue(result.contains(CODE), result);
+        assertFalse(partials.isEmpty());
+        assertEquals(result, partials.get(partials.size() - 1));
+    }
+
+    @Test
+    void testClientFallsBackToJsonResponses() throws Exception {
+        server.setStreaming(false);
+        List<String> partials = new CopyOnWriteArrayList<>();
+        String result = explainStreaming(partials);
+
+        assertFalse(ExplanationClient.isError(result), result);
+        assertTrue(result.startsWith("## Explanation"), result);
+        assertTrue(result.contains(CODE), result);
+    }
+
+    private String stream(ExplanationStreamSubscriber subscriber) throws Exception {
+        CodeAnalysisRequest request = new CodeAnalysisRequest(CODE, "class Answer {}", "markdown");
+        request.setStream(true);
+        HttpRequest httpRequest = HttpRequest.newBuilder(URI.create(server.getEndpointUrl()))
+                .header("Content-Type", "application/json")
+                .header("Accept", "text/event-stream")
+                .POST(HttpRequest.BodyPublishers.ofString(new Gson().toJson(request)))
+                .build();
+        HttpResponse<String> response = httpClient.send(httpRequest, responseInfo -> HttpResponse.BodySubscribers
+                .fromLineSubscriber(subscriber, ExplanationStreamSubscriber::getResult, StandardCharsets.UTF_8, null));
+        assertEquals(200, response.statusCode());
+        return response.body();
+    }
+
+    private String explainStreaming(List<String> partials) throws Exception {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        ExplanationClient client = new ExplanationClient(null, timer,
+                List.of(new HttpExplanationBackend("Stand-in", server.getEndpointUrl())));
+        try {
+            return client.analyzeCodeStreamingAsync("test", CODE, "class Answer {}", partials::add)
+                    .get(10, TimeUnit.SECONDS);
+        } finally {
+            client.close();
+            timer.shutdownNow();
+        }
+    }
+}
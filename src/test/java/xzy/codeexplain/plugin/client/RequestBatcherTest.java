@@ -0,0 +1,170 @@
+package xzy.codeexplain.plugin.client;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import xzy.codeexplain.plugin.backend.HttpExplanationBackend;
+import xzy.codeexplain.standin.StandInExplainServer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests batching the snippets of batch explanations into batched requests to the stand-in server.
+ */
+class RequestBatcherTest {
+
+    private static final String CONTEXT = "class Answers {}";
+
+    private StandInExplainServer server;
+    private ScheduledExecutorService timer;
+    private ExplanationClient client;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        System.setProperty("codeexplain.batchRequests", "true");
+        server = new StandInExplainServer(0, 0);
+        server.start();
+        timer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (client != null) {
+            client.close();
+            client = null;
+        }
+        timer.shutdownNow();
+        server.stop();
+        System.clearProperty("codeexplain.batchRequests");
+        System.clearProperty("codeexplain.batchRequests.windowMillis");
+        System.clearProperty("codeexplain.batchRequests.maxSize");
+    }
+
+    @Test
+    void testBatchIsSentWhenTheWindowHasPassed() throws Exception {
+        List<CompletableFuture<String>> explanations = submit(startClient(200, 8), 3, "window");
+
+        long startNanos = System.nanoTime();
+        assertExplained(explanations, "window");
+        assertTrue(System.nanoTime() - startNanos >= TimeUnit.MILLISECONDS.toNanos(100),
+                "The batch was sent before its window passed");
+        assertEquals(1, server.getBatchRequestCount());
+        assertEquals(3, server.getBatchedSnippetCount());
+    }
+
+    @Test
+    void testFullBatchIsSentWithoutWaitingForTheWindow() throws Exception {
+        ExplanationClient client = startClient(60_000, 4);
+        List<CompletableFuture<String>> explanations = submit(client, 5, "full");
+
+        // Four of them fill a batch, which is sent right away; the last one waits for the window of the next one
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (countDone(explanations) < 4 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        assertEquals(4, countDone(explanations));
+        assertEquals(1, server.getBatchRequestCount());
+        assertEquals(4, server.getBatchedSnippetCount());
+        for (int i = 0; i < explanations.size(); i++) {
+            if (explanations.get(i).isDone()) {
+                assertTrue(explanations.get(i).get().contains(code("full", i)), explanations.get(i).get());
+            } else {
+                explanations.get(i).cancel(true);
+            }
+        }
+    }
+
+    @Test
+    void testResultsAreMatchedToTheirSnippetsById() throws Exception {
+        server.setBatchResultsReversed(true);
+        List<CompletableFuture<String>> explanations = submit(startClient(60_000, 4), 4, "reversed");
+
+        assertExplained(explanations, "reversed");
+        for (int i = 0; i < explanations.size(); i++) {
+            for (int j = 0; j < explanations.size(); j++) {
+                if (i != j) {
+                    assertFalse(explanations.get(i).get().contains(code("reversed", j)),
+                            "Explanation " + i + " belongs to snippet " + j);
+                }
+            }
+        }
+    }
+
+    @Test
+    void testCancelledSnippetIsNotSent() throws Exception {
+        List<CompletableFuture<String>> explanations = submit(startClient(300, 8), 3, "cancelled");
+        explanations.get(1).cancel(true);
+
+        assertThrows(CancellationException.class, () -> explanations.get(1).get());
+        assertTrue(explanations.get(0).get(10, TimeUnit.SECONDS).contains(code("cancelled", 0)));
+        assertTrue(explanations.get(2).get(10, TimeUnit.SECONDS).contains(code("cancelled", 2)));
+        assertEquals(1, server.getBatchRequestCount());
+        assertEquals(2, server.getBatchedSnippetCount());
+    }
+
+    @Test
+    void testSnippetsAreSentOneByOneWithoutBatchEndpoint() throws Exception {
+        for (int status : new int[]{404, 405, 501}) {
+            tearDown();
+            setUp();
+            server.setBatchStatus(status);
+            ExplanationClient client = startClient(50, 8);
+
+            assertExplained(submit(client, 2, "unsupported " + status), "unsupported " + status);
+            assertEquals(0, server.getBatchRequestCount(), "Status " + status);
+            assertEquals(2, server.getRequestCount(), "Status " + status);
+
+            // Batching stays off for the rest of the session
+            server.setBatchStatus(200);
+            assertExplained(submit(client, 2, "later " + status), "later " + status);
+            assertEquals(0, server.getBatchRequestCount(), "Status " + status);
+            assertEquals(4, server.getRequestCount(), "Status " + status);
+        }
+    }
+
+    private ExplanationClient startClient(long windowMillis, int maxSize) {
+        System.setProperty("codeexplain.batchRequests.windowMillis", Long.toString(windowMillis));
+        System.setProperty("codeexplain.batchRequests.maxSize", Integer.toString(maxSize));
+        client = new ExplanationClient(null, timer, List.of(new HttpExplanationBackend("Stand-in", server.getEndpointUrl())));
+        return client;
+    }
+
+    private static List<CompletableFuture<String>> submit(ExplanationClient client, int count, String name) {
+        List<CompletableFuture<String>> explanations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            explanations.add(client.analyzeBatchAsync("test", code(name, i), CONTEXT));
+        }
+        return explanations;
+    }
+
+    private static void assertExplained(List<CompletableFuture<String>> explanations, String name) throws Exception {
+        for (int i = 0; i < explanations.size(); i++) {
+            String explanation = explanations.get(i).get(10, TimeUnit.SECONDS);
+            assertFalse(ExplanationClient.isError(explanation), explanation);
+            assertTrue(explanation.contains(code(name, i)), explanation);
+        }
+    }
+
+    private static int countDone(List<CompletableFuture<String>> explanations) {
+        int done = 0;
+        for (CompletableFuture<String> explanation : explanations) {
+            if (explanation.isDone()) {
+                done++;
+            }
+        }
+        return done;
+    }
+
+    private static String code(String name, int index) {
+        return "String snippet" + index + " = \"" + name + " " + index + "\";";
+    }
+}